@@ -94,7 +94,7 @@ public class IncorrectImplementationException extends OpenRemoteRuntimeException
    */
   public IncorrectImplementationException(String msg, Throwable cause, Object... params)
   {
-    super(format(msg, params), cause);
+    super(msg, cause, params);
   }
 
 }
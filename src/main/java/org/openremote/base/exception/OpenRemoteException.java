@@ -20,10 +20,20 @@
  */
 package org.openremote.base.exception;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.text.MessageFormat;
 
 /**
- * A common (checked) exception super-class for shared functionality.
+ * A common (checked) exception super-class for shared functionality. <p>
+ *
+ * Parameterized messages are formatted lazily, when the message is first requested, rather
+ * than when the exception is created. Exceptions that are raised (and handled) as part of
+ * expected control flow therefore do not pay for message formatting they never use. Note that
+ * message parameters are held by reference until the message is formatted. <p>
+ *
+ * Subclasses may also opt out of capturing a stack trace by overriding
+ * {@link #isStackTraceEnabled()}.
  *
  * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
  */
@@ -61,6 +71,39 @@ public class OpenRemoteException extends Exception
     }
   }
 
+  /**
+   * Returns a message parameter that resolves to the message of a given exception when the
+   * message that contains it is formatted. This allows wrapping exceptions to include the
+   * message of their cause without forcing the cause's message to be formatted up front.
+   *
+   * @param throwable   exception whose message to use as a message parameter
+   *
+   * @return  message parameter that evaluates the exception message lazily
+   */
+  public static Object messageOf(final Throwable throwable)
+  {
+    return new Object()
+    {
+      @Override public String toString()
+      {
+        return (throwable == null) ? null : throwable.getMessage();
+      }
+    };
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  /**
+   * Message parameters, held until the message is formatted.
+   */
+  private transient Object[] params = null;
+
+  /**
+   * The formatted message, once formatted.
+   */
+  private String formattedMessage = null;
+
 
   // Constructors ---------------------------------------------------------------------------------
 
@@ -85,7 +128,9 @@ public class OpenRemoteException extends Exception
    */
   public OpenRemoteException(String msg, Object... params)
   {
-    super(format(msg, params));
+    super(msg);
+
+    this.params = params;
   }
 
   /**
@@ -111,8 +156,85 @@ public class OpenRemoteException extends Exception
    */
   public OpenRemoteException(String msg, Throwable cause, Object... params)
   {
-    super(format(msg, params), cause);
+    super(msg, cause);
+
+    this.params = params;
   }
 
-}
 
+  // Throwable Overrides --------------------------------------------------------------------------
+
+  /**
+   * Returns the exception message, formatting a parameterized message on first call.
+   *
+   * @return  exception message
+   */
+  @Override public synchronized String getMessage()
+  {
+    if (formattedMessage == null)
+    {
+      Object[] parameters = params;
+
+      formattedMessage = (parameters == null)
+          ? super.getMessage()
+          : format(super.getMessage(), parameters);
+
+      params = null;
+    }
+
+    return formattedMessage;
+  }
+
+  /**
+   * Captures the stack trace of this exception, unless disabled by
+   * {@link #isStackTraceEnabled()}.
+   *
+   * @return  this exception
+   */
+  @Override public synchronized Throwable fillInStackTrace()
+  {
+    if (!isStackTraceEnabled())
+    {
+      return this;
+    }
+
+    return super.fillInStackTrace();
+  }
+
+
+  // Protected Instance Methods -------------------------------------------------------------------
+
+  /**
+   * Indicates whether a stack trace should be captured when this exception is created.
+   * Subclasses used for expected control flow may override this to return false, avoiding
+   * the cost of stack trace capture. <p>
+   *
+   * Note that this method is invoked from the {@link Throwable} constructor, before any
+   * subclass instance fields have been initialized. Implementations should therefore only
+   * depend on static state.
+   *
+   * @return  true to capture a stack trace (default), false otherwise
+   */
+  protected boolean isStackTraceEnabled()
+  {
+    return true;
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Formats the message before serialization, message parameters are not serialized.
+   *
+   * @param out   object output stream
+   *
+   * @throws IOException  if serialization fails
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException
+  {
+    getMessage();
+
+    out.defaultWriteObject();
+  }
+
+}
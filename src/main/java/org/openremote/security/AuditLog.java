@@ -0,0 +1,734 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.openremote.logging.Logger;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous audit trail of key operations : key entries added, removed and retrieved,
+ * and public keys signed. Each audit event records the operation, the key manager type, the
+ * alias, whether the operation succeeded and its latency. Events are written to the
+ * {@link SecurityLog#AUDIT} log category. <p>
+ *
+ * Recording an event must not slow down the key operation itself. Events are therefore
+ * published to a bounded, lock-free ring buffer and written to the log by a background
+ * thread. If the writer falls behind and the buffer is full, new events are dropped and
+ * counted instead of blocking the caller. The number of dropped events is logged by the
+ * writer as a warning and is available from {@link #getDroppedCount()}. The writer thread
+ * sleeps while the buffer is empty and is woken by the next published event. Remaining events
+ * are written on JVM shutdown, or when {@link #shutdown(long, TimeUnit)} is called. <p>
+ *
+ * Auditing is disabled by default. It is enabled with {@link #setEnabled(boolean)} or at
+ * startup with a system property {@value #ENABLED_PROPERTY} set to 'true'. When disabled,
+ * the cost to key operations is a single volatile read. <p>
+ *
+ * Key operations are recorded as follows :
+ *
+ * <pre>
+ *   long start = AuditLog.start();
+ *   boolean success = false;
+ *
+ *   try
+ *   {
+ *     ...
+ *
+ *     success = true;
+ *   }
+ *
+ *   finally
+ *   {
+ *     AuditLog.record(AuditLog.Operation.ADD, this, alias, start, success);
+ *   }
+ * </pre>
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class AuditLog
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * System property that enables auditing at startup when set to 'true' : {@value}
+   */
+  public final static String ENABLED_PROPERTY = "org.openremote.security.audit";
+
+  /**
+   * Number of events the audit ring buffer holds : {@value}
+   */
+  public final static int DEFAULT_CAPACITY = 8192;
+
+  /**
+   * Time the JVM shutdown hook waits for the writer thread to write remaining events, in
+   * milliseconds : {@value}
+   */
+  public final static int SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Audit log category.
+   */
+  private final static Logger log = Logger.getInstance(SecurityLog.AUDIT);
+
+  /**
+   * Indicates whether key operations are recorded.
+   */
+  private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  /**
+   * The audit log key operations are recorded to.
+   */
+  private final static AuditLog instance = new AuditLog(DEFAULT_CAPACITY, new LogWriter());
+
+  static
+  {
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+    {
+      @Override public void run()
+      {
+        instance.shutdown(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }, "OpenRemote Security Audit Shutdown"));
+  }
+
+
+  /**
+   * Returns the audit log key operations are recorded to.
+   *
+   * @return    audit log
+   */
+  public static AuditLog getInstance()
+  {
+    return instance;
+  }
+
+  /**
+   * Enables or disables recording of key operations.
+   *
+   * @param enabled
+   *            true to record key operations, false to disable auditing
+   */
+  public static void setEnabled(boolean enabled)
+  {
+    AuditLog.enabled = enabled;
+  }
+
+  /**
+   * Indicates whether key operations are recorded.
+   *
+   * @return    true if auditing is enabled, false otherwise
+   */
+  public static boolean isEnabled()
+  {
+    return enabled;
+  }
+
+  /**
+   * Marks the start of a key operation.
+   *
+   * @return    start time for {@link #record}, or zero if auditing is disabled
+   */
+  public static long start()
+  {
+    return enabled ? System.nanoTime() : 0L;
+  }
+
+  /**
+   * Records a completed key operation to the audit log. Does nothing if auditing was disabled
+   * when the operation started. This method never blocks : if the audit buffer is full, the
+   * event is dropped and counted.
+   *
+   * @param operation
+   *            the key operation
+   *
+   * @param source
+   *            the key manager or key signer that executed the operation
+   *
+   * @param alias
+   *            alias or name of the key
+   *
+   * @param start
+   *            start time of the operation as returned by {@link #start()}
+   *
+   * @param success
+   *            true if the operation succeeded, false if it failed
+   */
+  public static void record(Operation operation, Object source, String alias, long start,
+                            boolean success)
+  {
+    if (start == 0L)
+    {
+      return;
+    }
+
+    instance.publish(new Event(
+        System.currentTimeMillis(), operation, source.getClass().getSimpleName(), alias,
+        success, System.nanoTime() - start
+    ));
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  /**
+   * Ring buffer slots. A null slot is free, or claimed by a producer that has not yet
+   * published its event.
+   */
+  private final AtomicReferenceArray<Event> slots;
+
+  /**
+   * Mask to map sequence numbers to slot indexes (capacity is a power of two).
+   */
+  private final int mask;
+
+  /**
+   * Next sequence number to claim by producers.
+   */
+  private final AtomicLong head = new AtomicLong(0);
+
+  /**
+   * Next sequence number to consume by the writer. Only the writer thread updates it.
+   */
+  private final AtomicLong tail = new AtomicLong(0);
+
+  /**
+   * Number of events dropped because the buffer was full.
+   */
+  private final AtomicLong dropped = new AtomicLong(0);
+
+  /**
+   * Dropped event count last reported by the writer.
+   */
+  private long reportedDrops = 0;
+
+  /**
+   * Destination of the audit events.
+   */
+  private final Writer writer;
+
+  /**
+   * Set once the writer thread has been started.
+   */
+  private final AtomicBoolean started = new AtomicBoolean(false);
+
+  /**
+   * The writer thread, null until the first event is published.
+   */
+  private volatile Thread writerThread = null;
+
+  /**
+   * Set by the writer thread before it parks on an empty buffer. A producer that publishes
+   * an event and finds it set clears it and unparks the writer. The writer checks the buffer
+   * again after setting it, so an event published concurrently is never left unwritten.
+   */
+  private final AtomicBoolean sleeping = new AtomicBoolean(false);
+
+  /**
+   * Set when the audit log is shut down : no more events are accepted and the writer thread
+   * exits once the buffered events have been written.
+   */
+  private volatile boolean stopped = false;
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates an audit log with a given buffer capacity and writer. The writer thread is
+   * started when the first event is published.
+   *
+   * @param capacity
+   *            minimum number of buffered events, rounded up to a power of two
+   *
+   * @param writer
+   *            destination of the audit events
+   */
+  AuditLog(int capacity, Writer writer)
+  {
+    if (capacity < 1)
+    {
+      throw new IllegalArgumentException(
+          "Implementation Error: audit log capacity must be positive, was " + capacity + "."
+      );
+    }
+
+    int size = Integer.highestOneBit(capacity);
+
+    if (size < capacity)
+    {
+      size <<= 1;
+    }
+
+    this.slots = new AtomicReferenceArray<Event>(size);
+    this.mask = size - 1;
+    this.writer = writer;
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Returns the number of events that were dropped because the audit buffer was full.
+   *
+   * @return    dropped event count
+   */
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * Returns the number of events that have been written to the audit log.
+   *
+   * @return    written event count
+   */
+  public long getWrittenCount()
+  {
+    return tail.get();
+  }
+
+  /**
+   * Waits until all events published so far have been written.
+   *
+   * @param timeout
+   *            maximum time to wait
+   *
+   * @param unit
+   *            unit of the timeout
+   *
+   * @return    true if all events were written, false if the timeout elapsed first
+   */
+  public boolean flush(long timeout, TimeUnit unit)
+  {
+    long published = head.get();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    while (tail.get() < published)
+    {
+      if (System.nanoTime() - deadline > 0)
+      {
+        return false;
+      }
+
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    return true;
+  }
+
+  /**
+   * Shuts down the audit log. Events published after this call are dropped. The writer
+   * thread writes the buffered events and exits.
+   *
+   * @param timeout
+   *            maximum time to wait for the writer thread to exit
+   *
+   * @param unit
+   *            unit of the timeout
+   *
+   * @return    true if the writer thread has written the remaining events and exited,
+   *            false if the timeout elapsed first
+   */
+  public boolean shutdown(long timeout, TimeUnit unit)
+  {
+    stopped = true;
+
+    Thread thread = writerThread;
+
+    if (thread == null)
+    {
+      return true;
+    }
+
+    LockSupport.unpark(thread);
+
+    try
+    {
+      thread.join(Math.max(1, unit.toMillis(timeout)));
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    return !thread.isAlive();
+  }
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Publishes an event to the ring buffer without blocking.
+   *
+   * @param event
+   *            audit event
+   *
+   * @return    true if the event was buffered, false if it was dropped
+   */
+  boolean publish(Event event)
+  {
+    if (stopped)
+    {
+      dropped.incrementAndGet();
+
+      return false;
+    }
+
+    if (!started.get() && started.compareAndSet(false, true))
+    {
+      startWriter();
+    }
+
+    while (true)
+    {
+      long sequence = head.get();
+
+      if (sequence - tail.get() >= slots.length())
+      {
+        dropped.incrementAndGet();
+
+        return false;
+      }
+
+      if (head.compareAndSet(sequence, sequence + 1))
+      {
+        slots.set((int)sequence & mask, event);
+
+        if (sleeping.get() && sleeping.compareAndSet(true, false))
+        {
+          LockSupport.unpark(writerThread);
+        }
+
+        return true;
+      }
+    }
+  }
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Writes all published events available in the ring buffer, in order. Invoked from the
+   * writer thread only.
+   *
+   * @return    number of events written
+   */
+  private int drain()
+  {
+    int count = 0;
+
+    while (true)
+    {
+      long sequence = tail.get();
+      int index = (int)sequence & mask;
+
+      // An empty slot at the tail means the buffer is empty, or the producer that claimed
+      // the sequence has not stored its event yet...
+
+      Event event = slots.get(index);
+
+      if (event == null)
+      {
+        break;
+      }
+
+      slots.set(index, null);
+      tail.set(sequence + 1);
+
+      try
+      {
+        writer.write(event);
+      }
+
+      catch (RuntimeException exception)
+      {
+        log.error("Failed to write audit event {0} : {1}", exception, event, exception.getMessage());
+      }
+
+      ++count;
+    }
+
+    long drops = dropped.get();
+
+    if (drops != reportedDrops)
+    {
+      log.warn("Audit buffer full, {0} audit events dropped ({1} in total).",
+               drops - reportedDrops, drops);
+
+      reportedDrops = drops;
+    }
+
+    return count;
+  }
+
+  /**
+   * Indicates whether the slot at the tail holds a published event. Invoked from the writer
+   * thread only.
+   *
+   * @return    true if there is an event to write
+   */
+  private boolean hasEvent()
+  {
+    return slots.get((int)tail.get() & mask) != null;
+  }
+
+  private void startWriter()
+  {
+    Thread thread = new Thread(new Runnable()
+    {
+      @Override public void run()
+      {
+        while (!stopped)
+        {
+          if (drain() == 0)
+          {
+            sleeping.set(true);
+
+            // Check again after announcing the sleep : a producer that published before
+            // the announcement did not see it and will not unpark us...
+
+            if (!hasEvent() && !stopped)
+            {
+              LockSupport.park(this);
+            }
+
+            sleeping.set(false);
+          }
+        }
+
+        // Write the events published before shutdown. A producer that claimed a slot
+        // before the shutdown may still be storing its event...
+
+        while (tail.get() < head.get())
+        {
+          if (drain() == 0)
+          {
+            Thread.yield();
+          }
+        }
+      }
+    }, "OpenRemote Security Audit Writer");
+
+    thread.setDaemon(true);
+    writerThread = thread;
+    thread.start();
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Audited key operations.
+   */
+  public enum Operation
+  {
+    /**
+     * A key entry was added.
+     */
+    ADD,
+
+    /**
+     * A key entry was removed.
+     */
+    REMOVE,
+
+    /**
+     * A key entry was retrieved.
+     */
+    RETRIEVE,
+
+    /**
+     * A public key was signed.
+     */
+    SIGN
+  }
+
+  /**
+   * Destination of audit events. Invoked from the writer thread only.
+   */
+  interface Writer
+  {
+    void write(Event event);
+  }
+
+  /**
+   * Writes audit events to the {@link SecurityLog#AUDIT} log category.
+   */
+  private static class LogWriter implements Writer
+  {
+    @Override public void write(Event event)
+    {
+      log.info("{0}", event);
+    }
+  }
+
+  /**
+   * A single audited key operation.
+   */
+  public static class Event
+  {
+    private long timestamp;
+
+    private Operation operation;
+
+    private String source;
+
+    private String alias;
+
+    private boolean success;
+
+    private long latency;
+
+
+    Event(long timestamp, Operation operation, String source, String alias,
+                  boolean success, long latency)
+    {
+      this.timestamp = timestamp;
+      this.operation = operation;
+      this.source = source;
+      this.alias = alias;
+      this.success = success;
+      this.latency = latency;
+    }
+
+
+    /**
+     * Returns the time the operation completed.
+     *
+     * @return    time in milliseconds since epoch
+     */
+    public long getTimestamp()
+    {
+      return timestamp;
+    }
+
+    /**
+     * Returns the audited operation.
+     *
+     * @return    key operation
+     */
+    public Operation getOperation()
+    {
+      return operation;
+    }
+
+    /**
+     * Returns the type of the key manager or key signer that executed the operation.
+     *
+     * @return    simple class name of the operation source
+     */
+    public String getSource()
+    {
+      return source;
+    }
+
+    /**
+     * Returns the alias or name of the key.
+     *
+     * @return    key alias
+     */
+    public String getAlias()
+    {
+      return alias;
+    }
+
+    /**
+     * Indicates whether the operation succeeded.
+     *
+     * @return    true if the operation succeeded, false if it failed
+     */
+    public boolean isSuccess()
+    {
+      return success;
+    }
+
+    /**
+     * Returns the operation latency.
+     *
+     * @return    latency in nanoseconds
+     */
+    public long getLatencyNanos()
+    {
+      return latency;
+    }
+
+    /**
+     * Returns the event as a single line of space separated key=value pairs. The alias is
+     * quoted and escaped, see {@link #quote(String)}.
+     *
+     * @return    structured event string
+     */
+    @Override public String toString()
+    {
+      return String.format(
+          Locale.ROOT, "time=%d operation=%s source=%s alias=%s result=%s latency_us=%.1f",
+          timestamp, operation, source, quote(alias), success ? "success" : "failure",
+          latency / 1000.0
+      );
+    }
+
+    /**
+     * Quotes an alias for the event string. Quotes and backslashes are escaped with a
+     * backslash, and control characters as Java unicode escapes, so that an alias cannot
+     * end the quoted value early or split the event to multiple log records.
+     */
+    private static String quote(String alias)
+    {
+      if (alias == null)
+      {
+        return "null";
+      }
+
+      StringBuilder builder = new StringBuilder(alias.length() + 2);
+      builder.append('\'');
+
+      for (int i = 0; i < alias.length(); ++i)
+      {
+        char c = alias.charAt(i);
+
+        if (c == '\'' || c == '\\')
+        {
+          builder.append('\\').append(c);
+        }
+
+        else if (Character.isISOControl(c) || c == '\u2028' || c == '\u2029')
+        {
+          builder.append(String.format(Locale.ROOT, "\\u%04x", (int)c));
+        }
+
+        else
+        {
+          builder.append(c);
+        }
+      }
+
+      return builder.append('\'').toString();
+    }
+  }
+}
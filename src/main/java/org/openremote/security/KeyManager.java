@@ -26,15 +26,23 @@ import org.openremote.logging.Logger;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.math.BigInteger;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -42,15 +50,37 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.security.UnrecoverableEntryException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.spec.PBEParameterSpec;
 
 /**
  * This is an abstract base class for managing and storing key material. It is useful for
@@ -149,6 +179,47 @@ public abstract class KeyManager
   public final static BigInteger DEFAULT_RSA_PUBLIC_EXPONENT = RSAKeyGenParameterSpec.F4;
 
 
+  /**
+   * File name suffix of the individual shard keystore files of a sharded key manager. The
+   * shard index is appended to the suffix. The shard files are stored next to the shard
+   * manifest file that is located at the URI given to {@link #save(java.net.URI, char[])}
+   * and {@link #load(java.net.URI, char[])} : {@value}
+   */
+  public final static String SHARD_FILE_SUFFIX = ".shard-";
+
+  /**
+   * Size of the chunks in which keystore backups are written to their target : {@value}
+   */
+  public final static int BACKUP_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * File name suffix of the temporary file a keystore backup is written to before it is
+   * renamed to its target location, see {@link #backup(URI, char[], boolean)} : {@value}
+   */
+  public final static String BACKUP_TEMP_FILE_SUFFIX = ".tmp";
+
+  /**
+   * Shard manifest property that records the number of shards : {@value}
+   */
+  private final static String SHARD_MANIFEST_COUNT = "shards";
+
+  /**
+   * Shard manifest property that records the storage type of shards : {@value}
+   */
+  private final static String SHARD_MANIFEST_STORAGE = "storage";
+
+  /**
+   * Line length of base64 encoded content in PEM encoded certificates.
+   */
+  private final static int PEM_LINE_LENGTH = 64;
+
+  /**
+   * Base64 alphabet used with PEM encoding.
+   */
+  private final static char[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+
 
   // Class Members --------------------------------------------------------------------------------
 
@@ -157,6 +228,12 @@ public abstract class KeyManager
    */
   protected final static Logger securityLog = Logger.getInstance(SecurityLog.DEFAULT);
 
+  /**
+   * Shared daemon thread that writes keystore backups to their targets.
+   */
+  private static final ExecutorService backupWriter =
+      Executors.newSingleThreadExecutor(new BackupThreadFactory());
+
 
   // Private Instance Fields ----------------------------------------------------------------------
 
@@ -179,6 +256,43 @@ public abstract class KeyManager
    */
   private KeyStore keystore = null;
 
+  /**
+   * Shard keystores when this key manager distributes its entries across several keystore
+   * files, see {@link #KeyManager(Storage, java.security.Provider, int)}. Null when a single
+   * keystore is used.
+   */
+  private KeyStore[] shards = null;
+
+  /**
+   * Tracks the shards that have been modified since they were last loaded or saved.
+   */
+  private boolean[] dirtyShards = null;
+
+  /**
+   * Sorted index of the aliases in this key manager, see {@link #aliasKey(String)}. Allows
+   * alias lookups and listings without accessing the keystore.
+   */
+  private final ConcurrentSkipListMap<String, IndexedAlias> aliases =
+      new ConcurrentSkipListMap<String, IndexedAlias>();
+
+  /**
+   * Pre-encoded forms of the certificates in this key manager, by alias. Null unless enabled
+   * with {@link #setEncodedCertificateCache(boolean)}.
+   */
+  private volatile Map<String, EncodedCertificate> encodedCertificates = null;
+
+  /**
+   * Key entry protection parameters, see {@link #setProtectionParameters(ProtectionParameters)}.
+   * Null when the keystore provider defaults are used.
+   */
+  private volatile ProtectionParameters protectionParameters = null;
+
+  /**
+   * Guards the keystore contents : entries are added, removed and loaded with the write lock,
+   * the keystore is serialized with the read lock.
+   */
+  private final ReentrantReadWriteLock keystoreLock = new ReentrantReadWriteLock();
+
 
 
   // Constructors ---------------------------------------------------------------------------------
@@ -229,7 +343,65 @@ public abstract class KeyManager
   {
     init(storage, provider);
 
-    loadKeyStore((InputStream) null, null);
+    keystore = loadKeyStore((InputStream) null, null);
+  }
+
+
+  /**
+   * This constructor creates a sharded key manager. Key entries are distributed across a given
+   * number of keystores based on a hash of their alias. When persisted, each shard is stored
+   * in its own keystore file of the given storage format. <p>
+   *
+   * Sharding is useful for very large keystores (tens of thousands of entries and above):
+   * shards are loaded and saved in parallel, and only the shards that have been modified are
+   * written when the key manager is {@link #save(java.net.URI, char[]) saved}. <p>
+   *
+   * When a sharded key manager is saved to a URI, a small manifest file recording the shard
+   * count and storage type is written to the URI location. The shard keystore files are
+   * written next to it, with the manifest file name followed by {@link #SHARD_FILE_SUFFIX}
+   * and the shard index. A sharded keystore must be loaded with the same shard count it
+   * was saved with.
+   *
+   * @param storage
+   *            key storage format to use with each shard
+   *
+   * @param provider
+   *            The explicit security provider to use with the key storage of this instance. If a
+   *            null value is specified, the implementations should opt to delegate the selection
+   *            of a security provider to the JVMs installed security provider implementations.
+   *
+   * @param shardCount
+   *            number of shards, a value of one creates a regular, non-sharded key manager
+   *
+   * @throws ConfigurationException
+   *            if the configured security provider(s) do not contain implementation for the
+   *            required keystore type
+   *
+   * @throws KeyManagerException
+   *            if creating the keystores fails
+   */
+  protected KeyManager(Storage storage, Provider provider, int shardCount)
+      throws ConfigurationException, KeyManagerException
+  {
+    this(storage, provider);
+
+    if (shardCount < 1)
+    {
+      throw new KeyManagerException(
+          "Implementation Error: shard count must be positive, was {0}.", null, shardCount
+      );
+    }
+
+    if (shardCount > 1)
+    {
+      shards = new KeyStore[shardCount];
+      dirtyShards = new boolean[shardCount];
+
+      for (int index = 0; index < shardCount; ++index)
+      {
+        shards[index] = loadKeyStore((InputStream) null, null);
+      }
+    }
   }
 
 
@@ -355,20 +527,99 @@ public abstract class KeyManager
    */
   public boolean contains(String keyAlias)
   {
-    try
+    return keyAlias != null && aliases.containsKey(aliasKey(keyAlias));
+  }
+
+  /**
+   * Returns the type of an entry in this key manager.
+   *
+   * @param keyAlias
+   *          entry alias
+   *
+   * @return  entry type, or null if no entry is associated with the alias
+   */
+  public EntryType getEntryType(String keyAlias)
+  {
+    IndexedAlias indexed = (keyAlias == null) ? null : aliases.get(aliasKey(keyAlias));
+
+    return (indexed == null) ? null : indexed.type;
+  }
+
+  /**
+   * Lists the aliases in this key manager in alias order, one page at a time. The listing
+   * is served from a sorted in-memory alias index : a page costs a logarithmic seek plus
+   * the entries scanned for the page, independent of the keystore size. <p>
+   *
+   * Pages are requested with the last alias of the previous page as a cursor, e.g.
+   *
+   * <pre>
+   *   List&lt;String&gt; page = mgr.listAliases("device-", EntryType.PRIVATE_KEY, null, 100);
+   *
+   *   while (!page.isEmpty())
+   *   {
+   *     ...
+   *     page = mgr.listAliases("device-", EntryType.PRIVATE_KEY, page.get(page.size() - 1), 100);
+   *   }
+   * </pre>
+   *
+   * Aliases are ordered and prefix matched case-insensitively if the storage format does not
+   * distinguish alias case. Listings are weakly consistent with concurrent additions and
+   * removals.
+   *
+   * @param prefix
+   *          alias prefix to list, or null (or empty) to list all aliases
+   *
+   * @param type
+   *          entry type to list, or null to list all entry types
+   *
+   * @param after
+   *          list aliases that sort after this alias, or null to start from the first alias
+   *
+   * @param maxResults
+   *          maximum number of aliases to return
+   *
+   * @return  aliases as they are stored in the keystore, in alias order. An empty list if
+   *          there are no more aliases.
+   */
+  public List<String> listAliases(String prefix, EntryType type, String after, int maxResults)
+  {
+    if (maxResults < 1)
     {
-      return keystore.containsAlias(keyAlias);
+      throw new IllegalArgumentException(
+          "Maximum number of results must be at least one, got " + maxResults
+      );
     }
 
-    catch (KeyStoreException exception)
+    String prefixKey = (prefix == null) ? "" : aliasKey(prefix);
+
+    NavigableMap<String, IndexedAlias> range = aliases.tailMap(prefixKey, true);
+
+    if (after != null && aliasKey(after).compareTo(prefixKey) >= 0)
     {
-      securityLog.error(
-          "Unable to retrieve key info for alias '{0}' : {1}", exception,
-          keyAlias, exception.getMessage()
-      );
+      range = aliases.tailMap(aliasKey(after), false);
+    }
 
-      return false;
+    List<String> page = new ArrayList<String>(Math.min(maxResults, 64));
+
+    for (Map.Entry<String, IndexedAlias> entry : range.entrySet())
+    {
+      if (!entry.getKey().startsWith(prefixKey))
+      {
+        break;
+      }
+
+      if (type == null || entry.getValue().type == type)
+      {
+        page.add(entry.getValue().alias);
+
+        if (page.size() == maxResults)
+        {
+          break;
+        }
+      }
     }
+
+    return page;
   }
 
 
@@ -381,7 +632,19 @@ public abstract class KeyManager
   {
     try
     {
-      return keystore.size();
+      if (shards == null)
+      {
+        return keystore.size();
+      }
+
+      int size = 0;
+
+      for (KeyStore shard : shards)
+      {
+        size += shard.size();
+      }
+
+      return size;
     }
 
     catch (KeyStoreException exception)
@@ -395,451 +658,1555 @@ public abstract class KeyManager
     }
   }
 
-
-  // Protected Instance Methods -------------------------------------------------------------------
-
   /**
-   * Initialization method used by constructors to initialize this instance. Should not be
-   * invoked outside of a constructor.  <p>
+   * Enables or disables caching of pre-encoded certificates. <p>
    *
-   * @param storage
-   *            The keystore storage type to use with this instance.
+   * When enabled, the DER and PEM encoded forms of each certificate in this key manager are
+   * computed once -- when the cache is enabled, when a keystore is loaded and when a key entry
+   * is added -- and {@link #getEncodedCertificate(String)} and
+   * {@link #getPEMCertificate(String)} serve them without re-encoding or copying. This is
+   * useful when certificates are repeatedly sent over the wire. The cache is disabled by
+   * default.
    *
-   * @param provider
-   *            The security provider to use with this instance. Can be null in which case
-   *            the implementations should delegate to the JVM installed security providers
-   *            in their preferred use order.
+   * @param enabled
+   *            true to enable the encoded certificate cache, false to disable and discard it
+   *
+   * @throws KeyManagerException
+   *            if encoding the existing certificates fails
    */
-  protected void init(Storage storage, Provider provider)
+  public void setEncodedCertificateCache(boolean enabled) throws KeyManagerException
   {
-    if (storage == null)
+    // Entries must not change while the cache is built, or between building and publishing
+    // it, see load()...
+
+    keystoreLock.writeLock().lock();
+
+    try
     {
-      throw new IllegalArgumentException("Implementation Error: null storage type");
+      if (!enabled)
+      {
+        encodedCertificates = null;
+      }
+
+      else if (encodedCertificates == null)
+      {
+        encodedCertificates = encodeCertificates();
+      }
     }
 
-    this.provider = provider;
-    this.storage = storage;
+    finally
+    {
+      keystoreLock.writeLock().unlock();
+    }
   }
 
-
   /**
-   * Stores the keys in this key manager in a secure key store format. This implementation generates
-   * a file-based, persistent key store which can be shared with other applications and processes.
-   * <p>
-   * IMPORTANT NOTE: Subclasses that invoke this method should clear the password character array
-   *                 as soon as it is no longer needed. This prevents passwords from lingering
-   *                 in JVM memory pool any longer than is necessary. Use the
-   *                 {@link #clearPassword(char[])} method for this purpose.
-   *
-   * @param uri
-   *              The location of the file where the key store should be persisted. Must be
-   *              an URI with file scheme.
+   * Sets the protection parameters used to encrypt key entries subsequently added to this
+   * key manager. By default the keystore provider chooses the key derivation function,
+   * iteration count and cipher. Explicit parameters allow each deployment to trade keystore
+   * access speed against brute-force resistance, for example lower iteration counts on
+   * constrained edge devices. <p>
    *
-   * @param password
-   *              A secret password used to access the keystore contents. NOTE: the character
-   *              array should be set to zero values after this method call completes, via
-   *              {@link #clearPassword(char[])} method.
+   * Only storage formats whose provider supports per-entry protection algorithms can be
+   * configured, see {@link Storage#supportsProtectionParameters()}. Existing entries keep
+   * the protection they were stored with; entries are decrypted with the parameters recorded
+   * in the keystore, so keystores can always be read regardless of the current setting.
    *
-   * @see #clearPassword(char[])
+   * @param parameters
+   *            key entry protection parameters, or null to revert to the provider defaults
    *
    * @throws KeyManagerException
-   *              if loading or creating the keystore fails
+   *            if the storage format, its security provider or the JVM does not support
+   *            configurable protection parameters, or the requested algorithm is not
+   *            available
    */
-  protected void save(URI uri, char[] password) throws ConfigurationException,
-                                                       KeyManagerException
+  public void setProtectionParameters(ProtectionParameters parameters) throws KeyManagerException
   {
-    if (uri == null)
+    if (parameters == null)
     {
-      throw new KeyManagerException("Save failed due to null URI.");
-    }
+      protectionParameters = null;
 
-    try
-    {
-      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(new File(uri)));
+      return;
+    }
 
-      // Persist...
+    Provider keystoreProvider = keystore.getProvider();
 
-      save(keystore, out, password);
+    if (!storage.supportsProtectionParameters() ||
+        keystoreProvider.getName().equals(SecurityProvider.BC.getProviderInstance().getName()))
+    {
+      throw new KeyManagerException(
+          "Storage ''{0}'' with security provider ''{1}'' does not support configurable " +
+          "protection parameters.", null,
+          storage, keystoreProvider.getName()
+      );
     }
 
-    catch (FileNotFoundException exception)
+    if (ProtectionParameters.passwordProtection == null)
     {
       throw new KeyManagerException(
-          "File ''{0}'' cannot be created or opened : {1}", exception,
-          resolveFilePath(new File(uri)), exception.getMessage()
+          "Configurable protection parameters require Java 8 or later (running on {0}).", null,
+          System.getProperty("java.version")
       );
     }
 
-    catch (SecurityException exception)
+    try
+    {
+      AlgorithmParameters.getInstance(parameters.getProtectionAlgorithm());
+    }
+
+    catch (NoSuchAlgorithmException exception)
     {
       throw new KeyManagerException(
-          "Security manager has denied access to file ''{0}'' : {1}", exception,
-          resolveFilePath(new File(uri)), exception.getMessage()
+          "Protection algorithm ''{0}'' is not available : {1}", exception,
+          parameters.getProtectionAlgorithm(), exception.getMessage()
       );
     }
-  }
 
+    protectionParameters = parameters;
+  }
 
   /**
-   * Loads existing, persisted key store contents into this instance. Any previous keys in this
-   * key manager instance are overridden. <p>
-   *
-   * IMPORTANT NOTE: Subclasses that invoke this method should clear the password character array
-   *                 as soon as it is no longer needed. This prevents passwords from lingering
-   *                 in JVM memory pool any longer than is necessary. Use the
-   *                 {@link #clearPassword(char[])} method for this purpose.
+   * Returns the protection parameters used for key entries added to this key manager.
    *
-   * @param uri
-   *              URI with file scheme pointing to the file system location of the keystore
-   *              to load
+   * @return    key entry protection parameters, or null if keystore provider defaults are used
+   */
+  public ProtectionParameters getProtectionParameters()
+  {
+    return protectionParameters;
+  }
+
+  /**
+   * Returns the DER encoded form of a certificate in this key manager. For private key
+   * entries, the first certificate of the entry's certificate chain is returned. <p>
    *
-   * @param keystorePassword
-   *              The password to access the keystore. Note that the subclasses invoking this
-   *              method are responsible for resetting the password character array after use.
+   * The returned buffer is read-only and has its own position and limit, but may share its
+   * content with other callers when {@link #setEncodedCertificateCache(boolean) encoded
+   * certificate cache} is enabled.
    *
-   * @see #clearPassword(char[])
+   * @param alias
+   *            certificate alias
    *
-   * @throws ConfigurationException
-   *              if the configured security provider(s) do not contain implementation for the
-   *              required keystore type
+   * @return    read-only buffer of DER encoded certificate, or null if no certificate is
+   *            associated with the alias
    *
    * @throws KeyManagerException
-   *              if loading the keystore fails
+   *            if encoding the certificate fails
    */
-  protected void load(URI uri, char[] keystorePassword) throws KeyManagerException
+  public ByteBuffer getEncodedCertificate(String alias) throws KeyManagerException
   {
-    if (uri == null)
-    {
-      throw new KeyManagerException("Implementation Error: null file URI.");
-    }
+    EncodedCertificate encoded = getEncodedForm(alias);
 
-
-    if (exists(uri))
-    {
-      loadKeyStore(new File(uri), keystorePassword);
-    }
+    return (encoded == null) ? null : encoded.der.duplicate();
   }
 
-
   /**
-   * Adds a key entry to this instance. Use {@link #save(URI, char[])} to persist
-   * if desired.
+   * Returns the PEM encoded form (US-ASCII) of a certificate in this key manager. For private
+   * key entries, the first certificate of the entry's certificate chain is returned. <p>
    *
-   * @param keyAlias
-   *            A lookup name of the key entry to be added.
+   * The returned buffer is read-only and has its own position and limit, but may share its
+   * content with other callers when {@link #setEncodedCertificateCache(boolean) encoded
+   * certificate cache} is enabled.
    *
-   * @param entry
-   *            Key entry to be added. Note that accepted entry types depend on the
-   *            keystore storage format.
+   * @param alias
+   *            certificate alias
    *
-   * @param param
-   *            Protection parameters for the key entry.  A null value is accepted for
-   *            trusted certificate entries, for other type of key entries a null value
-   *            is converted to an empty password character array.
+   * @return    read-only buffer of PEM encoded certificate, or null if no certificate is
+   *            associated with the alias
+   *
+   * @throws KeyManagerException
+   *            if encoding the certificate fails
    */
-  protected void add(String keyAlias, KeyStore.Entry entry, KeyStore.ProtectionParameter param)
-      throws KeyManagerException
+  public ByteBuffer getPEMCertificate(String alias) throws KeyManagerException
   {
-    if (keyAlias == null || keyAlias.equals(""))
-    {
-      throw new KeyManagerException(
+    EncodedCertificate encoded = getEncodedForm(alias);
+
+    return (encoded == null) ? null : encoded.pem.duplicate();
+  }
+
+  /**
+   * Writes a backup of this key manager's keystore to an output stream, in the background. <p>
+   *
+   * A consistent snapshot of the keystore is serialized in memory in the calling thread,
+   * blocking key entry modifications only for the duration of the serialization. Writing
+   * (and optionally compressing) the snapshot to the target stream is done in a background
+   * thread so that slow targets do not block other key manager operations. The stream is
+   * closed once the backup completes. <p>
+   *
+   * The backup is in the keystore's storage format, GZIP compressed if requested. Sharded
+   * key managers cannot be backed up to a single stream, use {@link #save(URI, char[])}
+   * instead.
+   *
+   * @param out
+   *            backup target stream
+   *
+   * @param password
+   *            password to protect the backup keystore with. Note that the character array
+   *            will be cleared when this method returns.
+   *
+   * @param compress
+   *            true to GZIP compress the backup
+   *
+   * @return    the number of bytes written to the target stream, when the backup completes
+   *
+   * @throws KeyManagerException
+   *            if the keystore snapshot cannot be created
+   */
+  public Future<Long> backup(OutputStream out, char[] password, boolean compress)
+      throws KeyManagerException
+  {
+    try
+    {
+      if (out == null)
+      {
+        throw new KeyManagerException("Implementation Error: null backup output stream.");
+      }
+
+      return backupWriter.submit(new BackupTask(snapshot(password), out, compress, null, null));
+    }
+
+    finally
+    {
+      clearPassword(password);
+    }
+  }
+
+  /**
+   * Writes a backup of this key manager's keystore to a byte channel, in the background. See
+   * {@link #backup(java.io.OutputStream, char[], boolean)} for details.
+   *
+   * @param channel
+   *            backup target channel, closed when the backup completes
+   *
+   * @param password
+   *            password to protect the backup keystore with. Note that the character array
+   *            will be cleared when this method returns.
+   *
+   * @param compress
+   *            true to GZIP compress the backup
+   *
+   * @return    the number of bytes written to the target channel, when the backup completes
+   *
+   * @throws KeyManagerException
+   *            if the keystore snapshot cannot be created
+   */
+  public Future<Long> backup(WritableByteChannel channel, char[] password, boolean compress)
+      throws KeyManagerException
+  {
+    if (channel == null)
+    {
+      clearPassword(password);
+
+      throw new KeyManagerException("Implementation Error: null backup channel.");
+    }
+
+    return backup(Channels.newOutputStream(channel), password, compress);
+  }
+
+  /**
+   * Writes a backup of this key manager's keystore to a file, in the background. See
+   * {@link #backup(java.io.OutputStream, char[], boolean)} for details. <p>
+   *
+   * The backup is first written to a temporary file in the target directory (the target file
+   * name followed by {@link #BACKUP_TEMP_FILE_SUFFIX}) which is then renamed to the target
+   * file. An existing backup at the target location is therefore only replaced by a
+   * complete backup.
+   *
+   * @param uri
+   *            backup file location, must be an URI with file scheme
+   *
+   * @param password
+   *            password to protect the backup keystore with. Note that the character array
+   *            will be cleared when this method returns.
+   *
+   * @param compress
+   *            true to GZIP compress the backup
+   *
+   * @return    the number of bytes written to the backup file, when the backup completes
+   *
+   * @throws KeyManagerException
+   *            if the keystore snapshot cannot be created or the temporary file cannot be
+   *            created
+   */
+  public Future<Long> backup(URI uri, char[] password, boolean compress)
+      throws KeyManagerException
+  {
+    if (uri == null)
+    {
+      clearPassword(password);
+
+      throw new KeyManagerException("Backup failed due to null URI.");
+    }
+
+    File target = new File(uri);
+    File temp = new File(target.getPath() + BACKUP_TEMP_FILE_SUFFIX);
+
+    try
+    {
+      SnapshotBuffer snapshot = snapshot(password);
+
+      return backupWriter.submit(
+          new BackupTask(snapshot, new FileOutputStream(temp), compress, temp, target)
+      );
+    }
+
+    catch (FileNotFoundException exception)
+    {
+      throw new KeyManagerException(
+          "File ''{0}'' cannot be created or opened : {1}", exception,
+          resolveFilePath(temp), exception.getMessage()
+      );
+    }
+
+    catch (SecurityException exception)
+    {
+      throw new KeyManagerException(
+          "Security manager has denied access to file ''{0}'' : {1}", exception,
+          resolveFilePath(temp), exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      clearPassword(password);
+    }
+  }
+
+
+  // Protected Instance Methods -------------------------------------------------------------------
+
+  /**
+   * Initialization method used by constructors to initialize this instance. Should not be
+   * invoked outside of a constructor.  <p>
+   *
+   * @param storage
+   *            The keystore storage type to use with this instance.
+   *
+   * @param provider
+   *            The security provider to use with this instance. Can be null in which case
+   *            the implementations should delegate to the JVM installed security providers
+   *            in their preferred use order.
+   */
+  protected void init(Storage storage, Provider provider)
+  {
+    if (storage == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null storage type");
+    }
+
+    this.provider = provider;
+    this.storage = storage;
+  }
+
+
+  /**
+   * Stores the keys in this key manager in a secure key store format. This implementation generates
+   * a file-based, persistent key store which can be shared with other applications and processes.
+   * <p>
+   * IMPORTANT NOTE: Subclasses that invoke this method should clear the password character array
+   *                 as soon as it is no longer needed. This prevents passwords from lingering
+   *                 in JVM memory pool any longer than is necessary. Use the
+   *                 {@link #clearPassword(char[])} method for this purpose.
+   *
+   * @param uri
+   *              The location of the file where the key store should be persisted. Must be
+   *              an URI with file scheme.
+   *
+   * @param password
+   *              A secret password used to access the keystore contents. NOTE: the character
+   *              array should be set to zero values after this method call completes, via
+   *              {@link #clearPassword(char[])} method.
+   *
+   * @see #clearPassword(char[])
+   *
+   * @throws KeyManagerException
+   *              if loading or creating the keystore fails
+   */
+  protected void save(URI uri, char[] password) throws ConfigurationException,
+                                                       KeyManagerException
+  {
+    if (uri == null)
+    {
+      throw new KeyManagerException("Save failed due to null URI.");
+    }
+
+    keystoreLock.readLock().lock();
+
+    try
+    {
+      if (shards != null)
+      {
+        saveShards(new File(uri), password);
+
+        return;
+      }
+
+      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(new File(uri)));
+
+      // Persist...
+
+      save(keystore, out, password);
+    }
+
+    catch (FileNotFoundException exception)
+    {
+      throw new KeyManagerException(
+          "File ''{0}'' cannot be created or opened : {1}", exception,
+          resolveFilePath(new File(uri)), exception.getMessage()
+      );
+    }
+
+    catch (SecurityException exception)
+    {
+      throw new KeyManagerException(
+          "Security manager has denied access to file ''{0}'' : {1}", exception,
+          resolveFilePath(new File(uri)), exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      keystoreLock.readLock().unlock();
+    }
+  }
+
+
+  /**
+   * Loads existing, persisted key store contents into this instance. Any previous keys in this
+   * key manager instance are overridden. <p>
+   *
+   * IMPORTANT NOTE: Subclasses that invoke this method should clear the password character array
+   *                 as soon as it is no longer needed. This prevents passwords from lingering
+   *                 in JVM memory pool any longer than is necessary. Use the
+   *                 {@link #clearPassword(char[])} method for this purpose.
+   *
+   * @param uri
+   *              URI with file scheme pointing to the file system location of the keystore
+   *              to load
+   *
+   * @param keystorePassword
+   *              The password to access the keystore. Note that the subclasses invoking this
+   *              method are responsible for resetting the password character array after use.
+   *
+   * @see #clearPassword(char[])
+   *
+   * @throws ConfigurationException
+   *              if the configured security provider(s) do not contain implementation for the
+   *              required keystore type
+   *
+   * @throws KeyManagerException
+   *              if loading the keystore fails
+   */
+  protected void load(URI uri, char[] keystorePassword) throws KeyManagerException
+  {
+    if (uri == null)
+    {
+      throw new KeyManagerException("Implementation Error: null file URI.");
+    }
+
+
+    if (exists(uri))
+    {
+      keystoreLock.writeLock().lock();
+
+      try
+      {
+        if (shards != null)
+        {
+          loadShards(new File(uri), keystorePassword);
+        }
+
+        else
+        {
+          keystore = loadKeyStore(new File(uri), keystorePassword);
+        }
+
+        indexAliases();
+
+        if (encodedCertificates != null)
+        {
+          encodedCertificates = encodeCertificates();
+        }
+      }
+
+      finally
+      {
+        keystoreLock.writeLock().unlock();
+      }
+    }
+  }
+
+
+  /**
+   * Adds a key entry to this instance. Use {@link #save(URI, char[])} to persist
+   * if desired.
+   *
+   * @param keyAlias
+   *            A lookup name of the key entry to be added.
+   *
+   * @param entry
+   *            Key entry to be added. Note that accepted entry types depend on the
+   *            keystore storage format.
+   *
+   * @param param
+   *            Protection parameters for the key entry.  A null value is accepted for
+   *            trusted certificate entries, for other type of key entries a null value
+   *            is converted to an empty password character array.
+   */
+  protected void add(String keyAlias, KeyStore.Entry entry, KeyStore.ProtectionParameter param)
+      throws KeyManagerException
+  {
+    long start = AuditLog.start();
+    boolean success = false;
+
+    keystoreLock.writeLock().lock();
+
+    try
+    {
+      addEntry(keyAlias, entry, param);
+
+      success = true;
+    }
+
+    finally
+    {
+      keystoreLock.writeLock().unlock();
+
+      AuditLog.record(AuditLog.Operation.ADD, this, keyAlias, start, success);
+    }
+  }
+
+
+  /**
+   * Removes a key entry from this instance. Use {@link #save(URI, char[])} to persist
+   * if desired.
+   *
+   * @param keyAlias
+   *            A lookup name of the key entry to be removed.
+   *
+   * @return    true if key was removed, false otherwise
+   */
+  protected boolean remove(String keyAlias)
+  {
+    long start = AuditLog.start();
+    boolean success = false;
+
+    keystoreLock.writeLock().lock();
+
+    try
+    {
+      success = removeEntry(keyAlias);
+
+      return success;
+    }
+
+    finally
+    {
+      keystoreLock.writeLock().unlock();
+
+      AuditLog.record(AuditLog.Operation.REMOVE, this, keyAlias, start, success);
+    }
+  }
+
+
+  /**
+   * Retrieves a key from underlying key storage.
+   *
+   * @param alias
+   *          Key alias of the key to retrieve.
+   *
+   * @param protection
+   *          Protection parameter to retrieve the key.
+   *
+   * @return  a key store entry, or null if it was not found
+   *
+   * @throws KeyManagerException
+   *          if the key could not be retrieved, due to incorrect protection parameters,
+   *          unsupported algorithm or other reasons
+   */
+  protected KeyStore.Entry retrieveKey(String alias, KeyStore.ProtectionParameter protection)
+      throws KeyManagerException
+  {
+    long start = AuditLog.start();
+    boolean success = false;
+
+    try
+    {
+      KeyStore.Entry entry = retrieveEntry(alias, protection);
+
+      success = (entry != null);
+
+      return entry;
+    }
+
+    finally
+    {
+      AuditLog.record(AuditLog.Operation.RETRIEVE, this, alias, start, success);
+    }
+  }
+
+
+  /**
+   * Returns the aliases of all entries in this key manager, as they are stored in the
+   * underlying keystore(s).
+   *
+   * @return    list of entry aliases
+   */
+  protected List<String> getAliases()
+  {
+    KeyStore[] stores = (shards == null) ? new KeyStore[] { keystore } : shards;
+    List<String> list = new ArrayList<String>(aliases.size());
+
+    try
+    {
+      for (KeyStore store : stores)
+      {
+        list.addAll(Collections.list(store.aliases()));
+      }
+
+      return list;
+    }
+
+    catch (KeyStoreException exception)
+    {
+      throw new IncorrectImplementationException(
+          "Could not read keystore aliases: {0}", exception,
+          exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Indicates if an entry is a trusted certificate entry. Trusted certificate entries are not
+   * password protected and must be retrieved with a null protection parameter.
+   *
+   * @param alias
+   *          entry alias
+   *
+   * @return  true if the alias corresponds to a trusted certificate entry, false otherwise
+   */
+  protected boolean isCertificateEntry(String alias)
+  {
+    try
+    {
+      return keystore(alias).isCertificateEntry(alias);
+    }
+
+    catch (KeyStoreException exception)
+    {
+      throw new IncorrectImplementationException(
+          "Could not read keystore entry '{0}': {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * A convenience method to retrieve a certificate (rather than a private or secret key)
+   * from the underlying keystore.
+   *
+   * @param alias
+   *          Certificate alias to retrieve.
+   *
+   * @return  A certificate, or null if not found
+   */
+  protected Certificate getCertificate(String alias)
+  {
+    try
+    {
+      return keystore(alias).getCertificate(alias);
+    }
+
+    catch (KeyStoreException exception)
+    {
+      // This exception may happen if keystore is not initialized/loaded when asking for
+      // a certificate -- since we initialize the keystore instance as part of the constructor
+      // it should always be present. Therefore this exception should only occur in case of
+      // an implementation error.
+
+      throw new IncorrectImplementationException(
+          "Could not retrieve certificate '{0}': {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+  }
+
+
+  /**
+   * Generates a new asymmetric key pair using the given algorithm.
+   *
+   * @param keyAlgo
+   *            algorithm for the key generator
+   *
+   * @return generated key pair
+   *
+   * @throws KeyManagerException
+   *            in case any errors in key generation
+   */
+  protected KeyPair generateKey(AsymmetricKeyAlgorithm keyAlgo) throws KeyManagerException
+  {
+    try
+    {
+      KeyPairGenerator keyGen;
+
+      // An installed provider tuning takes precedence with its fastest compliant provider...
+
+      ProviderTuning tuning = ProviderTuning.getInstalled();
+      Provider tuned = (tuning == null) ? null : tuning.getKeyPairGeneratorProvider(keyAlgo);
+
+      if (tuned != null)
+      {
+        keyGen = KeyPairGenerator.getInstance(keyAlgo.getAlgorithmName(), tuned);
+      }
+
+      // Providers that only implement a keystore (such as the OpenRemote provider) delegate
+      // key generation to the JVM installed security providers...
+
+      else if (provider == null ||
+          provider.getService("KeyPairGenerator", keyAlgo.getAlgorithmName()) == null)
+      {
+        keyGen = KeyPairGenerator.getInstance(keyAlgo.getAlgorithmName());
+      }
+
+      else
+      {
+        keyGen = KeyPairGenerator.getInstance(keyAlgo.getAlgorithmName(), provider);
+      }
+
+      keyGen.initialize(keyAlgo.algorithmSpec);
+
+      return keyGen.generateKeyPair();
+    }
+
+    catch (InvalidAlgorithmParameterException exception)
+    {
+      throw new KeyManagerException(
+          "Invalid algorithm parameter in {0} : {1}", exception,
+          keyAlgo, exception.getMessage()
+      );
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw new KeyManagerException(
+          "No security provider found for {0} : {1}", exception,
+          keyAlgo, exception.getMessage()
+      );
+    }
+  }
+
+
+  /**
+   * Returns the key storage type used by this key manager.
+   *
+   * @return    key storage type
+   */
+  protected Storage getStorageType()
+  {
+    return storage;
+  }
+
+
+  /**
+   * Checks if key store exists at given file URI.
+   *
+   * @param uri
+   *            the file URI to check
+   *
+   * @return    true if file exists, false otherwise
+   *
+   * @throws KeyManagerException
+   *            if security manager has denied access to file information
+   */
+  protected boolean exists(URI uri) throws KeyManagerException
+  {
+    File file = new File(uri);
+
+    try
+    {
+      return file.exists();
+    }
+
+    catch (SecurityException exception)
+    {
+      String path = resolveFilePath(file);
+
+      throw new KeyManagerException(
+          "Security manager has prevented access to file ''{0}'' : {1}", exception,
+          path, exception.getMessage()
+      );
+    }
+  }
+
+
+
+  /**
+   * Clears the given password character array with zero values.
+   *
+   * @param password
+   *            password character array to erase
+   */
+  protected void clearPassword(char[] password)
+  {
+    if (password != null)
+    {
+      for (int i = 0; i < password.length; ++i)
+      {
+        password[i] = 0;
+      }
+    }
+  }
+
+  /**
+   * Clears the given password byte array with zero values.
+   *
+   * @param password
+   *            password byte array to erase
+   */
+  protected void clearPassword(byte[] password)
+  {
+    if (password != null)
+    {
+      for (int i = 0; i< password.length; ++i)
+      {
+        password[i] = 0;
+      }
+    }
+  }
+
+  /**
+   * Returns the key of an alias in the alias index and encoded certificate cache. Aliases
+   * are normalized to lower case for storage formats that do not distinguish alias case.
+   * Subclasses use the same key for their own per-alias state.
+   *
+   * @param alias
+   *            key alias
+   *
+   * @return    alias key
+   */
+  protected String aliasKey(String alias)
+  {
+    return storage.hasCaseSensitiveAliases() ? alias : alias.toLowerCase(Locale.ENGLISH);
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Adds a key entry, see {@link #add(String, KeyStore.Entry, KeyStore.ProtectionParameter)}.
+   */
+  private void addEntry(String keyAlias, KeyStore.Entry entry, KeyStore.ProtectionParameter param)
+      throws KeyManagerException
+  {
+    if (keyAlias == null || keyAlias.equals(""))
+    {
+      throw new KeyManagerException(
           "Implementation Error: null or empty key alias is not allowed."
       );
     }
 
-    if (entry == null)
+    if (entry == null)
+    {
+      throw new KeyManagerException(
+          "Implementation Error: null keystore entry is not allowed."
+      );
+    }
+
+    // Key stores appear to behave differently with regards to key entries depending what
+    // types of entries are stored (and possibly differing between store implementations too).
+    // E.g. private keys may have a strict requirement for a key protection where public
+    // certificates may not allow protection parameters at all.
+    //
+    // Doing some special handling here depending what type of entry is being stored:
+    //
+    //   - if a null protection parameter is provided, it is converted to an empty password
+    //     protection unless the null protection parameter is for a trusted certificate
+    //     entry in which case it is accepted.
+
+    if (param == null)
+    {
+      param = new KeyStore.PasswordProtection(EMPTY_KEY_PASSWORD);
+    }
+
+    if (entry instanceof KeyStore.TrustedCertificateEntry)
+    {
+      param = null;
+    }
+
+    ProtectionParameters protection = protectionParameters;
+
+    if (protection != null && param instanceof KeyStore.PasswordProtection)
+    {
+      param = protection.createProtection(((KeyStore.PasswordProtection)param).getPassword());
+    }
+
+    try
+    {
+      keystore(keyAlias).setEntry(keyAlias, entry, param);
+
+      markDirty(keyAlias);
+
+      aliases.put(aliasKey(keyAlias), new IndexedAlias(keyAlias, EntryType.typeOf(entry)));
+
+      Map<String, EncodedCertificate> cache = encodedCertificates;
+
+      if (cache != null)
+      {
+        Certificate certificate = keystore(keyAlias).getCertificate(keyAlias);
+
+        if (certificate == null)
+        {
+          cache.remove(aliasKey(keyAlias));
+        }
+
+        else
+        {
+          cache.put(aliasKey(keyAlias), encode(keyAlias, certificate));
+        }
+      }
+    }
+
+    catch (KeyStoreException exception)
+    {
+      throw new KeyManagerException(
+          "Failed to add key '{0}' to key store : {1}", exception,
+          keyAlias, exception.getMessage());
+    }
+  }
+
+  /**
+   * Removes a key entry, see {@link #remove(String)}.
+   */
+  private boolean removeEntry(String keyAlias)
+  {
+    try
+    {
+      keystore(keyAlias).deleteEntry(keyAlias);
+
+      markDirty(keyAlias);
+
+      aliases.remove(aliasKey(keyAlias));
+
+      Map<String, EncodedCertificate> cache = encodedCertificates;
+
+      if (cache != null)
+      {
+        cache.remove(aliasKey(keyAlias));
+      }
+
+      return true;
+    }
+
+    catch (KeyStoreException exception)
     {
-      throw new KeyManagerException(
-          "Implementation Error: null keystore entry is not allowed."
+      securityLog.error(
+          "Unable to remove key alias '{0}' : {1}", exception,
+          keyAlias, exception.getMessage()
       );
+
+      return false;
     }
+  }
 
-    // Key stores appear to behave differently with regards to key entries depending what
-    // types of entries are stored (and possibly differing between store implementations too).
-    // E.g. private keys may have a strict requirement for a key protection where public
-    // certificates may not allow protection parameters at all.
-    //
-    // Doing some special handling here depending what type of entry is being stored:
-    //
-    //   - if a null protection parameter is provided, it is converted to an empty password
-    //     protection unless the null protection parameter is for a trusted certificate
-    //     entry in which case it is accepted.
+  /**
+   * Retrieves a key entry, see {@link #retrieveKey(String, KeyStore.ProtectionParameter)}.
+   */
+  private KeyStore.Entry retrieveEntry(String alias, KeyStore.ProtectionParameter protection)
+      throws KeyManagerException
+  {
+    try
+    {
+      return keystore(alias).getEntry(alias, protection);
+    }
 
-    if (param == null)
+    catch (KeyStoreException exception)
     {
-      param = new KeyStore.PasswordProtection(EMPTY_KEY_PASSWORD);
+      throw new IncorrectImplementationException(
+          "Implementation Error: password manager has not been initialized.", exception
+      );
     }
 
-    if (entry instanceof KeyStore.TrustedCertificateEntry)
+    catch (NoSuchAlgorithmException exception)
     {
-      param = null;
+      throw new KeyManagerException(
+          "Configuration error. Required key storage algorithm is not available: {0}", exception,
+          exception.getMessage()
+      );
     }
 
-    try
+    catch (UnrecoverableKeyException exception)
     {
-      keystore.setEntry(keyAlias, entry, param);
+      throw new KeyManagerException(
+          "Password with alias ''{0}'' could not be retrieved, possibly due to incorrect " +
+          "protection password: {1}", exception,
+          alias, exception.getMessage()
+      );
     }
 
-    catch (KeyStoreException exception)
+    catch (UnrecoverableEntryException exception)
     {
       throw new KeyManagerException(
-          "Failed to add key '{0}' to key store : {1}", exception,
-          keyAlias, exception.getMessage());
+          "Password with alias ''{0}'' could not be retrieved, possibly due to incorrect " +
+          "protection password: {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Returns the keystore that holds (or should hold) the entry with a given alias.
+   *
+   * @param alias
+   *            key alias
+   *
+   * @return    the single keystore of this key manager, or the shard the alias hashes to
+   */
+  private KeyStore keystore(String alias)
+  {
+    if (shards == null)
+    {
+      return keystore;
     }
+
+    return shards[shardIndex(alias)];
   }
 
+  /**
+   * Maps an alias to a shard. Aliases are hashed case-insensitively since some keystore
+   * formats (e.g. PKCS12, JCEKS) treat aliases case-insensitively.
+   *
+   * @param alias
+   *            key alias
+   *
+   * @return    shard index
+   */
+  private int shardIndex(String alias)
+  {
+    if (alias == null)
+    {
+      return 0;
+    }
+
+    int hash = alias.toLowerCase(Locale.ENGLISH).hashCode();
+
+    hash ^= (hash >>> 16);
+
+    return (hash & 0x7FFFFFFF) % shards.length;
+  }
 
   /**
-   * Removes a key entry from this instance. Use {@link #save(URI, char[])} to persist
-   * if desired.
+   * Marks the shard of a given alias as modified.
    *
-   * @param keyAlias
-   *            A lookup name of the key entry to be removed.
+   * @param alias
+   *            key alias
+   */
+  private void markDirty(String alias)
+  {
+    if (shards != null)
+    {
+      dirtyShards[shardIndex(alias)] = true;
+    }
+  }
+
+  /**
+   * Saves the shard manifest and, in parallel, all the shards that have been modified since
+   * they were last loaded or saved. Shard files that do not exist yet are always written.
    *
-   * @return    true if key was removed, false otherwise
+   * @param manifest
+   *            location of the shard manifest file
+   *
+   * @param password
+   *            password to access the shard keystores
+   *
+   * @throws KeyManagerException
+   *            if writing the manifest or any of the shards fails
    */
-  protected boolean remove(String keyAlias)
+  private void saveShards(final File manifest, final char[] password) throws KeyManagerException
   {
+    Properties properties = new Properties();
+    properties.setProperty(SHARD_MANIFEST_COUNT, String.valueOf(shards.length));
+    properties.setProperty(SHARD_MANIFEST_STORAGE, storage.getStorageName());
+
     try
     {
-      keystore.deleteEntry(keyAlias);
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(manifest));
 
-      return true;
+      try
+      {
+        properties.store(out, "OpenRemote sharded keystore manifest");
+      }
+
+      finally
+      {
+        out.close();
+      }
     }
 
-    catch (KeyStoreException exception)
+    catch (IOException exception)
     {
-      securityLog.error(
-          "Unable to remove key alias '{0}' : {1}", exception,
-          keyAlias, exception.getMessage()
+      throw new KeyManagerException(
+          "Cannot write shard manifest ''{0}'' : {1}", exception,
+          resolveFilePath(manifest), exception.getMessage()
       );
+    }
 
-      return false;
+    catch (SecurityException exception)
+    {
+      throw new KeyManagerException(
+          "Security manager has denied access to file ''{0}'' : {1}", exception,
+          resolveFilePath(manifest), exception.getMessage()
+      );
+    }
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+    for (int index = 0; index < shards.length; ++index)
+    {
+      final int shard = index;
+      final File file = shardFile(manifest, shard);
+
+      if (!dirtyShards[shard] && file.exists())
+      {
+        continue;
+      }
+
+      tasks.add(new Callable<Void>()
+      {
+        @Override public Void call() throws KeyManagerException
+        {
+          try
+          {
+            save(shards[shard], new FileOutputStream(file), password);
+          }
+
+          catch (FileNotFoundException exception)
+          {
+            throw new KeyManagerException(
+                "File ''{0}'' cannot be created or opened : {1}", exception,
+                resolveFilePath(file), exception.getMessage()
+            );
+          }
+
+          dirtyShards[shard] = false;
+
+          return null;
+        }
+      });
     }
-  }
 
+    runShardTasks(tasks);
+  }
 
   /**
-   * Retrieves a key from underlying key storage.
+   * Loads, in parallel, all shard keystores listed in the shard manifest. Shard files that
+   * do not exist are treated as empty shards.
    *
-   * @param alias
-   *          Key alias of the key to retrieve.
+   * @param manifest
+   *            location of the shard manifest file
    *
-   * @param protection
-   *          Protection parameter to retrieve the key.
+   * @param password
+   *            password to access the shard keystores
    *
-   * @return  a key store entry, or null if it was not found
+   * @throws KeyManagerException
+   *            if the manifest does not match the shard configuration of this key manager,
+   *            or loading any of the shards fails
+   */
+  private void loadShards(final File manifest, final char[] password) throws KeyManagerException
+  {
+    Properties properties = new Properties();
+
+    try
+    {
+      InputStream in = new BufferedInputStream(new FileInputStream(manifest));
+
+      try
+      {
+        properties.load(in);
+      }
+
+      finally
+      {
+        in.close();
+      }
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyManagerException(
+          "Cannot read shard manifest ''{0}'' : {1}", exception,
+          resolveFilePath(manifest), exception.getMessage()
+      );
+    }
+
+    catch (SecurityException exception)
+    {
+      throw new KeyManagerException(
+          "Security manager has denied access to file ''{0}'' : {1}", exception,
+          resolveFilePath(manifest), exception.getMessage()
+      );
+    }
+
+    String count = properties.getProperty(SHARD_MANIFEST_COUNT);
+    String type = properties.getProperty(SHARD_MANIFEST_STORAGE);
+
+    if (!String.valueOf(shards.length).equals(count) || !storage.getStorageName().equals(type))
+    {
+      throw new KeyManagerException(
+          "Shard manifest ''{0}'' ({1} shards of {2}) does not match the key manager " +
+          "configuration ({3} shards of {4}).", null,
+          resolveFilePath(manifest), count, type, shards.length, storage.getStorageName()
+      );
+    }
+
+    final KeyStore[] loaded = new KeyStore[shards.length];
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+    for (int index = 0; index < shards.length; ++index)
+    {
+      final int shard = index;
+      final File file = shardFile(manifest, shard);
+
+      tasks.add(new Callable<Void>()
+      {
+        @Override public Void call() throws KeyManagerException
+        {
+          loaded[shard] = file.exists()
+              ? loadKeyStore(file, password)
+              : loadKeyStore((InputStream) null, null);
+
+          return null;
+        }
+      });
+    }
+
+    runShardTasks(tasks);
+
+    // Only replace the shards once all of them have been loaded successfully...
+
+    for (int index = 0; index < shards.length; ++index)
+    {
+      shards[index] = loaded[index];
+      dirtyShards[index] = false;
+    }
+  }
+
+  /**
+   * Executes shard load or save tasks in parallel, using at most as many threads as there
+   * are available processors.
+   *
+   * @param tasks
+   *            shard tasks to execute
    *
    * @throws KeyManagerException
-   *          if the key could not be retrieved, due to incorrect protection parameters,
-   *          unsupported algorithm or other reasons
+   *            if any of the tasks fails -- the first failure (in shard order) is thrown
    */
-  protected KeyStore.Entry retrieveKey(String alias, KeyStore.ProtectionParameter protection)
-      throws KeyManagerException
+  private void runShardTasks(List<Callable<Void>> tasks) throws KeyManagerException
   {
+    if (tasks.isEmpty())
+    {
+      return;
+    }
+
+    int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
     try
     {
-      return keystore.getEntry(alias, protection);
+      List<Future<Void>> results = executor.invokeAll(tasks);
+
+      for (Future<Void> result : results)
+      {
+        result.get();
+      }
     }
 
-    catch (KeyStoreException exception)
+    catch (InterruptedException exception)
     {
-      throw new IncorrectImplementationException(
-          "Implementation Error: password manager has not been initialized.", exception
+      Thread.currentThread().interrupt();
+
+      throw new KeyManagerException(
+          "Interrupted while processing keystore shards.", exception
       );
     }
 
-    catch (NoSuchAlgorithmException exception)
+    catch (ExecutionException exception)
     {
+      Throwable cause = exception.getCause();
+
+      if (cause instanceof KeyManagerException)
+      {
+        throw (KeyManagerException) cause;
+      }
+
+      if (cause instanceof RuntimeException)
+      {
+        throw (RuntimeException) cause;
+      }
+
       throw new KeyManagerException(
-          "Configuration error. Required key storage algorithm is not available: {0}", exception,
+          "Keystore shard operation failed : {0}", cause,
+          cause.getMessage()
+      );
+    }
+
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns the encoded forms of a certificate, from the encoded certificate cache if enabled.
+   *
+   * @param alias
+   *            certificate alias
+   *
+   * @return    encoded certificate or null if no certificate is associated with the alias
+   *
+   * @throws KeyManagerException
+   *            if encoding the certificate fails
+   */
+  private EncodedCertificate getEncodedForm(String alias) throws KeyManagerException
+  {
+    Map<String, EncodedCertificate> cache = encodedCertificates;
+
+    if (cache != null)
+    {
+      return (alias == null) ? null : cache.get(aliasKey(alias));
+    }
+
+    Certificate certificate = getCertificate(alias);
+
+    return (certificate == null) ? null : encode(alias, certificate);
+  }
+
+  /**
+   * Rebuilds the alias index from the current keystore(s).
+   */
+  private void indexAliases()
+  {
+    KeyStore[] stores = (shards == null) ? new KeyStore[] { keystore } : shards;
+
+    aliases.clear();
+
+    try
+    {
+      for (KeyStore store : stores)
+      {
+        Enumeration<String> storeAliases = store.aliases();
+
+        while (storeAliases.hasMoreElements())
+        {
+          String alias = storeAliases.nextElement();
+
+          aliases.put(aliasKey(alias), new IndexedAlias(alias, EntryType.typeOf(store, alias)));
+        }
+      }
+    }
+
+    catch (KeyStoreException exception)
+    {
+      throw new IncorrectImplementationException(
+          "Could not read keystore aliases: {0}", exception,
           exception.getMessage()
       );
     }
+  }
 
-    catch (UnrecoverableKeyException exception)
+  /**
+   * Encodes all certificates currently in this key manager.
+   *
+   * @return    encoded certificates by alias
+   *
+   * @throws KeyManagerException
+   *            if encoding a certificate fails
+   */
+  private Map<String, EncodedCertificate> encodeCertificates() throws KeyManagerException
+  {
+    Map<String, EncodedCertificate> cache = new ConcurrentHashMap<String, EncodedCertificate>();
+
+    KeyStore[] stores = (shards == null) ? new KeyStore[] { keystore } : shards;
+
+    try
     {
-      throw new KeyManagerException(
-          "Password with alias ''{0}'' could not be retrieved, possibly due to incorrect " +
-          "protection password: {1}", exception,
-          alias, exception.getMessage()
-      );
+      for (KeyStore store : stores)
+      {
+        Enumeration<String> aliases = store.aliases();
+
+        while (aliases.hasMoreElements())
+        {
+          String alias = aliases.nextElement();
+          Certificate certificate = store.getCertificate(alias);
+
+          if (certificate != null)
+          {
+            cache.put(aliasKey(alias), encode(alias, certificate));
+          }
+        }
+      }
+
+      return cache;
     }
 
-    catch (UnrecoverableEntryException exception)
+    catch (KeyStoreException exception)
     {
-      throw new KeyManagerException(
-          "Password with alias ''{0}'' could not be retrieved, possibly due to incorrect " +
-          "protection password: {1}", exception,
-          alias, exception.getMessage()
+      throw new IncorrectImplementationException(
+          "Could not read keystore certificates: {0}", exception,
+          exception.getMessage()
       );
     }
   }
 
-
   /**
-   * A convenience method to retrieve a certificate (rather than a private or secret key)
-   * from the underlying keystore.
+   * Creates the DER and PEM encoded forms of a certificate.
    *
    * @param alias
-   *          Certificate alias to retrieve.
+   *            certificate alias, used in error messages
    *
-   * @return  A certificate, or null if not found
+   * @param certificate
+   *            certificate to encode
+   *
+   * @return    encoded certificate
+   *
+   * @throws KeyManagerException
+   *            if the certificate cannot be encoded
    */
-  protected Certificate getCertificate(String alias)
+  private EncodedCertificate encode(String alias, Certificate certificate)
+      throws KeyManagerException
   {
     try
     {
-      return keystore.getCertificate(alias);
+      byte[] der = certificate.getEncoded();
+
+      return new EncodedCertificate(der, encodePEM(der));
     }
 
-    catch (KeyStoreException exception)
+    catch (CertificateEncodingException exception)
     {
-      // This exception may happen if keystore is not initialized/loaded when asking for
-      // a certificate -- since we initialize the keystore instance as part of the constructor
-      // it should always be present. Therefore this exception should only occur in case of
-      // an implementation error.
-
-      throw new IncorrectImplementationException(
-          "Could not retrieve certificate '{0}': {1}", exception,
+      throw new KeyManagerException(
+          "Could not encode certificate ''{0}'' : {1}", exception,
           alias, exception.getMessage()
       );
     }
   }
 
-
   /**
-   * Generates a new asymmetric key pair using the given algorithm.
-   *
-   * @param keyAlgo
-   *            algorithm for the key generator
+   * Encodes DER bytes as a PEM certificate.
    *
-   * @return generated key pair
+   * @param der
+   *            DER encoded certificate
    *
-   * @throws KeyManagerException
-   *            in case any errors in key generation
+   * @return    PEM encoded certificate as US-ASCII bytes
    */
-  protected KeyPair generateKey(AsymmetricKeyAlgorithm keyAlgo) throws KeyManagerException
+  private byte[] encodePEM(byte[] der)
   {
-    try
+    StringBuilder pem = new StringBuilder(der.length * 4 / 3 + 128);
+
+    pem.append("-----BEGIN CERTIFICATE-----\n");
+
+    int column = 0;
+
+    for (int index = 0; index < der.length; index += 3)
     {
-      KeyPairGenerator keyGen;
+      int remaining = der.length - index;
+      int bits = (der[index] & 0xFF) << 16;
 
-      if (provider == null)
+      if (remaining > 1)
       {
-        keyGen = KeyPairGenerator.getInstance(keyAlgo.getAlgorithmName());
+        bits |= (der[index + 1] & 0xFF) << 8;
       }
 
-      else
+      if (remaining > 2)
       {
-        keyGen = KeyPairGenerator.getInstance(keyAlgo.getAlgorithmName(), provider);
+        bits |= (der[index + 2] & 0xFF);
       }
 
-      keyGen.initialize(keyAlgo.algorithmSpec);
+      pem.append(BASE64_ALPHABET[(bits >>> 18) & 0x3F]);
+      pem.append(BASE64_ALPHABET[(bits >>> 12) & 0x3F]);
+      pem.append(remaining > 1 ? BASE64_ALPHABET[(bits >>> 6) & 0x3F] : '=');
+      pem.append(remaining > 2 ? BASE64_ALPHABET[bits & 0x3F] : '=');
 
-      return keyGen.generateKeyPair();
+      column += 4;
+
+      if (column == PEM_LINE_LENGTH)
+      {
+        pem.append('\n');
+
+        column = 0;
+      }
     }
 
-    catch (InvalidAlgorithmParameterException exception)
+    if (column != 0)
     {
-      throw new KeyManagerException(
-          "Invalid algorithm parameter in {0} : {1}", exception,
-          keyAlgo, exception.getMessage()
-      );
+      pem.append('\n');
     }
 
-    catch (NoSuchAlgorithmException exception)
+    pem.append("-----END CERTIFICATE-----\n");
+
+    byte[] bytes = new byte[pem.length()];
+
+    for (int index = 0; index < bytes.length; ++index)
     {
-      throw new KeyManagerException(
-          "No security provider found for {0} : {1}", exception,
-          keyAlgo, exception.getMessage()
-      );
+      bytes[index] = (byte)pem.charAt(index);
     }
-  }
 
+    return bytes;
+  }
 
   /**
-   * Returns the key storage type used by this key manager.
+   * Returns the keystore file of a given shard.
    *
-   * @return    key storage type
+   * @param manifest
+   *            location of the shard manifest file
+   *
+   * @param index
+   *            shard index
+   *
+   * @return    shard keystore file
    */
-  protected Storage getStorageType()
+  private File shardFile(File manifest, int index)
   {
-    return storage;
+    return new File(manifest.getPath() + SHARD_FILE_SUFFIX + index);
   }
 
 
   /**
-   * Checks if key store exists at given file URI.
+   * Serializes the keystore of this key manager into memory, holding the keystore read lock
+   * for the duration of the serialization only.
    *
-   * @param uri
-   *            the file URI to check
+   * @param password
+   *            password to protect the serialized keystore with, not cleared
    *
-   * @return    true if file exists, false otherwise
+   * @return    serialized keystore
    *
    * @throws KeyManagerException
-   *            if security manager has denied access to file information
+   *            if this key manager is sharded or the keystore cannot be serialized
    */
-  protected boolean exists(URI uri) throws KeyManagerException
+  private SnapshotBuffer snapshot(char[] password) throws KeyManagerException
   {
-    File file = new File(uri);
-
-    try
-    {
-      return file.exists();
-    }
-
-    catch (SecurityException exception)
-    {
-      String path = resolveFilePath(file);
-
-      throw new KeyManagerException(
-          "Security manager has prevented access to file ''{0}'' : {1}", exception,
-          path, exception.getMessage()
-      );
-    }
-  }
-
+    SnapshotBuffer snapshot = new SnapshotBuffer();
 
+    keystoreLock.readLock().lock();
 
-  /**
-   * Clears the given password character array with zero values.
-   *
-   * @param password
-   *            password character array to erase
-   */
-  protected void clearPassword(char[] password)
-  {
-    if (password != null)
+    try
     {
-      for (int i = 0; i < password.length; ++i)
+      if (shards != null)
       {
-        password[i] = 0;
+        throw new KeyManagerException(
+            "Sharded key managers cannot be backed up to a single stream, use save() instead."
+        );
       }
+
+      save(keystore, snapshot, password);
+
+      return snapshot;
     }
-  }
 
-  /**
-   * Clears the given password byte array with zero values.
-   *
-   * @param password
-   *            password byte array to erase
-   */
-  protected void clearPassword(byte[] password)
-  {
-    if (password != null)
+    finally
     {
-      for (int i = 0; i< password.length; ++i)
-      {
-        password[i] = 0;
-      }
+      keystoreLock.readLock().unlock();
     }
   }
 
-
-  // Private Instance Methods ---------------------------------------------------------------------
-
-
   /**
    * Stores the key entries of this key manager into a keystore. The keystore is saved to the given
    * output stream. The keystore can be an existing, loaded keystore or a new, empty one.
@@ -938,6 +2305,8 @@ public abstract class KeyManager
    * @param password
    *            password to access the key store
    *
+   * @return    the loaded keystore
+   *
    * @throws ConfigurationException
    *            if the configured security provider(s) do not contain implementation for the
    *            required keystore type
@@ -945,8 +2314,8 @@ public abstract class KeyManager
    * @throws KeyManagerException
    *            if loading or creating the keystore fails
    */
-  private void loadKeyStore(File file, char[] password) throws ConfigurationException,
-                                                               KeyManagerException
+  private KeyStore loadKeyStore(File file, char[] password) throws ConfigurationException,
+                                                                   KeyManagerException
   {
     // This is basically just a convenience method to actual implementation
     // in loadKeyStore(InputStream, char[])...
@@ -960,7 +2329,26 @@ public abstract class KeyManager
     {
       BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
 
-      loadKeyStore(in, password);
+      try
+      {
+        return loadKeyStore(in, password);
+      }
+
+      finally
+      {
+        try
+        {
+          in.close();
+        }
+
+        catch (IOException exception)
+        {
+          securityLog.warn(
+              "Failed to close keystore file ''{0}'' : {1}", exception,
+              resolveFilePath(file), exception.getMessage()
+          );
+        }
+      }
     }
 
     catch (FileNotFoundException exception)
@@ -992,6 +2380,8 @@ public abstract class KeyManager
    * @param password
    *            shared secret (a password) used for protecting access to the key store
    *
+   * @return    the loaded (or new, empty) keystore
+   *
    * @throws ConfigurationException
    *            if the configured security provider(s) do not contain implementation for the
    *            required keystore type
@@ -999,11 +2389,13 @@ public abstract class KeyManager
    * @throws KeyManagerException
    *            if loading or creating the keystore fails
    */
-  private void loadKeyStore(InputStream in, char[] password) throws ConfigurationException,
-                                                                    KeyManagerException
+  private KeyStore loadKeyStore(InputStream in, char[] password) throws ConfigurationException,
+                                                                        KeyManagerException
   {
     try
     {
+      KeyStore keystore;
+
       if (provider == null)
       {
         // Use system installed security provider...
@@ -1017,6 +2409,8 @@ public abstract class KeyManager
       }
 
       keystore.load(in, password);
+
+      return keystore;
     }
 
     catch (KeyStoreException exception)
@@ -1100,31 +2494,191 @@ public abstract class KeyManager
     }
   }
 
-
+
+  /**
+   * File utility to print file path.
+   *
+   * @param file
+   *              file path to print
+   *
+   * @return      resolves to an absolute file path if allowed by the security manager, if not
+   *              returns the file path as defined in the file object parameter
+   */
+  private String resolveFilePath(File file)
+  {
+    try
+    {
+      return file.getAbsolutePath();
+    }
+
+    catch (SecurityException e)
+    {
+      return file.getPath();
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * In-memory keystore snapshot that can be cleared once written.
+   */
+  private static class SnapshotBuffer extends ByteArrayOutputStream
+  {
+    private SnapshotBuffer()
+    {
+      super(BACKUP_CHUNK_SIZE);
+    }
+
+    private synchronized void clear()
+    {
+      Arrays.fill(buf, (byte)0);
+
+      reset();
+    }
+  }
+
+  /**
+   * Writes a keystore snapshot to a backup target in chunks, optionally compressed. When
+   * backing up to a file, the temporary file is renamed to the target file on completion.
+   */
+  private static class BackupTask implements Callable<Long>
+  {
+    private SnapshotBuffer snapshot;
+    private OutputStream target;
+    private boolean compress;
+    private File temp;
+    private File file;
+
+    private BackupTask(SnapshotBuffer snapshot, OutputStream target, boolean compress,
+                       File temp, File file)
+    {
+      this.snapshot = snapshot;
+      this.target = target;
+      this.compress = compress;
+      this.temp = temp;
+      this.file = file;
+    }
+
+    @Override public Long call() throws KeyManagerException
+    {
+      CountingOutputStream counter = new CountingOutputStream(target);
+      boolean complete = false;
+
+      try
+      {
+        OutputStream out = compress
+            ? new GZIPOutputStream(counter, BACKUP_CHUNK_SIZE)
+            : new BufferedOutputStream(counter, BACKUP_CHUNK_SIZE);
+
+        try
+        {
+          byte[] bytes = snapshot.toByteArray();
+
+          try
+          {
+            for (int offset = 0; offset < bytes.length; offset += BACKUP_CHUNK_SIZE)
+            {
+              out.write(bytes, offset, Math.min(BACKUP_CHUNK_SIZE, bytes.length - offset));
+            }
+          }
+
+          finally
+          {
+            Arrays.fill(bytes, (byte)0);
+          }
+        }
+
+        finally
+        {
+          out.close();
+        }
+
+        if (file != null)
+        {
+          rename();
+        }
+
+        complete = true;
+
+        return counter.count;
+      }
+
+      catch (IOException exception)
+      {
+        securityLog.error("Keystore backup failed : {0}", exception, exception.getMessage());
+
+        throw new KeyManagerException(
+            "Keystore backup failed : {0}", exception, exception.getMessage()
+        );
+      }
+
+      finally
+      {
+        snapshot.clear();
+
+        if (!complete && temp != null && !temp.delete())
+        {
+          securityLog.warn("Could not delete temporary backup file ''{0}''.", temp);
+        }
+      }
+    }
+
+    private void rename() throws IOException
+    {
+      if (temp.renameTo(file))
+      {
+        return;
+      }
+
+      // Some platforms do not rename over an existing file...
+
+      if (!file.delete() || !temp.renameTo(file))
+      {
+        throw new IOException(
+            "Could not rename '" + temp.getPath() + "' to '" + file.getPath() + "'."
+        );
+      }
+    }
+  }
+
   /**
-   * File utility to print file path.
-   *
-   * @param file
-   *              file path to print
-   *
-   * @return      resolves to an absolute file path if allowed by the security manager, if not
-   *              returns the file path as defined in the file object parameter
+   * Counts the bytes written to the backup target.
    */
-  private String resolveFilePath(File file)
+  private static class CountingOutputStream extends FilterOutputStream
   {
-    try
+    private long count = 0;
+
+    private CountingOutputStream(OutputStream out)
     {
-      return file.getAbsolutePath();
+      super(out);
     }
 
-    catch (SecurityException e)
+    @Override public void write(int b) throws IOException
     {
-      return file.getPath();
+      out.write(b);
+
+      count++;
+    }
+
+    @Override public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+      out.write(bytes, offset, length);
+
+      count += length;
     }
   }
 
+  private static class BackupThreadFactory implements ThreadFactory
+  {
+    @Override public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "OpenRemote Keystore Backup");
+      thread.setDaemon(true);
 
-  // Nested Classes -------------------------------------------------------------------------------
+      return thread;
+    }
+  }
 
   /**
    * Storage implementations for serializing and persisting private keys, public keys/certificates.
@@ -1148,7 +2702,7 @@ public abstract class KeyManager
      * PKCS #12 format. Used for storing asymmetric key pairs and X.509 public key certificates.
      * Standardized format.
      */
-    PKCS12,
+    PKCS12(false, true),
 
     /**
      * A proprietary 'Java Keystore' storage format in Sun Java Cryptography Extension ('SunJCE')
@@ -1160,7 +2714,7 @@ public abstract class KeyManager
      * Can be used for storing symmetric keys, asymmetric key pairs and their associated
      * certificates.
      */
-    JCEKS,
+    JCEKS(false, false),
 
 
     // BouncyCastle Provider Storage Formats ------------------------------------------------------
@@ -1172,13 +2726,28 @@ public abstract class KeyManager
      * This format is resistant to tampering but not resistant to inspection, therefore in
      * typical cases the {@link #UBER} storage format is recommended.
      */
-    BKS(SecurityProvider.BC),
+    BKS(SecurityProvider.BC, true, false),
 
     /**
      * Recommended BouncyCastle keystore format. Requires password verification and is
      * resistant to inspection and tampering.
      */
-    UBER(SecurityProvider.BC);
+    UBER(SecurityProvider.BC, true, false),
+
+
+    // OpenRemote Provider Storage Formats --------------------------------------------------------
+
+    /**
+     * Keystore format that seals each key entry with AES-GCM under a random data key. The
+     * data key is wrapped with a key derived from the keystore master password once per
+     * keystore load or store, rather than per key entry. Entry encryption uses the JVM's
+     * AES-GCM implementation and benefits from hardware AES instructions where the JVM
+     * provides intrinsics for them (Java 8 and later). <p>
+     *
+     * Recommended where key entries are frequently added or retrieved. See
+     * {@link org.openremote.security.provider.AESGCMKeyStore} for details.
+     */
+    AESGCM(SecurityProvider.OPENREMOTE, true, false);
 
 
 
@@ -1191,15 +2760,35 @@ public abstract class KeyManager
      */
     private SecurityProvider provider = null;
 
+    /**
+     * Indicates whether the storage format distinguishes between aliases that only differ
+     * by case.
+     */
+    private boolean caseSensitiveAliases;
+
+    /**
+     * Indicates whether the storage format allows the key entry protection algorithm and
+     * its parameters to be chosen.
+     */
+    private boolean configurableProtection;
+
 
     // Constructors -------------------------------------------------------------------------------
 
     /**
      * Constructs a new storage instance without specific security provider.
+     *
+     * @param caseSensitiveAliases
+     *            whether the storage format distinguishes between aliases that only differ
+     *            by case
+     *
+     * @param configurableProtection
+     *            whether the key entry protection algorithm and its parameters can be chosen
      */
-    private Storage()
+    private Storage(boolean caseSensitiveAliases, boolean configurableProtection)
     {
-      // no op
+      this.caseSensitiveAliases = caseSensitiveAliases;
+      this.configurableProtection = configurableProtection;
     }
 
     /**
@@ -1207,10 +2796,20 @@ public abstract class KeyManager
      *
      * @param provider
      *            security provider
+     *
+     * @param caseSensitiveAliases
+     *            whether the storage format distinguishes between aliases that only differ
+     *            by case
+     *
+     * @param configurableProtection
+     *            whether the key entry protection algorithm and its parameters can be chosen
      */
-    private Storage(SecurityProvider provider)
+    private Storage(SecurityProvider provider, boolean caseSensitiveAliases,
+                    boolean configurableProtection)
     {
       this.provider = provider;
+      this.caseSensitiveAliases = caseSensitiveAliases;
+      this.configurableProtection = configurableProtection;
     }
 
 
@@ -1247,6 +2846,32 @@ public abstract class KeyManager
           : provider.getProviderInstance();
     }
 
+    /**
+     * Indicates whether this storage format distinguishes between key aliases that only
+     * differ by case. Storage formats that do not, such as {@link #PKCS12} and {@link #JCEKS},
+     * treat 'MyKey' and 'mykey' as the same alias.
+     *
+     * @return    true if aliases are case sensitive, false otherwise
+     */
+    public boolean hasCaseSensitiveAliases()
+    {
+      return caseSensitiveAliases;
+    }
+
+    /**
+     * Indicates whether this storage format accepts explicit key entry
+     * {@link ProtectionParameters protection parameters}. This is the case for the
+     * {@link #PKCS12} implementation included in Java 8 and later JVMs. The BouncyCastle
+     * formats and the BouncyCastle PKCS #12 implementation use fixed, provider chosen
+     * algorithms and iteration counts, as does {@link #JCEKS}.
+     *
+     * @return    true if key entry protection parameters can be configured, false otherwise
+     */
+    public boolean supportsProtectionParameters()
+    {
+      return configurableProtection;
+    }
+
 
     // Object Overrides ---------------------------------------------------------------------------
 
@@ -1420,6 +3045,16 @@ public abstract class KeyManager
       return defaultSignatureAlgorithm;
     }
 
+    /**
+     * Returns the key generator algorithm configuration parameters.
+     *
+     * @return  key generator algorithm parameters
+     */
+    AlgorithmParameterSpec getAlgorithmParameterSpec()
+    {
+      return algorithmSpec;
+    }
+
 
     // Object Overrides ---------------------------------------------------------------------------
 
@@ -1438,6 +3073,326 @@ public abstract class KeyManager
   }
 
 
+  /**
+   * Key entry types, see {@link KeyManager#listAliases(String, EntryType, String, int)}.
+   */
+  public enum EntryType
+  {
+    /**
+     * Private key with its certificate chain.
+     */
+    PRIVATE_KEY,
+
+    /**
+     * Symmetric secret key.
+     */
+    SECRET_KEY,
+
+    /**
+     * Trusted certificate.
+     */
+    TRUSTED_CERTIFICATE,
+
+    /**
+     * Any other keystore entry type.
+     */
+    OTHER;
+
+
+    /**
+     * Returns the type of a keystore entry.
+     *
+     * @param entry
+     *            keystore entry
+     *
+     * @return    entry type
+     */
+    private static EntryType typeOf(KeyStore.Entry entry)
+    {
+      if (entry instanceof KeyStore.PrivateKeyEntry)
+      {
+        return PRIVATE_KEY;
+      }
+
+      if (entry instanceof KeyStore.SecretKeyEntry)
+      {
+        return SECRET_KEY;
+      }
+
+      if (entry instanceof KeyStore.TrustedCertificateEntry)
+      {
+        return TRUSTED_CERTIFICATE;
+      }
+
+      return OTHER;
+    }
+
+    /**
+     * Returns the type of an entry in a keystore, without retrieving (decrypting) the entry.
+     *
+     * @param store
+     *            keystore
+     *
+     * @param alias
+     *            entry alias
+     *
+     * @return    entry type
+     *
+     * @throws KeyStoreException
+     *            if the keystore has not been initialized
+     */
+    private static EntryType typeOf(KeyStore store, String alias) throws KeyStoreException
+    {
+      if (store.entryInstanceOf(alias, KeyStore.PrivateKeyEntry.class))
+      {
+        return PRIVATE_KEY;
+      }
+
+      if (store.entryInstanceOf(alias, KeyStore.SecretKeyEntry.class))
+      {
+        return SECRET_KEY;
+      }
+
+      if (store.entryInstanceOf(alias, KeyStore.TrustedCertificateEntry.class))
+      {
+        return TRUSTED_CERTIFICATE;
+      }
+
+      return OTHER;
+    }
+  }
+
+  /**
+   * Password based protection parameters for key entries: the key derivation function,
+   * iteration count and cipher used to encrypt each key entry in a keystore. These map
+   * to the standard 'PBEWith&lt;prf&gt;And&lt;cipher&gt;' algorithm names, for example
+   * a key derivation function 'HmacSHA256' with cipher 'AES_256' selects the PKCS #5 v2.0
+   * (PBES2) scheme 'PBEWithHmacSHA256AndAES_256'. <p>
+   *
+   * Higher iteration counts slow down brute-force attacks against the keystore password
+   * proportionally, at the cost of slower key entry storage and retrieval.
+   *
+   * @see KeyManager#setProtectionParameters(ProtectionParameters)
+   */
+  public static class ProtectionParameters
+  {
+
+    // Constants ----------------------------------------------------------------------------------
+
+    /**
+     * Default key derivation function : {@value}
+     */
+    public final static String DEFAULT_KEY_DERIVATION_FUNCTION = "HmacSHA256";
+
+    /**
+     * Default cipher : {@value}
+     */
+    public final static String DEFAULT_CIPHER = "AES_256";
+
+    /**
+     * Default iteration count : {@value}
+     */
+    public final static int DEFAULT_ITERATIONS = 10000;
+
+    /**
+     * Length of the random salt generated for each protected key entry.
+     */
+    private final static int SALT_LENGTH = 20;
+
+
+    // Class Members ------------------------------------------------------------------------------
+
+    /**
+     * Source of key entry salts.
+     */
+    private final static SecureRandom random = new SecureRandom();
+
+    /**
+     * Password protection constructor with protection algorithm and parameters. This is only
+     * available in Java 8 and later and is therefore resolved at runtime. Null when not
+     * available.
+     */
+    private final static Constructor<KeyStore.PasswordProtection> passwordProtection =
+        findPasswordProtection();
+
+    private static Constructor<KeyStore.PasswordProtection> findPasswordProtection()
+    {
+      try
+      {
+        return KeyStore.PasswordProtection.class.getConstructor(
+            char[].class, String.class, AlgorithmParameterSpec.class
+        );
+      }
+
+      catch (NoSuchMethodException exception)
+      {
+        return null;
+      }
+    }
+
+
+    // Instance Fields ----------------------------------------------------------------------------
+
+    private final String keyDerivationFunction;
+
+    private final String cipher;
+
+    private final int iterations;
+
+
+    // Constructors -------------------------------------------------------------------------------
+
+    /**
+     * Creates protection parameters with the {@link #DEFAULT_KEY_DERIVATION_FUNCTION default}
+     * key derivation function and {@link #DEFAULT_CIPHER cipher}, and a given iteration count.
+     *
+     * @param iterations
+     *            key derivation iteration count
+     */
+    public ProtectionParameters(int iterations)
+    {
+      this(DEFAULT_KEY_DERIVATION_FUNCTION, DEFAULT_CIPHER, iterations);
+    }
+
+    /**
+     * Creates protection parameters.
+     *
+     * @param keyDerivationFunction
+     *            key derivation function (pseudo-random function), for example 'HmacSHA256'
+     *            or 'HmacSHA512' for PBES2 schemes, or 'SHA1' for PKCS #12 PBE schemes
+     *
+     * @param cipher
+     *            cipher used to encrypt the key entry, for example 'AES_128', 'AES_256'
+     *            or 'DESede'
+     *
+     * @param iterations
+     *            key derivation iteration count
+     */
+    public ProtectionParameters(String keyDerivationFunction, String cipher, int iterations)
+    {
+      if (keyDerivationFunction == null || keyDerivationFunction.equals("") ||
+          cipher == null || cipher.equals(""))
+      {
+        throw new IllegalArgumentException(
+            "Implementation Error: null or empty key derivation function or cipher."
+        );
+      }
+
+      if (iterations < 1)
+      {
+        throw new IllegalArgumentException(
+            "Implementation Error: iteration count must be positive, was " + iterations
+        );
+      }
+
+      this.keyDerivationFunction = keyDerivationFunction;
+      this.cipher = cipher;
+      this.iterations = iterations;
+    }
+
+
+    // Public Instance Methods --------------------------------------------------------------------
+
+    /**
+     * Returns the key derivation function of these protection parameters.
+     *
+     * @return    key derivation function name
+     */
+    public String getKeyDerivationFunction()
+    {
+      return keyDerivationFunction;
+    }
+
+    /**
+     * Returns the cipher of these protection parameters.
+     *
+     * @return    cipher name
+     */
+    public String getCipher()
+    {
+      return cipher;
+    }
+
+    /**
+     * Returns the key derivation iteration count of these protection parameters.
+     *
+     * @return    iteration count
+     */
+    public int getIterations()
+    {
+      return iterations;
+    }
+
+    /**
+     * Returns the standard password based encryption algorithm name corresponding to these
+     * protection parameters.
+     *
+     * @return    algorithm name, such as 'PBEWithHmacSHA256AndAES_256'
+     */
+    public String getProtectionAlgorithm()
+    {
+      return "PBEWith" + keyDerivationFunction + "And" + cipher;
+    }
+
+
+    // Object Overrides ---------------------------------------------------------------------------
+
+    @Override public String toString()
+    {
+      return getProtectionAlgorithm() + " (" + iterations + " iterations)";
+    }
+
+
+    // Private Instance Methods -------------------------------------------------------------------
+
+    /**
+     * Creates a keystore password protection with these parameters and a new random salt.
+     *
+     * @param password
+     *            key entry password
+     *
+     * @return    password protection
+     */
+    private KeyStore.PasswordProtection createProtection(char[] password)
+        throws KeyManagerException
+    {
+      byte[] salt = new byte[SALT_LENGTH];
+      random.nextBytes(salt);
+
+      try
+      {
+        return passwordProtection.newInstance(
+            password, getProtectionAlgorithm(), new PBEParameterSpec(salt, iterations)
+        );
+      }
+
+      catch (InvocationTargetException exception)
+      {
+        throw new KeyManagerException(
+            "Cannot create key protection {0} : {1}", exception.getCause(),
+            this, OpenRemoteException.messageOf(exception.getCause())
+        );
+      }
+
+      catch (InstantiationException exception)
+      {
+        throw new KeyManagerException(
+            "Cannot create key protection {0} : {1}", exception,
+            this, exception.getMessage()
+        );
+      }
+
+      catch (IllegalAccessException exception)
+      {
+        throw new KeyManagerException(
+            "Cannot create key protection {0} : {1}", exception,
+            this, exception.getMessage()
+        );
+      }
+    }
+  }
+
+
   /**
    * Exception type for the public API of this class to indicate errors.
    */
@@ -1465,5 +3420,36 @@ public abstract class KeyManager
     }
   }
 
-}
 
+  /**
+   * Alias index entry : the alias as stored in the keystore and the entry type.
+   */
+  private static class IndexedAlias
+  {
+    private String alias;
+    private EntryType type;
+
+    private IndexedAlias(String alias, EntryType type)
+    {
+      this.alias = alias;
+      this.type = type;
+    }
+  }
+
+
+  /**
+   * Pre-encoded forms of a certificate. The buffers are read-only and callers receive
+   * duplicates so that positions are independent.
+   */
+  private static class EncodedCertificate
+  {
+    private ByteBuffer der;
+    private ByteBuffer pem;
+
+    private EncodedCertificate(byte[] der, byte[] pem)
+    {
+      this.der = ByteBuffer.wrap(der).asReadOnlyBuffer();
+      this.pem = ByteBuffer.wrap(pem).asReadOnlyBuffer();
+    }
+  }
+}
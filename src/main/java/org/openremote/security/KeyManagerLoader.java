@@ -0,0 +1,635 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.openremote.base.exception.IncorrectImplementationException;
+import org.openremote.logging.Logger;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads a set of key managers concurrently. <p>
+ *
+ * Applications commonly open several keystores at startup -- a {@link PasswordManager}, a
+ * {@link PrivateKeyManager} and one or more {@link TrustStore} instances. Loading a keystore
+ * is dominated by password based key derivation and decryption, so loading them one after
+ * another adds up the individual load times. This coordinator runs the loads on a bounded
+ * thread pool instead. <p>
+ *
+ * Loads are registered either as factories that construct (and thereby load) a key manager,
+ * or as existing key manager instances with a keystore location and password. The
+ * {@link #load()} method executes all registered loads and returns a {@link Report} with the
+ * loaded key managers and the time each load took. If any load fails, loads that have not
+ * started yet are cancelled and a {@link LoadException} listing all the failures is thrown. <p>
+ *
+ * For example :
+ *
+ * <pre>
+ *   KeyManagerLoader loader = KeyManagerLoader.create();
+ *
+ *   loader.add("passwords", new Callable&lt;PasswordManager&gt;()
+ *   {
+ *     public PasswordManager call() throws Exception
+ *     {
+ *       return new PasswordManager(passwordLocation, masterPassword);
+ *     }
+ *   });
+ *
+ *   loader.add("trust", new Callable&lt;TrustStore&gt;()
+ *   {
+ *     public TrustStore call() throws Exception
+ *     {
+ *       return TrustStore.create(trustLocation);
+ *     }
+ *   });
+ *
+ *   KeyManagerLoader.Report report = loader.load();
+ *
+ *   PasswordManager passwords = report.getKeyManager("passwords", PasswordManager.class);
+ * </pre>
+ *
+ * A loader instance can be used once. It is not thread-safe, loads should be registered
+ * from a single thread.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class KeyManagerLoader
+{
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Default logger for the security package.
+   */
+  private final static Logger log = Logger.getInstance(SecurityLog.DEFAULT);
+
+
+  /**
+   * Creates a new loader with a thread pool bounded by the number of available processors.
+   *
+   * @return    new loader instance
+   */
+  public static KeyManagerLoader create()
+  {
+    return create(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new loader with a given maximum number of concurrent loads.
+   *
+   * @param maxThreads
+   *            maximum number of keystores loaded concurrently
+   *
+   * @return    new loader instance
+   */
+  public static KeyManagerLoader create(int maxThreads)
+  {
+    if (maxThreads < 1)
+    {
+      throw new IllegalArgumentException(
+          "Implementation Error: thread count must be positive, was " + maxThreads + "."
+      );
+    }
+
+    return new KeyManagerLoader(maxThreads);
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  /**
+   * Maximum number of concurrent loads.
+   */
+  private int maxThreads;
+
+  /**
+   * Registered loads in registration order, by name.
+   */
+  private Map<String, LoadTask> tasks = new LinkedHashMap<String, LoadTask>();
+
+  /**
+   * Set once {@link #load()} has been invoked.
+   */
+  private boolean loaded = false;
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private KeyManagerLoader(int maxThreads)
+  {
+    this.maxThreads = maxThreads;
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Registers a key manager factory. The factory is invoked from one of the loader's threads
+   * and is expected to construct a key manager, loading its keystore in the process.
+   *
+   * @param name
+   *            unique name that identifies this keystore in the load report and in errors
+   *
+   * @param factory
+   *            factory that creates and loads the key manager
+   *
+   * @throws IllegalArgumentException
+   *            if name or factory is null, or the name is already registered
+   *
+   * @throws IllegalStateException
+   *            if this loader has already been used
+   */
+  public void add(String name, Callable<? extends KeyManager> factory)
+  {
+    if (factory == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null key manager factory.");
+    }
+
+    register(new LoadTask(name, factory));
+  }
+
+  /**
+   * Registers an existing key manager instance to be loaded from a given keystore location.
+   * The password character array is cleared once the load completes, or when
+   * {@link #load()} returns if the load was cancelled before it started.
+   *
+   * @param name
+   *            unique name that identifies this keystore in the load report and in errors
+   *
+   * @param keyManager
+   *            key manager to load the keystore into
+   *
+   * @param location
+   *            keystore location
+   *
+   * @param password
+   *            password to access the keystore
+   *
+   * @throws IllegalArgumentException
+   *            if name, key manager or location is null, or the name is already registered
+   *
+   * @throws IllegalStateException
+   *            if this loader has already been used
+   */
+  public void add(String name, final KeyManager keyManager, final URI location,
+                  final char[] password)
+  {
+    if (keyManager == null || location == null)
+    {
+      throw new IllegalArgumentException(
+          "Implementation Error: null key manager or keystore location."
+      );
+    }
+
+    register(new LoadTask(name, new Callable<KeyManager>()
+    {
+      @Override public KeyManager call() throws KeyManager.KeyManagerException
+      {
+        keyManager.load(location, password);
+
+        return keyManager;
+      }
+    }, password));
+  }
+
+  /**
+   * Executes all registered loads concurrently and waits for them to complete. <p>
+   *
+   * If a load fails, the loads that have not yet started are cancelled. Loads already in
+   * progress are allowed to complete, and any further failures among them are included in
+   * the thrown exception.
+   *
+   * @return    load report with the loaded key managers and per keystore load times
+   *
+   * @throws LoadException
+   *            if any of the loads fails, or the calling thread is interrupted
+   *
+   * @throws IllegalStateException
+   *            if this loader has already been used
+   */
+  public Report load() throws LoadException
+  {
+    if (loaded)
+    {
+      throw new IllegalStateException("Implementation Error: key manager loader already used.");
+    }
+
+    loaded = true;
+
+    long start = System.nanoTime();
+
+    if (tasks.isEmpty())
+    {
+      return new Report(tasks, 0);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(maxThreads, tasks.size()), new LoaderThreadFactory()
+    );
+
+    CompletionService<KeyManager> completion = new ExecutorCompletionService<KeyManager>(executor);
+    Map<Future<KeyManager>, LoadTask> futures = new HashMap<Future<KeyManager>, LoadTask>();
+    Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+    try
+    {
+      for (LoadTask task : tasks.values())
+      {
+        futures.put(completion.submit(task), task);
+      }
+
+      for (int remaining = futures.size(); remaining > 0; --remaining)
+      {
+        Future<KeyManager> future = completion.take();
+        LoadTask task = futures.get(future);
+
+        try
+        {
+          task.keyManager = future.get();
+
+          log.info(
+              "Loaded keystore ''{0}'' in {1} ms.", task.name, task.getLoadTimeMillis()
+          );
+        }
+
+        catch (CancellationException exception)
+        {
+          log.debug("Load of keystore ''{0}'' was cancelled.", task.name);
+        }
+
+        catch (ExecutionException exception)
+        {
+          failures.put(task.name, exception.getCause());
+
+          log.error(
+              "Failed to load keystore ''{0}'' : {1}", exception.getCause(),
+              task.name, exception.getCause().getMessage()
+          );
+
+          if (failures.size() == 1)
+          {
+            // Fail fast -- cancel loads that have not started yet...
+
+            for (Future<KeyManager> other : futures.keySet())
+            {
+              other.cancel(false);
+            }
+          }
+        }
+      }
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+
+      for (Future<KeyManager> future : futures.keySet())
+      {
+        future.cancel(true);
+      }
+
+      throw new LoadException(
+          "Interrupted while loading keystores.", exception, failures
+      );
+    }
+
+    finally
+    {
+      executor.shutdownNow();
+
+      // Loads that were cancelled or dropped from the queue never ran, clear their
+      // passwords here...
+
+      for (LoadTask task : tasks.values())
+      {
+        task.close();
+      }
+    }
+
+    if (!failures.isEmpty())
+    {
+      throw new LoadException(
+          "Failed to load {0} of {1} keystores {2} : {3}", null, failures,
+          failures.size(), tasks.size(), failures.keySet(),
+          failures.values().iterator().next().getMessage()
+      );
+    }
+
+    Report report = new Report(tasks, System.nanoTime() - start);
+
+    log.info("Loaded {0} keystores in {1} ms.", tasks.size(), report.getTotalTimeMillis());
+
+    return report;
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void register(LoadTask task)
+  {
+    if (loaded)
+    {
+      throw new IllegalStateException("Implementation Error: key manager loader already used.");
+    }
+
+    if (task.name == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null keystore name.");
+    }
+
+    if (tasks.containsKey(task.name))
+    {
+      throw new IllegalArgumentException(
+          "Implementation Error: keystore name '" + task.name + "' is already registered."
+      );
+    }
+
+    tasks.put(task.name, task);
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Results of a completed load, including the time spent loading each keystore.
+   */
+  public static class Report
+  {
+    private Map<String, LoadTask> tasks;
+    private long totalNanos;
+
+    private Report(Map<String, LoadTask> tasks, long totalNanos)
+    {
+      this.tasks = tasks;
+      this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Returns the names of the loaded keystores, in registration order.
+     *
+     * @return    keystore names
+     */
+    public Iterable<String> getNames()
+    {
+      return Collections.unmodifiableSet(tasks.keySet());
+    }
+
+    /**
+     * Returns a loaded key manager.
+     *
+     * @param name
+     *            keystore name
+     *
+     * @param type
+     *            expected key manager type
+     *
+     * @return    the loaded key manager, or null if no keystore with a given name was registered
+     *
+     * @throws ClassCastException
+     *            if the loaded key manager is not of the expected type
+     */
+    public <T extends KeyManager> T getKeyManager(String name, Class<T> type)
+    {
+      LoadTask task = tasks.get(name);
+
+      return (task == null) ? null : type.cast(task.keyManager);
+    }
+
+    /**
+     * Returns the time it took to load a given keystore.
+     *
+     * @param name
+     *            keystore name
+     *
+     * @return    load time in milliseconds, or -1 if no keystore with a given name was registered
+     */
+    public long getLoadTimeMillis(String name)
+    {
+      LoadTask task = tasks.get(name);
+
+      return (task == null) ? -1 : task.getLoadTimeMillis();
+    }
+
+    /**
+     * Returns the wall clock time it took to load all keystores.
+     *
+     * @return    total load time in milliseconds
+     */
+    public long getTotalTimeMillis()
+    {
+      return totalNanos / 1000000;
+    }
+
+    /**
+     * Returns a multi-line summary of load times.
+     *
+     * @return    load time summary
+     */
+    @Override public String toString()
+    {
+      StringBuilder builder = new StringBuilder();
+
+      builder.append("Loaded ").append(tasks.size()).append(" keystores in ")
+             .append(getTotalTimeMillis()).append(" ms:");
+
+      for (LoadTask task : tasks.values())
+      {
+        builder.append("\n  ").append(task.name).append(" : ")
+               .append(task.getLoadTimeMillis()).append(" ms");
+      }
+
+      return builder.toString();
+    }
+  }
+
+
+  /**
+   * Aggregated exception of one or more failed keystore loads.
+   */
+  public static class LoadException extends KeyManager.KeyManagerException
+  {
+    private Map<String, Throwable> failures;
+
+    private LoadException(String msg, Throwable cause, Map<String, Throwable> failures,
+                          Object... params)
+    {
+      super(msg, (cause != null || failures.isEmpty()) ? cause : firstOf(failures), params);
+
+      this.failures = Collections.unmodifiableMap(new LinkedHashMap<String, Throwable>(failures));
+    }
+
+    private static Throwable firstOf(Map<String, Throwable> failures)
+    {
+      return failures.values().iterator().next();
+    }
+
+    /**
+     * Returns the load errors by keystore name. The first failure is also set as the cause
+     * of this exception.
+     *
+     * @return    load errors by keystore name
+     */
+    public Map<String, Throwable> getFailures()
+    {
+      return failures;
+    }
+  }
+
+
+  /**
+   * Load of a single named keystore. The keystore password, if any, is cleared when the load
+   * completes or, for loads that never start, when the task is closed.
+   */
+  private static class LoadTask implements Callable<KeyManager>
+  {
+    private String name;
+    private Callable<? extends KeyManager> factory;
+    private char[] password;
+
+    private boolean running = false;
+    private boolean closed = false;
+
+    private volatile KeyManager keyManager = null;
+    private volatile long nanos = 0;
+
+    private LoadTask(String name, Callable<? extends KeyManager> factory)
+    {
+      this(name, factory, null);
+    }
+
+    private LoadTask(String name, Callable<? extends KeyManager> factory, char[] password)
+    {
+      this.name = name;
+      this.factory = factory;
+      this.password = password;
+    }
+
+    @Override public KeyManager call() throws Exception
+    {
+      synchronized (this)
+      {
+        if (closed)
+        {
+          throw new CancellationException("Load of keystore '" + name + "' was cancelled.");
+        }
+
+        running = true;
+      }
+
+      try
+      {
+        return load();
+      }
+
+      finally
+      {
+        synchronized (this)
+        {
+          running = false;
+          clearPassword();
+        }
+      }
+    }
+
+    /**
+     * Prevents this load from starting, and clears its password unless the load is in
+     * progress, in which case it is cleared once the load completes.
+     */
+    private synchronized void close()
+    {
+      closed = true;
+
+      if (!running)
+      {
+        clearPassword();
+      }
+    }
+
+    private KeyManager load() throws Exception
+    {
+      long start = System.nanoTime();
+
+      try
+      {
+        KeyManager result = factory.call();
+
+        if (result == null)
+        {
+          throw new IncorrectImplementationException(
+              "Key manager factory for ''{0}'' returned null.", name
+          );
+        }
+
+        return result;
+      }
+
+      finally
+      {
+        nanos = System.nanoTime() - start;
+      }
+    }
+
+    private long getLoadTimeMillis()
+    {
+      return nanos / 1000000;
+    }
+
+    private void clearPassword()
+    {
+      if (password != null)
+      {
+        Arrays.fill(password, (char)0);
+      }
+    }
+  }
+
+
+  /**
+   * Creates daemon threads for keystore loads.
+   */
+  private static class LoaderThreadFactory implements ThreadFactory
+  {
+    private int count = 0;
+
+    @Override public synchronized Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "Keystore Loader " + (++count));
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
@@ -21,12 +21,24 @@
 package org.openremote.security;
 
 import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
 import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.math.BigInteger;
+import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
 
 import org.openremote.base.exception.IncorrectImplementationException;
 import org.openremote.base.exception.OpenRemoteException;
@@ -167,6 +179,38 @@ public interface KeySigner
    */
   X509Certificate signPublicKey(Configuration config) throws SigningException;
 
+  /**
+   * Parses a PKCS #10 certificate signing request and verifies its proof-of-possession
+   * signature : the request must be signed with the private key corresponding to the public
+   * key in the request. Use
+   * {@link Configuration#createIssued(CertificationRequest, PrivateKey, X509Certificate, Validity)}
+   * to create a configuration for signing the requested public key.
+   *
+   * @param request
+   *            DER or PEM encoded certificate signing request
+   *
+   * @return  verified certificate signing request
+   *
+   * @throws KeySigner.SigningException
+   *            if the request cannot be parsed or its signature is not valid
+   */
+  CertificationRequest parseCertificationRequest(byte[] request) throws SigningException;
+
+  /**
+   * Creates a X.509 version 2 certificate revocation list signed with the issuer's private
+   * key. The configuration determines whether a complete list or a delta list is created, see
+   * {@link RevocationListConfiguration}.
+   *
+   * @param config
+   *            revocation list configuration
+   *
+   * @return  a signed X.509 certificate revocation list
+   *
+   * @throws KeySigner.SigningException
+   *            if creation of the revocation list fails for any reason
+   */
+  X509CRL signRevocationList(RevocationListConfiguration config) throws SigningException;
+
 
 
 
@@ -312,6 +356,124 @@ public interface KeySigner
       return new Configuration(keyPair, signatureAlgorithm, validity, issuerCommonName);
     }
 
+    /**
+     * Creates a configuration for signing the public key of a verified certificate signing
+     * request with an issuer's private key. The certificate subject is the subject of the
+     * request and the certificate issuer is the subject of the issuer's certificate. <p>
+     *
+     * The signature algorithm is chosen from default algorithms defined in
+     * {@link KeySigner#DEFAULT_EC_SIGNATURE_ALGORITHM} and
+     * {@link KeySigner#DEFAULT_RSA_SIGNATURE_ALGORITHM} constants, depending whether the issuer
+     * key is an RSA or elliptic curve key.
+     *
+     * @see KeySigner#parseCertificationRequest(byte[])
+     *
+     * @param request
+     *            verified certificate signing request
+     *
+     * @param issuerKey
+     *            the issuer's private key, used to sign the requested public key
+     *
+     * @param issuerCertificate
+     *            the issuer's certificate
+     *
+     * @param validity
+     *            The validity period for the generated signature certificate, see
+     *            {@link Validity}
+     *
+     * @return    a new key signature configuration
+     */
+    public static Configuration createIssued(CertificationRequest request, PrivateKey issuerKey,
+                                             X509Certificate issuerCertificate, Validity validity)
+    {
+      return new Configuration(request, issuerKey, issuerCertificate, validity);
+    }
+
+    /**
+     * Creates a configuration for signing a public key with an issuer's private key. The
+     * certificate subject uses the default X.500 name attributes (see
+     * {@link #createDefault(KeyPair, String)}) with a given common name, the certificate
+     * issuer is the subject of the issuer's certificate.
+     *
+     * @param publicKey
+     *            the public key to sign
+     *
+     * @param subjectCommonName
+     *            common name attribute of the certificate subject
+     *
+     * @param issuerKey
+     *            the issuer's private key, used to sign the public key
+     *
+     * @param issuerCertificate
+     *            the issuer's certificate
+     *
+     * @param validity
+     *            The validity period for the generated signature certificate, see
+     *            {@link Validity}
+     *
+     * @return    a new key signature configuration
+     */
+    public static Configuration createIssued(PublicKey publicKey, String subjectCommonName,
+                                             PrivateKey issuerKey,
+                                             X509Certificate issuerCertificate, Validity validity)
+    {
+      if (subjectCommonName == null || subjectCommonName.equals(""))
+      {
+        throw new IncorrectImplementationException(
+            "Null or empty X.509 certificate common name attribute."
+        );
+      }
+
+      try
+      {
+        Issuer subject = new Issuer(parseCommonName(subjectCommonName));
+
+        return new Configuration(
+            new CertificationRequest(subject.toX500Principal(), publicKey),
+            issuerKey, issuerCertificate, validity
+        );
+      }
+
+      catch (SigningException exception)
+      {
+        throw new IncorrectImplementationException(
+            "Cannot parse X.500 common name '{0}' : {1}", exception,
+            subjectCommonName, exception.getMessage()
+        );
+      }
+    }
+
+    /**
+     * Returns the default signature algorithm for an issuer's private key, see
+     * {@link KeyManager.AsymmetricKeyAlgorithm#getDefaultSignatureAlgorithm()}.
+     *
+     * @param issuerKey
+     *            the issuer's private signing key
+     *
+     * @return  default signature algorithm for the key algorithm
+     */
+    public static SignatureAlgorithm getDefaultSignatureAlgorithm(PrivateKey issuerKey)
+    {
+      // BouncyCastle names elliptic curve keys 'ECDSA'...
+
+      String algorithm = issuerKey.getAlgorithm().startsWith("EC")
+          ? KeyManager.AsymmetricKeyAlgorithm.EC.name()
+          : issuerKey.getAlgorithm();
+
+      try
+      {
+        return KeyManager.AsymmetricKeyAlgorithm.valueOf(algorithm).getDefaultSignatureAlgorithm();
+      }
+
+      catch (IllegalArgumentException exception)
+      {
+        throw new IncorrectImplementationException(
+            "No support defined for '{0}' encryption key algorithm.",
+            issuerKey.getAlgorithm()
+        );
+      }
+    }
+
 
     // Instance Fields ----------------------------------------------------------------------------
 
@@ -473,7 +635,7 @@ public interface KeySigner
         );
       }
 
-      this.subject = new Subject(this.issuer.toX500Name());
+      this.subject = new Subject(this.issuer.toX500Name(), this.issuer.toX500Principal());
     }
 
 
@@ -612,6 +774,38 @@ public interface KeySigner
       this.validity = valid;
     }
 
+    /**
+     * Constructs a new key signing configuration for a certificate signing request, see
+     * {@link #createIssued(CertificationRequest, PrivateKey, X509Certificate, Validity)}.
+     *
+     * @throws IncorrectImplementationException
+     *            if any of the arguments is null; if issuer key encryption algorithm does not
+     *            have a matching signature algorithm
+     */
+    private Configuration(CertificationRequest request, PrivateKey issuerKey,
+                          X509Certificate issuerCertificate, Validity valid)
+    {
+      if (request == null || issuerKey == null || issuerCertificate == null || valid == null)
+      {
+        throw new IncorrectImplementationException(
+            "Implementation error: null certification request, issuer key, issuer " +
+            "certificate or validity."
+        );
+      }
+
+      this.privateSigningKey = issuerKey;
+      this.publicKey = request.getPublicKey();
+      this.validity = valid;
+      this.signatureAlgorithm = getDefaultSignatureAlgorithm(issuerKey);
+
+      X500Principal issuerName = issuerCertificate.getSubjectX500Principal();
+
+      this.issuer = new Issuer(Issuer.toRFC2253(issuerName.getName()), issuerName);
+      this.subject = new Subject(
+          Issuer.toRFC2253(request.getSubject().getName()), request.getSubject()
+      );
+    }
+
 
 
     // Public Instance Methods --------------------------------------------------------------------
@@ -681,7 +875,7 @@ public interface KeySigner
 
     // Private Instance Methods -------------------------------------------------------------------
 
-    private String parseCommonName(String name) throws SigningException
+    private static String parseCommonName(String name) throws SigningException
     {
       // TODO :
       //          should be more precise on the name encoding conventions, e.g. special
@@ -829,6 +1023,19 @@ public interface KeySigner
     }
 
 
+    /**
+     * Returns the standard message digest algorithm name of the hash function used by this
+     * signature algorithm, for example 'SHA-256'.
+     *
+     * @return  message digest algorithm name
+     */
+    public String getDigestAlgorithm()
+    {
+      // All defined algorithms are named 'SHAxxxwith...'...
+
+      return "SHA-" + algorithmName.substring(3, algorithmName.indexOf("with"));
+    }
+
     /**
      * Returns the signature algorithm name as string as required by the Java security API.
      *
@@ -856,6 +1063,11 @@ public interface KeySigner
      */
     private String x500Name;
 
+    /**
+     * Parsed X.500 name for certificate issuer, created on first use.
+     */
+    private volatile X500Principal principal = null;
+
     /**
      * Constructs a new issuer information.
      *
@@ -872,6 +1084,12 @@ public interface KeySigner
           "CN=" + commonName;
     }
 
+    private Issuer(String x500Name, X500Principal principal)
+    {
+      this.x500Name = x500Name;
+      this.principal = principal;
+    }
+
     /**
      * Returns an X.500 formatted name of this issuer.
      *
@@ -881,6 +1099,87 @@ public interface KeySigner
     {
       return x500Name;
     }
+
+    /**
+     * Returns the parsed X.500 name of this issuer, as it appears in signed certificates.
+     * The name is parsed once, on first use.
+     *
+     * @return X.500 principal with organization, country, state, location and common name
+     *         attributes
+     */
+    public X500Principal toX500Principal()
+    {
+      if (principal == null)
+      {
+        principal = new X500Principal(toRFC2253(x500Name));
+      }
+
+      return principal;
+    }
+
+    /**
+     * Converts an X.500 name string of this implementation to RFC 2253 format. The names
+     * in this implementation list attributes in the order they are encoded in a certificate
+     * while RFC 2253 string representation lists them in reverse order. Since the conversion
+     * only reverses the attribute order, it also converts RFC 2253 names to the format of
+     * this implementation. Escaped and quoted commas in attribute values are preserved.
+     *
+     * @param x500Name
+     *            X.500 name with attributes in encoding order
+     *
+     * @return  RFC 2253 formatted name
+     */
+    private static String toRFC2253(String x500Name)
+    {
+      List<String> attributes = new ArrayList<String>();
+
+      boolean escaped = false;
+      boolean quoted = false;
+      int begin = 0;
+
+      for (int index = 0; index < x500Name.length(); ++index)
+      {
+        char c = x500Name.charAt(index);
+
+        if (escaped)
+        {
+          escaped = false;
+        }
+
+        else if (c == '\\')
+        {
+          escaped = true;
+        }
+
+        else if (c == '"')
+        {
+          quoted = !quoted;
+        }
+
+        else if (c == ',' && !quoted)
+        {
+          attributes.add(x500Name.substring(begin, index));
+
+          begin = index + 1;
+        }
+      }
+
+      attributes.add(x500Name.substring(begin));
+
+      StringBuilder builder = new StringBuilder(x500Name.length());
+
+      for (int index = attributes.size() - 1; index >= 0; --index)
+      {
+        builder.append(attributes.get(index).trim());
+
+        if (index > 0)
+        {
+          builder.append(',');
+        }
+      }
+
+      return builder.toString();
+    }
   }
 
 
@@ -893,21 +1192,573 @@ public interface KeySigner
   {
     private String x500Name;
 
+    private volatile X500Principal principal = null;
+
     public Subject(String organization, String country, String state,
                    String location, String commonName)
     {
 
     }
 
-    private Subject(String x500Name)
+    private Subject(String x500Name, X500Principal principal)
     {
       this.x500Name = x500Name;
+      this.principal = principal;
     }
 
     public String toX500Name()
     {
       return x500Name;
     }
+
+    /**
+     * Returns the parsed X.500 name of this subject. The name is parsed once, on first use.
+     *
+     * @return X.500 principal of this subject, or null if no subject name has been set
+     */
+    public X500Principal toX500Principal()
+    {
+      if (principal == null && x500Name != null)
+      {
+        principal = new X500Principal(Issuer.toRFC2253(x500Name));
+      }
+
+      return principal;
+    }
+  }
+
+
+  /**
+   * A PKCS #10 certificate signing request : the subject name and public key to certify.
+   * Instances are created by {@link KeySigner#parseCertificationRequest(byte[])} implementations
+   * through {@link #verify}, which checks the request's proof-of-possession signature.
+   */
+  public static class CertificationRequest
+  {
+
+    /**
+     * Verifies the proof-of-possession signature of a parsed certificate signing request and
+     * returns the verified request. The signature must have been created over the encoded
+     * certification request info with the private key corresponding to the requested
+     * public key.
+     *
+     * @param subject
+     *            requested certificate subject
+     *
+     * @param publicKey
+     *            public key to certify, also used to verify the request signature
+     *
+     * @param signatureAlgorithm
+     *            name or object identifier of the request signature algorithm
+     *
+     * @param requestInfo
+     *            DER encoded certification request info the signature was created over
+     *
+     * @param signature
+     *            request signature
+     *
+     * @param provider
+     *            security provider for the signature algorithm
+     *
+     * @return  verified certificate signing request
+     *
+     * @throws KeySigner.SigningException
+     *            if the signature algorithm is not supported or the signature is not valid
+     */
+    public static CertificationRequest verify(X500Principal subject, PublicKey publicKey,
+                                              String signatureAlgorithm, byte[] requestInfo,
+                                              byte[] signature, Provider provider)
+        throws SigningException
+    {
+      if (subject == null || publicKey == null || signatureAlgorithm == null ||
+          requestInfo == null || signature == null || provider == null)
+      {
+        throw new IncorrectImplementationException(
+            "Implementation error: null certification request verification argument."
+        );
+      }
+
+      try
+      {
+        Signature verifier = Signature.getInstance(signatureAlgorithm, provider);
+        verifier.initVerify(publicKey);
+        verifier.update(requestInfo);
+
+        if (!verifier.verify(signature))
+        {
+          throw new SigningException(
+              "Certification request signature of ''{0}'' is not valid.", subject.getName()
+          );
+        }
+
+        return new CertificationRequest(subject, publicKey);
+      }
+
+      catch (NoSuchAlgorithmException exception)
+      {
+        throw new SigningException(
+            "Unsupported certification request signature : {0}", exception,
+            exception.getMessage()
+        );
+      }
+
+      catch (InvalidKeyException exception)
+      {
+        throw new SigningException(
+            "Cannot verify certification request signature : {0}", exception,
+            exception.getMessage()
+        );
+      }
+
+      catch (SignatureException exception)
+      {
+        throw new SigningException(
+            "Cannot verify certification request signature : {0}", exception,
+            exception.getMessage()
+        );
+      }
+    }
+
+
+    private X500Principal subject;
+
+    private PublicKey publicKey;
+
+    /**
+     * Constructs a certificate signing request. Requests received from a third party are
+     * created through {@link #verify} instead.
+     *
+     * @param subject
+     *            requested certificate subject
+     *
+     * @param publicKey
+     *            public key to certify
+     */
+    CertificationRequest(X500Principal subject, PublicKey publicKey)
+    {
+      if (subject == null || publicKey == null)
+      {
+        throw new IncorrectImplementationException(
+            "Implementation error: null certification request subject or public key."
+        );
+      }
+
+      this.subject = subject;
+      this.publicKey = publicKey;
+    }
+
+    /**
+     * Returns the requested certificate subject.
+     *
+     * @return  subject X.500 name
+     */
+    public X500Principal getSubject()
+    {
+      return subject;
+    }
+
+    /**
+     * Returns the public key to certify.
+     *
+     * @return  requested public key
+     */
+    public PublicKey getPublicKey()
+    {
+      return publicKey;
+    }
+  }
+
+
+  /**
+   * Certificate revocation reason codes, as defined in
+   * http://tools.ietf.org/html/rfc5280#section-5.3.1
+   */
+  public enum RevocationReason
+  {
+    UNSPECIFIED(0),
+    KEY_COMPROMISE(1),
+    CA_COMPROMISE(2),
+    AFFILIATION_CHANGED(3),
+    SUPERSEDED(4),
+    CESSATION_OF_OPERATION(5),
+    CERTIFICATE_HOLD(6),
+
+    /**
+     * Only used in delta revocation lists, to indicate that a certificate previously listed
+     * (on hold) in the base revocation list is no longer revoked.
+     */
+    REMOVE_FROM_CRL(8),
+
+    PRIVILEGE_WITHDRAWN(9),
+    AA_COMPROMISE(10);
+
+
+    private int code;
+
+    private RevocationReason(int code)
+    {
+      this.code = code;
+    }
+
+    /**
+     * Returns the ASN.1 enumerated reason code of this revocation reason.
+     *
+     * @return  reason code
+     */
+    public int getCode()
+    {
+      return code;
+    }
+
+    /**
+     * Returns the revocation reason of a given ASN.1 enumerated reason code.
+     *
+     * @param code
+     *            reason code
+     *
+     * @return  revocation reason, {@link #UNSPECIFIED} for unknown codes
+     */
+    public static RevocationReason valueOf(int code)
+    {
+      for (RevocationReason reason : values())
+      {
+        if (reason.code == code)
+        {
+          return reason;
+        }
+      }
+
+      return UNSPECIFIED;
+    }
+  }
+
+
+  /**
+   * A single revoked certificate entry of a certificate revocation list : the certificate
+   * serial number, revocation date and revocation reason.
+   */
+  public static class Revocation
+  {
+    private BigInteger serialNumber;
+
+    private Date revocationDate;
+
+    private RevocationReason reason;
+
+    /**
+     * Constructs a new revocation entry.
+     *
+     * @param serialNumber
+     *            serial number of the revoked certificate
+     *
+     * @param revocationDate
+     *            date the certificate was revoked
+     *
+     * @param reason
+     *            revocation reason
+     */
+    public Revocation(BigInteger serialNumber, Date revocationDate, RevocationReason reason)
+    {
+      if (serialNumber == null || revocationDate == null || reason == null)
+      {
+        throw new IncorrectImplementationException(
+            "Implementation error: null revocation serial number, date or reason."
+        );
+      }
+
+      this.serialNumber = serialNumber;
+      this.revocationDate = new Date(revocationDate.getTime());
+      this.reason = reason;
+    }
+
+    /**
+     * Returns the serial number of the revoked certificate.
+     *
+     * @return  certificate serial number
+     */
+    public BigInteger getSerialNumber()
+    {
+      return serialNumber;
+    }
+
+    /**
+     * Returns the revocation date.
+     *
+     * @return  revocation date
+     */
+    public Date getRevocationDate()
+    {
+      return new Date(revocationDate.getTime());
+    }
+
+    /**
+     * Returns the revocation reason.
+     *
+     * @return  revocation reason
+     */
+    public RevocationReason getReason()
+    {
+      return reason;
+    }
+
+    @Override public String toString()
+    {
+      return serialNumber + " (" + reason + ", " + revocationDate + ")";
+    }
+  }
+
+
+  /**
+   * Configuration of a certificate revocation list : the issuer key and certificate, the
+   * revoked certificate entries, the revocation list number and update dates. <p>
+   *
+   * A delta revocation list (see {@link #createDelta}) only lists the changes since a base
+   * revocation list, identified by its revocation list number. Relying parties merge delta
+   * lists with the base list, so frequent revocations do not require publishing the complete
+   * list each time.
+   */
+  public static class RevocationListConfiguration
+  {
+
+    /**
+     * Creates a configuration for a complete certificate revocation list. The signature
+     * algorithm is chosen from the default algorithms depending on the issuer key, as with
+     * {@link Configuration#createIssued(CertificationRequest, PrivateKey, X509Certificate, Validity)}.
+     *
+     * @param issuerKey
+     *            the issuer's private key, used to sign the revocation list
+     *
+     * @param issuerCertificate
+     *            the issuer's certificate
+     *
+     * @param revocations
+     *            revoked certificate entries
+     *
+     * @param number
+     *            monotonically increasing revocation list number
+     *
+     * @param thisUpdate
+     *            issue date of the revocation list
+     *
+     * @param nextUpdate
+     *            date by which the next revocation list will be issued
+     *
+     * @return  a new revocation list configuration
+     */
+    public static RevocationListConfiguration create(PrivateKey issuerKey,
+                                                     X509Certificate issuerCertificate,
+                                                     Collection<Revocation> revocations,
+                                                     BigInteger number,
+                                                     Date thisUpdate, Date nextUpdate)
+    {
+      return new RevocationListConfiguration(
+          issuerKey, issuerCertificate, revocations, number, null, thisUpdate, nextUpdate
+      );
+    }
+
+    /**
+     * Creates a configuration for a delta certificate revocation list that lists changes
+     * since a given base revocation list. Entries with the {@link RevocationReason#REMOVE_FROM_CRL}
+     * reason remove certificates listed in the base revocation list.
+     *
+     * @param issuerKey
+     *            the issuer's private key, used to sign the revocation list
+     *
+     * @param issuerCertificate
+     *            the issuer's certificate
+     *
+     * @param revocations
+     *            revoked certificate entries since the base revocation list
+     *
+     * @param number
+     *            monotonically increasing revocation list number
+     *
+     * @param baseNumber
+     *            number of the complete revocation list this delta list applies to
+     *
+     * @param thisUpdate
+     *            issue date of the revocation list
+     *
+     * @param nextUpdate
+     *            date by which the next revocation list will be issued
+     *
+     * @return  a new delta revocation list configuration
+     */
+    public static RevocationListConfiguration createDelta(PrivateKey issuerKey,
+                                                          X509Certificate issuerCertificate,
+                                                          Collection<Revocation> revocations,
+                                                          BigInteger number, BigInteger baseNumber,
+                                                          Date thisUpdate, Date nextUpdate)
+    {
+      if (baseNumber == null || baseNumber.compareTo(number) >= 0)
+      {
+        throw new IncorrectImplementationException(
+            "Delta revocation list base number {0} must precede the list number {1}.",
+            baseNumber, number
+        );
+      }
+
+      return new RevocationListConfiguration(
+          issuerKey, issuerCertificate, revocations, number, baseNumber, thisUpdate, nextUpdate
+      );
+    }
+
+
+    // Instance Fields ----------------------------------------------------------------------------
+
+    private PrivateKey issuerKey;
+
+    private X509Certificate issuerCertificate;
+
+    private SignatureAlgorithm signatureAlgorithm;
+
+    private Collection<Revocation> revocations;
+
+    private BigInteger number;
+
+    /**
+     * Base revocation list number of a delta list, null for complete revocation lists.
+     */
+    private BigInteger baseNumber;
+
+    private Date thisUpdate;
+
+    private Date nextUpdate;
+
+
+    // Constructors -------------------------------------------------------------------------------
+
+    private RevocationListConfiguration(PrivateKey issuerKey, X509Certificate issuerCertificate,
+                                        Collection<Revocation> revocations, BigInteger number,
+                                        BigInteger baseNumber, Date thisUpdate, Date nextUpdate)
+    {
+      if (issuerKey == null || issuerCertificate == null || revocations == null ||
+          number == null || thisUpdate == null || nextUpdate == null)
+      {
+        throw new IncorrectImplementationException(
+            "Implementation error: null issuer key, issuer certificate, revocations, " +
+            "revocation list number or update dates."
+        );
+      }
+
+      if (number.signum() < 0)
+      {
+        throw new IncorrectImplementationException(
+            "Revocation list number must not be negative, got {0}.", number
+        );
+      }
+
+      if (!nextUpdate.after(thisUpdate))
+      {
+        throw new IncorrectImplementationException(
+            "Next update {0} of a revocation list must be after this update {1}.",
+            nextUpdate, thisUpdate
+        );
+      }
+
+      this.issuerKey = issuerKey;
+      this.issuerCertificate = issuerCertificate;
+      this.signatureAlgorithm = Configuration.getDefaultSignatureAlgorithm(issuerKey);
+      this.revocations = Collections.unmodifiableCollection(revocations);
+      this.number = number;
+      this.baseNumber = baseNumber;
+      this.thisUpdate = new Date(thisUpdate.getTime());
+      this.nextUpdate = new Date(nextUpdate.getTime());
+    }
+
+
+    // Public Instance Methods --------------------------------------------------------------------
+
+    /**
+     * Returns the private key used for signing the revocation list.
+     *
+     * @return  issuer's private key
+     */
+    public PrivateKey getIssuerKey()
+    {
+      return issuerKey;
+    }
+
+    /**
+     * Returns the issuer's certificate. The revocation list issuer name is the subject of
+     * this certificate.
+     *
+     * @return  issuer's certificate
+     */
+    public X509Certificate getIssuerCertificate()
+    {
+      return issuerCertificate;
+    }
+
+    /**
+     * Returns the signature algorithm of the revocation list.
+     *
+     * @return  revocation list signature algorithm
+     */
+    public SignatureAlgorithm getSignatureAlgorithm()
+    {
+      return signatureAlgorithm;
+    }
+
+    /**
+     * Returns the revoked certificate entries.
+     *
+     * @return  unmodifiable collection of revocation entries
+     */
+    public Collection<Revocation> getRevocations()
+    {
+      return revocations;
+    }
+
+    /**
+     * Returns the revocation list number.
+     *
+     * @return  revocation list number
+     */
+    public BigInteger getNumber()
+    {
+      return number;
+    }
+
+    /**
+     * Returns the base revocation list number of a delta revocation list.
+     *
+     * @return  base revocation list number, or null if this is a complete revocation list
+     */
+    public BigInteger getBaseNumber()
+    {
+      return baseNumber;
+    }
+
+    /**
+     * Indicates whether this configures a delta revocation list.
+     *
+     * @return  true for delta revocation lists, false otherwise
+     */
+    public boolean isDelta()
+    {
+      return baseNumber != null;
+    }
+
+    /**
+     * Returns the issue date of the revocation list.
+     *
+     * @return  revocation list issue date
+     */
+    public Date getThisUpdate()
+    {
+      return new Date(thisUpdate.getTime());
+    }
+
+    /**
+     * Returns the date by which the next revocation list will be issued.
+     *
+     * @return  next update date
+     */
+    public Date getNextUpdate()
+    {
+      return new Date(nextUpdate.getTime());
+    }
   }
 
 
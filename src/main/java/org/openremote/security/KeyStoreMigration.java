@@ -0,0 +1,575 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.openremote.base.exception.OpenRemoteException;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Console;
+import java.io.File;
+import java.net.URI;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Migrates the entries of a keystore file from one {@link KeyManager.Storage storage format}
+ * to another, for example from {@link KeyManager.Storage#UBER} or
+ * {@link KeyManager.Storage#JCEKS} to {@link KeyManager.Storage#PKCS12}. <p>
+ *
+ * Entries are read from the source keystore and added to the target one at a time: private
+ * key entries with their certificate chains, secret key entries (including passwords of a
+ * {@link PasswordManager}) and trusted certificate entries are all converted to their
+ * equivalent in the target format. Each key entry keeps the password it was protected with.
+ * The target keystore is persisted once, after all entries have been converted. <p>
+ *
+ * Some formats, notably PKCS #12, only accept secret keys of algorithms that have a registered
+ * object identifier. Secret keys the target rejects, such as {@link PasswordManager} passwords,
+ * are stored as {@link #GENERIC_SECRET_KEY_ALGORITHM generic secret keys} instead : the key
+ * bytes are unchanged, only the algorithm name differs. <p>
+ *
+ * Migration can be used as a library API :
+ *
+ * <pre>
+ *   KeyStoreMigration.Report report = KeyStoreMigration.create(Storage.UBER, Storage.PKCS12)
+ *       .migrate(sourceURI, sourcePassword, targetURI, targetPassword);
+ * </pre>
+ *
+ * or from the command line, in which case keystore passwords are read from the console :
+ *
+ * <pre>
+ *   java org.openremote.security.KeyStoreMigration source-file source-storage target-file target-storage
+ * </pre>
+ *
+ * Note that the BouncyCastle storage formats require the BouncyCastle provider to be
+ * installed in the JVM. The command line tool installs it for the duration of the migration.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class KeyStoreMigration
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Algorithm name used for secret keys whose original algorithm is not accepted by the
+   * target storage format : {@value}. HMAC keys accept key material of any length.
+   */
+  public final static String GENERIC_SECRET_KEY_ALGORITHM = "HmacSHA256";
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Command line entry point to migrate a keystore file.
+   *
+   * @param args    source file, source storage, target file, target storage
+   */
+  public static void main(String... args)
+  {
+    if (args.length != 4)
+    {
+      System.err.println(
+          "Usage: java " + KeyStoreMigration.class.getName() +
+          " <source-file> <source-storage> <target-file> <target-storage>"
+      );
+      System.err.println("Storage formats: " + Arrays.toString(KeyManager.Storage.values()));
+
+      System.exit(1);
+    }
+
+    Console console = System.console();
+
+    if (console == null)
+    {
+      System.err.println("No console available to read keystore passwords.");
+
+      System.exit(1);
+    }
+
+    Provider bc = SecurityProvider.BC.getProviderInstance();
+    boolean installed = bc != null && Security.addProvider(bc) != -1;
+
+    try
+    {
+      KeyStoreMigration migration = create(
+          KeyManager.Storage.valueOf(args[1].toUpperCase(Locale.ENGLISH)),
+          KeyManager.Storage.valueOf(args[3].toUpperCase(Locale.ENGLISH))
+      );
+
+      char[] sourcePassword = console.readPassword("Source keystore password: ");
+      char[] targetPassword = console.readPassword("Target keystore password: ");
+
+      Report report = migration.migrate(
+          new File(args[0]).toURI(), sourcePassword, new File(args[2]).toURI(), targetPassword
+      );
+
+      System.out.println(report);
+    }
+
+    catch (IllegalArgumentException exception)
+    {
+      System.err.println("Unknown storage format: " + exception.getMessage());
+
+      System.exit(1);
+    }
+
+    catch (KeyManager.KeyManagerException exception)
+    {
+      System.err.println("Migration failed: " + exception.getMessage());
+
+      System.exit(1);
+    }
+
+    finally
+    {
+      if (installed)
+      {
+        Security.removeProvider(bc.getName());
+      }
+    }
+  }
+
+  /**
+   * Creates a new migration between two storage formats.
+   *
+   * @param source
+   *            storage format of the source keystore
+   *
+   * @param target
+   *            storage format of the target keystore
+   *
+   * @return    new migration instance
+   */
+  public static KeyStoreMigration create(KeyManager.Storage source, KeyManager.Storage target)
+  {
+    if (source == null || target == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null storage type.");
+    }
+
+    return new KeyStoreMigration(source, target);
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  private final KeyManager.Storage sourceStorage;
+
+  private final KeyManager.Storage targetStorage;
+
+  /**
+   * Explicit key entry password, or null to use the source keystore password and the
+   * {@link KeyManager#EMPTY_KEY_PASSWORD default} key password.
+   */
+  private char[] entryPassword = null;
+
+  /**
+   * Indicates whether an existing target keystore file may be overwritten.
+   */
+  private boolean overwrite = false;
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private KeyStoreMigration(KeyManager.Storage source, KeyManager.Storage target)
+  {
+    this.sourceStorage = source;
+    this.targetStorage = target;
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Sets the password of the key entries in the source keystore. If not set, key entries
+   * are recovered with the source keystore password (as used by {@link PasswordManager})
+   * or the {@link KeyManager#EMPTY_KEY_PASSWORD default key password} (as used by
+   * {@link PrivateKeyManager} for keys added without a password).
+   *
+   * @param password
+   *            key entry password. Note that the character array will be cleared when
+   *            the migration completes.
+   */
+  public void setEntryPassword(char[] password)
+  {
+    this.entryPassword = password;
+  }
+
+  /**
+   * Allows the migration to overwrite an existing target keystore file. By default, migrating
+   * to an existing file fails.
+   *
+   * @param overwrite
+   *            true to overwrite an existing target keystore, false otherwise
+   */
+  public void setOverwrite(boolean overwrite)
+  {
+    this.overwrite = overwrite;
+  }
+
+  /**
+   * Migrates a keystore file. The source keystore is not modified.
+   *
+   * @param source
+   *            location of the source keystore
+   *
+   * @param sourcePassword
+   *            source keystore password. Note that the character array will be cleared when
+   *            this method completes.
+   *
+   * @param target
+   *            location of the target keystore, an existing file is only overwritten if
+   *            allowed with {@link #setOverwrite(boolean)}
+   *
+   * @param targetPassword
+   *            target keystore password. Note that the character array will be cleared when
+   *            this method completes.
+   *
+   * @return    migration report
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the source keystore does not exist, the target keystore exists and may not
+   *            be overwritten, or loading the source keystore, recovering or converting any
+   *            of the entries, or saving the target keystore fails
+   */
+  public Report migrate(URI source, char[] sourcePassword, URI target, char[] targetPassword)
+      throws KeyManager.KeyManagerException
+  {
+    try
+    {
+      MigrationStore from = new MigrationStore(sourceStorage);
+      MigrationStore to = new MigrationStore(targetStorage);
+
+      // Key managers load a missing keystore as an empty one, which would migrate nothing...
+
+      if (!from.exists(source))
+      {
+        throw new KeyManager.KeyManagerException(
+            "Source keystore ''{0}'' does not exist.", null, source
+        );
+      }
+
+      if (!overwrite && to.exists(target))
+      {
+        throw new KeyManager.KeyManagerException(
+            "Target keystore ''{0}'' already exists.", null, target
+        );
+      }
+
+      from.load(source, sourcePassword);
+
+      char[][] candidates = (entryPassword != null)
+          ? new char[][] { entryPassword }
+          : new char[][] { sourcePassword, KeyManager.EMPTY_KEY_PASSWORD };
+
+      Report report = new Report(sourceStorage, targetStorage);
+
+      long start = System.nanoTime();
+
+      for (String alias : from.getAliases())
+      {
+        if (to.contains(alias))
+        {
+          throw new KeyManager.KeyManagerException(
+              "Entry ''{0}'' collides with another alias in storage {1}, which does not " +
+              "distinguish aliases by case.", null, alias, targetStorage
+          );
+        }
+
+        if (from.isCertificateEntry(alias))
+        {
+          to.add(alias, from.retrieveKey(alias, null), null);
+
+          report.certificates++;
+
+          continue;
+        }
+
+        char[] password = null;
+        KeyStore.Entry entry = null;
+        KeyManager.KeyManagerException failure = null;
+
+        for (char[] candidate : candidates)
+        {
+          try
+          {
+            entry = from.retrieveKey(alias, new KeyStore.PasswordProtection(candidate));
+            password = candidate;
+
+            break;
+          }
+
+          catch (KeyManager.KeyManagerException exception)
+          {
+            failure = exception;
+          }
+        }
+
+        if (entry == null)
+        {
+          throw new KeyManager.KeyManagerException(
+              "Cannot recover entry ''{0}'' from source keystore : {1}", failure,
+              alias, OpenRemoteException.messageOf(failure)
+          );
+        }
+
+        if (entry instanceof KeyStore.SecretKeyEntry)
+        {
+          addSecretKey(to, alias, (KeyStore.SecretKeyEntry)entry, password, report);
+
+          report.secretKeys++;
+        }
+
+        else
+        {
+          to.add(alias, entry, new KeyStore.PasswordProtection(password));
+
+          report.privateKeys++;
+        }
+      }
+
+      report.migrationNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+
+      to.save(target, targetPassword);
+
+      report.saveNanos = System.nanoTime() - start;
+
+      return report;
+    }
+
+    finally
+    {
+      clearPassword(sourcePassword);
+      clearPassword(targetPassword);
+      clearPassword(entryPassword);
+    }
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Adds a secret key to the target keystore, converting it to a generic secret key if the
+   * target storage format does not accept its algorithm.
+   */
+  private void addSecretKey(MigrationStore to, String alias, KeyStore.SecretKeyEntry entry,
+                            char[] password, Report report)
+      throws KeyManager.KeyManagerException
+  {
+    try
+    {
+      to.add(alias, entry, new KeyStore.PasswordProtection(password));
+    }
+
+    catch (KeyManager.KeyManagerException exception)
+    {
+      SecretKey key = entry.getSecretKey();
+
+      if (key.getAlgorithm().equals(GENERIC_SECRET_KEY_ALGORITHM))
+      {
+        throw exception;
+      }
+
+      byte[] encoded = key.getEncoded();
+
+      try
+      {
+        to.add(
+            alias,
+            new KeyStore.SecretKeyEntry(new SecretKeySpec(encoded, GENERIC_SECRET_KEY_ALGORITHM)),
+            new KeyStore.PasswordProtection(password)
+        );
+      }
+
+      finally
+      {
+        Arrays.fill(encoded, (byte)0);
+      }
+
+      report.convertedSecretKeys++;
+    }
+  }
+
+  /**
+   * Clears a password.
+   */
+  private void clearPassword(char[] password)
+  {
+    if (password != null)
+    {
+      Arrays.fill(password, (char)0);
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Result of a migration : converted entry counts and timings.
+   */
+  public static class Report
+  {
+    private final KeyManager.Storage source;
+
+    private final KeyManager.Storage target;
+
+    private int privateKeys = 0;
+
+    private int secretKeys = 0;
+
+    private int certificates = 0;
+
+    private int convertedSecretKeys = 0;
+
+    private long migrationNanos = 0;
+
+    private long saveNanos = 0;
+
+    private Report(KeyManager.Storage source, KeyManager.Storage target)
+    {
+      this.source = source;
+      this.target = target;
+    }
+
+    /**
+     * Returns the total number of migrated entries.
+     *
+     * @return    migrated entry count
+     */
+    public int getEntryCount()
+    {
+      return privateKeys + secretKeys + certificates;
+    }
+
+    /**
+     * Returns the number of migrated private key entries.
+     *
+     * @return    private key entry count
+     */
+    public int getPrivateKeyCount()
+    {
+      return privateKeys;
+    }
+
+    /**
+     * Returns the number of migrated secret key entries (including passwords).
+     *
+     * @return    secret key entry count
+     */
+    public int getSecretKeyCount()
+    {
+      return secretKeys;
+    }
+
+    /**
+     * Returns the number of secret key entries that were stored as
+     * {@link KeyStoreMigration#GENERIC_SECRET_KEY_ALGORITHM generic secret keys} because the
+     * target storage format did not accept their original algorithm.
+     *
+     * @return    converted secret key entry count
+     */
+    public int getConvertedSecretKeyCount()
+    {
+      return convertedSecretKeys;
+    }
+
+    /**
+     * Returns the number of migrated trusted certificate entries.
+     *
+     * @return    trusted certificate entry count
+     */
+    public int getCertificateCount()
+    {
+      return certificates;
+    }
+
+    /**
+     * Returns the time used to recover and convert the entries, excluding loading the source
+     * and saving the target keystore.
+     *
+     * @return    entry conversion time in milliseconds
+     */
+    public long getMigrationTimeMillis()
+    {
+      return migrationNanos / 1000000;
+    }
+
+    /**
+     * Returns the time used to save the target keystore.
+     *
+     * @return    save time in milliseconds
+     */
+    public long getSaveTimeMillis()
+    {
+      return saveNanos / 1000000;
+    }
+
+    /**
+     * Returns the entry conversion throughput.
+     *
+     * @return    converted entries per second
+     */
+    public double getEntriesPerSecond()
+    {
+      return (migrationNanos == 0) ? 0 : getEntryCount() / (migrationNanos / 1E9);
+    }
+
+    /**
+     * Returns the average conversion time of a single entry.
+     *
+     * @return    average entry conversion time in microseconds
+     */
+    public double getMicrosPerEntry()
+    {
+      return (getEntryCount() == 0) ? 0 : migrationNanos / 1E3 / getEntryCount();
+    }
+
+    @Override public String toString()
+    {
+      return String.format(
+          "Migrated %d entries from %s to %s (%d private keys, %d secret keys of which %d " +
+          "converted, %d certificates) in %d ms : %.1f entries/s, %.1f us/entry. " +
+          "Target saved in %d ms.",
+          getEntryCount(), source, target, privateKeys, secretKeys, convertedSecretKeys,
+          certificates,
+          getMigrationTimeMillis(), getEntriesPerSecond(), getMicrosPerEntry(),
+          getSaveTimeMillis()
+      );
+    }
+  }
+
+  /**
+   * Key manager exposing the protected keystore operations used by the migration.
+   */
+  private static class MigrationStore extends KeyManager
+  {
+    private MigrationStore(Storage storage) throws KeyManagerException
+    {
+      super(storage, storage.getSecurityProvider());
+    }
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+
+/**
+ * Signs or verifies message payloads with a single key and signature algorithm. <p>
+ *
+ * Each thread keeps its own {@link java.security.Signature} instance, initialized with the
+ * key on first use : the provider lookup and key initialization happen once per thread
+ * rather than once per message. Signature instances are reset by the completed sign or
+ * verify operation and reused for the next message. The provider is the one selected by an
+ * installed {@link ProviderTuning}, otherwise BouncyCastle. <p>
+ *
+ * Messages can be given as byte buffers, including direct buffers, which are read in place
+ * from their position to their limit. The position of the given buffer is not changed. <p>
+ *
+ * Instances are thread-safe. Create signers with {@link #createSigner} or
+ * {@link PrivateKeyManager#getSigner(String, char[], KeySigner.SignatureAlgorithm)}, and
+ * verifiers with {@link #createVerifier} or
+ * {@link TrustStore#getVerifier(String, KeySigner.SignatureAlgorithm)}.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class MessageSignature
+{
+
+  /**
+   * Creates a signer for a private key.
+   *
+   * @param algorithm
+   *            signature algorithm
+   *
+   * @param key
+   *            private signing key
+   *
+   * @return    new message signer
+   *
+   * @throws KeySigner.SigningException
+   *            if the signature algorithm is not available, or the key is not valid for it
+   */
+  public static MessageSignature createSigner(KeySigner.SignatureAlgorithm algorithm,
+                                              PrivateKey key) throws KeySigner.SigningException
+  {
+    if (algorithm == null || key == null)
+    {
+      throw new KeySigner.SigningException(
+          "Implementation error: null signature algorithm or private key."
+      );
+    }
+
+    return new MessageSignature(algorithm, key, null);
+  }
+
+  /**
+   * Creates a verifier for a public key.
+   *
+   * @param algorithm
+   *            signature algorithm
+   *
+   * @param key
+   *            public key of the signer
+   *
+   * @return    new message signature verifier
+   *
+   * @throws KeySigner.SigningException
+   *            if the signature algorithm is not available, or the key is not valid for it
+   */
+  public static MessageSignature createVerifier(KeySigner.SignatureAlgorithm algorithm,
+                                                PublicKey key) throws KeySigner.SigningException
+  {
+    if (algorithm == null || key == null)
+    {
+      throw new KeySigner.SigningException(
+          "Implementation error: null signature algorithm or public key."
+      );
+    }
+
+    return new MessageSignature(algorithm, null, key);
+  }
+
+  /**
+   * Creates a verifier for the public key of a certificate.
+   *
+   * @see #createVerifier(KeySigner.SignatureAlgorithm, PublicKey)
+   */
+  public static MessageSignature createVerifier(KeySigner.SignatureAlgorithm algorithm,
+                                                Certificate certificate)
+      throws KeySigner.SigningException
+  {
+    if (certificate == null)
+    {
+      throw new KeySigner.SigningException("Implementation error: null certificate.");
+    }
+
+    return createVerifier(algorithm, certificate.getPublicKey());
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  private final KeySigner.SignatureAlgorithm algorithm;
+
+  private final PrivateKey privateKey;
+
+  private final PublicKey publicKey;
+
+  /**
+   * Initialized signature instance of each thread.
+   */
+  private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>();
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private MessageSignature(KeySigner.SignatureAlgorithm algorithm, PrivateKey privateKey,
+                           PublicKey publicKey) throws KeySigner.SigningException
+  {
+    this.algorithm = algorithm;
+    this.privateKey = privateKey;
+    this.publicKey = publicKey;
+
+    // Initialize on the creating thread to reject algorithm and key mismatches early...
+
+    signature();
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Returns the signature algorithm.
+   *
+   * @return  signature algorithm
+   */
+  public KeySigner.SignatureAlgorithm getAlgorithm()
+  {
+    return algorithm;
+  }
+
+  /**
+   * Indicates whether this instance signs (rather than verifies) messages.
+   *
+   * @return  true for signers, false for verifiers
+   */
+  public boolean isSigner()
+  {
+    return privateKey != null;
+  }
+
+  /**
+   * Signs a message.
+   *
+   * @see #sign(ByteBuffer)
+   */
+  public byte[] sign(byte[] message) throws KeySigner.SigningException
+  {
+    return sign(ByteBuffer.wrap(message));
+  }
+
+  /**
+   * Signs the remaining bytes of a message buffer.
+   *
+   * @param message
+   *            message buffer, its position is not changed
+   *
+   * @return  signature bytes
+   *
+   * @throws KeySigner.SigningException
+   *            if this is a verifier, or signing fails
+   */
+  public byte[] sign(ByteBuffer message) throws KeySigner.SigningException
+  {
+    if (!isSigner())
+    {
+      throw new KeySigner.SigningException(
+          "Implementation error: {0} verifier cannot sign messages.", algorithm
+      );
+    }
+
+    Signature signature = signature();
+
+    try
+    {
+      signature.update(message.duplicate());
+
+      return signature.sign();
+    }
+
+    catch (SignatureException exception)
+    {
+      discard();
+
+      throw new KeySigner.SigningException(
+          "Signing message with {0} failed : {1}", exception,
+          algorithm, exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Verifies the signature of a message.
+   *
+   * @see #verify(ByteBuffer, byte[])
+   */
+  public boolean verify(byte[] message, byte[] signatureBytes) throws KeySigner.SigningException
+  {
+    return verify(ByteBuffer.wrap(message), signatureBytes);
+  }
+
+  /**
+   * Verifies the signature of the remaining bytes of a message buffer.
+   *
+   * @param message
+   *            message buffer, its position is not changed
+   *
+   * @param signatureBytes
+   *            signature to verify
+   *
+   * @return  true if the signature is valid, false if it is not valid or not a properly
+   *          encoded signature
+   *
+   * @throws KeySigner.SigningException
+   *            if this is a signer
+   */
+  public boolean verify(ByteBuffer message, byte[] signatureBytes)
+      throws KeySigner.SigningException
+  {
+    if (isSigner())
+    {
+      throw new KeySigner.SigningException(
+          "Implementation error: {0} signer cannot verify messages.", algorithm
+      );
+    }
+
+    Signature signature = signature();
+
+    try
+    {
+      signature.update(message.duplicate());
+
+      return signature.verify(signatureBytes);
+    }
+
+    catch (SignatureException exception)
+    {
+      // Improperly encoded signature, the signature instance state is undefined...
+
+      discard();
+
+      return false;
+    }
+  }
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Discards the signature instance of the current thread, for example after an incomplete
+   * update. A new instance is initialized on next use.
+   */
+  void discard()
+  {
+    signatures.remove();
+  }
+
+  /**
+   * Returns the initialized signature instance of the current thread, creating it on first
+   * use. Callers that update the instance incrementally must complete the operation with
+   * sign or verify, or {@link #discard()} the instance.
+   *
+   * @return  initialized signature instance
+   *
+   * @throws KeySigner.SigningException
+   *            if the signature algorithm is not available, or the key is not valid for it
+   */
+  Signature signature() throws KeySigner.SigningException
+  {
+    Signature signature = signatures.get();
+
+    if (signature != null)
+    {
+      return signature;
+    }
+
+    ProviderTuning tuning = ProviderTuning.getInstalled();
+
+    Provider provider = (tuning == null) ? null : tuning.getSignatureProvider(algorithm);
+
+    if (provider == null)
+    {
+      provider = SecurityProvider.BC.getProviderInstance();
+    }
+
+    try
+    {
+      signature = Signature.getInstance(algorithm.toString(), provider);
+
+      if (privateKey != null)
+      {
+        signature.initSign(privateKey);
+      }
+
+      else
+      {
+        signature.initVerify(publicKey);
+      }
+
+      signatures.set(signature);
+
+      return signature;
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Signature algorithm {0} is not available in {1} : {2}", exception,
+          algorithm, provider.getName(), exception.getMessage()
+      );
+    }
+
+    catch (InvalidKeyException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Key is not valid for {0} : {1}", exception,
+          algorithm, exception.getMessage()
+      );
+    }
+  }
+}
@@ -0,0 +1,1757 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.openremote.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only journal storage for passwords managed by {@link PasswordManager}. <p>
+ *
+ * Keystore based storage formats such as {@link KeyManager.Storage#UBER} encrypt the keystore
+ * as a whole, which means every single password add or remove operation rewrites and
+ * re-encrypts the complete password store. This implementation instead encrypts each password
+ * entry individually (AES/GCM with a key derived from the master password) and appends the
+ * sealed entry to the end of a journal file. Removals are recorded as (authenticated) tombstone
+ * records. The cost of a single write is therefore independent of the size of the store. <p>
+ *
+ * The in-memory index of sealed entries is rebuilt with a single sequential scan of the journal
+ * when it is opened. Entries remain encrypted in memory and are only decrypted when a password
+ * is retrieved. <p>
+ *
+ * Superseded entries and tombstones accumulate in the journal over time. Once the number of
+ * obsolete records exceeds both the configured {@link #setCompactionThreshold compaction
+ * threshold} and the number of live entries, the journal is compacted in a background thread.
+ * Compaction copies the sealed entries as-is (no decryption is needed) into a new file that
+ * replaces the journal once complete. Writes are only blocked for the short duration of the
+ * final file swap. <p>
+ *
+ * A journal is used with a password manager via the
+ * {@link PasswordManager#create(PasswordJournal, char[])} method.
+ * The {@link #close()} method should be invoked when the journal is no longer used to release
+ * the file handle and the background compaction thread.
+ *
+ * @see PasswordManager
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class PasswordJournal
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * The default minimum number of obsolete records in the journal before a background
+   * compaction is considered : {@value}
+   */
+  public final static int DEFAULT_COMPACTION_THRESHOLD = 1000;
+
+  /**
+   * The default number of iterations used when deriving the journal encryption key from the
+   * master password : {@value}
+   */
+  public final static int DEFAULT_KEY_DERIVATION_ITERATIONS = 20000;
+
+  /**
+   * Key derivation function used to derive the entry encryption key from master password: {@value}
+   */
+  public final static String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+  /**
+   * Cipher used to seal individual journal entries : {@value}
+   */
+  public final static String ENTRY_CIPHER = "AES/GCM/NoPadding";
+
+
+  /**
+   * Journal file identifier.
+   */
+  private final static int JOURNAL_MAGIC = 0x4F524A4C;      // 'ORJL'
+
+  /**
+   * Journal file format version.
+   */
+  private final static short JOURNAL_VERSION = 1;
+
+  /**
+   * Record type for added (or replaced) password entries.
+   */
+  private final static byte RECORD_PUT = 1;
+
+  /**
+   * Record type for removed password entries.
+   */
+  private final static byte RECORD_DELETE = 2;
+
+  /**
+   * Length of the random salt used with key derivation.
+   */
+  private final static int SALT_LENGTH = 16;
+
+  /**
+   * Length of the GCM nonce of each sealed record.
+   */
+  private final static int NONCE_LENGTH = 12;
+
+  /**
+   * Known plain text sealed in the journal header to verify the master password.
+   */
+  private final static byte[] PASSWORD_VERIFIER = new byte[] { 'O', 'R', 'J', 'L' };
+
+  /**
+   * Maximum accepted record length. Anything larger indicates a corrupted journal.
+   */
+  private final static int MAX_RECORD_LENGTH = 1024 * 1024;
+
+  /**
+   * Character set used to bind aliases to sealed records.
+   */
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Default logger for the security package.
+   */
+  private final static Logger log = Logger.getInstance(SecurityLog.DEFAULT);
+
+  /**
+   * Source of salts and nonces.
+   */
+  private final static SecureRandom random = new SecureRandom();
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  /**
+   * Journal file location.
+   */
+  private File file;
+
+  /**
+   * Key derivation iteration count used when a new journal file is created.
+   */
+  private int iterations = DEFAULT_KEY_DERIVATION_ITERATIONS;
+
+  /**
+   * Minimum number of obsolete records before background compaction is scheduled.
+   */
+  private volatile int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+  /**
+   * Guards the journal file, its appending stream and the in-memory index.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Serializes compactions, explicit and background, which share the compacted journal file,
+   * and lets {@link #close()} wait for an in-progress compaction. Acquired before {@link #lock}.
+   */
+  private final ReentrantLock compactionLock = new ReentrantLock();
+
+  /**
+   * In-memory index of sealed (nonce + GCM cipher text) entries, keyed by password alias.
+   */
+  private Map<String, byte[]> index = new HashMap<String, byte[]>();
+
+  /**
+   * Serialized journal header. Reused as-is when the journal is compacted.
+   */
+  private byte[] header;
+
+  /**
+   * Key derivation parameters, as read from or written to the journal header.
+   */
+  private byte[] salt;
+  private int keyIterations;
+  private int keyLength;
+
+  /**
+   * The sealed password verifier from the journal header.
+   */
+  private byte[] verifier;
+
+  /**
+   * Security provider for the entry cipher, or null to use JVM installed providers.
+   */
+  private Provider provider;
+
+  /**
+   * Output stream appending to the end of the journal file, null if journal is not open.
+   */
+  private DataOutputStream appender = null;
+
+  /**
+   * File stream underlying the appender, used to force appended records to the storage device.
+   */
+  private FileOutputStream appenderFile = null;
+
+  /**
+   * Current length of the journal file.
+   */
+  private long length = 0;
+
+  /**
+   * Total number of records in the journal, including obsolete ones.
+   */
+  private long records = 0;
+
+  /**
+   * Set when a background compaction has been scheduled but has not completed yet.
+   */
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+
+  /**
+   * Background compaction thread, created when the journal is opened.
+   */
+  private ExecutorService compactor = null;
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a new password journal at a given file location. The journal file is created (or
+   * an existing journal file read) when the journal is opened by a password manager.
+   *
+   * @param journalLocation
+   *            a file URI pointing to the journal file
+   */
+  public PasswordJournal(URI journalLocation)
+  {
+    this(journalLocation, DEFAULT_KEY_DERIVATION_ITERATIONS);
+  }
+
+  /**
+   * Creates a new password journal at a given file location, with a given number of key
+   * derivation iterations. The iteration count is only used if a new journal file is created,
+   * existing journal files retain the iteration count they were created with.
+   *
+   * @param journalLocation
+   *            a file URI pointing to the journal file
+   *
+   * @param keyDerivationIterations
+   *            number of key derivation iterations for new journal files
+   */
+  public PasswordJournal(URI journalLocation, int keyDerivationIterations)
+  {
+    if (journalLocation == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null journal location.");
+    }
+
+    if (keyDerivationIterations < 1)
+    {
+      throw new IllegalArgumentException(
+          "Implementation Error: key derivation iteration count must be positive."
+      );
+    }
+
+    this.file = new File(journalLocation);
+    this.iterations = keyDerivationIterations;
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Sets the minimum number of obsolete records in the journal before a background compaction
+   * is scheduled. Compaction also requires the number of obsolete records to exceed the number
+   * of live entries.
+   *
+   * @param threshold
+   *            minimum number of superseded or removed records before journal is compacted
+   */
+  public void setCompactionThreshold(int threshold)
+  {
+    this.compactionThreshold = threshold;
+  }
+
+  /**
+   * Returns the current size of the journal file in bytes.
+   *
+   * @return  journal file length
+   */
+  public long getJournalLength()
+  {
+    lock.lock();
+
+    try
+    {
+      return length;
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Rewrites the journal to contain only the live password entries. Entries written while the
+   * compaction is in progress are carried over to the compacted journal. This method is invoked
+   * automatically in a background thread, see {@link #setCompactionThreshold(int)}, but can
+   * also be invoked explicitly. Concurrent compactions run one after another.
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the journal is not open, or writing the compacted journal fails
+   */
+  public void compact() throws KeyManager.KeyManagerException
+  {
+    compactionLock.lock();
+
+    try
+    {
+      compactJournal();
+    }
+
+    finally
+    {
+      compactionLock.unlock();
+    }
+  }
+
+  /**
+   * Closes this journal. Releases the journal file handle and stops the background compaction
+   * thread. Any in-progress compaction is allowed to complete before the journal is closed.
+   */
+  public void close()
+  {
+    ExecutorService executor;
+
+    compactionLock.lock();
+
+    try
+    {
+      lock.lock();
+
+      try
+      {
+        if (appender != null)
+        {
+          try
+          {
+            appender.close();
+          }
+
+          catch (IOException exception)
+          {
+            log.warn(
+                "Failed to close password journal ''{0}'' : {1}", exception,
+                file.getPath(), exception.getMessage()
+            );
+          }
+
+          appender = null;
+          appenderFile = null;
+        }
+
+        index.clear();
+
+        executor = compactor;
+        compactor = null;
+      }
+
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    finally
+    {
+      compactionLock.unlock();
+    }
+
+    if (executor != null)
+    {
+      executor.shutdown();
+    }
+  }
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Opens the journal. Creates a new journal file if one does not exist yet, otherwise reads
+   * the existing journal with a single sequential scan to rebuild the in-memory index. A
+   * partially written record at the end of the journal (for example due to a crash during
+   * write) is discarded.
+   *
+   * @param masterPassword
+   *            master password of the journal
+   *
+   * @param provider
+   *            security provider for the entry cipher, or null to use JVM installed providers
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the journal cannot be read or created, if it has been corrupted or tampered
+   *            with, or if the master password is incorrect
+   */
+  void open(char[] masterPassword, Provider provider) throws KeyManager.KeyManagerException
+  {
+    checkPassword(masterPassword);
+
+    lock.lock();
+
+    try
+    {
+      if (appender != null)
+      {
+        throw new KeyManager.KeyManagerException(
+            "Implementation Error: journal ''{0}'' is already open.", null, file.getPath()
+        );
+      }
+
+      this.provider = provider;
+
+      restoreBackup();
+
+      if (file.exists())
+      {
+        scan(masterPassword);
+      }
+
+      else
+      {
+        create(masterPassword);
+      }
+
+      openAppender();
+
+      compactor = Executors.newSingleThreadExecutor(new CompactorThreadFactory(file.getName()));
+    }
+
+    catch (SecurityException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Security manager has denied access to journal ''{0}'' : {1}", exception,
+          file.getPath(), exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds (or replaces) a password in this journal. The password is sealed and appended to
+   * the journal before this method returns.
+   *
+   * @param alias
+   *            password alias
+   *
+   * @param password
+   *            password to store
+   *
+   * @param masterPassword
+   *            master password of the journal
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the master password is incorrect or writing to journal fails
+   */
+  void put(String alias, byte[] password, char[] masterPassword)
+      throws KeyManager.KeyManagerException
+  {
+    checkAlias(alias);
+
+    if (password == null)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Implementation Error: null password is not allowed."
+      );
+    }
+
+    long start = AuditLog.start();
+    boolean success = false;
+
+    try
+    {
+      SecretKey key = unlock(masterPassword);
+      byte[] sealed = sealRecord(key, RECORD_PUT, alias, password);
+
+      append(RECORD_PUT, alias, sealed);
+
+      success = true;
+    }
+
+    finally
+    {
+      AuditLog.record(AuditLog.Operation.ADD, this, alias, start, success);
+    }
+  }
+
+  /**
+   * Removes a password from this journal. A tombstone record is appended to the journal if
+   * the alias exists.
+   *
+   * @param alias
+   *            password alias
+   *
+   * @param masterPassword
+   *            master password of the journal
+   *
+   * @return  true if the password was removed, false if it did not exist
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the master password is incorrect or writing to journal fails
+   */
+  boolean remove(String alias, char[] masterPassword) throws KeyManager.KeyManagerException
+  {
+    checkAlias(alias);
+
+    long start = AuditLog.start();
+    boolean success = false;
+
+    try
+    {
+      SecretKey key = unlock(masterPassword);
+
+      if (!contains(alias))
+      {
+        return false;
+      }
+
+      append(RECORD_DELETE, alias, sealRecord(key, RECORD_DELETE, alias, new byte[0]));
+
+      success = true;
+
+      return true;
+    }
+
+    finally
+    {
+      AuditLog.record(AuditLog.Operation.REMOVE, this, alias, start, success);
+    }
+  }
+
+  /**
+   * Retrieves and decrypts a password from this journal.
+   *
+   * @param alias
+   *            password alias
+   *
+   * @param masterPassword
+   *            master password of the journal
+   *
+   * @return  password bytes, or null if no password with given alias exists
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the master password is incorrect or the entry cannot be decrypted
+   */
+  byte[] get(String alias, char[] masterPassword) throws KeyManager.KeyManagerException
+  {
+    return get(alias, unlock(masterPassword));
+  }
+
+  /**
+   * Retrieves and decrypts a password from this journal with an already derived entry
+   * encryption key, see {@link #deriveSessionKey(char[])}.
+   *
+   * @param alias
+   *            password alias
+   *
+   * @param key
+   *            journal entry encryption key
+   *
+   * @return  password bytes, or null if no password with given alias exists
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the entry cannot be decrypted with the given key
+   */
+  byte[] get(String alias, SecretKey key) throws KeyManager.KeyManagerException
+  {
+    long start = AuditLog.start();
+    byte[] password = null;
+
+    try
+    {
+      byte[] sealed;
+
+      lock.lock();
+
+      try
+      {
+        ensureOpen();
+
+        sealed = index.get(alias);
+      }
+
+      finally
+      {
+        lock.unlock();
+      }
+
+      if (sealed == null)
+      {
+        return null;
+      }
+
+      password = unsealRecord(key, RECORD_PUT, alias, sealed);
+
+      return password;
+    }
+
+    finally
+    {
+      AuditLog.record(AuditLog.Operation.RETRIEVE, this, alias, start, password != null);
+    }
+  }
+
+  /**
+   * Verifies a master password and returns the derived entry encryption key. This allows
+   * callers to derive the key once and use it for several reads with
+   * {@link #get(String, javax.crypto.SecretKey)}. The returned array should be cleared
+   * once no longer needed.
+   *
+   * @param masterPassword
+   *            master password of the journal
+   *
+   * @return  encoded entry encryption key
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the master password is incorrect
+   */
+  byte[] deriveSessionKey(char[] masterPassword) throws KeyManager.KeyManagerException
+  {
+    return unlock(masterPassword).getEncoded();
+  }
+
+  /**
+   * Indicates if a password with a given alias exists in this journal.
+   *
+   * @param alias
+   *            password alias
+   *
+   * @return  true if password exists, false otherwise
+   */
+  boolean contains(String alias)
+  {
+    lock.lock();
+
+    try
+    {
+      return index.containsKey(alias);
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of live password entries in this journal.
+   *
+   * @return  number of passwords
+   */
+  int size()
+  {
+    lock.lock();
+
+    try
+    {
+      return index.size();
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the aliases of the live password entries in this journal.
+   *
+   * @return  password aliases
+   */
+  List<String> aliases()
+  {
+    lock.lock();
+
+    try
+    {
+      return new ArrayList<String>(index.keySet());
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the journal file.
+   *
+   * @return  journal file
+   */
+  File getFile()
+  {
+    return file;
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Creates a new journal file with a header containing the key derivation parameters and
+   * a sealed password verifier.
+   */
+  private void create(char[] masterPassword) throws KeyManager.KeyManagerException
+  {
+    salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+
+    keyIterations = iterations;
+    keyLength = resolveKeyLength();
+
+    SecretKey key = deriveKey(masterPassword);
+
+    verifier = sealRecord(key, (byte)0, "", PASSWORD_VERIFIER);
+
+    try
+    {
+      header = encodeHeader();
+
+      OutputStream fout = new FileOutputStream(file);
+
+      try
+      {
+        fout.write(header);
+      }
+
+      finally
+      {
+        fout.close();
+      }
+
+      length = header.length;
+      records = 0;
+      index.clear();
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Cannot create password journal ''{0}'' : {1}", exception,
+          file.getPath(), exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Reads the journal header and scans all records sequentially to rebuild the in-memory
+   * index. Each record is authenticated as it is read.
+   */
+  private void scan(char[] masterPassword) throws KeyManager.KeyManagerException
+  {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    long position = 0;
+    long count = 0;
+
+    try
+    {
+      InputStream fin = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+
+      try
+      {
+        DataInputStream in = new DataInputStream(fin);
+
+        position = readHeader(in);
+
+        SecretKey key = deriveKey(masterPassword);
+
+        unsealRecord(key, (byte)0, "", verifier);
+
+        while (true)
+        {
+          Record record = readRecord(in);
+
+          if (record == null)
+          {
+            break;
+          }
+
+          unsealRecord(key, record.type, record.alias, record.sealed);
+
+          if (record.type == RECORD_PUT)
+          {
+            entries.put(record.alias, record.sealed);
+          }
+
+          else
+          {
+            entries.remove(record.alias);
+          }
+
+          position += record.length;
+          count++;
+        }
+      }
+
+      finally
+      {
+        fin.close();
+      }
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Cannot read password journal ''{0}'' : {1}", exception,
+          file.getPath(), exception.getMessage()
+      );
+    }
+
+    if (position < file.length())
+    {
+      log.warn(
+          "Discarding incomplete record at the end of password journal ''{0}'' (offset {1}).",
+          file.getPath(), position
+      );
+
+      truncate(position);
+    }
+
+    index = entries;
+    length = position;
+    records = count;
+  }
+
+  /**
+   * Reads and validates the journal header.
+   *
+   * @return  header length in bytes
+   */
+  private long readHeader(DataInputStream in) throws IOException, KeyManager.KeyManagerException
+  {
+    try
+    {
+      if (in.readInt() != JOURNAL_MAGIC)
+      {
+        throw new KeyManager.KeyManagerException(
+            "File ''{0}'' is not a password journal.", null, file.getPath()
+        );
+      }
+
+      short version = in.readShort();
+
+      if (version != JOURNAL_VERSION)
+      {
+        throw new KeyManager.KeyManagerException(
+            "Unsupported password journal version {0} in ''{1}''.", null,
+            version, file.getPath()
+        );
+      }
+
+      keyIterations = in.readInt();
+      keyLength = in.readShort();
+      salt = new byte[in.readUnsignedByte()];
+      in.readFully(salt);
+      verifier = new byte[in.readUnsignedShort()];
+      in.readFully(verifier);
+    }
+
+    catch (EOFException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Password journal ''{0}'' has a truncated header.", exception, file.getPath()
+      );
+    }
+
+    header = encodeHeader();
+
+    return header.length;
+  }
+
+  /**
+   * Serializes the journal header: file identifier and version, key derivation parameters
+   * and the sealed password verifier.
+   */
+  private byte[] encodeHeader() throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeInt(JOURNAL_MAGIC);
+    out.writeShort(JOURNAL_VERSION);
+    out.writeInt(keyIterations);
+    out.writeShort(keyLength);
+    out.writeByte(salt.length);
+    out.write(salt);
+    out.writeShort(verifier.length);
+    out.write(verifier);
+    out.flush();
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads the next record from the journal.
+   *
+   * @return  next record, or null at the end of the journal or at an incomplete record
+   */
+  private Record readRecord(DataInputStream in) throws IOException, KeyManager.KeyManagerException
+  {
+    int bodyLength;
+
+    try
+    {
+      bodyLength = in.readInt();
+    }
+
+    catch (EOFException exception)
+    {
+      return null;
+    }
+
+    if (bodyLength <= 0 || bodyLength > MAX_RECORD_LENGTH)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Password journal ''{0}'' is corrupted (invalid record length {1}).", null,
+          file.getPath(), bodyLength
+      );
+    }
+
+    byte[] body = new byte[bodyLength];
+
+    try
+    {
+      in.readFully(body);
+    }
+
+    catch (EOFException exception)
+    {
+      return null;
+    }
+
+    DataInputStream bodyIn = new DataInputStream(new ByteArrayInputStream(body));
+
+    Record record = new Record();
+    record.type = bodyIn.readByte();
+    record.alias = bodyIn.readUTF();
+    record.sealed = new byte[bodyIn.available()];
+    bodyIn.readFully(record.sealed);
+    record.length = 4 + bodyLength;
+
+    if (record.type != RECORD_PUT && record.type != RECORD_DELETE)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Password journal ''{0}'' is corrupted (unknown record type {1}).", null,
+          file.getPath(), record.type
+      );
+    }
+
+    return record;
+  }
+
+  /**
+   * Appends a sealed record to the journal and updates the in-memory index.
+   */
+  private void append(byte type, String alias, byte[] sealed) throws KeyManager.KeyManagerException
+  {
+    boolean compact;
+
+    lock.lock();
+
+    try
+    {
+      ensureOpen();
+
+      length += writeRecord(appender, type, alias, sealed);
+      records++;
+
+      flush();
+
+      if (type == RECORD_PUT)
+      {
+        index.put(alias, sealed);
+      }
+
+      else
+      {
+        index.remove(alias);
+      }
+
+      long obsolete = records - index.size();
+
+      compact = obsolete > compactionThreshold && obsolete > index.size();
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Failed to write to password journal ''{0}'' : {1}", exception,
+          file.getPath(), exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+
+    if (compact)
+    {
+      scheduleCompaction();
+    }
+  }
+
+
+  /**
+   * Compacts the journal, see {@link #compact()}. Invoked with the compaction lock held.
+   */
+  private void compactJournal() throws KeyManager.KeyManagerException
+  {
+    Map<String, byte[]> snapshot;
+    long snapshotLength;
+    long snapshotRecords;
+
+    lock.lock();
+
+    try
+    {
+      ensureOpen();
+      flush();
+
+      snapshot = new LinkedHashMap<String, byte[]>(index);
+      snapshotLength = length;
+      snapshotRecords = records;
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+
+    // Write the live entries to a new file without blocking writers...
+
+    File compacted = new File(file.getPath() + ".compact");
+
+    try
+    {
+      FileOutputStream fout = new FileOutputStream(compacted);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+
+      try
+      {
+        out.write(header);
+
+        for (Map.Entry<String, byte[]> entry : snapshot.entrySet())
+        {
+          writeRecord(out, RECORD_PUT, entry.getKey(), entry.getValue());
+        }
+
+        out.flush();
+        fout.getFD().sync();
+      }
+
+      finally
+      {
+        out.close();
+      }
+    }
+
+    catch (IOException exception)
+    {
+      compacted.delete();
+
+      throw new KeyManager.KeyManagerException(
+          "Failed to write compacted journal ''{0}'' : {1}", exception,
+          compacted.getPath(), exception.getMessage()
+      );
+    }
+
+    // Carry over the records written since the snapshot and swap the files...
+
+    lock.lock();
+
+    try
+    {
+      ensureOpen();
+      flush();
+
+      long tailRecords = records - snapshotRecords;
+
+      try
+      {
+        appendTail(compacted, snapshotLength, length);
+
+        appender.close();
+        appender = null;
+        appenderFile = null;
+
+        replace(compacted, file);
+      }
+
+      finally
+      {
+        // Never recreate an empty journal when the swap failed to leave one in place...
+
+        if (appender == null && file.exists())
+        {
+          openAppender();
+        }
+      }
+
+      records = snapshot.size() + tailRecords;
+
+      log.info(
+          "Compacted password journal ''{0}'' to {1} records ({2} bytes).",
+          file.getPath(), records, length
+      );
+    }
+
+    catch (KeyManager.KeyManagerException exception)
+    {
+      // Journal was closed while the compacted journal was written...
+
+      if (file.exists())
+      {
+        compacted.delete();
+      }
+
+      throw exception;
+    }
+
+    catch (IOException exception)
+    {
+      // The compacted journal may be the only complete copy left if the journal was moved...
+
+      if (file.exists())
+      {
+        compacted.delete();
+      }
+
+      else
+      {
+        log.error(
+            "Password journal ''{0}'' is missing after a failed compaction, its entries are " +
+            "retained in ''{1}'' and ''{2}''.", exception,
+            file.getPath(), backupFile().getPath(), compacted.getPath()
+        );
+      }
+
+      throw new KeyManager.KeyManagerException(
+          "Failed to replace journal ''{0}'' with compacted journal : {1}", exception,
+          file.getPath(), exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Schedules a background compaction, unless one is already pending.
+   */
+  private void scheduleCompaction()
+  {
+    if (!compactionScheduled.compareAndSet(false, true))
+    {
+      return;
+    }
+
+    ExecutorService executor;
+
+    lock.lock();
+
+    try
+    {
+      executor = compactor;
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+
+    if (executor == null)
+    {
+      compactionScheduled.set(false);
+
+      return;
+    }
+
+    executor.execute(new Runnable()
+    {
+      @Override public void run()
+      {
+        try
+        {
+          compact();
+        }
+
+        catch (KeyManager.KeyManagerException exception)
+        {
+          log.error(
+              "Background compaction of password journal ''{0}'' failed : {1}", exception,
+              file.getPath(), exception.getMessage()
+          );
+        }
+
+        finally
+        {
+          compactionScheduled.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes a single record to the given stream.
+   *
+   * @return  number of bytes written
+   */
+  private int writeRecord(DataOutputStream out, byte type, String alias, byte[] sealed)
+      throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + sealed.length);
+    DataOutputStream body = new DataOutputStream(bytes);
+
+    body.writeByte(type);
+    body.writeUTF(alias);
+    body.write(sealed);
+    body.flush();
+
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+
+    return 4 + bytes.size();
+  }
+
+  /**
+   * Copies journal bytes written after a compaction snapshot to the compacted journal.
+   */
+  private void appendTail(File compacted, long from, long to) throws IOException
+  {
+    if (from >= to)
+    {
+      return;
+    }
+
+    RandomAccessFile source = new RandomAccessFile(file, "r");
+
+    try
+    {
+      FileOutputStream out = new FileOutputStream(compacted, true);
+
+      try
+      {
+        byte[] buffer = new byte[8192];
+        long remaining = to - from;
+
+        source.seek(from);
+
+        while (remaining > 0)
+        {
+          int read = source.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+
+          if (read < 0)
+          {
+            throw new EOFException("Unexpected end of journal.");
+          }
+
+          out.write(buffer, 0, read);
+          remaining -= read;
+        }
+
+        out.getFD().sync();
+      }
+
+      finally
+      {
+        out.close();
+      }
+    }
+
+    finally
+    {
+      source.close();
+    }
+  }
+
+  /**
+   * Replaces the journal file with the compacted journal file. The journal is never deleted
+   * before the compacted journal is in place : on platforms that do not allow renaming over
+   * an existing file, the journal is first moved to a {@link #backupFile() backup file} and
+   * moved back if the compacted journal cannot be renamed.
+   */
+  private void replace(File source, File target) throws IOException
+  {
+    if (source.renameTo(target))
+    {
+      return;
+    }
+
+    File backup = backupFile();
+
+    if (backup.exists() && !backup.delete())
+    {
+      throw new IOException("Cannot delete stale journal backup '" + backup.getPath() + "'");
+    }
+
+    if (!target.renameTo(backup))
+    {
+      throw new IOException(
+          "Cannot rename '" + target.getPath() + "' to '" + backup.getPath() + "'"
+      );
+    }
+
+    if (!source.renameTo(target))
+    {
+      if (backup.renameTo(target))
+      {
+        throw new IOException(
+            "Cannot rename '" + source.getPath() + "' to '" + target.getPath() + "'"
+        );
+      }
+
+      throw new IOException(
+          "Cannot rename '" + source.getPath() + "' to '" + target.getPath() +
+          "' or restore '" + backup.getPath() + "'"
+      );
+    }
+
+    if (!backup.delete())
+    {
+      log.warn("Failed to delete journal backup ''{0}''.", backup.getPath());
+    }
+  }
+
+  /**
+   * Restores the journal from its backup file if a compaction was interrupted after the
+   * journal was moved aside, see {@link #replace(File, File)}.
+   */
+  private void restoreBackup() throws KeyManager.KeyManagerException
+  {
+    File backup = backupFile();
+
+    if (!file.exists() && backup.exists() && !backup.renameTo(file))
+    {
+      throw new KeyManager.KeyManagerException(
+          "Cannot restore password journal ''{0}'' from backup ''{1}''.", null,
+          file.getPath(), backup.getPath()
+      );
+    }
+  }
+
+  /**
+   * Returns the file the journal is moved to while being replaced by a compacted journal.
+   */
+  private File backupFile()
+  {
+    return new File(file.getPath() + ".bak");
+  }
+
+  /**
+   * Truncates the journal file to a given length.
+   */
+  private void truncate(long position) throws KeyManager.KeyManagerException
+  {
+    try
+    {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+      try
+      {
+        raf.setLength(position);
+      }
+
+      finally
+      {
+        raf.close();
+      }
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Cannot discard incomplete record from password journal ''{0}'' : {1}", exception,
+          file.getPath(), exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Opens the stream that appends records to the end of the journal file.
+   */
+  private void openAppender() throws KeyManager.KeyManagerException
+  {
+    try
+    {
+      appenderFile = new FileOutputStream(file, true);
+      appender = new DataOutputStream(new BufferedOutputStream(appenderFile));
+
+      length = file.length();
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Cannot open password journal ''{0}'' for writing : {1}", exception,
+          file.getPath(), exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Flushes buffered records to the journal file and forces them to the storage device.
+   */
+  private void flush() throws KeyManager.KeyManagerException
+  {
+    try
+    {
+      appender.flush();
+      appenderFile.getFD().sync();
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Failed to write to password journal ''{0}'' : {1}", exception,
+          file.getPath(), exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Checks that the journal has been opened.
+   */
+  private void ensureOpen() throws KeyManager.KeyManagerException
+  {
+    if (appender == null)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Implementation Error: password journal ''{0}'' is not open.", null, file.getPath()
+      );
+    }
+  }
+
+  /**
+   * Derives the entry encryption key and verifies it against the journal header.
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the master password is incorrect
+   */
+  private SecretKey unlock(char[] masterPassword) throws KeyManager.KeyManagerException
+  {
+    checkPassword(masterPassword);
+
+    lock.lock();
+
+    try
+    {
+      ensureOpen();
+    }
+
+    finally
+    {
+      lock.unlock();
+    }
+
+    SecretKey key = deriveKey(masterPassword);
+
+    unsealRecord(key, (byte)0, "", verifier);
+
+    return key;
+  }
+
+  /**
+   * Derives the AES entry encryption key from the master password.
+   */
+  private SecretKey deriveKey(char[] masterPassword) throws KeyManager.KeyManagerException
+  {
+    PBEKeySpec spec = new PBEKeySpec(masterPassword, salt, keyIterations, keyLength);
+
+    try
+    {
+      SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM);
+      byte[] encoded = factory.generateSecret(spec).getEncoded();
+
+      try
+      {
+        return new SecretKeySpec(encoded, "AES");
+      }
+
+      finally
+      {
+        Arrays.fill(encoded, (byte)0);
+      }
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Cannot derive journal key with {0} : {1}", exception,
+          KEY_DERIVATION_ALGORITHM, exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * Returns the largest AES key length allowed by the JVM crypto policy (up to 256 bits).
+   */
+  private int resolveKeyLength() throws KeyManager.KeyManagerException
+  {
+    try
+    {
+      return Math.min(256, Cipher.getMaxAllowedKeyLength("AES"));
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "AES cipher is not available : {0}", exception, exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Encrypts and authenticates a record. Record type and alias are included in the encrypted
+   * content so that a sealed entry cannot be moved to another alias or record type.
+   *
+   * @return  nonce followed by cipher text and authentication tag
+   */
+  private byte[] sealRecord(SecretKey key, byte type, String alias, byte[] content)
+      throws KeyManager.KeyManagerException
+  {
+    byte[] nonce = new byte[NONCE_LENGTH];
+    random.nextBytes(nonce);
+
+    byte[] plaintext = bind(type, alias, content);
+
+    try
+    {
+      Cipher cipher = createCipher();
+      cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+
+      byte[] ciphertext = cipher.doFinal(plaintext);
+      byte[] sealed = new byte[NONCE_LENGTH + ciphertext.length];
+
+      System.arraycopy(nonce, 0, sealed, 0, NONCE_LENGTH);
+      System.arraycopy(ciphertext, 0, sealed, NONCE_LENGTH, ciphertext.length);
+
+      return sealed;
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Cannot encrypt journal entry ''{0}'' : {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      Arrays.fill(plaintext, (byte)0);
+    }
+  }
+
+  /**
+   * Verifies and decrypts a sealed record.
+   *
+   * @throws KeyManager.KeyManagerException
+   *            if the record fails authentication -- either the key (master password) is
+   *            incorrect or the record has been modified
+   */
+  private byte[] unsealRecord(SecretKey key, byte type, String alias, byte[] sealed)
+      throws KeyManager.KeyManagerException
+  {
+    byte[] plaintext;
+
+    try
+    {
+      if (sealed.length < NONCE_LENGTH)
+      {
+        throw new GeneralSecurityException("Truncated entry.");
+      }
+
+      Cipher cipher = createCipher();
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(sealed, 0, NONCE_LENGTH));
+
+      plaintext = cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Password journal ''{0}'' entry ''{1}'' could not be decrypted, possibly due to " +
+          "incorrect master password : {2}", exception,
+          file.getPath(), alias, exception.getMessage()
+      );
+    }
+
+    try
+    {
+      byte[] prefix = bind(type, alias, new byte[0]);
+      boolean match = plaintext.length >= prefix.length;
+
+      for (int i = 0; match && i < prefix.length; ++i)
+      {
+        match = plaintext[i] == prefix[i];
+      }
+
+      if (!match)
+      {
+        throw new KeyManager.KeyManagerException(
+            "Password journal ''{0}'' entry ''{1}'' has been tampered with.", null,
+            file.getPath(), alias
+        );
+      }
+
+      return Arrays.copyOfRange(plaintext, prefix.length, plaintext.length);
+    }
+
+    finally
+    {
+      Arrays.fill(plaintext, (byte)0);
+    }
+  }
+
+  private Cipher createCipher() throws GeneralSecurityException
+  {
+    return (provider == null)
+        ? Cipher.getInstance(ENTRY_CIPHER)
+        : Cipher.getInstance(ENTRY_CIPHER, provider);
+  }
+
+  /**
+   * Prefixes record content with its record type and alias.
+   */
+  private byte[] bind(byte type, String alias, byte[] content)
+  {
+    byte[] name = alias.getBytes(UTF8);
+    byte[] bound = new byte[1 + 2 + name.length + content.length];
+
+    bound[0] = type;
+    bound[1] = (byte)(name.length >>> 8);
+    bound[2] = (byte)name.length;
+
+    System.arraycopy(name, 0, bound, 3, name.length);
+    System.arraycopy(content, 0, bound, 3 + name.length, content.length);
+
+    return bound;
+  }
+
+  private void checkAlias(String alias) throws KeyManager.KeyManagerException
+  {
+    if (alias == null || alias.equals(""))
+    {
+      throw new KeyManager.KeyManagerException(
+          "Implementation Error: null or empty key alias is not allowed."
+      );
+    }
+  }
+
+  private void checkPassword(char[] masterPassword) throws KeyManager.KeyManagerException
+  {
+    if (masterPassword == null || masterPassword.length == 0)
+    {
+      throw new KeyManager.KeyManagerException(
+          "Null or empty password. Password journal must be protected with a password."
+      );
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * A single record read from the journal.
+   */
+  private static class Record
+  {
+    private byte type;
+    private String alias;
+    private byte[] sealed;
+    private int length;
+  }
+
+  /**
+   * Creates daemon threads for background compaction so that an unclosed journal does not
+   * prevent JVM shutdown.
+   */
+  private static class CompactorThreadFactory implements ThreadFactory
+  {
+    private String name;
+
+    private CompactorThreadFactory(String journalName)
+    {
+      this.name = "Password Journal Compactor (" + journalName + ")";
+    }
+
+    @Override public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
@@ -23,8 +23,18 @@ package org.openremote.security;
 import org.openremote.base.exception.OpenRemoteException;
 
 import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.OutputStream;
 import java.net.URI;
 import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -39,13 +49,69 @@ import java.security.KeyStore;
  * beyond hiding the password (obscurity) unless the keystore itself is protected by
  * a master password. For non-interactive applications this creates a chicken-egg
  * problem of storing the master password to access a securely stored passwords unless
- * an external key storage (e.g. smart card, biometric hardware or similar) is present.
+ * an external key storage (e.g. smart card, biometric hardware or similar) is present. <p>
+ *
+ * Passwords of different tenants can be kept in namespaces. A namespace is a password
+ * sub-store with its own alias index and, optionally, its own keystore or journal file,
+ * see {@link #createNamespace(String, URI, char[])}. Passwords in a namespace are
+ * addressed with qualified aliases of the form 'namespace/alias' through this password
+ * manager, or directly through the namespace's password manager. Removing a namespace with
+ * {@link #deleteNamespace(String)} drops all of its passwords at once without rewriting
+ * the password storage of this or any other namespace. <p>
+ *
+ * Namespaces are not persisted with this password manager and must be created again after
+ * a restart. Passwords with qualified aliases are never stored in this password manager
+ * itself : adding a password with a qualified alias fails if its namespace does not exist,
+ * so that the password cannot be hidden by, or reappear from under, a namespace of the same
+ * name.
  *
  * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
  */
 public class PasswordManager extends KeyManager
 {
 
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Separator between the namespace and alias in qualified password aliases : {@value}
+   */
+  public final static char NAMESPACE_SEPARATOR = '/';
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Creates a persistent password manager backed by an append-only
+   * {@link PasswordJournal journal}. Each password is encrypted individually and appended to the
+   * journal, so adding or removing a password does not rewrite the entire password storage.
+   * If the journal file does not exist, a new one will be created. <p>
+   *
+   * Requires BouncyCastle security provider to be available on the classpath.
+   *
+   * @see PasswordJournal
+   *
+   * @param journal
+   *            The journal storage for passwords. The journal is opened by this method.
+   *
+   * @param masterPassword
+   *            The master password to access the password journal. Note that the character
+   *            array will be cleared when this method completes.
+   *
+   * @return  password manager instance
+   *
+   * @throws ConfigurationException
+   *            if the configured security provider(s) do not support {@link Storage#UBER}
+   *            keystore type
+   *
+   * @throws  KeyManagerException
+   *            if reading an existing journal fails, or creating a new journal fails
+   */
+  public static PasswordManager create(PasswordJournal journal, char[] masterPassword)
+      throws ConfigurationException, KeyManagerException
+  {
+    return new PasswordManager(journal, masterPassword);
+  }
+
 
   // Private Instance Fields ----------------------------------------------------------------------
 
@@ -54,6 +120,23 @@ public class PasswordManager extends KeyManager
    */
   private URI keystoreLocation = null;
 
+  /**
+   * Append-only journal storage used instead of the keystore, if configured.
+   */
+  private PasswordJournal journal = null;
+
+  /**
+   * Incremented on each password add or remove. Used by {@link PasswordSession} instances to
+   * invalidate their cached passwords.
+   */
+  private final AtomicLong generation = new AtomicLong(0);
+
+  /**
+   * Password namespaces of this password manager, by name.
+   */
+  private final ConcurrentMap<String, PasswordManager> namespaces =
+      new ConcurrentHashMap<String, PasswordManager>();
+
 
   // Constructors ---------------------------------------------------------------------------------
 
@@ -137,11 +220,84 @@ public class PasswordManager extends KeyManager
   }
 
 
+  /**
+   * Internal constructor for a journal backed password manager, used by the static
+   * {@link #create(PasswordJournal, char[])} method.
+   */
+  private PasswordManager(PasswordJournal journal, char[] masterPassword)
+      throws ConfigurationException, KeyManagerException
+  {
+    super(Storage.UBER, SecurityProvider.BC.getProviderInstance());
+
+    try
+    {
+      if (journal == null)
+      {
+        throw new KeyManagerException("Implementation error: password journal is null.");
+      }
+
+      journal.open(masterPassword, SecurityProvider.BC.getProviderInstance());
+
+      this.journal = journal;
+    }
+
+    finally
+    {
+      clearPassword(masterPassword);
+    }
+  }
+
+
+  // KeyManager Overrides -------------------------------------------------------------------------
+
+  /**
+   * Indicates if this password manager contains a password with a given alias.
+   *
+   * @param alias
+   *          password alias to check
+   *
+   * @return  true if a password is associated with a given alias; false otherwise
+   */
+  @Override public boolean contains(String alias)
+  {
+    PasswordManager namespace = namespaceOf(alias);
+
+    if (namespace != null)
+    {
+      return namespace.contains(localAlias(alias));
+    }
+
+    if (journal != null)
+    {
+      return journal.contains(alias);
+    }
+
+    return super.contains(alias);
+  }
+
+  /**
+   * Returns the number of passwords currently managed in this password manager, not
+   * including passwords in its namespaces.
+   *
+   * @return  number of passwords
+   */
+  @Override public int size()
+  {
+    if (journal != null)
+    {
+      return journal.size();
+    }
+
+    return super.size();
+  }
+
+
   // Public Instance Methods ----------------------------------------------------------------------
 
   /**
    * Adds a new password to this password manager. The password storage is immediately persisted
-   * after the add operation using the given master password.
+   * after the add operation using the given master password. Passwords with qualified aliases
+   * are added to their namespace, which must exist.
    *
    * @param alias
    *            A named alias of the password for looking it up.
@@ -155,18 +311,48 @@ public class PasswordManager extends KeyManager
    *            array will be set to zero bytes when this method completes.
    *
    * @throws KeyManagerException
-   *            if accessing the password store fails
+   *            if the alias is qualified with a namespace that does not exist, or accessing
+   *            the password store fails
    */
   public void addPassword(String alias, byte[] password, char[] storeMasterPassword)
       throws KeyManagerException
   {
     try
     {
+      PasswordManager namespace = namespaceOf(alias);
+
+      if (namespace != null)
+      {
+        namespace.addPassword(localAlias(alias), password, storeMasterPassword);
+
+        generation.incrementAndGet();
+
+        return;
+      }
+
+      if (alias != null && alias.indexOf(NAMESPACE_SEPARATOR) >= 0)
+      {
+        throw new KeyManagerException(
+            "Password namespace of alias ''{0}'' does not exist.", null, alias
+        );
+      }
+
+      if (journal != null)
+      {
+        journal.put(alias, password, storeMasterPassword);
+
+        generation.incrementAndGet();
+
+        return;
+      }
+
       KeyStore.Entry entry = new KeyStore.SecretKeyEntry(new SecretKeySpec(password, "password"));
       KeyStore.ProtectionParameter protection = new KeyStore.PasswordProtection(storeMasterPassword);
 
       super.add(alias, entry, protection);
 
+      generation.incrementAndGet();
+
       if (keystoreLocation != null)
       {
         save(keystoreLocation, storeMasterPassword);
@@ -208,8 +394,30 @@ public class PasswordManager extends KeyManager
         return;
       }
 
+      PasswordManager namespace = namespaceOf(alias);
+
+      if (namespace != null)
+      {
+        namespace.removePassword(localAlias(alias), storeMasterPassword);
+
+        generation.incrementAndGet();
+
+        return;
+      }
+
+      if (journal != null)
+      {
+        journal.remove(alias, storeMasterPassword);
+
+        generation.incrementAndGet();
+
+        return;
+      }
+
       remove(alias);
 
+      generation.incrementAndGet();
+
       if (keystoreLocation != null)
       {
         super.save(keystoreLocation, storeMasterPassword);
@@ -249,6 +457,27 @@ public class PasswordManager extends KeyManager
         throw new PasswordNotFoundException("Implementation Error: null or empty password alias.");
       }
 
+      PasswordManager namespace = namespaceOf(alias);
+
+      if (namespace != null)
+      {
+        return namespace.getPassword(localAlias(alias), storeMasterPassword);
+      }
+
+      if (journal != null)
+      {
+        byte[] password = journal.get(alias, storeMasterPassword);
+
+        if (password == null)
+        {
+          throw new PasswordNotFoundException(
+              "Password with alias ''{0}'' was not found.", alias
+          );
+        }
+
+        return password;
+      }
+
       KeyStore.Entry entry = retrieveKey(alias, new KeyStore.PasswordProtection(storeMasterPassword));
 
       if (!(entry instanceof KeyStore.SecretKeyEntry))
@@ -267,7 +496,114 @@ public class PasswordManager extends KeyManager
     {
       throw new PasswordNotFoundException(
           "Password with alias '{0}' could not be retrieved : {1}", exception,
-          alias, exception.getMessage()
+          alias, OpenRemoteException.messageOf(exception)
+      );
+    }
+
+    finally
+    {
+      clearPassword(storeMasterPassword);
+    }
+  }
+
+  /**
+   * Fetches a password from this password storage if it exists. Unlike
+   * {@link #getPassword(String, char[])}, an absent alias is not an error: the alias is
+   * checked against an in-memory alias index first and a null value is returned without
+   * accessing the keystore or creating exceptions. Use this method to look up optional
+   * passwords that are frequently absent.
+   *
+   * @param alias
+   *            The password alias used to lookup the password from the storage.
+   *
+   * @param storeMasterPassword
+   *            The master password to access this password storage. Note that the character
+   *            array will be cleared when this method completes.
+   *
+   * @return    Password in a byte array, or null if no password with a given alias exists.
+   *            The byte array should be erased as soon as the password has been used.
+   *
+   * @throws PasswordNotFoundException
+   *            if the password exists but could not be retrieved, for example due to an
+   *            incorrect master password, or it was concurrently removed
+   */
+  public byte[] tryGetPassword(String alias, char[] storeMasterPassword)
+      throws PasswordNotFoundException
+  {
+    if (!contains(alias))
+    {
+      clearPassword(storeMasterPassword);
+
+      return null;
+    }
+
+    return getPassword(alias, storeMasterPassword);
+  }
+
+  /**
+   * Opens an unlock session to this password storage. A session holds the unlocked master
+   * credentials in memory so that repeated password reads do not need to repeat the
+   * password based key derivation on each access: <p>
+   *
+   * <ul>
+   *   <li>With {@link PasswordJournal journal} storage, the master password is verified and the
+   *       journal entry encryption key is derived once, when the session is opened. Reads
+   *       through the session only decrypt the requested entry.</li>
+   *   <li>With keystore storage, the keystore provider derives the entry protection key
+   *       internally on each entry access and this cannot be bypassed. The session instead
+   *       keeps a copy of the master password and caches each password after it is first
+   *       read, so that further reads of the same alias skip the keystore access
+   *       altogether.</li>
+   * </ul>
+   *
+   * All key material and cached passwords held by the session are cleared when the session
+   * is {@link PasswordSession#close() closed}, or automatically once the session has not been
+   * used for the given idle timeout. Adding or removing passwords in this password manager
+   * discards the passwords cached in open sessions.
+   *
+   * @param storeMasterPassword
+   *            The master password for the password storage. Note that the character
+   *            array will be cleared when this method completes.
+   *
+   * @param idleTimeout
+   *            maximum time the session may remain unused before it is closed
+   *
+   * @param unit
+   *            time unit of the idle timeout
+   *
+   * @return    new unlock session
+   *
+   * @throws KeyManagerException
+   *            if the master password is incorrect (journal storage only) or the session
+   *            cannot be created
+   */
+  public PasswordSession unlock(char[] storeMasterPassword, long idleTimeout, TimeUnit unit)
+      throws KeyManagerException
+  {
+    try
+    {
+      if (storeMasterPassword == null || storeMasterPassword.length == 0)
+      {
+        throw new KeyManagerException("Implementation Error: null or empty master password.");
+      }
+
+      if (idleTimeout <= 0 || unit == null)
+      {
+        throw new KeyManagerException(
+            "Implementation Error: session idle timeout must be positive, was {0}.", null,
+            idleTimeout
+        );
+      }
+
+      if (journal != null)
+      {
+        return new PasswordSession(
+            this, journal.deriveSessionKey(storeMasterPassword), null, unit.toNanos(idleTimeout)
+        );
+      }
+
+      return new PasswordSession(
+          this, null, storeMasterPassword.clone(), unit.toNanos(idleTimeout)
       );
     }
 
@@ -278,10 +614,388 @@ public class PasswordManager extends KeyManager
   }
 
 
+  /**
+   * Creates an in-memory password namespace in this password manager.
+   *
+   * @param name
+   *            namespace name, must not be empty or contain {@link #NAMESPACE_SEPARATOR}
+   *
+   * @return    the password manager of the new namespace
+   *
+   * @throws KeyManagerException
+   *            if the name is not valid, a namespace with the name already exists, this
+   *            password manager has passwords with aliases qualified with the name, or
+   *            creating the namespace keystore fails
+   */
+  public PasswordManager createNamespace(String name) throws KeyManagerException
+  {
+    checkNamespaceName(name);
+
+    return register(name, new PasswordManager());
+  }
+
+  /**
+   * Creates a password namespace in this password manager, persisted to its own keystore
+   * file. If the file exists, the namespace passwords are loaded from it. Passwords added
+   * to or removed from the namespace only persist the namespace's keystore file.
+   *
+   * @param name
+   *            namespace name, must not be empty or contain {@link #NAMESPACE_SEPARATOR}
+   *
+   * @param keystoreLocation
+   *            location of the namespace's persisted password storage
+   *
+   * @param masterPassword
+   *            the master password to access the namespace's password storage. Note that
+   *            the character array will be cleared when this method completes.
+   *
+   * @return    the password manager of the new namespace
+   *
+   * @throws KeyManagerException
+   *            if the name is not valid, a namespace with the name already exists, this
+   *            password manager has passwords with aliases qualified with the name, or
+   *            loading or creating the namespace keystore fails
+   */
+  public PasswordManager createNamespace(String name, URI keystoreLocation, char[] masterPassword)
+      throws KeyManagerException
+  {
+    try
+    {
+      checkNamespaceName(name);
+    }
+
+    catch (KeyManagerException exception)
+    {
+      clearPassword(masterPassword);
+
+      throw exception;
+    }
+
+    return register(name, new PasswordManager(keystoreLocation, masterPassword));
+  }
+
+  /**
+   * Creates a password namespace in this password manager, persisted to its own
+   * {@link PasswordJournal journal}.
+   *
+   * @param name
+   *            namespace name, must not be empty or contain {@link #NAMESPACE_SEPARATOR}
+   *
+   * @param journal
+   *            the journal storage of the namespace's passwords, opened by this method
+   *
+   * @param masterPassword
+   *            the master password to access the namespace's journal. Note that the
+   *            character array will be cleared when this method completes.
+   *
+   * @return    the password manager of the new namespace
+   *
+   * @throws KeyManagerException
+   *            if the name is not valid, a namespace with the name already exists, this
+   *            password manager has passwords with aliases qualified with the name, or
+   *            opening the journal fails
+   */
+  public PasswordManager createNamespace(String name, PasswordJournal journal,
+                                         char[] masterPassword) throws KeyManagerException
+  {
+    try
+    {
+      checkNamespaceName(name);
+    }
+
+    catch (KeyManagerException exception)
+    {
+      clearPassword(masterPassword);
+
+      throw exception;
+    }
+
+    return register(name, create(journal, masterPassword));
+  }
+
+  /**
+   * Returns a password namespace of this password manager.
+   *
+   * @param name
+   *            namespace name
+   *
+   * @return    the password manager of the namespace, or null if no such namespace exists
+   */
+  public PasswordManager getNamespace(String name)
+  {
+    return (name == null) ? null : namespaces.get(name);
+  }
+
+  /**
+   * Returns the names of the password namespaces in this password manager.
+   *
+   * @return    namespace names in name order
+   */
+  public SortedSet<String> getNamespaces()
+  {
+    return new TreeSet<String>(namespaces.keySet());
+  }
+
+  /**
+   * Deletes a password namespace and all of its passwords. The namespace's keystore or journal
+   * file, if any, is deleted. The cost is independent of the number of passwords in the
+   * namespace and the password storage of this password manager is not modified.
+   *
+   * @param name
+   *            namespace name
+   *
+   * @return    true if the namespace was deleted, false if no such namespace exists
+   *
+   * @throws KeyManagerException
+   *            if the namespace's storage file cannot be deleted
+   */
+  public boolean deleteNamespace(String name) throws KeyManagerException
+  {
+    PasswordManager namespace = (name == null) ? null : namespaces.remove(name);
+
+    if (namespace == null)
+    {
+      return false;
+    }
+
+    generation.incrementAndGet();
+
+    File file = null;
+
+    if (namespace.journal != null)
+    {
+      namespace.journal.close();
+
+      file = namespace.journal.getFile();
+    }
+
+    else if (namespace.keystoreLocation != null)
+    {
+      file = new File(namespace.keystoreLocation);
+    }
+
+    if (file != null && file.exists() && !file.delete())
+    {
+      throw new KeyManagerException(
+          "Password namespace ''{0}'' was removed but its storage file ''{1}'' could not " +
+          "be deleted.", null, name, file.getPath()
+      );
+    }
+
+    return true;
+  }
+
+  /**
+   * Exports all passwords of a namespace to a stream as a single {@link Storage#UBER} keystore,
+   * protected with the given master password. The exported keystore can be opened with
+   * {@link #PasswordManager(URI, char[])} or used with
+   * {@link #createNamespace(String, URI, char[])}. The stream is closed when the export
+   * completes.
+   *
+   * @param name
+   *            namespace name
+   *
+   * @param out
+   *            export target stream
+   *
+   * @param masterPassword
+   *            the master password of the namespace, also used to protect the exported
+   *            keystore. Note that the character array will be cleared when this method
+   *            completes.
+   *
+   * @return    number of bytes written to the stream
+   *
+   * @throws KeyManagerException
+   *            if the namespace does not exist or the export fails
+   */
+  public long exportNamespace(String name, OutputStream out, char[] masterPassword)
+      throws KeyManagerException
+  {
+    try
+    {
+      PasswordManager namespace = getNamespace(name);
+
+      if (namespace == null)
+      {
+        throw new KeyManagerException("Password namespace ''{0}'' does not exist.", null, name);
+      }
+
+      PasswordManager source = namespace;
+
+      if (namespace.journal != null)
+      {
+        // Journal entries are not in a keystore, copy them to one. The entry key is
+        // derived once for all entries...
+
+        source = new PasswordManager();
+
+        PasswordSession.SessionKey key = new PasswordSession.SessionKey(
+            namespace.journal.deriveSessionKey(masterPassword)
+        );
+
+        try
+        {
+          for (String alias : namespace.journal.aliases())
+          {
+            byte[] password = namespace.journal.get(alias, key);
+
+            if (password != null)
+            {
+              source.addPassword(alias, password, copy(masterPassword));
+            }
+          }
+        }
+
+        finally
+        {
+          key.clear();
+        }
+      }
+
+      return source.backup(out, copy(masterPassword), false).get();
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+
+      throw new KeyManagerException(
+          "Interrupted while exporting password namespace ''{0}''.", exception, name
+      );
+    }
+
+    catch (ExecutionException exception)
+    {
+      throw new KeyManagerException(
+          "Exporting password namespace ''{0}'' failed : {1}", exception.getCause(),
+          name, exception.getCause().getMessage()
+      );
+    }
+
+    finally
+    {
+      clearPassword(masterPassword);
+    }
+  }
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Returns the journal storage of this password manager.
+   *
+   * @return    password journal, or null if keystore storage is used
+   */
+  PasswordJournal getJournal()
+  {
+    return journal;
+  }
+
+  /**
+   * Returns the modification generation of this password manager. The value changes each time
+   * a password is added or removed.
+   *
+   * @return    modification generation
+   */
+  long getGeneration()
+  {
+    return generation.get();
+  }
+
+
 
 
   // Private Instance Methods ---------------------------------------------------------------------
 
+  /**
+   * Returns the namespace of a qualified password alias.
+   *
+   * @param alias
+   *            password alias
+   *
+   * @return    the password manager of the alias namespace, or null if the alias is not
+   *            qualified with the name of an existing namespace
+   */
+  private PasswordManager namespaceOf(String alias)
+  {
+    if (alias == null || namespaces.isEmpty())
+    {
+      return null;
+    }
+
+    int separator = alias.indexOf(NAMESPACE_SEPARATOR);
+
+    return (separator <= 0) ? null : namespaces.get(alias.substring(0, separator));
+  }
+
+  /**
+   * Returns the alias within its namespace of a qualified password alias.
+   *
+   * @param alias
+   *            qualified password alias
+   *
+   * @return    alias without the namespace qualifier
+   */
+  private String localAlias(String alias)
+  {
+    return alias.substring(alias.indexOf(NAMESPACE_SEPARATOR) + 1);
+  }
+
+  private void checkNamespaceName(String name) throws KeyManagerException
+  {
+    if (name == null || name.length() == 0 || name.indexOf(NAMESPACE_SEPARATOR) >= 0)
+    {
+      throw new KeyManagerException(
+          "Invalid password namespace name ''{0}'', must be non-empty and not contain ''{1}''.",
+          null, name, NAMESPACE_SEPARATOR
+      );
+    }
+
+    if (namespaces.containsKey(name))
+    {
+      throw new KeyManagerException("Password namespace ''{0}'' already exists.", null, name);
+    }
+
+    // Qualified aliases stored before they were rejected would be hidden by the namespace...
+
+    String prefix = name + NAMESPACE_SEPARATOR;
+
+    boolean ignoreCase = journal == null && !getStorageType().hasCaseSensitiveAliases();
+
+    for (String alias : (journal != null) ? journal.aliases() : getAliases())
+    {
+      if (alias.regionMatches(ignoreCase, 0, prefix, 0, prefix.length()))
+      {
+        throw new KeyManagerException(
+            "Password namespace ''{0}'' would hide existing password ''{1}''.", null, name, alias
+        );
+      }
+    }
+  }
+
+  private PasswordManager register(String name, PasswordManager namespace)
+      throws KeyManagerException
+  {
+    if (namespaces.putIfAbsent(name, namespace) != null)
+    {
+      if (namespace.journal != null)
+      {
+        namespace.journal.close();
+      }
+
+      throw new KeyManagerException("Password namespace ''{0}'' already exists.", null, name);
+    }
+
+    generation.incrementAndGet();
+
+    return namespace;
+  }
+
+  private char[] copy(char[] password)
+  {
+    return (password == null) ? null : Arrays.copyOf(password, password.length);
+  }
+
 
   // Nested Classes -------------------------------------------------------------------------------
 
@@ -291,6 +1005,24 @@ public class PasswordManager extends KeyManager
    */
   public static class PasswordNotFoundException extends OpenRemoteException
   {
+    /**
+     * Whether password not found exceptions capture a stack trace.
+     */
+    private static volatile boolean stackTraceEnabled = true;
+
+    /**
+     * Enables or disables stack trace capture for password not found exceptions. Applications
+     * that routinely probe for passwords that may not exist can disable stack traces to reduce
+     * the cost of the (expected) exceptions. Stack traces are enabled by default.
+     *
+     * @param enabled
+     *            true to capture stack traces, false otherwise
+     */
+    public static void setStackTraceEnabled(boolean enabled)
+    {
+      stackTraceEnabled = enabled;
+    }
+
     /**
      * Constructs a password not found exception with a given message.
      *
@@ -350,6 +1082,16 @@ public class PasswordManager extends KeyManager
     {
       super(msg, cause, params);
     }
+
+    /**
+     * Returns the stack trace setting of {@link #setStackTraceEnabled(boolean)}.
+     *
+     * @return    true if stack trace should be captured, false otherwise
+     */
+    @Override protected boolean isStackTraceEnabled()
+    {
+      return stackTraceEnabled;
+    }
   }
 
 }
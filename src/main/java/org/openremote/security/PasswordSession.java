@@ -0,0 +1,409 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.openremote.base.exception.OpenRemoteException;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An unlock session to a {@link PasswordManager} password storage. The session is created
+ * with {@link PasswordManager#unlock(char[], long, java.util.concurrent.TimeUnit)} and holds
+ * the unlocked master credentials so that repeated password reads do not repeat the
+ * (deliberately expensive) password based key derivation. <p>
+ *
+ * All key material and passwords held by the session are kept in arrays that are cleared
+ * when the session is closed, either explicitly with {@link #close()} or automatically once
+ * the session has been idle longer than its idle timeout. A closed session can no longer be
+ * used to retrieve passwords. <p>
+ *
+ * Password sessions are thread-safe.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class PasswordSession
+{
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Shared daemon thread that closes idle sessions.
+   */
+  private static final ScheduledExecutorService reaper =
+      Executors.newSingleThreadScheduledExecutor(new ReaperThreadFactory());
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  /**
+   * The password manager this session unlocks.
+   */
+  private final PasswordManager manager;
+
+  /**
+   * Maximum idle time of this session, in nanoseconds.
+   */
+  private final long idleTimeout;
+
+  /**
+   * Derived journal entry encryption key when the password manager uses journal storage,
+   * null otherwise.
+   */
+  private SessionKey sessionKey;
+
+  /**
+   * Copy of the keystore master password when the password manager uses keystore storage,
+   * null otherwise.
+   */
+  private char[] masterPassword;
+
+  /**
+   * Passwords already retrieved from keystore storage, by alias.
+   */
+  private final Map<String, byte[]> cache = new HashMap<String, byte[]>();
+
+  /**
+   * Password manager modification generation the cached passwords correspond to.
+   */
+  private long cacheGeneration;
+
+  /**
+   * Time of the last access to this session, as returned by {@link System#nanoTime()}.
+   */
+  private long lastAccess;
+
+  /**
+   * Indicates if this session has been closed.
+   */
+  private boolean closed = false;
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a new session. Exactly one of the session key or master password must be
+   * given. This session takes ownership of the given arrays and clears them when closed.
+   *
+   * @param manager
+   *            the password manager this session unlocks
+   *
+   * @param sessionKey
+   *            encoded journal entry encryption key, or null with keystore storage
+   *
+   * @param masterPassword
+   *            keystore master password, or null with journal storage
+   *
+   * @param idleTimeout
+   *            maximum idle time of this session, in nanoseconds
+   */
+  PasswordSession(PasswordManager manager, byte[] sessionKey, char[] masterPassword,
+                  long idleTimeout)
+  {
+    this.manager = manager;
+    this.sessionKey = (sessionKey == null) ? null : new SessionKey(sessionKey);
+    this.masterPassword = masterPassword;
+    this.idleTimeout = idleTimeout;
+    this.cacheGeneration = manager.getGeneration();
+    this.lastAccess = System.nanoTime();
+
+    scheduleExpiry(idleTimeout);
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Fetches a password through this session. The password is returned as a byte array
+   * and should be erased immediately after it has been used.
+   *
+   * @param alias
+   *            The password alias used to lookup the required password from the storage.
+   *
+   * @return    Password in a byte array. This byte array should be erased as soon as the
+   *            password has been used.
+   *
+   * @throws PasswordManager.PasswordNotFoundException
+   *            if the password could not be retrieved, or this session has been closed
+   */
+  public byte[] getPassword(String alias) throws PasswordManager.PasswordNotFoundException
+  {
+    byte[] password = tryGetPassword(alias);
+
+    if (password == null)
+    {
+      throw new PasswordManager.PasswordNotFoundException(
+          "Password with alias ''{0}'' was not found.", alias
+      );
+    }
+
+    return password;
+  }
+
+  /**
+   * Fetches a password through this session if it exists. An absent alias is not an
+   * error and returns a null value.
+   *
+   * @param alias
+   *            The password alias used to lookup the password from the storage.
+   *
+   * @return    Password in a byte array, or null if no password with a given alias exists.
+   *            The byte array should be erased as soon as the password has been used.
+   *
+   * @throws PasswordManager.PasswordNotFoundException
+   *            if the password exists but could not be retrieved, or this session has been
+   *            closed
+   */
+  public synchronized byte[] tryGetPassword(String alias)
+      throws PasswordManager.PasswordNotFoundException
+  {
+    if (alias == null || alias.equals(""))
+    {
+      throw new PasswordManager.PasswordNotFoundException(
+          "Implementation Error: null or empty password alias."
+      );
+    }
+
+    if (closed || isExpired(System.nanoTime()))
+    {
+      close();
+
+      throw new PasswordManager.PasswordNotFoundException(
+          "Password with alias ''{0}'' could not be retrieved : password session is closed.",
+          alias
+      );
+    }
+
+    lastAccess = System.nanoTime();
+
+    if (sessionKey != null)
+    {
+      return getJournalPassword(alias);
+    }
+
+    long generation = manager.getGeneration();
+
+    if (generation != cacheGeneration)
+    {
+      clearCache();
+
+      cacheGeneration = generation;
+    }
+
+    byte[] password = cache.get(alias);
+
+    if (password == null)
+    {
+      password = manager.tryGetPassword(alias, masterPassword.clone());
+
+      if (password == null)
+      {
+        return null;
+      }
+
+      cache.put(alias, password);
+    }
+
+    return password.clone();
+  }
+
+  /**
+   * Indicates if this session is still open. A session is open until it is explicitly
+   * closed or its idle timeout is exceeded.
+   *
+   * @return    true if this session can be used to retrieve passwords, false otherwise
+   */
+  public synchronized boolean isOpen()
+  {
+    return !closed && !isExpired(System.nanoTime());
+  }
+
+  /**
+   * Closes this session and clears all key material and passwords it holds. Closing an
+   * already closed session has no effect.
+   */
+  public synchronized void close()
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    closed = true;
+
+    if (sessionKey != null)
+    {
+      sessionKey.clear();
+      sessionKey = null;
+    }
+
+    if (masterPassword != null)
+    {
+      Arrays.fill(masterPassword, (char)0);
+      masterPassword = null;
+    }
+
+    clearCache();
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Retrieves a password from journal storage with the session key.
+   *
+   * @param alias
+   *            password alias
+   *
+   * @return    password bytes, or null if no password with a given alias exists
+   *
+   * @throws PasswordManager.PasswordNotFoundException
+   *            if the password cannot be decrypted
+   */
+  private byte[] getJournalPassword(String alias) throws PasswordManager.PasswordNotFoundException
+  {
+    try
+    {
+      return manager.getJournal().get(alias, sessionKey);
+    }
+
+    catch (KeyManager.KeyManagerException exception)
+    {
+      throw new PasswordManager.PasswordNotFoundException(
+          "Password with alias ''{0}'' could not be retrieved : {1}", exception,
+          alias, OpenRemoteException.messageOf(exception)
+      );
+    }
+  }
+
+  private boolean isExpired(long now)
+  {
+    return now - lastAccess >= idleTimeout;
+  }
+
+  private void clearCache()
+  {
+    for (byte[] password : cache.values())
+    {
+      Arrays.fill(password, (byte)0);
+    }
+
+    cache.clear();
+  }
+
+  /**
+   * Schedules an idle check for this session. If the session has been used since, the
+   * check is rescheduled for the remaining idle time.
+   *
+   * @param delay
+   *            delay until the check, in nanoseconds
+   */
+  private void scheduleExpiry(long delay)
+  {
+    reaper.schedule(
+        new Runnable()
+        {
+          @Override public void run()
+          {
+            synchronized (PasswordSession.this)
+            {
+              if (closed)
+              {
+                return;
+              }
+
+              long now = System.nanoTime();
+
+              if (isExpired(now))
+              {
+                close();
+              }
+
+              else
+              {
+                scheduleExpiry(idleTimeout - (now - lastAccess));
+              }
+            }
+          }
+        },
+        delay, TimeUnit.NANOSECONDS
+    );
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Journal entry encryption key backed by an array that can be cleared. Unlike
+   * {@link javax.crypto.spec.SecretKeySpec}, the key material of this key can be erased
+   * when the session is closed. Also used for one-off reads of several journal entries,
+   * see {@link PasswordManager#exportNamespace}.
+   */
+  static class SessionKey implements SecretKey
+  {
+    private final byte[] key;
+
+    SessionKey(byte[] key)
+    {
+      this.key = key;
+    }
+
+    void clear()
+    {
+      Arrays.fill(key, (byte)0);
+    }
+
+    @Override public String getAlgorithm()
+    {
+      return "AES";
+    }
+
+    @Override public String getFormat()
+    {
+      return "RAW";
+    }
+
+    @Override public byte[] getEncoded()
+    {
+      return key.clone();
+    }
+  }
+
+  /**
+   * Creates the daemon thread for closing idle sessions.
+   */
+  private static class ReaperThreadFactory implements ThreadFactory
+  {
+    @Override public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "OpenRemote Password Session Reaper");
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
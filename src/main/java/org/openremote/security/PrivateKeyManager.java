@@ -21,13 +21,33 @@
 package org.openremote.security;
 
 import java.net.URI;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.Provider;
 import java.security.cert.Certificate;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openremote.security.provider.BouncyCastleKeySigner;
+import org.openremote.security.provider.OCSPResponder;
 
 
 /**
@@ -35,7 +55,13 @@ import org.openremote.security.provider.BouncyCastleKeySigner;
  * management of asymmetric key pairs. It provides some helper methods for generating asymmetric
  * key pairs (for example, elliptic curves, RSA) and associated public key X.509 certificates
  * for public key infrastructure. It also provides convenience methods for persistent and
- * in-memory private key stores.
+ * in-memory private key stores. <p>
+ *
+ * The key manager maintains an index of its certificates ordered by their expiry date, which
+ * is updated when keys are loaded, added and removed. Use {@link #getExpiringKeys(Date)} to
+ * find certificates that are about to expire without scanning the keystore,
+ * {@link #renewCertificate(String, char[], KeySigner.Validity)} to re-sign a key with a new
+ * validity period, and {@link RenewalScheduler} to do either in the background.
  *
  * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
  */
@@ -50,6 +76,11 @@ public class PrivateKeyManager extends KeyManager
   public static final AsymmetricKeyAlgorithm DEFAULT_SELF_SIGNED_KEY_ALGORITHM =
       AsymmetricKeyAlgorithm.EC;
 
+  /**
+   * Number of certification requests a batch signing thread claims at a time : {@value}
+   */
+  public static final int CERTIFICATION_REQUEST_CHUNK_SIZE = 32;
+
   public static final String DEFAULT_SELF_SIGNED_KEY_ISSUER = "OpenRemote Inc.";
 
 
@@ -138,6 +169,48 @@ public class PrivateKeyManager extends KeyManager
     }
   }
 
+  /**
+   * Creates a new private key manager that distributes its keys across a given number of
+   * keystore shards. See {@link KeyManager#KeyManager(Storage, java.security.Provider, int)}
+   * for details on sharded key managers.
+   *
+   * @param keyStoreLocation
+   *            location of the shard manifest file, the shard keystore files are stored
+   *            next to it
+   *
+   * @param masterPassword
+   *            password to access the shard keystores
+   *
+   * @param storage
+   *            the desired key storage format of each shard
+   *
+   * @param shardCount
+   *            number of shards
+   *
+   * @return    key manager instance
+   *
+   * @throws    ConfigurationException if creating private key manager fails, e.g. the requested
+   *            keystore algorithm is not found with the installed security providers or the
+   *            existing shards do not match the given shard count.
+   */
+  public static PrivateKeyManager create(URI keyStoreLocation, char[] masterPassword,
+                                         Storage storage, int shardCount)
+      throws ConfigurationException
+  {
+    try
+    {
+      return new PrivateKeyManager(keyStoreLocation, masterPassword, storage, shardCount);
+    }
+
+    catch (KeyManagerException exception)
+    {
+      throw new ConfigurationException(
+          "Could not create private key manager : {0}", exception,
+          exception.getMessage()
+      );
+    }
+  }
+
 
 
   // Private Instance Fields ----------------------------------------------------------------------
@@ -147,6 +220,18 @@ public class PrivateKeyManager extends KeyManager
    */
   private URI keystoreLocation = null;
 
+  /**
+   * Certificate expiry index, ordered by expiry date and alias. The index is created at the
+   * end of each constructor : keystores loaded by the superclass constructor are indexed
+   * at that point.
+   */
+  private NavigableSet<Expiry> expiryIndex;
+
+  /**
+   * Expiry index entries by alias key, see {@link #aliasKey(String)}.
+   */
+  private Map<String, Expiry> expiryByAlias;
+
 
   // Constructors ---------------------------------------------------------------------------------
 
@@ -162,6 +247,8 @@ public class PrivateKeyManager extends KeyManager
   private PrivateKeyManager(Storage storage, Provider provider) throws KeyManagerException
   {
     super(storage, provider);
+
+    initExpiryIndex();
   }
 
   private PrivateKeyManager(URI keyStoreLocation, char[] masterPassword, Storage storage)
@@ -170,8 +257,23 @@ public class PrivateKeyManager extends KeyManager
     super(keyStoreLocation, masterPassword, storage, storage.getSecurityProvider());
 
     this.keystoreLocation = keyStoreLocation;
+
+    initExpiryIndex();
+  }
+
+  private PrivateKeyManager(URI keyStoreLocation, char[] masterPassword, Storage storage,
+                            int shardCount) throws KeyManagerException
+  {
+    super(storage, storage.getSecurityProvider(), shardCount);
+
+    load(keyStoreLocation, masterPassword);
+
+    this.keystoreLocation = keyStoreLocation;
+
+    initExpiryIndex();
   }
 
+
   // Public Instance Methods ----------------------------------------------------------------------
 
   public Certificate addKey(String keyName) throws KeyManagerException
@@ -294,7 +396,1200 @@ public class PrivateKeyManager extends KeyManager
     }
   }
 
+  /**
+   * Returns a private key if it exists. Absent aliases are resolved from an in-memory alias
+   * index and return null without accessing the keystore or creating exceptions. Use this
+   * method to look up optional keys that are frequently absent.
+   *
+   * @param alias
+   *            private key alias
+   *
+   * @return    private key, or null if no key with a given alias exists
+   *
+   * @throws KeyManagerException
+   *            if the key exists but could not be retrieved or is not a private key
+   */
+  public PrivateKey tryGetKey(String alias) throws KeyManagerException
+  {
+    return tryGetKey(alias, EMPTY_KEY_PASSWORD);
+  }
+
+  /**
+   * Returns a private key if it exists. Absent aliases are resolved from an in-memory alias
+   * index and return null without accessing the keystore or creating exceptions. Use this
+   * method to look up optional keys that are frequently absent.
+   *
+   * @param alias
+   *            private key alias
+   *
+   * @param password
+   *            key protection password
+   *
+   * @return    private key, or null if no key with a given alias exists
+   *
+   * @throws KeyManagerException
+   *            if the key exists but could not be retrieved or is not a private key
+   */
+  public PrivateKey tryGetKey(String alias, char[] password) throws KeyManagerException
+  {
+    if (!contains(alias))
+    {
+      return null;
+    }
+
+    return getKey(alias, password);
+  }
+
+  /**
+   * Returns the keys whose certificates expire before a given date, from the in-memory
+   * expiry index.
+   *
+   * @param before
+   *            expiry date limit (exclusive)
+   *
+   * @return    expiring keys in expiry date order, the earliest first
+   */
+  public List<Expiry> getExpiringKeys(Date before)
+  {
+    return new ArrayList<Expiry>(expiryIndex.headSet(new Expiry("", before.getTime()), false));
+  }
+
+  /**
+   * Returns the key whose certificate expires first.
+   *
+   * @return    key with the earliest certificate expiry date, or null if this key manager
+   *            has no certificates
+   */
+  public Expiry getNextExpiry()
+  {
+    return expiryIndex.isEmpty() ? null : expiryIndex.first();
+  }
+
+  /**
+   * Renews the certificate of an existing key : the public key is re-signed with the same
+   * private key, issuer common name and signature algorithm, with a given validity period.
+   * The key entry is replaced with one that has the new certificate. The keystore is
+   * persisted if this key manager is file based and a key password is given. <p>
+   *
+   * Only self-signed certificates are renewed here. Certificates issued by a certificate
+   * authority are renewed with {@link CertificateAuthority#renewCertificate}, so that the
+   * renewed key keeps its certificate chain.
+   *
+   * @param alias
+   *            key alias
+   *
+   * @param password
+   *            key protection password, or null if the key has no password. Note that the
+   *            character array will be cleared when this method completes.
+   *
+   * @param validity
+   *            validity period of the new certificate
+   *
+   * @return    the new certificate
+   *
+   * @throws KeyManagerException
+   *            if the key cannot be retrieved, is not a private key, its certificate has been
+   *            issued by a certificate authority, or signing fails
+   */
+  public Certificate renewCertificate(String alias, char[] password, KeySigner.Validity validity)
+      throws KeyManagerException
+  {
+    return renewCertificate(
+        alias, password, validity, Collections.<CertificateAuthority>emptyList(), true
+    );
+  }
+
+  /**
+   * Opens a certificate authority that issues certificates with a CA key stored in this key
+   * manager. The CA private key is retrieved (decrypted) once and kept in memory by the
+   * returned instance until it is {@link CertificateAuthority#close() closed}, so that each
+   * issued certificate only costs the key generation (if any) and the signature. <p>
+   *
+   * The certificate authority uses the CA key entry as it is when this method is called,
+   * open a new instance if the CA key entry is replaced.
+   *
+   * @param alias
+   *            alias of the CA private key entry
+   *
+   * @param password
+   *            CA key protection password, or null if the key has no password. Note that
+   *            the character array will be cleared when this method completes.
+   *
+   * @return    certificate authority for issuing certificates with the CA key
+   *
+   * @throws KeyManagerException
+   *            if the CA key cannot be retrieved or is not a private key entry with an X.509
+   *            certificate
+   */
+  public CertificateAuthority getCertificateAuthority(String alias, char[] password)
+      throws KeyManagerException
+  {
+    return new CertificateAuthority(alias, retrieveIssuer(alias, password));
+  }
+
+  /**
+   * Creates an OCSP responder that signs responses with a key stored in this key manager,
+   * for certificates of an issuer whose certificate is stored in a trust store. The responder
+   * key is either the issuer's own key, or a delegated responder key whose certificate has
+   * been issued by the issuer. Register the issuer's certificates with
+   * {@link OCSPResponder#addIssued(java.util.Collection)}. See {@link OCSPResponder} for
+   * details.
+   *
+   * @param alias
+   *            alias of the responder private key entry
+   *
+   * @param password
+   *            responder key protection password, or null if the key has no password. Note
+   *            that the character array will be cleared when this method completes.
+   *
+   * @param trustStore
+   *            trust store containing the issuer certificate
+   *
+   * @param issuerAlias
+   *            alias of the issuer certificate in the trust store
+   *
+   * @param revocations
+   *            revoked certificates of the issuer
+   *
+   * @return    OCSP responder
+   *
+   * @throws KeyManagerException
+   *            if the responder key or issuer certificate cannot be retrieved, or the
+   *            responder certificate has not been issued by the issuer
+   */
+  public OCSPResponder createOCSPResponder(String alias, char[] password, TrustStore trustStore,
+                                           String issuerAlias, RevocationList revocations)
+      throws KeyManagerException
+  {
+    KeyStore.PrivateKeyEntry responder = retrieveIssuer(alias, password);
+
+    X509Certificate responderCertificate = (X509Certificate)responder.getCertificate();
+
+    Certificate issuerCertificate = trustStore.getCertificate(issuerAlias);
+
+    if (!(issuerCertificate instanceof X509Certificate))
+    {
+      throw new KeyManagerException(
+          "Trusted certificate ''{0}'' is not an X.509 certificate.", null, issuerAlias
+      );
+    }
+
+    try
+    {
+      if (!responderCertificate.equals(issuerCertificate))
+      {
+        responderCertificate.verify(issuerCertificate.getPublicKey());
+      }
+
+      return OCSPResponder.create(
+          responder.getPrivateKey(), responderCertificate,
+          (X509Certificate)issuerCertificate, revocations
+      );
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      throw new KeyManagerException(
+          "Responder key ''{0}'' certificate has not been issued by ''{1}'' : {2}", exception,
+          alias, issuerAlias, exception.getMessage()
+      );
+    }
+
+    catch (KeySigner.SigningException exception)
+    {
+      throw new KeyManagerException(
+          "Cannot create OCSP responder with key ''{0}'' : {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Returns a message signer for a private key stored in this key manager, using the default
+   * signature algorithm of the key type. See
+   * {@link #getSigner(String, char[], KeySigner.SignatureAlgorithm)}.
+   */
+  public MessageSignature getSigner(String alias, char[] password) throws KeyManagerException
+  {
+    return getSigner(alias, password, null);
+  }
+
+  /**
+   * Returns a message signer for a private key stored in this key manager. The private key is
+   * retrieved once, the returned signer keeps it and an initialized signature instance per
+   * thread, see {@link MessageSignature}.
+   *
+   * @param alias
+   *            alias of the private key entry
+   *
+   * @param password
+   *            key protection password, or null if the key has no password. Note that the
+   *            character array will be cleared when this method completes.
+   *
+   * @param algorithm
+   *            signature algorithm, or null for the default algorithm of the key type
+   *
+   * @return    message signer
+   *
+   * @throws KeyManagerException
+   *            if the key cannot be retrieved, or is not valid for the signature algorithm
+   */
+  public MessageSignature getSigner(String alias, char[] password,
+                                    KeySigner.SignatureAlgorithm algorithm)
+      throws KeyManagerException
+  {
+    PrivateKey key;
+
+    try
+    {
+      boolean hasPassword = password != null && password.length > 0;
+
+      key = getKey(alias, hasPassword ? password : EMPTY_KEY_PASSWORD);
+    }
+
+    finally
+    {
+      clearPassword(password);
+    }
+
+    try
+    {
+      return MessageSignature.createSigner(
+          algorithm == null ? KeySigner.Configuration.getDefaultSignatureAlgorithm(key) : algorithm,
+          key
+      );
+    }
+
+    catch (KeySigner.SigningException exception)
+    {
+      throw new KeyManagerException(
+          "Cannot create signer for key ''{0}'' : {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Issues a certificate for a PKCS #10 certificate signing request, signed with an issuer
+   * key stored in this key manager. The request's proof-of-possession signature is verified
+   * before the requested public key is signed. The certificate subject is the subject of the
+   * request, the certificate issuer is the subject of the issuer key's certificate.
+   *
+   * @param issuerAlias
+   *            alias of the issuer's private key entry
+   *
+   * @param password
+   *            issuer key protection password, or null if the key has no password. Note that
+   *            the character array will be cleared when this method completes.
+   *
+   * @param request
+   *            DER or PEM encoded certificate signing request
+   *
+   * @param validity
+   *            validity period of the issued certificate
+   *
+   * @return    the issued certificate
+   *
+   * @throws KeyManagerException
+   *            if the issuer key cannot be retrieved, or the request is not valid or cannot
+   *            be signed
+   */
+  public X509Certificate signCertificationRequest(String issuerAlias, char[] password,
+                                                  byte[] request, KeySigner.Validity validity)
+      throws KeyManagerException
+  {
+    KeyStore.PrivateKeyEntry issuer = retrieveIssuer(issuerAlias, password);
+
+    try
+    {
+      return issue(issuer, request, validity);
+    }
+
+    catch (KeySigner.SigningException exception)
+    {
+      throw new KeyManagerException(
+          "Signing certification request with issuer key ''{0}'' failed : {1}", exception,
+          issuerAlias, exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Issues certificates for a batch of PKCS #10 certificate signing requests, see
+   * {@link #signCertificationRequest(String, char[], byte[], KeySigner.Validity)}. The issuer
+   * key is retrieved (decrypted) once for the whole batch, and the requests are verified and
+   * signed in parallel. A request that fails does not fail the batch, its result records the
+   * failure instead.
+   *
+   * @param issuerAlias
+   *            alias of the issuer's private key entry
+   *
+   * @param password
+   *            issuer key protection password, or null if the key has no password. Note that
+   *            the character array will be cleared when this method completes.
+   *
+   * @param requests
+   *            DER or PEM encoded certificate signing requests
+   *
+   * @param validity
+   *            validity period of the issued certificates
+   *
+   * @return    signing results in request order
+   *
+   * @throws KeyManagerException
+   *            if the issuer key cannot be retrieved, or the batch is interrupted
+   */
+  public List<SigningResult> signCertificationRequests(String issuerAlias, char[] password,
+                                                       List<byte[]> requests,
+                                                       final KeySigner.Validity validity)
+      throws KeyManagerException
+  {
+    final KeyStore.PrivateKeyEntry issuer = retrieveIssuer(issuerAlias, password);
+    final List<byte[]> batch = new ArrayList<byte[]>(requests);
+    final SigningResult[] results = new SigningResult[batch.size()];
+
+    int threads = Math.max(1, Math.min(
+        Runtime.getRuntime().availableProcessors(),
+        (batch.size() + CERTIFICATION_REQUEST_CHUNK_SIZE - 1) / CERTIFICATION_REQUEST_CHUNK_SIZE
+    ));
+
+    final AtomicInteger next = new AtomicInteger(0);
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+
+    for (int index = 0; index < threads; ++index)
+    {
+      tasks.add(new Callable<Void>()
+      {
+        @Override public Void call()
+        {
+          // Claim chunks of requests until the batch is complete...
+
+          int begin;
+
+          while ((begin = next.getAndAdd(CERTIFICATION_REQUEST_CHUNK_SIZE)) < batch.size())
+          {
+            int end = Math.min(batch.size(), begin + CERTIFICATION_REQUEST_CHUNK_SIZE);
+
+            for (int request = begin; request < end; ++request)
+            {
+              try
+              {
+                results[request] = new SigningResult(issue(issuer, batch.get(request), validity));
+              }
+
+              catch (KeySigner.SigningException exception)
+              {
+                results[request] = new SigningResult(exception);
+              }
+
+              catch (RuntimeException exception)
+              {
+                results[request] = new SigningResult(new KeySigner.SigningException(
+                    "Signing certification request failed : {0}", exception,
+                    exception.getMessage()
+                ));
+              }
+            }
+          }
+
+          return null;
+        }
+      });
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try
+    {
+      for (Future<Void> result : executor.invokeAll(tasks))
+      {
+        result.get();
+      }
+
+      return Arrays.asList(results);
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+
+      throw new KeyManagerException(
+          "Interrupted while signing certification requests.", exception
+      );
+    }
+
+    catch (ExecutionException exception)
+    {
+      throw new KeyManagerException(
+          "Signing certification requests failed : {0}", exception.getCause(),
+          exception.getCause().getMessage()
+      );
+    }
+
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
 
+  // KeyManager Overrides -------------------------------------------------------------------------
 
+  @Override protected void add(String keyAlias, KeyStore.Entry entry,
+                               KeyStore.ProtectionParameter param) throws KeyManagerException
+  {
+    super.add(keyAlias, entry, param);
+
+    updateExpiry(keyAlias);
+  }
+
+  @Override protected boolean remove(String keyAlias)
+  {
+    boolean removed = super.remove(keyAlias);
+
+    if (removed && expiryIndex != null)
+    {
+      synchronized (expiryByAlias)
+      {
+        Expiry expiry = expiryByAlias.remove(aliasKey(keyAlias));
+
+        if (expiry != null)
+        {
+          expiryIndex.remove(expiry);
+        }
+      }
+    }
+
+    return removed;
+  }
+
+  @Override protected void load(URI uri, char[] keystorePassword) throws KeyManagerException
+  {
+    super.load(uri, keystorePassword);
+
+    // Superclass constructors load keystores before the index exists, the index is built
+    // once the constructor completes...
+
+    if (expiryIndex != null)
+    {
+      rebuildExpiryIndex();
+    }
+  }
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Renews the certificate of an existing key, see
+   * {@link #renewCertificate(String, char[], KeySigner.Validity)}. Self-signed certificates
+   * are re-signed with the key itself. Certificates issued by a certificate authority are
+   * re-issued by the given certificate authority that issued them, and the key entry keeps
+   * the certificate authority's chain. A certificate is issued by a certificate authority if
+   * its key entry has a certificate chain, or its issuer differs from its subject.
+   *
+   * @param authorities
+   *            certificate authorities that may re-issue certificates
+   *
+   * @param persist
+   *            true to persist the keystore once the certificate has been renewed
+   *
+   * @throws KeyManagerException
+   *            if the key cannot be retrieved or is not a private key, none of the given
+   *            certificate authorities issued its certificate, or signing fails
+   */
+  Certificate renewCertificate(String alias, char[] password, KeySigner.Validity validity,
+                               Collection<CertificateAuthority> authorities, boolean persist)
+      throws KeyManagerException
+  {
+    try
+    {
+      boolean hasPassword = password != null && password.length > 0;
+
+      KeyStore.Entry entry = retrieveKey(
+          alias, new KeyStore.PasswordProtection(hasPassword ? password : EMPTY_KEY_PASSWORD)
+      );
+
+      if (!(entry instanceof KeyStore.PrivateKeyEntry))
+      {
+        throw new KeyManagerException(
+            "Key alias ''{0}'' is not a private key entry.", null, alias
+        );
+      }
+
+      KeyStore.PrivateKeyEntry privateKeyEntry = (KeyStore.PrivateKeyEntry)entry;
+      X509Certificate current = (X509Certificate)privateKeyEntry.getCertificate();
+
+      KeyPair keyPair = new KeyPair(current.getPublicKey(), privateKeyEntry.getPrivateKey());
+
+      boolean issued = privateKeyEntry.getCertificateChain().length > 1 ||
+          !current.getIssuerX500Principal().equals(current.getSubjectX500Principal());
+
+      Certificate[] chain;
+
+      if (issued)
+      {
+        CertificateAuthority authority = findIssuer(current, authorities);
+
+        if (authority == null)
+        {
+          throw new KeyManagerException(
+              "Certificate of key ''{0}'' has been issued by ''{1}'', it can only be renewed " +
+              "by its certificate authority.", null,
+              alias, current.getIssuerX500Principal().getName()
+          );
+        }
+
+        chain = authority.issue(keyPair, getCommonName(current), validity);
+      }
+
+      else
+      {
+        chain = new Certificate[]
+        {
+            keySigner.signPublicKey(
+                KeySigner.Configuration.createSelfSigned(
+                    keyPair, getSignatureAlgorithm(current), validity, getCommonName(current)
+                )
+            )
+        };
+      }
+
+      add(
+          alias,
+          new KeyStore.PrivateKeyEntry(keyPair.getPrivate(), chain),
+          hasPassword ? new KeyStore.PasswordProtection(password) : null
+      );
+
+      if (persist && hasPassword)
+      {
+        persist(password);
+      }
+
+      return chain[0];
+    }
+
+    catch (KeySigner.SigningException exception)
+    {
+      throw new KeyManagerException(
+          "Renewing certificate of key ''{0}'' failed : {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      clearPassword(password);
+    }
+  }
+
+  /**
+   * Persists the keystore if this key manager is file based.
+   *
+   * @param password
+   *            keystore password, the character array is not cleared
+   */
+  void persist(char[] password) throws KeyManagerException
+  {
+    if (keystoreLocation != null)
+    {
+      save(keystoreLocation, password);
+    }
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Retrieves an issuer key entry for signing certification requests.
+   *
+   * @param alias
+   *            issuer key alias
+   *
+   * @param password
+   *            issuer key protection password or null, cleared when this method completes
+   *
+   * @return    issuer private key entry
+   *
+   * @throws KeyManagerException
+   *            if the entry cannot be retrieved or is not a private key entry with an X.509
+   *            certificate
+   */
+  private KeyStore.PrivateKeyEntry retrieveIssuer(String alias, char[] password)
+      throws KeyManagerException
+  {
+    try
+    {
+      boolean hasPassword = password != null && password.length > 0;
+
+      KeyStore.Entry entry = retrieveKey(
+          alias, new KeyStore.PasswordProtection(hasPassword ? password : EMPTY_KEY_PASSWORD)
+      );
+
+      if (!(entry instanceof KeyStore.PrivateKeyEntry) ||
+          !(((KeyStore.PrivateKeyEntry)entry).getCertificate() instanceof X509Certificate))
+      {
+        throw new KeyManagerException(
+            "Issuer key alias ''{0}'' is not a private key entry with an X.509 certificate.",
+            null, alias
+        );
+      }
+
+      return (KeyStore.PrivateKeyEntry)entry;
+    }
+
+    finally
+    {
+      clearPassword(password);
+    }
+  }
+
+  /**
+   * Verifies a certification request and signs its public key with an issuer key.
+   */
+  private X509Certificate issue(KeyStore.PrivateKeyEntry issuer, byte[] request,
+                                KeySigner.Validity validity) throws KeySigner.SigningException
+  {
+    return keySigner.signPublicKey(
+        KeySigner.Configuration.createIssued(
+            keySigner.parseCertificationRequest(request),
+            issuer.getPrivateKey(), (X509Certificate)issuer.getCertificate(), validity
+        )
+    );
+  }
+
+  private void initExpiryIndex()
+  {
+    expiryIndex = new ConcurrentSkipListSet<Expiry>();
+    expiryByAlias = new ConcurrentHashMap<String, Expiry>();
+
+    rebuildExpiryIndex();
+  }
+
+  private void rebuildExpiryIndex()
+  {
+    synchronized (expiryByAlias)
+    {
+      expiryIndex.clear();
+      expiryByAlias.clear();
+
+      for (String alias : getAliases())
+      {
+        updateExpiry(alias);
+      }
+    }
+  }
+
+  private void updateExpiry(String alias)
+  {
+    if (expiryIndex == null)
+    {
+      return;
+    }
+
+    Certificate certificate = getCertificate(alias);
+
+    synchronized (expiryByAlias)
+    {
+      Expiry previous = expiryByAlias.remove(aliasKey(alias));
+
+      if (previous != null)
+      {
+        expiryIndex.remove(previous);
+      }
+
+      if (certificate instanceof X509Certificate)
+      {
+        Expiry expiry = new Expiry(alias, ((X509Certificate)certificate).getNotAfter().getTime());
+
+        expiryByAlias.put(aliasKey(alias), expiry);
+        expiryIndex.add(expiry);
+      }
+    }
+  }
+
+  /**
+   * Returns the certificate authority that issued a certificate : its subject is the
+   * certificate's issuer and its key verifies the certificate's signature.
+   *
+   * @return    issuing certificate authority, or null if none of the given ones issued it
+   */
+  private CertificateAuthority findIssuer(X509Certificate certificate,
+                                          Collection<CertificateAuthority> authorities)
+  {
+    for (CertificateAuthority authority : authorities)
+    {
+      if (!authority.certificate.getSubjectX500Principal().equals(
+          certificate.getIssuerX500Principal()))
+      {
+        continue;
+      }
+
+      try
+      {
+        certificate.verify(authority.certificate.getPublicKey());
+
+        return authority;
+      }
+
+      catch (GeneralSecurityException exception)
+      {
+        // Same name, different key...
+      }
+    }
+
+    return null;
+  }
+
+  private String getCommonName(X509Certificate certificate)
+  {
+    // Common names in certificates signed by this implementation do not contain commas,
+    // see KeySigner.Configuration...
+
+    for (String attribute : certificate.getSubjectX500Principal().getName().split(","))
+    {
+      if (attribute.trim().startsWith("CN="))
+      {
+        return attribute.trim().substring(3);
+      }
+    }
+
+    return DEFAULT_SELF_SIGNED_KEY_ISSUER;
+  }
+
+  private KeySigner.SignatureAlgorithm getSignatureAlgorithm(X509Certificate certificate)
+  {
+    for (KeySigner.SignatureAlgorithm algorithm : KeySigner.SignatureAlgorithm.values())
+    {
+      if (algorithm.getASN1().equals(certificate.getSigAlgOID()))
+      {
+        return algorithm;
+      }
+    }
+
+    // Default signature algorithm of the key type (BouncyCastle names EC keys 'ECDSA')...
+
+    return certificate.getPublicKey().getAlgorithm().startsWith("EC")
+        ? AsymmetricKeyAlgorithm.EC.getDefaultSignatureAlgorithm()
+        : AsymmetricKeyAlgorithm.RSA.getDefaultSignatureAlgorithm();
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Issues certificates signed by a CA key of this key manager, see
+   * {@link PrivateKeyManager#getCertificateAuthority(String, char[])}. Instances are
+   * thread-safe.
+   */
+  public class CertificateAuthority
+  {
+    private final String alias;
+
+    private final X509Certificate certificate;
+
+    private final Certificate[] chain;
+
+    private volatile PrivateKey key;
+
+
+    private CertificateAuthority(String alias, KeyStore.PrivateKeyEntry entry)
+    {
+      this.alias = alias;
+      this.key = entry.getPrivateKey();
+      this.certificate = (X509Certificate)entry.getCertificate();
+      this.chain = entry.getCertificateChain();
+    }
+
+
+    /**
+     * Returns the certificate chain of the CA key, starting with the CA certificate.
+     *
+     * @return    CA certificate chain
+     */
+    public Certificate[] getCertificateChain()
+    {
+      return chain.clone();
+    }
+
+    /**
+     * Generates a new {@link #DEFAULT_SELF_SIGNED_KEY_ALGORITHM default} key pair with a
+     * certificate issued by this certificate authority and adds it to the key manager, see
+     * {@link #addKey(String, char[], KeyManager.AsymmetricKeyAlgorithm, String, KeySigner.Validity)}.
+     */
+    public X509Certificate addKey(String keyName, char[] keyPassword, String commonName)
+        throws KeyManagerException
+    {
+      return addKey(
+          keyName, keyPassword, DEFAULT_SELF_SIGNED_KEY_ALGORITHM, commonName,
+          new KeySigner.Validity(KeySigner.Validity.DEFAULT_VALID_DAYS)
+      );
+    }
+
+    /**
+     * Generates a new key pair with a certificate issued by this certificate authority and
+     * adds it to the key manager. The key entry stores the full certificate chain : the issued
+     * certificate followed by the CA certificate chain. The keystore is persisted if the key
+     * manager is file based and a key password is given.
+     *
+     * @param keyName
+     *            alias of the new key entry
+     *
+     * @param keyPassword
+     *            key protection password, or null. Note that the character array will be
+     *            cleared when this method completes.
+     *
+     * @param keyAlgorithm
+     *            asymmetric key algorithm of the new key pair
+     *
+     * @param commonName
+     *            common name attribute of the issued certificate's subject
+     *
+     * @param validity
+     *            validity period of the issued certificate
+     *
+     * @return    the issued certificate
+     *
+     * @throws KeyManagerException
+     *            if this certificate authority has been closed, or generating, signing or
+     *            storing the key fails
+     */
+    public X509Certificate addKey(String keyName, char[] keyPassword,
+                                  AsymmetricKeyAlgorithm keyAlgorithm, String commonName,
+                                  KeySigner.Validity validity) throws KeyManagerException
+    {
+      try
+      {
+        if (keyName == null || keyName.equals(""))
+        {
+          throw new KeyManagerException(
+              "Implementation error: Null or empty key alias is not allowed."
+          );
+        }
+
+        KeyPair keyPair = generateKey(keyAlgorithm);
+
+        Certificate[] issuedChain = issue(keyPair, commonName, validity);
+
+        boolean hasPassword = keyPassword != null && keyPassword.length > 0;
+
+        add(
+            keyName,
+            new KeyStore.PrivateKeyEntry(keyPair.getPrivate(), issuedChain),
+            hasPassword ? new KeyStore.PasswordProtection(keyPassword) : null
+        );
+
+        if (hasPassword)
+        {
+          persist(keyPassword);
+        }
+
+        return (X509Certificate)issuedChain[0];
+      }
+
+      catch (KeySigner.SigningException exception)
+      {
+        throw new KeyManagerException(
+            "Issuing certificate with CA key ''{0}'' failed : {1}", exception,
+            alias, exception.getMessage()
+        );
+      }
+
+      finally
+      {
+        clearPassword(keyPassword);
+      }
+    }
+
+    /**
+     * Issues a certificate for a PKCS #10 certificate signing request, see
+     * {@link PrivateKeyManager#signCertificationRequest(String, char[], byte[], KeySigner.Validity)}.
+     *
+     * @param request
+     *            DER or PEM encoded certificate signing request
+     *
+     * @param validity
+     *            validity period of the issued certificate
+     *
+     * @return    the issued certificate
+     *
+     * @throws KeyManagerException
+     *            if this certificate authority has been closed, or the request is not valid
+     *            or cannot be signed
+     */
+    public X509Certificate signCertificationRequest(byte[] request, KeySigner.Validity validity)
+        throws KeyManagerException
+    {
+      try
+      {
+        return keySigner.signPublicKey(
+            KeySigner.Configuration.createIssued(
+                keySigner.parseCertificationRequest(request), signingKey(), certificate, validity
+            )
+        );
+      }
+
+      catch (KeySigner.SigningException exception)
+      {
+        throw new KeyManagerException(
+            "Signing certification request with CA key ''{0}'' failed : {1}", exception,
+            alias, exception.getMessage()
+        );
+      }
+    }
+
+    /**
+     * Creates a complete certificate revocation list signed by this certificate authority,
+     * see {@link RevocationList#createRevocationList(KeySigner, PrivateKey, X509Certificate, Date)}.
+     *
+     * @param revocations
+     *            revoked certificates issued by this certificate authority
+     *
+     * @param nextUpdate
+     *            date by which the next revocation list will be issued
+     *
+     * @return    signed certificate revocation list
+     *
+     * @throws KeyManagerException
+     *            if this certificate authority has been closed, or signing fails
+     */
+    public X509CRL signRevocationList(RevocationList revocations, Date nextUpdate)
+        throws KeyManagerException
+    {
+      try
+      {
+        return revocations.createRevocationList(keySigner, signingKey(), certificate, nextUpdate);
+      }
+
+      catch (KeySigner.SigningException exception)
+      {
+        throw new KeyManagerException(
+            "Signing revocation list with CA key ''{0}'' failed : {1}", exception,
+            alias, exception.getMessage()
+        );
+      }
+    }
+
+    /**
+     * Creates a delta certificate revocation list signed by this certificate authority, see
+     * {@link RevocationList#createDeltaRevocationList(KeySigner, PrivateKey, X509Certificate, Date)}.
+     *
+     * @param revocations
+     *            revoked certificates issued by this certificate authority
+     *
+     * @param nextUpdate
+     *            date by which the next revocation list will be issued
+     *
+     * @return    signed delta certificate revocation list
+     *
+     * @throws KeyManagerException
+     *            if this certificate authority has been closed, or signing fails
+     */
+    public X509CRL signDeltaRevocationList(RevocationList revocations, Date nextUpdate)
+        throws KeyManagerException
+    {
+      try
+      {
+        return revocations.createDeltaRevocationList(
+            keySigner, signingKey(), certificate, nextUpdate
+        );
+      }
+
+      catch (KeySigner.SigningException exception)
+      {
+        throw new KeyManagerException(
+            "Signing delta revocation list with CA key ''{0}'' failed : {1}", exception,
+            alias, exception.getMessage()
+        );
+      }
+    }
+
+    /**
+     * Renews the certificate of a key issued by this certificate authority : the key's public
+     * key is re-issued with the same subject common name and a given validity period, and the
+     * key entry is replaced with one that has the new certificate followed by the CA
+     * certificate chain. The keystore is persisted if the key manager is file based and a key
+     * password is given. See also {@link RenewalScheduler#addCertificateAuthority}.
+     *
+     * @param keyAlias
+     *            alias of the key entry to renew
+     *
+     * @param keyPassword
+     *            key protection password, or null if the key has no password. Note that the
+     *            character array will be cleared when this method completes.
+     *
+     * @param validity
+     *            validity period of the new certificate
+     *
+     * @return    the new certificate
+     *
+     * @throws KeyManagerException
+     *            if this certificate authority has been closed or did not issue the key's
+     *            certificate, the key cannot be retrieved, or signing fails
+     */
+    public X509Certificate renewCertificate(String keyAlias, char[] keyPassword,
+                                            KeySigner.Validity validity)
+        throws KeyManagerException
+    {
+      return (X509Certificate)PrivateKeyManager.this.renewCertificate(
+          keyAlias, keyPassword, validity, Collections.singletonList(this), true
+      );
+    }
+
+    /**
+     * Releases the reference to the CA private key. A closed certificate authority can no
+     * longer issue certificates.
+     */
+    public void close()
+    {
+      key = null;
+    }
+
+    /**
+     * Issues a certificate for a key pair and returns it followed by the CA certificate chain.
+     */
+    private Certificate[] issue(KeyPair keyPair, String commonName, KeySigner.Validity validity)
+        throws KeyManagerException, KeySigner.SigningException
+    {
+      X509Certificate issued = keySigner.signPublicKey(
+          KeySigner.Configuration.createIssued(
+              keyPair.getPublic(), commonName, signingKey(), certificate, validity
+          )
+      );
+
+      Certificate[] issuedChain = new Certificate[chain.length + 1];
+      issuedChain[0] = issued;
+
+      System.arraycopy(chain, 0, issuedChain, 1, chain.length);
+
+      return issuedChain;
+    }
+
+    private PrivateKey signingKey() throws KeyManagerException
+    {
+      PrivateKey signingKey = key;
+
+      if (signingKey == null)
+      {
+        throw new KeyManagerException("Certificate authority ''{0}'' is closed.", null, alias);
+      }
+
+      return signingKey;
+    }
+  }
+
+  /**
+   * Result of signing a certification request in a batch, see
+   * {@link #signCertificationRequests(String, char[], List, KeySigner.Validity)}.
+   */
+  public static class SigningResult
+  {
+    private X509Certificate certificate;
+
+    private KeySigner.SigningException failure;
+
+
+    private SigningResult(X509Certificate certificate)
+    {
+      this.certificate = certificate;
+    }
+
+    private SigningResult(KeySigner.SigningException failure)
+    {
+      this.failure = failure;
+    }
+
+
+    /**
+     * Returns the issued certificate.
+     *
+     * @return    issued certificate, or null if signing the request failed
+     */
+    public X509Certificate getCertificate()
+    {
+      return certificate;
+    }
+
+    /**
+     * Returns the reason signing the request failed.
+     *
+     * @return    signing error, or null if a certificate was issued
+     */
+    public KeySigner.SigningException getFailure()
+    {
+      return failure;
+    }
+  }
+
+  /**
+   * An entry in the certificate expiry index : a key alias and the expiry date of its
+   * certificate. Entries are ordered by expiry date, then alias.
+   */
+  public static class Expiry implements Comparable<Expiry>
+  {
+    private String alias;
+
+    private long notAfter;
+
+
+    private Expiry(String alias, long notAfter)
+    {
+      this.alias = alias;
+      this.notAfter = notAfter;
+    }
+
+
+    /**
+     * Returns the key alias.
+     *
+     * @return    key alias
+     */
+    public String getAlias()
+    {
+      return alias;
+    }
+
+    /**
+     * Returns the expiry date of the key's certificate.
+     *
+     * @return    certificate expiry date
+     */
+    public Date getNotAfterDate()
+    {
+      return new Date(notAfter);
+    }
+
+    @Override public int compareTo(Expiry expiry)
+    {
+      if (notAfter != expiry.notAfter)
+      {
+        return notAfter < expiry.notAfter ? -1 : 1;
+      }
+
+      return alias.compareTo(expiry.alias);
+    }
+
+    @Override public boolean equals(Object o)
+    {
+      if (!(o instanceof Expiry))
+      {
+        return false;
+      }
+
+      Expiry expiry = (Expiry)o;
+
+      return notAfter == expiry.notAfter && alias.equals(expiry.alias);
+    }
+
+    @Override public int hashCode()
+    {
+      return alias.hashCode() ^ (int)(notAfter ^ (notAfter >>> 32));
+    }
+
+    @Override public String toString()
+    {
+      return alias + " (expires " + getNotAfterDate() + ")";
+    }
+  }
 }
 
@@ -0,0 +1,814 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.openremote.logging.Logger;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Selects the fastest security provider for key pair generation and signature operations. <p>
+ *
+ * Key managers use the {@link KeyManager#DEFAULT_SECURITY_PROVIDER BouncyCastle} provider by
+ * default. Depending on the JVM, the providers installed with it (such as SunEC, SunRsaSign
+ * or native PKCS #11 providers) may be considerably faster for the same algorithms. A provider
+ * tuning micro-benchmarks the candidate providers for each
+ * {@link KeyManager.AsymmetricKeyAlgorithm} and {@link KeySigner.SignatureAlgorithm} it is
+ * asked about, and selects the fastest compliant provider for that operation. <p>
+ *
+ * A provider is compliant for key pair generation if it accepts the algorithm parameters
+ * this package uses (for example the elliptic curve), produces standard encoded keys and
+ * the keys it generates produce signatures that verify. A provider is compliant for a
+ * signature algorithm if the signatures it creates verify with every other candidate provider
+ * and with itself. Providers that fail these checks are never selected. <p>
+ *
+ * Each selection is logged to the {@link SecurityLog#CONFIGURATION} category. <p>
+ *
+ * Once {@link #install() installed}, the tuned providers are used by
+ * {@link KeyManager#generateKey(KeyManager.AsymmetricKeyAlgorithm)} and by the
+ * {@link org.openremote.security.provider.BouncyCastleKeySigner} when signing certificates.
+ * Algorithms that have not been tuned yet are tuned on their first use. Applications can
+ * tune the algorithms they use at startup :
+ *
+ * <pre>
+ *   ProviderTuning tuning = ProviderTuning.create();
+ *   tuning.tune(KeyManager.AsymmetricKeyAlgorithm.EC);
+ *   tuning.install();
+ * </pre>
+ *
+ * or enable tuning on demand with a system property {@value #AUTO_TUNE_PROPERTY} set to
+ * 'true', in which case a tuning over all installed providers is installed when the first
+ * key pair is generated. The selections of all algorithms can be printed from the command
+ * line :
+ *
+ * <pre>
+ *   java org.openremote.security.ProviderTuning
+ * </pre>
+ *
+ * Provider tuning instances are thread-safe.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class ProviderTuning
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * System property that enables provider tuning on demand when set to 'true' : {@value}
+   */
+  public final static String AUTO_TUNE_PROPERTY = "org.openremote.security.provider.autotune";
+
+  /**
+   * Default number of measured key pair generations per provider : {@value}
+   */
+  public final static int DEFAULT_KEY_GENERATION_ITERATIONS = 3;
+
+  /**
+   * Default number of measured sign and verify operations per provider : {@value}
+   */
+  public final static int DEFAULT_SIGNATURE_ITERATIONS = 20;
+
+  /**
+   * Size of the data signed in the signature benchmark, in bytes : {@value}
+   */
+  public final static int SIGNATURE_DATA_SIZE = 1024;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Log category for security configuration.
+   */
+  private final static Logger log = Logger.getInstance(SecurityLog.CONFIGURATION);
+
+  /**
+   * The tuning used by key managers and key signers, or null if none is installed. Read
+   * without locking on every key operation, the class lock is only held to install.
+   */
+  private static volatile ProviderTuning installed = null;
+
+
+  /**
+   * Tunes all asymmetric key algorithms and signature algorithms with the installed security
+   * providers (and BouncyCastle if not installed) and prints the selections.
+   *
+   * @param args    ignored
+   */
+  public static void main(String... args)
+  {
+    ProviderTuning tuning = create();
+
+    for (KeyManager.AsymmetricKeyAlgorithm algorithm : KeyManager.AsymmetricKeyAlgorithm.values())
+    {
+      System.out.println(tuning.tune(algorithm));
+    }
+
+    for (KeySigner.SignatureAlgorithm algorithm : KeySigner.SignatureAlgorithm.values())
+    {
+      System.out.println(tuning.tune(algorithm));
+    }
+  }
+
+  /**
+   * Creates a new tuning with the JVM installed security providers as candidates. The
+   * {@link KeyManager#DEFAULT_SECURITY_PROVIDER default} provider is included even if it
+   * has not been installed.
+   *
+   * @return    new provider tuning
+   */
+  public static ProviderTuning create()
+  {
+    List<Provider> candidates = new ArrayList<Provider>(Arrays.asList(Security.getProviders()));
+    Provider defaultProvider = KeyManager.DEFAULT_SECURITY_PROVIDER.getProviderInstance();
+
+    if (Security.getProvider(defaultProvider.getName()) == null)
+    {
+      candidates.add(defaultProvider);
+    }
+
+    return new ProviderTuning(candidates);
+  }
+
+  /**
+   * Creates a new tuning with given candidate security providers. The providers do not have
+   * to be installed in the JVM.
+   *
+   * @param candidates
+   *            security providers to select from
+   *
+   * @return    new provider tuning
+   *
+   * @throws IllegalArgumentException
+   *            if no candidates are given or any of them is null
+   */
+  public static ProviderTuning create(Provider... candidates)
+  {
+    if (candidates == null || candidates.length == 0)
+    {
+      throw new IllegalArgumentException("Implementation Error: no candidate providers.");
+    }
+
+    for (Provider provider : candidates)
+    {
+      if (provider == null)
+      {
+        throw new IllegalArgumentException("Implementation Error: null candidate provider.");
+      }
+    }
+
+    return new ProviderTuning(Arrays.asList(candidates));
+  }
+
+  /**
+   * Returns the installed provider tuning. If no tuning has been installed and the
+   * {@value #AUTO_TUNE_PROPERTY} system property is set to 'true', a new tuning over all
+   * installed providers is created and installed.
+   *
+   * @return    installed provider tuning, or null if none
+   */
+  public static ProviderTuning getInstalled()
+  {
+    ProviderTuning tuning = installed;
+
+    if (tuning != null || !Boolean.getBoolean(AUTO_TUNE_PROPERTY))
+    {
+      return tuning;
+    }
+
+    synchronized (ProviderTuning.class)
+    {
+      if (installed == null)
+      {
+        log.info("Security provider auto-tuning enabled with system property ''{0}''.",
+                 AUTO_TUNE_PROPERTY);
+
+        installed = create();
+      }
+
+      return installed;
+    }
+  }
+
+  /**
+   * Removes the installed provider tuning, if any. Key managers and key signers revert to
+   * their configured security providers.
+   */
+  public static synchronized void uninstall()
+  {
+    installed = null;
+  }
+
+  /**
+   * Generates a key pair with the default parameters of a key algorithm.
+   *
+   * @param algorithm
+   *            asymmetric key algorithm
+   *
+   * @param provider
+   *            security provider, or null to use the JVM installed providers
+   *
+   * @return    new key pair
+   *
+   * @throws GeneralSecurityException
+   *            if the key pair cannot be generated
+   */
+  static KeyPair generateKeyPair(KeyManager.AsymmetricKeyAlgorithm algorithm, Provider provider)
+      throws GeneralSecurityException
+  {
+    KeyPairGenerator keyGen = (provider == null)
+        ? KeyPairGenerator.getInstance(algorithm.getAlgorithmName())
+        : KeyPairGenerator.getInstance(algorithm.getAlgorithmName(), provider);
+
+    keyGen.initialize(algorithm.getAlgorithmParameterSpec());
+
+    return keyGen.generateKeyPair();
+  }
+
+  /**
+   * Returns the asymmetric key algorithm of the keys used with a signature algorithm.
+   *
+   * @param algorithm
+   *            signature algorithm
+   *
+   * @return    asymmetric key algorithm
+   */
+  static KeyManager.AsymmetricKeyAlgorithm getKeyAlgorithm(KeySigner.SignatureAlgorithm algorithm)
+  {
+    // Signature algorithm names follow the '<digest>with<encryption>' convention...
+
+    return algorithm.toString().endsWith("ECDSA")
+        ? KeyManager.AsymmetricKeyAlgorithm.EC
+        : KeyManager.AsymmetricKeyAlgorithm.RSA;
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  /**
+   * Candidate providers, in preference order for equally fast providers.
+   */
+  private List<Provider> candidates;
+
+  /**
+   * Measured key pair generations per provider.
+   */
+  private volatile int keyGenerationIterations = DEFAULT_KEY_GENERATION_ITERATIONS;
+
+  /**
+   * Measured sign and verify operations per provider.
+   */
+  private volatile int signatureIterations = DEFAULT_SIGNATURE_ITERATIONS;
+
+  /**
+   * Selections for key pair generation.
+   */
+  private Map<KeyManager.AsymmetricKeyAlgorithm, Selection> keyGenerators =
+      new ConcurrentHashMap<KeyManager.AsymmetricKeyAlgorithm, Selection>();
+
+  /**
+   * Selections for signature algorithms.
+   */
+  private Map<KeySigner.SignatureAlgorithm, Selection> signatures =
+      new ConcurrentHashMap<KeySigner.SignatureAlgorithm, Selection>();
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private ProviderTuning(List<Provider> candidates)
+  {
+    this.candidates = Collections.unmodifiableList(new ArrayList<Provider>(candidates));
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Sets the number of measured operations per provider. Higher values give more stable
+   * results at the cost of a longer tuning. Applies to algorithms tuned after this call.
+   *
+   * @param keyGeneration
+   *            number of measured key pair generations per provider
+   *
+   * @param signature
+   *            number of measured sign and verify operations per provider
+   *
+   * @throws IllegalArgumentException
+   *            if either value is less than one
+   */
+  public void setIterations(int keyGeneration, int signature)
+  {
+    if (keyGeneration < 1 || signature < 1)
+    {
+      throw new IllegalArgumentException(
+          "Implementation Error: iterations must be positive, was " +
+          keyGeneration + " and " + signature + "."
+      );
+    }
+
+    this.keyGenerationIterations = keyGeneration;
+    this.signatureIterations = signature;
+  }
+
+  /**
+   * Installs this tuning for key managers and key signers, replacing any previously
+   * installed tuning.
+   */
+  public void install()
+  {
+    synchronized (ProviderTuning.class)
+    {
+      installed = this;
+    }
+
+    log.info("Installed security provider tuning with candidates {0}.", getCandidateNames());
+  }
+
+  /**
+   * Returns the candidate providers of this tuning.
+   *
+   * @return    unmodifiable list of candidate providers
+   */
+  public List<Provider> getCandidates()
+  {
+    return candidates;
+  }
+
+  /**
+   * Tunes key pair generation and the default signature algorithm of given asymmetric key
+   * algorithms. Without arguments, all asymmetric key algorithms are tuned.
+   *
+   * @param algorithms
+   *            asymmetric key algorithms the application uses
+   */
+  public void tuneDefaults(KeyManager.AsymmetricKeyAlgorithm... algorithms)
+  {
+    if (algorithms == null || algorithms.length == 0)
+    {
+      algorithms = KeyManager.AsymmetricKeyAlgorithm.values();
+    }
+
+    for (KeyManager.AsymmetricKeyAlgorithm algorithm : algorithms)
+    {
+      tune(algorithm);
+      tune(algorithm.getDefaultSignatureAlgorithm());
+    }
+  }
+
+  /**
+   * Benchmarks key pair generation for a given algorithm with each candidate provider and
+   * selects the fastest compliant provider. Replaces any previous selection for the algorithm.
+   *
+   * @param algorithm
+   *            asymmetric key algorithm
+   *
+   * @return    selection with the benchmark results
+   */
+  public synchronized Selection tune(KeyManager.AsymmetricKeyAlgorithm algorithm)
+  {
+    Selection selection = new Selection("KeyPairGenerator." + algorithm.getAlgorithmName());
+    int iterations = keyGenerationIterations;
+
+    for (Provider provider : candidates)
+    {
+      if (provider.getService("KeyPairGenerator", algorithm.getAlgorithmName()) == null)
+      {
+        continue;
+      }
+
+      try
+      {
+        // The first key pair serves as warm-up and compliance check...
+
+        checkKeyPair(generateKeyPair(algorithm, provider), algorithm);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; ++i)
+        {
+          generateKeyPair(algorithm, provider);
+        }
+
+        selection.addResult(provider, (System.nanoTime() - start) / iterations);
+      }
+
+      catch (Exception exception)
+      {
+        selection.addRejected(provider, exception);
+      }
+    }
+
+    keyGenerators.put(algorithm, selection);
+
+    logSelection(selection);
+
+    return selection;
+  }
+
+  /**
+   * Benchmarks signing and verifying with a given signature algorithm with each candidate
+   * provider and selects the fastest compliant provider. Replaces any previous selection for
+   * the algorithm.
+   *
+   * @param algorithm
+   *            signature algorithm
+   *
+   * @return    selection with the benchmark results
+   */
+  public synchronized Selection tune(KeySigner.SignatureAlgorithm algorithm)
+  {
+    Selection selection = new Selection("Signature." + algorithm);
+    int iterations = signatureIterations;
+
+    List<Provider> supported = new ArrayList<Provider>();
+
+    for (Provider provider : candidates)
+    {
+      if (provider.getService("Signature", algorithm.toString()) != null)
+      {
+        supported.add(provider);
+      }
+    }
+
+    if (supported.isEmpty())
+    {
+      signatures.put(algorithm, selection);
+
+      logSelection(selection);
+
+      return selection;
+    }
+
+    byte[] data = new byte[SIGNATURE_DATA_SIZE];
+    Arrays.fill(data, (byte)0x5A);
+
+    KeyPair keyPair;
+
+    try
+    {
+      keyPair = generateKeyPair(getKeyAlgorithm(algorithm), null);
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      for (Provider provider : supported)
+      {
+        selection.addRejected(provider, exception);
+      }
+
+      signatures.put(algorithm, selection);
+
+      logSelection(selection);
+
+      return selection;
+    }
+
+    for (Provider provider : supported)
+    {
+      try
+      {
+        // The first signature serves as warm-up and compliance check : it must verify
+        // with every provider that supports the algorithm...
+
+        byte[] signature = sign(algorithm, provider, keyPair, data);
+
+        for (Provider verifier : supported)
+        {
+          if (!verify(algorithm, verifier, keyPair, data, signature))
+          {
+            throw new GeneralSecurityException(
+                "Signature does not verify with provider '" + verifier.getName() + "'."
+            );
+          }
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; ++i)
+        {
+          verify(algorithm, provider, keyPair, data, sign(algorithm, provider, keyPair, data));
+        }
+
+        selection.addResult(provider, (System.nanoTime() - start) / iterations);
+      }
+
+      catch (Exception exception)
+      {
+        selection.addRejected(provider, exception);
+      }
+    }
+
+    signatures.put(algorithm, selection);
+
+    logSelection(selection);
+
+    return selection;
+  }
+
+  /**
+   * Returns the selected provider for key pair generation with a given algorithm. The
+   * algorithm is tuned first if it has not been tuned yet.
+   *
+   * @param algorithm
+   *            asymmetric key algorithm
+   *
+   * @return    the fastest compliant provider, or null if none of the candidates is compliant
+   */
+  public Provider getKeyPairGeneratorProvider(KeyManager.AsymmetricKeyAlgorithm algorithm)
+  {
+    Selection selection = keyGenerators.get(algorithm);
+
+    if (selection == null)
+    {
+      selection = tune(algorithm);
+    }
+
+    return selection.getProvider();
+  }
+
+  /**
+   * Returns the selected provider for a given signature algorithm. The algorithm is tuned
+   * first if it has not been tuned yet.
+   *
+   * @param algorithm
+   *            signature algorithm
+   *
+   * @return    the fastest compliant provider, or null if none of the candidates is compliant
+   */
+  public Provider getSignatureProvider(KeySigner.SignatureAlgorithm algorithm)
+  {
+    Selection selection = signatures.get(algorithm);
+
+    if (selection == null)
+    {
+      selection = tune(algorithm);
+    }
+
+    return selection.getProvider();
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private List<String> getCandidateNames()
+  {
+    List<String> names = new ArrayList<String>(candidates.size());
+
+    for (Provider provider : candidates)
+    {
+      names.add(provider.getName());
+    }
+
+    return names;
+  }
+
+  private void logSelection(Selection selection)
+  {
+    for (Map.Entry<String, String> rejected : selection.rejected.entrySet())
+    {
+      log.debug(
+          "Security provider ''{0}'' is not compliant for {1} : {2}",
+          rejected.getKey(), selection.getOperation(), rejected.getValue()
+      );
+    }
+
+    if (selection.getProvider() == null)
+    {
+      log.warn(
+          "No compliant security provider found for {0} among candidates {1}.",
+          selection.getOperation(), getCandidateNames()
+      );
+    }
+
+    else
+    {
+      log.info("{0}", selection);
+    }
+  }
+
+  private void checkKeyPair(KeyPair keyPair, KeyManager.AsymmetricKeyAlgorithm algorithm)
+      throws GeneralSecurityException
+  {
+    // Keys must be standard encoded to be stored in keystores and certified...
+
+    if (!"X.509".equals(keyPair.getPublic().getFormat()) ||
+        !"PKCS#8".equals(keyPair.getPrivate().getFormat()))
+    {
+      throw new GeneralSecurityException(
+          "Non-standard key encoding " + keyPair.getPublic().getFormat() + " / " +
+          keyPair.getPrivate().getFormat() + "."
+      );
+    }
+
+    // Keys must work with the default signature algorithm of any installed provider...
+
+    byte[] data = new byte[] { 1, 2, 3, 4 };
+    KeySigner.SignatureAlgorithm signatureAlgorithm = algorithm.getDefaultSignatureAlgorithm();
+
+    if (!verify(signatureAlgorithm, null, keyPair, data,
+                sign(signatureAlgorithm, null, keyPair, data)))
+    {
+      throw new GeneralSecurityException("Generated key pair does not produce valid signatures.");
+    }
+  }
+
+  private byte[] sign(KeySigner.SignatureAlgorithm algorithm, Provider provider,
+                      KeyPair keyPair, byte[] data) throws GeneralSecurityException
+  {
+    Signature signature = getSignature(algorithm, provider);
+    signature.initSign(keyPair.getPrivate());
+    signature.update(data);
+
+    return signature.sign();
+  }
+
+  private boolean verify(KeySigner.SignatureAlgorithm algorithm, Provider provider,
+                         KeyPair keyPair, byte[] data, byte[] signatureBytes)
+      throws GeneralSecurityException
+  {
+    Signature signature = getSignature(algorithm, provider);
+    signature.initVerify(keyPair.getPublic());
+    signature.update(data);
+
+    return signature.verify(signatureBytes);
+  }
+
+  private Signature getSignature(KeySigner.SignatureAlgorithm algorithm, Provider provider)
+      throws GeneralSecurityException
+  {
+    if (provider != null)
+    {
+      return Signature.getInstance(algorithm.toString(), provider);
+    }
+
+    // Prefer installed providers and fall back to the default provider...
+
+    try
+    {
+      return Signature.getInstance(algorithm.toString());
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      return Signature.getInstance(
+          algorithm.toString(), KeyManager.DEFAULT_SECURITY_PROVIDER.getProviderInstance()
+      );
+    }
+  }
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * The benchmark results and selected provider for one operation.
+   */
+  public static class Selection
+  {
+    /**
+     * Operation name as '&lt;service type&gt;.&lt;algorithm&gt;'.
+     */
+    private String operation;
+
+    /**
+     * The fastest compliant provider so far.
+     */
+    private Provider provider = null;
+
+    /**
+     * Average nanoseconds per operation of compliant providers, by provider name.
+     */
+    private Map<String, Long> results = new LinkedHashMap<String, Long>();
+
+    /**
+     * Reasons for rejecting non-compliant providers, by provider name.
+     */
+    private Map<String, String> rejected = new LinkedHashMap<String, String>();
+
+
+    private Selection(String operation)
+    {
+      this.operation = operation;
+    }
+
+
+    /**
+     * Returns the tuned operation as '&lt;service type&gt;.&lt;algorithm&gt;', for example
+     * 'Signature.SHA384withECDSA'.
+     *
+     * @return    operation name
+     */
+    public String getOperation()
+    {
+      return operation;
+    }
+
+    /**
+     * Returns the selected provider.
+     *
+     * @return    the fastest compliant provider, or null if none of the candidates is compliant
+     */
+    public Provider getProvider()
+    {
+      return provider;
+    }
+
+    /**
+     * Returns the average time per operation of each compliant provider, in nanoseconds.
+     *
+     * @return    unmodifiable map of provider names to nanoseconds per operation
+     */
+    public Map<String, Long> getResults()
+    {
+      return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Returns the providers that support the operation but were rejected as non-compliant.
+     *
+     * @return    unmodifiable map of provider names to rejection reasons
+     */
+    public Map<String, String> getRejected()
+    {
+      return Collections.unmodifiableMap(rejected);
+    }
+
+    /**
+     * Returns the selection with per provider results as a single line.
+     *
+     * @return    selection as a string
+     */
+    @Override public String toString()
+    {
+      StringBuilder builder = new StringBuilder(128);
+
+      builder.append(operation);
+      builder.append(" : ");
+      builder.append(provider == null ? "<no compliant provider>" : provider.getName());
+      builder.append(" (");
+
+      boolean first = true;
+
+      for (Map.Entry<String, Long> result : results.entrySet())
+      {
+        if (!first)
+        {
+          builder.append(", ");
+        }
+
+        builder.append(result.getKey());
+        builder.append(String.format(" %.1f us/op", result.getValue() / 1000.0));
+
+        first = false;
+      }
+
+      builder.append(")");
+
+      return builder.toString();
+    }
+
+
+    private void addResult(Provider candidate, long nanosPerOperation)
+    {
+      results.put(candidate.getName(), nanosPerOperation);
+
+      if (provider == null || nanosPerOperation < results.get(provider.getName()))
+      {
+        provider = candidate;
+      }
+    }
+
+    private void addRejected(Provider candidate, Exception exception)
+    {
+      rejected.put(candidate.getName(), exception.toString());
+    }
+  }
+}
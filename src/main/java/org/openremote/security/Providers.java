@@ -21,35 +21,735 @@
 package org.openremote.security;
 
 import org.openremote.logging.LogService;
+import org.openremote.security.provider.BouncyCastleKeySigner;
 
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Provider;
 import java.security.Security;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.logging.Level;
 
 /**
- * Provides some generic methods to work on JVM installed security providers.
+ * Provides some generic methods to work on JVM installed security providers. <p>
+ *
+ * Run without arguments, the main method prints the installed security providers and their
+ * services. With a 'report' argument it creates a {@link Report capability report} instead :
+ * which providers implement each {@link KeyManager.Storage}, {@link KeyManager.AsymmetricKeyAlgorithm}
+ * and {@link KeySigner.SignatureAlgorithm}, with timings of a short round of key generation,
+ * signing, verification and keystore storage for each combination. The report is written as
+ * text or JSON and includes the JVM and hardware details, making it a repeatable way to
+ * compare hardware and JVMs :
+ *
+ * <pre>
+ *   java org.openremote.security.Providers report [text|json] [iterations]
+ * </pre>
  *
  * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
  */
 public class Providers
 {
 
+  // Constants ------------------------------------------------------------------------------------
+
   /**
-   * Main method to print the installed security provider information.
+   * Default number of timed operations per combination in a capability report : {@value}
+   */
+  public final static int DEFAULT_REPORT_ITERATIONS = 5;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Main method to print the installed security provider information, or a capability
+   * report with 'report [text|json] [iterations]' arguments.
    *
    * @param args    command line args
    */
   public static void main(String... args)
   {
-    SecurityConfig sc = new SecurityConfig();
-    sc.printProviders();
+    if (args.length == 0)
+    {
+      SecurityConfig sc = new SecurityConfig();
+      sc.printProviders();
+
+      return;
+    }
+
+    String format = (args.length > 1) ? args[1] : "text";
+
+    if (!args[0].equals("report") || !(format.equals("text") || format.equals("json")))
+    {
+      System.err.println("Usage: Providers [report [text|json] [iterations]]");
+
+      return;
+    }
+
+    int iterations = DEFAULT_REPORT_ITERATIONS;
+
+    try
+    {
+      if (args.length > 2)
+      {
+        iterations = Integer.parseInt(args[2]);
+      }
+    }
+
+    catch (NumberFormatException exception)
+    {
+      System.err.println("Invalid iteration count: " + args[2]);
+
+      return;
+    }
+
+    // BouncyCastle keystores need the provider installed to encrypt key entries...
+
+    Provider bc = SecurityProvider.BC.getProviderInstance();
+    boolean installed = Security.getProvider(bc.getName()) == null;
+
+    try
+    {
+      if (installed)
+      {
+        Security.addProvider(bc);
+      }
+
+      Report report = createReport(iterations);
+
+      System.out.println(format.equals("json") ? report.toJSON() : report.toString());
+    }
+
+    finally
+    {
+      if (installed)
+      {
+        Security.removeProvider(bc.getName());
+      }
+    }
+  }
+
+  /**
+   * Creates a capability report of the JVM installed security providers and the providers
+   * of this package (see {@link SecurityProvider}), whether installed or not. Each supported
+   * combination of provider and storage type or algorithm is timed for a given number of
+   * iterations, after one warm-up operation.
+   *
+   * @param iterations
+   *            number of timed operations per combination
+   *
+   * @return    capability report
+   *
+   * @throws IllegalArgumentException
+   *            if iterations is less than one
+   */
+  public static Report createReport(int iterations)
+  {
+    if (iterations < 1)
+    {
+      throw new IllegalArgumentException(
+          "Implementation Error: iterations must be positive, was " + iterations + "."
+      );
+    }
+
+    List<Provider> providers = new ArrayList<Provider>(Arrays.asList(Security.getProviders()));
+
+    for (SecurityProvider securityProvider : SecurityProvider.values())
+    {
+      Provider provider = securityProvider.getProviderInstance();
+
+      if (Security.getProvider(provider.getName()) == null)
+      {
+        providers.add(provider);
+      }
+    }
+
+    Report report = new Report(providers, iterations);
+
+    // Key pairs and a certificate shared by the signature and keystore rounds...
+
+    KeyPair[] keyPairs = new KeyPair[KeyManager.AsymmetricKeyAlgorithm.values().length];
+    Certificate certificate = null;
+
+    try
+    {
+      for (KeyManager.AsymmetricKeyAlgorithm algorithm : KeyManager.AsymmetricKeyAlgorithm.values())
+      {
+        keyPairs[algorithm.ordinal()] = ProviderTuning.generateKeyPair(
+            algorithm, SecurityProvider.BC.getProviderInstance()
+        );
+      }
+
+      certificate = new BouncyCastleKeySigner().signPublicKey(
+          KeySigner.Configuration.createDefault(
+              keyPairs[KeyManager.AsymmetricKeyAlgorithm.EC.ordinal()], "Providers"
+          )
+      );
+    }
+
+    catch (Exception exception)
+    {
+      report.error = exception.toString();
+    }
+
+    for (Provider provider : providers)
+    {
+      for (KeyManager.AsymmetricKeyAlgorithm algorithm : KeyManager.AsymmetricKeyAlgorithm.values())
+      {
+        if (provider.getService("KeyPairGenerator", algorithm.getAlgorithmName()) != null)
+        {
+          report.add(new GenerateRound(provider, algorithm).run(iterations));
+        }
+      }
+
+      if (report.error != null)
+      {
+        continue;
+      }
+
+      for (KeySigner.SignatureAlgorithm algorithm : KeySigner.SignatureAlgorithm.values())
+      {
+        if (provider.getService("Signature", algorithm.toString()) != null)
+        {
+          KeyPair keyPair = keyPairs[ProviderTuning.getKeyAlgorithm(algorithm).ordinal()];
+
+          report.add(new SignRound(provider, algorithm, keyPair).run(iterations));
+          report.add(new VerifyRound(provider, algorithm, keyPair).run(iterations));
+        }
+      }
+
+      for (KeyManager.Storage storage : KeyManager.Storage.values())
+      {
+        if (provider.getService("KeyStore", storage.getStorageName()) != null)
+        {
+          KeyPair keyPair = keyPairs[KeyManager.AsymmetricKeyAlgorithm.EC.ordinal()];
+
+          report.add(new StoreRound(provider, storage, keyPair, certificate).run(iterations));
+        }
+      }
+    }
+
+    return report;
+  }
+
+
+  private static String escapeJSON(String value)
+  {
+    StringBuilder builder = new StringBuilder(value.length() + 16);
+
+    for (char c : value.toCharArray())
+    {
+      switch (c)
+      {
+        case '"':
+          builder.append("\\\"");
+          break;
+
+        case '\\':
+          builder.append("\\\\");
+          break;
+
+        case '\n':
+          builder.append("\\n");
+          break;
+
+        case '\r':
+          builder.append("\\r");
+          break;
+
+        case '\t':
+          builder.append("\\t");
+          break;
+
+        default:
+
+          if (c < 0x20)
+          {
+            builder.append(String.format("\\u%04x", (int)c));
+          }
+
+          else
+          {
+            builder.append(c);
+          }
+      }
+    }
+
+    return builder.toString();
   }
 
+
+  // Constructors ---------------------------------------------------------------------------------
+
   private Providers() {}
 
 
   // Nested Classes -------------------------------------------------------------------------------
 
+  /**
+   * Provider capabilities and timings of a {@link Providers#createReport(int)} run.
+   */
+  public static class Report
+  {
+    private List<Provider> providers;
+
+    private int iterations;
+
+    private List<Result> results = new ArrayList<Result>();
+
+    private String error = null;
+
+
+    private Report(List<Provider> providers, int iterations)
+    {
+      this.providers = Collections.unmodifiableList(providers);
+      this.iterations = iterations;
+    }
+
+
+    /**
+     * Returns the providers included in this report.
+     *
+     * @return    unmodifiable list of providers
+     */
+    public List<Provider> getProviders()
+    {
+      return providers;
+    }
+
+    /**
+     * Returns the number of timed operations per combination.
+     *
+     * @return    iteration count
+     */
+    public int getIterations()
+    {
+      return iterations;
+    }
+
+    /**
+     * Returns a result for each supported combination of provider and storage type or
+     * algorithm, including the combinations that failed.
+     *
+     * @return    unmodifiable list of results
+     */
+    public List<Result> getResults()
+    {
+      return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Returns the report as JSON.
+     *
+     * @return    report as a JSON object
+     */
+    public String toJSON()
+    {
+      StringBuilder builder = new StringBuilder(4096);
+
+      builder.append("{\n");
+      builder.append("  \"jvm\": \"").append(escapeJSON(getJVM())).append("\",\n");
+      builder.append("  \"os\": \"").append(escapeJSON(getOS())).append("\",\n");
+      builder.append("  \"processors\": ").append(getProcessors()).append(",\n");
+      builder.append("  \"iterations\": ").append(iterations).append(",\n");
+
+      if (error != null)
+      {
+        builder.append("  \"error\": \"").append(escapeJSON(error)).append("\",\n");
+      }
+
+      builder.append("  \"providers\": [");
+
+      for (int i = 0; i < providers.size(); ++i)
+      {
+        Provider provider = providers.get(i);
+
+        builder.append(i == 0 ? "\n" : ",\n");
+        builder.append("    { \"name\": \"").append(escapeJSON(provider.getName()));
+        builder.append("\", \"version\": ").append(provider.getVersion());
+        builder.append(", \"info\": \"").append(escapeJSON(provider.getInfo())).append("\" }");
+      }
+
+      builder.append("\n  ],\n");
+      builder.append("  \"results\": [");
+
+      for (int i = 0; i < results.size(); ++i)
+      {
+        Result result = results.get(i);
+
+        builder.append(i == 0 ? "\n" : ",\n");
+        builder.append("    { \"type\": \"").append(result.type);
+        builder.append("\", \"algorithm\": \"").append(escapeJSON(result.algorithm));
+        builder.append("\", \"provider\": \"").append(escapeJSON(result.provider));
+        builder.append("\", \"operation\": \"").append(result.operation).append("\", ");
+
+        if (result.error == null)
+        {
+          builder.append(String.format(
+              Locale.ROOT, "\"microsPerOperation\": %.1f", result.getMicrosPerOperation()
+          ));
+        }
+
+        else
+        {
+          builder.append("\"error\": \"").append(escapeJSON(result.error)).append("\"");
+        }
+
+        builder.append(" }");
+      }
+
+      builder.append("\n  ]\n}");
+
+      return builder.toString();
+    }
+
+    /**
+     * Returns the report as text.
+     *
+     * @return    report as a text table
+     */
+    @Override public String toString()
+    {
+      StringBuilder builder = new StringBuilder(4096);
+
+      builder.append("Security Provider Report\n\n");
+      builder.append("  JVM        : ").append(getJVM()).append("\n");
+      builder.append("  OS         : ").append(getOS()).append("\n");
+      builder.append("  Processors : ").append(getProcessors()).append("\n");
+      builder.append("  Iterations : ").append(iterations).append("\n");
+
+      if (error != null)
+      {
+        builder.append("  Error      : ").append(error).append("\n");
+      }
+
+      builder.append("\nProviders:\n\n");
+
+      for (Provider provider : providers)
+      {
+        builder.append(String.format(
+            Locale.ROOT, "  %-12s %-8s %s%n", provider.getName(), provider.getVersion(),
+            provider.getInfo()
+        ));
+      }
+
+      builder.append(String.format(
+          Locale.ROOT, "%n  %-16s %-18s %-12s %-8s %12s%n%n",
+          "Type", "Algorithm", "Provider", "Op", "us/op"
+      ));
+
+      for (Result result : results)
+      {
+        builder.append(String.format(
+            Locale.ROOT, "  %-16s %-18s %-12s %-8s ",
+            result.type, result.algorithm, result.provider, result.operation
+        ));
+
+        if (result.error == null)
+        {
+          builder.append(String.format(Locale.ROOT, "%12.1f%n", result.getMicrosPerOperation()));
+        }
+
+        else
+        {
+          builder.append("failed: ").append(result.error).append("\n");
+        }
+      }
+
+      return builder.toString();
+    }
+
+
+    private void add(Result result)
+    {
+      results.add(result);
+    }
+
+    private String getJVM()
+    {
+      return System.getProperty("java.vm.name") + " " + System.getProperty("java.version") +
+             " (" + System.getProperty("java.vendor") + ")";
+    }
+
+    private String getOS()
+    {
+      return System.getProperty("os.name") + " " + System.getProperty("os.version") +
+             " " + System.getProperty("os.arch");
+    }
+
+    private int getProcessors()
+    {
+      return Runtime.getRuntime().availableProcessors();
+    }
+  }
+
+  /**
+   * Timing of a single combination of a provider and a storage type or algorithm.
+   */
+  public static class Result
+  {
+    private String type;
+
+    private String algorithm;
+
+    private String provider;
+
+    private String operation;
+
+    private long nanosPerOperation = -1;
+
+    private String error = null;
+
+
+    private Result(String type, String algorithm, Provider provider, String operation)
+    {
+      this.type = type;
+      this.algorithm = algorithm;
+      this.provider = provider.getName();
+      this.operation = operation;
+    }
+
+
+    /**
+     * Returns the security service type : 'KeyPairGenerator', 'Signature' or 'KeyStore'.
+     *
+     * @return    service type
+     */
+    public String getType()
+    {
+      return type;
+    }
+
+    /**
+     * Returns the algorithm or storage type name.
+     *
+     * @return    algorithm name
+     */
+    public String getAlgorithm()
+    {
+      return algorithm;
+    }
+
+    /**
+     * Returns the provider name.
+     *
+     * @return    provider name
+     */
+    public String getProvider()
+    {
+      return provider;
+    }
+
+    /**
+     * Returns the timed operation : 'generate', 'sign', 'verify' or 'store'.
+     *
+     * @return    operation name
+     */
+    public String getOperation()
+    {
+      return operation;
+    }
+
+    /**
+     * Returns the average time of the operation in microseconds.
+     *
+     * @return    microseconds per operation, or a negative value if the operation failed
+     */
+    public double getMicrosPerOperation()
+    {
+      return (error == null) ? nanosPerOperation / 1000.0 : -1;
+    }
+
+    /**
+     * Returns the error if the operation failed.
+     *
+     * @return    error description, or null if the operation succeeded
+     */
+    public String getError()
+    {
+      return error;
+    }
+  }
+
+  /**
+   * Base class for a timed round of operations : one warm-up operation followed by the
+   * timed iterations. Any exception fails the round.
+   */
+  private abstract static class Round
+  {
+    private Result result;
+
+    private Round(String type, String algorithm, Provider provider, String operation)
+    {
+      this.result = new Result(type, algorithm, provider, operation);
+    }
+
+    protected abstract void execute() throws Exception;
+
+    Result run(int iterations)
+    {
+      try
+      {
+        execute();
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; ++i)
+        {
+          execute();
+        }
+
+        result.nanosPerOperation = (System.nanoTime() - start) / iterations;
+      }
+
+      catch (Exception exception)
+      {
+        result.error = exception.toString();
+      }
+
+      return result;
+    }
+  }
+
+  private static class GenerateRound extends Round
+  {
+    private Provider provider;
+
+    private KeyManager.AsymmetricKeyAlgorithm algorithm;
+
+    private GenerateRound(Provider provider, KeyManager.AsymmetricKeyAlgorithm algorithm)
+    {
+      super("KeyPairGenerator", algorithm.getAlgorithmName(), provider, "generate");
+
+      this.provider = provider;
+      this.algorithm = algorithm;
+    }
+
+    @Override protected void execute() throws Exception
+    {
+      ProviderTuning.generateKeyPair(algorithm, provider);
+    }
+  }
+
+  private static class SignRound extends Round
+  {
+    private Signature signature;
+
+    private KeyPair keyPair;
+
+    private byte[] data = new byte[1024];
+
+    private SignRound(Provider provider, KeySigner.SignatureAlgorithm algorithm, KeyPair keyPair)
+    {
+      super("Signature", algorithm.toString(), provider, "sign");
+
+      this.keyPair = keyPair;
+
+      try
+      {
+        this.signature = Signature.getInstance(algorithm.toString(), provider);
+      }
+
+      catch (GeneralSecurityException exception)
+      {
+        // execute() fails on the null signature and the round records the failure...
+      }
+    }
+
+    @Override protected void execute() throws Exception
+    {
+      signature.initSign(keyPair.getPrivate());
+      signature.update(data);
+      signature.sign();
+    }
+  }
+
+  private static class VerifyRound extends Round
+  {
+    private Signature signature;
+
+    private KeyPair keyPair;
+
+    private byte[] data = new byte[1024];
+
+    private byte[] signed = null;
+
+    private VerifyRound(Provider provider, KeySigner.SignatureAlgorithm algorithm, KeyPair keyPair)
+    {
+      super("Signature", algorithm.toString(), provider, "verify");
+
+      this.keyPair = keyPair;
+
+      try
+      {
+        this.signature = Signature.getInstance(algorithm.toString(), provider);
+      }
+
+      catch (GeneralSecurityException exception)
+      {
+        // execute() fails on the null signature and the round records the failure...
+      }
+    }
+
+    @Override protected void execute() throws Exception
+    {
+      if (signed == null)
+      {
+        signature.initSign(keyPair.getPrivate());
+        signature.update(data);
+        signed = signature.sign();
+      }
+
+      signature.initVerify(keyPair.getPublic());
+      signature.update(data);
+
+      if (!signature.verify(signed))
+      {
+        throw new GeneralSecurityException("Signature verification failed.");
+      }
+    }
+  }
+
+  private static class StoreRound extends Round
+  {
+    private Provider provider;
+
+    private KeyManager.Storage storage;
+
+    private KeyStore.PrivateKeyEntry entry;
+
+    private StoreRound(Provider provider, KeyManager.Storage storage, KeyPair keyPair,
+                       Certificate certificate)
+    {
+      super("KeyStore", storage.getStorageName(), provider, "store");
+
+      this.provider = provider;
+      this.storage = storage;
+      this.entry = new KeyStore.PrivateKeyEntry(
+          keyPair.getPrivate(), new Certificate[] { certificate }
+      );
+    }
+
+    @Override protected void execute() throws Exception
+    {
+      char[] password = new char[] { 'r', 'e', 'p', 'o', 'r', 't' };
+
+      KeyStore keystore = KeyStore.getInstance(storage.getStorageName(), provider);
+      keystore.load(null, null);
+      keystore.setEntry("report", entry, new KeyStore.PasswordProtection(password));
+      keystore.store(new ByteArrayOutputStream(), password);
+    }
+  }
+
   /**
    * Specific log class to write the provider info to.
    */
@@ -0,0 +1,531 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.openremote.logging.Logger;
+
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background scheduler for certificates that are about to expire in a
+ * {@link PrivateKeyManager}. Certificates that expire within a configured renewal window are
+ * found from the key manager's expiry index and handed to a {@link Listener}. If automatic
+ * renewal has been configured with {@link #setAutoRenew(char[], KeySigner.Validity)}, the
+ * certificates are also re-signed with a new validity period. Self-signed certificates are
+ * re-signed with their own key. Certificates issued by a certificate authority are re-issued
+ * by that certificate authority if it has been added with
+ * {@link #addCertificateAuthority(PrivateKeyManager.CertificateAuthority)}, otherwise they
+ * are not renewed and the listener is notified of the failure. <p>
+ *
+ * Due certificates are processed in bounded batches (see {@link #setBatchSize(int)}) so that
+ * a large number of expiring keys does not monopolize the scheduler thread or the key
+ * manager : when a batch is full, the next batch is scheduled after a short delay. A file
+ * based keystore is persisted once per batch. Each expiring certificate is reported once.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class RenewalScheduler
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Default maximum number of certificates processed in a single batch : {@value}
+   */
+  public static final int DEFAULT_BATCH_SIZE = 16;
+
+  /**
+   * Default interval between expiry index checks, in minutes : {@value}
+   */
+  public static final long DEFAULT_CHECK_INTERVAL_MINUTES = 60;
+
+  /**
+   * Delay before the next batch when a batch was full, in milliseconds : {@value}
+   */
+  public static final long BATCH_DELAY_MILLIS = 100;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private final static Logger log = Logger.getInstance(SecurityLog.DEFAULT);
+
+
+  /**
+   * Creates a new renewal scheduler for a private key manager.
+   *
+   * @param manager
+   *            the private key manager whose certificates are watched
+   *
+   * @param window
+   *            renewal window : certificates that expire within this time are due
+   *
+   * @param unit
+   *            time unit of the renewal window
+   *
+   * @return    new renewal scheduler, not started
+   */
+  public static RenewalScheduler create(PrivateKeyManager manager, long window, TimeUnit unit)
+  {
+    if (manager == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null private key manager.");
+    }
+
+    if (window < 0)
+    {
+      throw new IllegalArgumentException("Renewal window must not be negative, got " + window);
+    }
+
+    return new RenewalScheduler(manager, unit.toMillis(window));
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  private final PrivateKeyManager manager;
+
+  private final long windowMillis;
+
+  private Listener listener = null;
+
+  /**
+   * Key password used for automatic renewal, or null to only notify the listener.
+   */
+  private char[] renewalPassword = null;
+
+  private KeySigner.Validity renewalValidity = null;
+
+  /**
+   * Certificate authorities that re-issue expiring certificates they have issued.
+   */
+  private final List<PrivateKeyManager.CertificateAuthority> authorities =
+      new ArrayList<PrivateKeyManager.CertificateAuthority>();
+
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  private long checkIntervalMillis = TimeUnit.MINUTES.toMillis(DEFAULT_CHECK_INTERVAL_MINUTES);
+
+  /**
+   * Expiry index entries already processed. Renewed certificates get new index entries, so
+   * only certificates that remain due are kept here.
+   */
+  private final Set<PrivateKeyManager.Expiry> handled = new HashSet<PrivateKeyManager.Expiry>();
+
+  private ScheduledExecutorService executor = null;
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private RenewalScheduler(PrivateKeyManager manager, long windowMillis)
+  {
+    this.manager = manager;
+    this.windowMillis = windowMillis;
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Sets the listener that receives an event for each expiring certificate.
+   *
+   * @param listener
+   *            renewal listener, or null to remove
+   */
+  public synchronized void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * Enables automatic renewal of expiring certificates. The scheduler keeps a copy of the
+   * password until {@link #stop()} is called.
+   *
+   * @param password
+   *            key password of the expiring keys, also used to persist a file based
+   *            keystore. Note that the character array will be cleared when this
+   *            method completes.
+   *
+   * @param validity
+   *            validity period of renewed certificates
+   */
+  public synchronized void setAutoRenew(char[] password, KeySigner.Validity validity)
+  {
+    try
+    {
+      if (password == null || password.length == 0 || validity == null)
+      {
+        throw new IllegalArgumentException(
+            "Automatic renewal requires a key password and a validity period."
+        );
+      }
+
+      clear(renewalPassword);
+
+      this.renewalPassword = Arrays.copyOf(password, password.length);
+      this.renewalValidity = validity;
+    }
+
+    finally
+    {
+      clear(password);
+    }
+  }
+
+  /**
+   * Adds a certificate authority that re-issues the expiring certificates it has issued when
+   * automatic renewal is enabled, see
+   * {@link PrivateKeyManager.CertificateAuthority#renewCertificate}.
+   *
+   * @param authority
+   *            certificate authority of the key manager
+   */
+  public synchronized void addCertificateAuthority(PrivateKeyManager.CertificateAuthority authority)
+  {
+    if (authority == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null certificate authority.");
+    }
+
+    authorities.add(authority);
+  }
+
+  /**
+   * Sets the maximum number of certificates processed in one batch.
+   *
+   * @param batchSize
+   *            maximum batch size
+   */
+  public synchronized void setBatchSize(int batchSize)
+  {
+    if (batchSize < 1)
+    {
+      throw new IllegalArgumentException("Batch size must be at least one, got " + batchSize);
+    }
+
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Sets the interval between expiry index checks. Takes effect on the next {@link #start()}.
+   *
+   * @param interval
+   *            check interval
+   *
+   * @param unit
+   *            time unit of the check interval
+   */
+  public synchronized void setCheckInterval(long interval, TimeUnit unit)
+  {
+    if (interval <= 0)
+    {
+      throw new IllegalArgumentException("Check interval must be positive, got " + interval);
+    }
+
+    this.checkIntervalMillis = unit.toMillis(interval);
+  }
+
+  /**
+   * Starts checking for expiring certificates in a background daemon thread. The first
+   * check runs immediately.
+   */
+  public synchronized void start()
+  {
+    if (executor != null)
+    {
+      return;
+    }
+
+    executor = Executors.newSingleThreadScheduledExecutor(new RenewalThreadFactory());
+
+    executor.scheduleWithFixedDelay(
+        new Runnable()
+        {
+          @Override public void run()
+          {
+            runBatch();
+          }
+        },
+        0, checkIntervalMillis, TimeUnit.MILLISECONDS
+    );
+  }
+
+  /**
+   * Stops the background checks and clears the automatic renewal password.
+   */
+  public synchronized void stop()
+  {
+    if (executor != null)
+    {
+      executor.shutdownNow();
+      executor = null;
+    }
+
+    clear(renewalPassword);
+
+    renewalPassword = null;
+  }
+
+  /**
+   * Indicates if background checks are running.
+   *
+   * @return    true if started, false otherwise
+   */
+  public synchronized boolean isRunning()
+  {
+    return executor != null;
+  }
+
+
+  // Package-Private Instance Methods -------------------------------------------------------------
+
+  /**
+   * Processes one batch of due certificates. Schedules the next batch if this batch was full
+   * and the scheduler is running.
+   *
+   * @return    number of certificates processed
+   */
+  synchronized int runBatch()
+  {
+    List<PrivateKeyManager.Expiry> due = manager.getExpiringKeys(
+        new Date(System.currentTimeMillis() + windowMillis)
+    );
+
+    handled.retainAll(new HashSet<PrivateKeyManager.Expiry>(due));
+
+    int count = 0;
+    boolean renewed = false;
+
+    for (PrivateKeyManager.Expiry expiry : due)
+    {
+      if (count >= batchSize)
+      {
+        break;
+      }
+
+      if (!handled.add(expiry))
+      {
+        continue;
+      }
+
+      count++;
+
+      Certificate certificate = null;
+      Exception failure = null;
+
+      if (renewalPassword != null)
+      {
+        try
+        {
+          certificate = manager.renewCertificate(
+              expiry.getAlias(), Arrays.copyOf(renewalPassword, renewalPassword.length),
+              renewalValidity, authorities, false
+          );
+
+          renewed = true;
+        }
+
+        catch (KeyManager.KeyManagerException exception)
+        {
+          failure = exception;
+
+          log.warn(
+              "Renewing certificate ''{0}'' failed : {1}", exception,
+              expiry.getAlias(), exception.getMessage()
+          );
+        }
+      }
+
+      notify(new Renewal(expiry, certificate, failure));
+    }
+
+    if (renewed)
+    {
+      persist();
+    }
+
+    if (count == batchSize && executor != null && !executor.isShutdown())
+    {
+      executor.schedule(
+          new Runnable()
+          {
+            @Override public void run()
+            {
+              runBatch();
+            }
+          },
+          BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS
+      );
+    }
+
+    return count;
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  private void notify(Renewal renewal)
+  {
+    if (listener == null)
+    {
+      return;
+    }
+
+    try
+    {
+      listener.expiring(renewal);
+    }
+
+    catch (RuntimeException exception)
+    {
+      log.error(
+          "Renewal listener failed on ''{0}'' : {1}", exception,
+          renewal.getAlias(), exception.getMessage()
+      );
+    }
+  }
+
+  private void persist()
+  {
+    char[] password = Arrays.copyOf(renewalPassword, renewalPassword.length);
+
+    try
+    {
+      manager.persist(password);
+    }
+
+    catch (KeyManager.KeyManagerException exception)
+    {
+      log.error("Saving renewed certificates failed : {0}", exception, exception.getMessage());
+    }
+
+    finally
+    {
+      clear(password);
+    }
+  }
+
+  private void clear(char[] password)
+  {
+    if (password != null)
+    {
+      Arrays.fill(password, '\0');
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Receives an event for each certificate that enters the renewal window.
+   */
+  public interface Listener
+  {
+    /**
+     * Called from the scheduler thread for an expiring certificate.
+     *
+     * @param renewal
+     *            expiring certificate details and automatic renewal result
+     */
+    void expiring(Renewal renewal);
+  }
+
+  /**
+   * Renewal event of an expiring certificate.
+   */
+  public static class Renewal
+  {
+    private PrivateKeyManager.Expiry expiry;
+
+    private Certificate certificate;
+
+    private Exception failure;
+
+
+    private Renewal(PrivateKeyManager.Expiry expiry, Certificate certificate, Exception failure)
+    {
+      this.expiry = expiry;
+      this.certificate = certificate;
+      this.failure = failure;
+    }
+
+
+    /**
+     * Returns the key alias of the expiring certificate.
+     *
+     * @return    key alias
+     */
+    public String getAlias()
+    {
+      return expiry.getAlias();
+    }
+
+    /**
+     * Returns the expiry date of the expiring certificate.
+     *
+     * @return    certificate expiry date
+     */
+    public Date getNotAfterDate()
+    {
+      return expiry.getNotAfterDate();
+    }
+
+    /**
+     * Returns the renewed certificate.
+     *
+     * @return    new certificate, or null if automatic renewal is not enabled or failed
+     */
+    public Certificate getRenewedCertificate()
+    {
+      return certificate;
+    }
+
+    /**
+     * Returns the automatic renewal error.
+     *
+     * @return    renewal error, or null
+     */
+    public Exception getFailure()
+    {
+      return failure;
+    }
+  }
+
+  private static class RenewalThreadFactory implements ThreadFactory
+  {
+    @Override public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "OpenRemote Certificate Renewal");
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,757 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory set of revoked certificates of a single issuer, for checking certificate
+ * revocation status on each connection and for issuing certificate revocation lists. <p>
+ *
+ * Revocation checks are answered from a Bloom filter in front of a sorted serial number
+ * index : most certificates are not revoked, and for those the filter answers with a fixed
+ * number of bit probes and no locking. Only serial numbers that pass the filter are looked up
+ * from the index. The filter grows with the number of revocations, so its false positive rate
+ * stays within the configured bound. <p>
+ *
+ * Revocations and releases of held certificates are applied incrementally, without
+ * rebuilding the set. Changes since the last complete revocation list are tracked so that
+ * {@link #createDeltaRevocationList(KeySigner, PrivateKey, X509Certificate, Date)} can publish
+ * them as a delta list, and received delta lists can be merged with {@link #apply(X509CRL)}.
+ * Received revocation lists are applied to a new index and filter that replace the current
+ * ones at once, so revocation checks never see a partially applied list.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class RevocationList
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Default number of revocations the Bloom filter is initially sized for : {@value}
+   */
+  public static final int DEFAULT_EXPECTED_REVOCATIONS = 1024;
+
+  /**
+   * Bloom filter bits per expected revocation : {@value}. Combined with
+   * {@link #FILTER_HASH_FUNCTIONS} this bounds the false positive rate below 0.1%.
+   */
+  public static final int FILTER_BITS_PER_ENTRY = 16;
+
+  /**
+   * Number of Bloom filter bit probes per serial number : {@value}
+   */
+  public static final int FILTER_HASH_FUNCTIONS = 8;
+
+  /**
+   * ASN.1 object identifier of the delta revocation list indicator extension : {@value}
+   */
+  public static final String ASN_OID_DELTA_CRL_INDICATOR = "2.5.29.27";
+
+  /**
+   * ASN.1 object identifier of the revocation list number extension : {@value}
+   */
+  public static final String ASN_OID_CRL_NUMBER = "2.5.29.20";
+
+  /**
+   * ASN.1 object identifier of the revocation reason entry extension : {@value}
+   */
+  public static final String ASN_OID_REASON_CODE = "2.5.29.21";
+
+
+  /**
+   * Creates a new empty revocation list with a Bloom filter sized for
+   * {@link #DEFAULT_EXPECTED_REVOCATIONS}.
+   *
+   * @return    new revocation list
+   */
+  public static RevocationList create()
+  {
+    return create(DEFAULT_EXPECTED_REVOCATIONS);
+  }
+
+  /**
+   * Creates a new empty revocation list.
+   *
+   * @param expectedRevocations
+   *            number of revocations the Bloom filter is initially sized for
+   *
+   * @return    new revocation list
+   */
+  public static RevocationList create(int expectedRevocations)
+  {
+    if (expectedRevocations <= 0)
+    {
+      throw new IllegalArgumentException(
+          "Expected revocation count must be positive, got " + expectedRevocations
+      );
+    }
+
+    return new RevocationList(expectedRevocations);
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  /**
+   * Revoked certificates and their Bloom filter.
+   */
+  private volatile Index index;
+
+  /**
+   * Changes since the last complete revocation list. Released certificates are recorded
+   * with {@link KeySigner.RevocationReason#REMOVE_FROM_CRL}.
+   */
+  private final ConcurrentSkipListMap<BigInteger, KeySigner.Revocation> changes =
+      new ConcurrentSkipListMap<BigInteger, KeySigner.Revocation>();
+
+  /**
+   * Number of the last issued (or applied) revocation list.
+   */
+  private BigInteger number = BigInteger.ZERO;
+
+  /**
+   * Number of the last complete revocation list, or null if none has been issued.
+   */
+  private BigInteger baseNumber = null;
+
+  /**
+   * Serializes modifications. Revocation checks do not lock.
+   */
+  private final Object lock = new Object();
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private RevocationList(int expectedRevocations)
+  {
+    this.index = createIndex(
+        new ConcurrentSkipListMap<BigInteger, KeySigner.Revocation>(), expectedRevocations
+    );
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Revokes a certificate.
+   *
+   * @param certificate
+   *            certificate to revoke
+   *
+   * @param reason
+   *            revocation reason
+   */
+  public void revoke(X509Certificate certificate, KeySigner.RevocationReason reason)
+  {
+    revoke(certificate.getSerialNumber(), new Date(), reason);
+  }
+
+  /**
+   * Revokes a certificate with a given serial number. Revoking an already revoked
+   * certificate replaces its revocation date and reason.
+   *
+   * @param serialNumber
+   *            serial number of the revoked certificate
+   *
+   * @param revocationDate
+   *            revocation date
+   *
+   * @param reason
+   *            revocation reason, {@link KeySigner.RevocationReason#REMOVE_FROM_CRL} is not
+   *            allowed, see {@link #release(BigInteger)}
+   */
+  public void revoke(BigInteger serialNumber, Date revocationDate,
+                     KeySigner.RevocationReason reason)
+  {
+    if (reason == KeySigner.RevocationReason.REMOVE_FROM_CRL)
+    {
+      throw new IllegalArgumentException(
+          "Use release() to remove certificate " + serialNumber + " from revocation list."
+      );
+    }
+
+    KeySigner.Revocation revocation =
+        new KeySigner.Revocation(serialNumber, revocationDate, reason);
+
+    synchronized (lock)
+    {
+      add(revocation);
+
+      changes.put(serialNumber, revocation);
+    }
+  }
+
+  /**
+   * Releases a certificate on {@link KeySigner.RevocationReason#CERTIFICATE_HOLD hold}, it is
+   * no longer revoked. Only held certificates can be released.
+   *
+   * @param serialNumber
+   *            serial number of the held certificate
+   *
+   * @return    true if the certificate was released, false if it was not revoked
+   *
+   * @throws IllegalStateException
+   *            if the certificate has been revoked permanently
+   */
+  public boolean release(BigInteger serialNumber)
+  {
+    synchronized (lock)
+    {
+      KeySigner.Revocation revocation = index.revoked.get(serialNumber);
+
+      if (revocation == null)
+      {
+        return false;
+      }
+
+      if (revocation.getReason() != KeySigner.RevocationReason.CERTIFICATE_HOLD)
+      {
+        throw new IllegalStateException(
+            "Certificate " + serialNumber + " has been revoked permanently (" +
+            revocation.getReason() + ")."
+        );
+      }
+
+      index.revoked.remove(serialNumber);
+
+      // Without a base list there is nothing to remove from. Otherwise the removal is
+      // listed in delta lists (removing a certificate that was held after the base list
+      // was issued is harmless for relying parties)...
+
+      if (baseNumber == null)
+      {
+        changes.remove(serialNumber);
+      }
+
+      else
+      {
+        changes.put(serialNumber, new KeySigner.Revocation(
+            serialNumber, new Date(), KeySigner.RevocationReason.REMOVE_FROM_CRL
+        ));
+      }
+
+      // Bloom filter bits are not cleared, released serial numbers fall through to the
+      // index lookup...
+
+      return true;
+    }
+  }
+
+  /**
+   * Checks whether a certificate is revoked.
+   *
+   * @param certificate
+   *            certificate to check
+   *
+   * @return    true if the certificate is revoked (or on hold), false otherwise
+   */
+  public boolean isRevoked(X509Certificate certificate)
+  {
+    return isRevoked(certificate.getSerialNumber());
+  }
+
+  /**
+   * Checks whether a certificate with a given serial number is revoked.
+   *
+   * @param serialNumber
+   *            certificate serial number
+   *
+   * @return    true if the certificate is revoked (or on hold), false otherwise
+   */
+  public boolean isRevoked(BigInteger serialNumber)
+  {
+    Index current = index;
+
+    return current.filter.mightContain(serialNumber) && current.revoked.containsKey(serialNumber);
+  }
+
+  /**
+   * Returns the revocation entry of a certificate.
+   *
+   * @param serialNumber
+   *            certificate serial number
+   *
+   * @return    revocation entry, or null if the certificate is not revoked
+   */
+  public KeySigner.Revocation getRevocation(BigInteger serialNumber)
+  {
+    Index current = index;
+
+    return current.filter.mightContain(serialNumber) ? current.revoked.get(serialNumber) : null;
+  }
+
+  /**
+   * Returns the number of revoked certificates.
+   *
+   * @return    revoked certificate count
+   */
+  public int size()
+  {
+    return index.revoked.size();
+  }
+
+  /**
+   * Returns the number of the last issued or applied revocation list.
+   *
+   * @return    revocation list number, zero if no revocation list has been issued
+   */
+  public BigInteger getNumber()
+  {
+    synchronized (lock)
+    {
+      return number;
+    }
+  }
+
+  /**
+   * Creates a complete certificate revocation list of all revoked certificates, signed with
+   * the issuer's private key. The revocation list number is incremented, and the new list
+   * becomes the base of subsequent delta revocation lists.
+   *
+   * @param signer
+   *            key signer used for signing the revocation list
+   *
+   * @param issuerKey
+   *            the issuer's private key
+   *
+   * @param issuerCertificate
+   *            the issuer's certificate
+   *
+   * @param nextUpdate
+   *            date by which the next revocation list will be issued
+   *
+   * @return    signed certificate revocation list
+   *
+   * @throws KeySigner.SigningException
+   *            if signing the revocation list fails
+   */
+  public X509CRL createRevocationList(KeySigner signer, PrivateKey issuerKey,
+                                      X509Certificate issuerCertificate, Date nextUpdate)
+      throws KeySigner.SigningException
+  {
+    synchronized (lock)
+    {
+      BigInteger next = number.add(BigInteger.ONE);
+
+      X509CRL crl = signer.signRevocationList(
+          KeySigner.RevocationListConfiguration.create(
+              issuerKey, issuerCertificate,
+              new ArrayList<KeySigner.Revocation>(index.revoked.values()),
+              next, new Date(), nextUpdate
+          )
+      );
+
+      number = next;
+      baseNumber = next;
+
+      changes.clear();
+
+      return crl;
+    }
+  }
+
+  /**
+   * Creates a delta certificate revocation list of the changes since the last complete
+   * revocation list, signed with the issuer's private key. Delta lists are cumulative : each
+   * delta list contains all changes since the base list, so relying parties only need the
+   * base list and the latest delta list.
+   *
+   * @param signer
+   *            key signer used for signing the revocation list
+   *
+   * @param issuerKey
+   *            the issuer's private key
+   *
+   * @param issuerCertificate
+   *            the issuer's certificate
+   *
+   * @param nextUpdate
+   *            date by which the next revocation list will be issued
+   *
+   * @return    signed delta certificate revocation list
+   *
+   * @throws KeySigner.SigningException
+   *            if signing the revocation list fails
+   *
+   * @throws IllegalStateException
+   *            if no complete revocation list has been issued
+   */
+  public X509CRL createDeltaRevocationList(KeySigner signer, PrivateKey issuerKey,
+                                           X509Certificate issuerCertificate, Date nextUpdate)
+      throws KeySigner.SigningException
+  {
+    synchronized (lock)
+    {
+      if (baseNumber == null)
+      {
+        throw new IllegalStateException(
+            "A complete revocation list must be issued before delta revocation lists."
+        );
+      }
+
+      BigInteger next = number.add(BigInteger.ONE);
+
+      X509CRL crl = signer.signRevocationList(
+          KeySigner.RevocationListConfiguration.createDelta(
+              issuerKey, issuerCertificate,
+              new ArrayList<KeySigner.Revocation>(changes.values()),
+              next, baseNumber, new Date(), nextUpdate
+          )
+      );
+
+      number = next;
+
+      return crl;
+    }
+  }
+
+  /**
+   * Merges a received certificate revocation list into this revocation set. A complete
+   * revocation list replaces the current contents. A delta revocation list is applied to the
+   * current contents : listed certificates are added and certificates listed with
+   * {@link KeySigner.RevocationReason#REMOVE_FROM_CRL} are removed. The merged set is built
+   * separately and replaces the current one at once. The revocation list signature is not
+   * verified here, the caller should verify it with the issuer's public key first. <p>
+   *
+   * As specified in RFC 5280, a delta revocation list only applies to a complete revocation
+   * list numbered at or above the delta list's base number, and below the delta list's own
+   * number.
+   *
+   * @param crl
+   *            complete or delta certificate revocation list
+   *
+   * @throws IllegalArgumentException
+   *            if a delta revocation list does not apply to the last applied complete
+   *            revocation list, or is not newer than the last applied revocation list
+   */
+  public void apply(X509CRL crl)
+  {
+    boolean delta = crl.getExtensionValue(ASN_OID_DELTA_CRL_INDICATOR) != null;
+
+    Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+
+    BigInteger crlNumber = getNumber(crl, ASN_OID_CRL_NUMBER);
+
+    synchronized (lock)
+    {
+      ConcurrentSkipListMap<BigInteger, KeySigner.Revocation> merged;
+
+      if (delta)
+      {
+        BigInteger deltaBase = getNumber(crl, ASN_OID_DELTA_CRL_INDICATOR);
+
+        if (baseNumber == null || deltaBase == null || deltaBase.compareTo(baseNumber) > 0 ||
+            crlNumber == null || crlNumber.compareTo(number) <= 0)
+        {
+          throw new IllegalArgumentException(
+              "Delta revocation list " + crlNumber + " with base " + deltaBase +
+              " does not apply to revocation list " + number + " (base " + baseNumber + ")."
+          );
+        }
+
+        merged = new ConcurrentSkipListMap<BigInteger, KeySigner.Revocation>(index.revoked);
+      }
+
+      else
+      {
+        merged = new ConcurrentSkipListMap<BigInteger, KeySigner.Revocation>();
+      }
+
+      if (entries != null)
+      {
+        for (X509CRLEntry entry : entries)
+        {
+          KeySigner.RevocationReason reason = getReason(entry);
+
+          if (reason == KeySigner.RevocationReason.REMOVE_FROM_CRL)
+          {
+            merged.remove(entry.getSerialNumber());
+          }
+
+          else
+          {
+            merged.put(entry.getSerialNumber(), new KeySigner.Revocation(
+                entry.getSerialNumber(), entry.getRevocationDate(), reason
+            ));
+          }
+        }
+      }
+
+      // Concurrent checks see either the previous or the merged set, never a partial one...
+
+      index = createIndex(merged, merged.size());
+
+      if (!delta)
+      {
+        changes.clear();
+      }
+
+      if (crlNumber != null && crlNumber.compareTo(number) > 0)
+      {
+        number = crlNumber;
+      }
+
+      if (!delta)
+      {
+        baseNumber = number;
+      }
+    }
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Adds a revocation to the index and Bloom filter. The filter is rebuilt with twice the
+   * capacity when the number of revocations exceeds its sizing. Must be called while holding
+   * the modification lock.
+   *
+   * @param revocation
+   *            revocation entry
+   */
+  private void add(KeySigner.Revocation revocation)
+  {
+    Index current = index;
+
+    // Index first, then filter : a concurrent check that passes the filter always finds
+    // the entry in the index...
+
+    current.revoked.put(revocation.getSerialNumber(), revocation);
+
+    if (current.revoked.size() > current.filter.getCapacity())
+    {
+      index = createIndex(current.revoked, current.filter.getCapacity() * 2);
+    }
+
+    else
+    {
+      current.filter.add(revocation.getSerialNumber());
+    }
+  }
+
+  /**
+   * Creates an index of revoked certificates with a Bloom filter of their serial numbers.
+   *
+   * @param revoked
+   *            revoked certificates
+   *
+   * @param capacity
+   *            number of revocations the Bloom filter is sized for
+   *
+   * @return  new index
+   */
+  private Index createIndex(ConcurrentSkipListMap<BigInteger, KeySigner.Revocation> revoked,
+                            int capacity)
+  {
+    BloomFilter filter = new BloomFilter(capacity);
+
+    for (BigInteger serial : revoked.keySet())
+    {
+      filter.add(serial);
+    }
+
+    return new Index(revoked, filter);
+  }
+
+  /**
+   * Returns the revocation reason of a revocation list entry, from the reason code entry
+   * extension. The extension value is an octet string wrapping an ASN.1 enumerated value,
+   * the reason code is its last byte.
+   *
+   * @param entry
+   *            revocation list entry
+   *
+   * @return  revocation reason, {@link KeySigner.RevocationReason#UNSPECIFIED} if the entry
+   *          has no reason code
+   */
+  private KeySigner.RevocationReason getReason(X509CRLEntry entry)
+  {
+    byte[] value = entry.getExtensionValue(ASN_OID_REASON_CODE);
+
+    if (value == null || value.length < 5)
+    {
+      return KeySigner.RevocationReason.UNSPECIFIED;
+    }
+
+    return KeySigner.RevocationReason.valueOf(value[value.length - 1]);
+  }
+
+  /**
+   * Returns a revocation list number (or delta base number) extension of a revocation list.
+   * The extension value is an octet string wrapping an ASN.1 integer.
+   *
+   * @param crl
+   *            certificate revocation list
+   *
+   * @param oid
+   *            {@link #ASN_OID_CRL_NUMBER} or {@link #ASN_OID_DELTA_CRL_INDICATOR}
+   *
+   * @return  revocation list number, or null if the list has no such extension
+   */
+  private BigInteger getNumber(X509CRL crl, String oid)
+  {
+    byte[] value = crl.getExtensionValue(oid);
+
+    // Octet string tag and length, integer tag and length (short form)...
+
+    if (value == null || value.length < 5 || value[2] != 0x02)
+    {
+      return null;
+    }
+
+    int length = value[3];
+
+    if (length <= 0 || length > value.length - 4)
+    {
+      return null;
+    }
+
+    byte[] integer = new byte[length];
+
+    System.arraycopy(value, 4, integer, 0, length);
+
+    return new BigInteger(integer);
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Revoked certificate index and the Bloom filter of its serial numbers, published together
+   * through a single volatile reference.
+   */
+  private static class Index
+  {
+    /**
+     * Revoked certificates, sorted by serial number.
+     */
+    private final ConcurrentSkipListMap<BigInteger, KeySigner.Revocation> revoked;
+
+    private final BloomFilter filter;
+
+
+    private Index(ConcurrentSkipListMap<BigInteger, KeySigner.Revocation> revoked,
+                  BloomFilter filter)
+    {
+      this.revoked = revoked;
+      this.filter = filter;
+    }
+  }
+
+  /**
+   * Bloom filter of certificate serial numbers. Bits are set atomically, so lookups need no
+   * locking. Bit probe positions are derived from two hash values with double hashing.
+   */
+  private static class BloomFilter
+  {
+    private final AtomicLongArray bits;
+
+    private final int mask;
+
+    private final int capacity;
+
+
+    private BloomFilter(int capacity)
+    {
+      this.capacity = Math.max(capacity, DEFAULT_EXPECTED_REVOCATIONS);
+
+      // Round bit count up to a power of two so positions can be masked...
+
+      long bitCount = Long.highestOneBit((long)this.capacity * FILTER_BITS_PER_ENTRY * 2 - 1);
+
+      this.bits = new AtomicLongArray((int)Math.max(1, bitCount >>> 6));
+      this.mask = (int)bitCount - 1;
+    }
+
+
+    private int getCapacity()
+    {
+      return capacity;
+    }
+
+    private void add(BigInteger serial)
+    {
+      long hash = hash(serial);
+
+      int h1 = (int)hash;
+      int h2 = (int)(hash >>> 32) | 1;
+
+      for (int i = 0; i < FILTER_HASH_FUNCTIONS; ++i)
+      {
+        int position = (h1 + i * h2) & mask;
+        int index = position >>> 6;
+        long bit = 1L << (position & 63);
+
+        long word = bits.get(index);
+
+        while ((word & bit) == 0 && !bits.compareAndSet(index, word, word | bit))
+        {
+          word = bits.get(index);
+        }
+      }
+    }
+
+    private boolean mightContain(BigInteger serial)
+    {
+      long hash = hash(serial);
+
+      int h1 = (int)hash;
+      int h2 = (int)(hash >>> 32) | 1;
+
+      for (int i = 0; i < FILTER_HASH_FUNCTIONS; ++i)
+      {
+        int position = (h1 + i * h2) & mask;
+
+        if ((bits.get(position >>> 6) & (1L << (position & 63))) == 0)
+        {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    /**
+     * Mixes the low 64 bits and the hash code of a serial number (which covers all of its
+     * bits) into a 64-bit hash.
+     */
+    private static long hash(BigInteger serial)
+    {
+      long h = serial.longValue() ^ ((long)serial.hashCode() << 32);
+
+      h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+      h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+
+      return h ^ (h >>> 31);
+    }
+  }
+}
@@ -46,7 +46,12 @@ public enum SecurityLog implements Hierarchy
   /**
    * Sub-category of security for logging security related configuration information.
    */
-  CONFIGURATION;
+  CONFIGURATION,
+
+  /**
+   * Sub-category of security for the audit trail of key operations, see {@link AuditLog}.
+   */
+  AUDIT;
 
   /**
    * Returns canonical hierarchy names for security logs. All categories are fixed with a
@@ -36,7 +36,14 @@ public enum SecurityProvider
   /**
    * BouncyCastle provider.
    */
-  BC("org.bouncycastle.jce.provider.BouncyCastleProvider");
+  BC("org.bouncycastle.jce.provider.BouncyCastleProvider"),
+
+  /**
+   * OpenRemote provider for the keystore implementations of this library.
+   *
+   * @see org.openremote.security.provider.OpenRemoteProvider
+   */
+  OPENREMOTE("org.openremote.security.provider.OpenRemoteProvider");
 
 
   // Class Members --------------------------------------------------------------------------------
@@ -0,0 +1,723 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates and verifies detached signatures of large files, such as firmware images, with a
+ * {@link MessageSignature} signer or verifier. File content is read from a file channel in
+ * large chunks, either memory-mapped (the default) or read into a direct buffer, and is not
+ * copied to the Java heap. Each operation reports its throughput, see {@link Result}. <p>
+ *
+ * Two signature schemes are supported : <p>
+ *
+ * {@link Scheme#STANDARD} signatures are plain signatures of the file content, verifiable
+ * with any implementation of the signature algorithm. The signature algorithms hash the
+ * content as a single sequential digest, so the content is hashed on one thread. <p>
+ *
+ * {@link Scheme#CHUNKED} signatures hash fixed size chunks of the file in parallel with the
+ * digest algorithm of the signature algorithm, and sign a digest list : the ASCII scheme
+ * identifier {@value #CHUNKED_SCHEME_IDENTIFIER}, the scheme version as a 16-bit big-endian
+ * integer, the digest algorithm name as a 16-bit length prefixed ASCII string, the chunk size
+ * and file length as 64-bit big-endian integers, followed by the chunk digests in file order.
+ * The identifier and version separate digest lists from file content and messages signed
+ * with the same key. These signatures can only be verified with the same scheme and chunk
+ * size. <p>
+ *
+ * Configure instances before use, configuration methods are not thread-safe. Signing and
+ * verification are thread-safe.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class StreamSignature
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Default size of file content chunks, in bytes : {@value}
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * Minimum size of file content chunks, in bytes : {@value}
+   */
+  public static final int MINIMUM_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * Scheme identifier at the start of signed {@link Scheme#CHUNKED chunked} digest lists :
+   * {@value}
+   */
+  public static final String CHUNKED_SCHEME_IDENTIFIER = "OpenRemote-StreamSignature-Chunked";
+
+  /**
+   * Version of the {@link Scheme#CHUNKED chunked} digest list format : {@value}
+   */
+  public static final short CHUNKED_SCHEME_VERSION = 1;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+
+  /**
+   * Creates a new stream signature with the {@link Scheme#STANDARD standard} scheme, the
+   * {@link #DEFAULT_CHUNK_SIZE default} chunk size and memory-mapped reads.
+   *
+   * @param signature
+   *            message signer or verifier, see
+   *            {@link PrivateKeyManager#getSigner(String, char[], KeySigner.SignatureAlgorithm)}
+   *            and {@link TrustStore#getVerifier(String, KeySigner.SignatureAlgorithm)}
+   *
+   * @return    new stream signature
+   */
+  public static StreamSignature create(MessageSignature signature)
+  {
+    if (signature == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null message signature.");
+    }
+
+    return new StreamSignature(signature);
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  private final MessageSignature signature;
+
+  private Scheme scheme = Scheme.STANDARD;
+
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  private boolean memoryMapped = true;
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private StreamSignature(MessageSignature signature)
+  {
+    this.signature = signature;
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Sets the signature scheme.
+   *
+   * @param scheme
+   *            signature scheme
+   *
+   * @return    this stream signature
+   */
+  public StreamSignature setScheme(Scheme scheme)
+  {
+    if (scheme == null)
+    {
+      throw new IllegalArgumentException("Implementation Error: null signature scheme.");
+    }
+
+    this.scheme = scheme;
+
+    return this;
+  }
+
+  /**
+   * Sets the size of file content chunks that are read (and with the
+   * {@link Scheme#CHUNKED chunked} scheme, hashed) at a time.
+   *
+   * @param chunkSize
+   *            chunk size in bytes, at least {@link #MINIMUM_CHUNK_SIZE}
+   *
+   * @return    this stream signature
+   */
+  public StreamSignature setChunkSize(int chunkSize)
+  {
+    if (chunkSize < MINIMUM_CHUNK_SIZE)
+    {
+      throw new IllegalArgumentException(
+          "Chunk size must be at least " + MINIMUM_CHUNK_SIZE + " bytes, got " + chunkSize
+      );
+    }
+
+    this.chunkSize = chunkSize;
+
+    return this;
+  }
+
+  /**
+   * Sets the number of threads hashing chunks with the {@link Scheme#CHUNKED chunked} scheme.
+   * Defaults to the number of available processors.
+   *
+   * @param threads
+   *            maximum number of hashing threads
+   *
+   * @return    this stream signature
+   */
+  public StreamSignature setThreads(int threads)
+  {
+    if (threads <= 0)
+    {
+      throw new IllegalArgumentException("Thread count must be positive, got " + threads);
+    }
+
+    this.threads = threads;
+
+    return this;
+  }
+
+  /**
+   * Sets whether file content is memory-mapped, or read into a direct buffer.
+   *
+   * @param memoryMapped
+   *            true to memory-map file content, false to read it
+   *
+   * @return    this stream signature
+   */
+  public StreamSignature setMemoryMapped(boolean memoryMapped)
+  {
+    this.memoryMapped = memoryMapped;
+
+    return this;
+  }
+
+  /**
+   * Creates a detached signature of a file.
+   *
+   * @see #sign(FileChannel)
+   */
+  public Result sign(File file) throws KeySigner.SigningException
+  {
+    FileInputStream in = open(file);
+
+    try
+    {
+      return sign(in.getChannel());
+    }
+
+    finally
+    {
+      close(in, file);
+    }
+  }
+
+  /**
+   * Creates a detached signature of the content of a file channel, from the beginning of the
+   * file to its current size. The channel position is not changed.
+   *
+   * @param channel
+   *            file channel to sign
+   *
+   * @return    result with the detached signature
+   *
+   * @throws KeySigner.SigningException
+   *            if this is not a signer, or reading the file or signing fails
+   */
+  public Result sign(FileChannel channel) throws KeySigner.SigningException
+  {
+    if (!signature.isSigner())
+    {
+      throw new KeySigner.SigningException(
+          "Implementation error: {0} verifier cannot sign files.", signature.getAlgorithm()
+      );
+    }
+
+    return process(channel, null);
+  }
+
+  /**
+   * Verifies a detached signature of a file.
+   *
+   * @see #verify(FileChannel, byte[])
+   */
+  public Result verify(File file, byte[] detachedSignature) throws KeySigner.SigningException
+  {
+    FileInputStream in = open(file);
+
+    try
+    {
+      return verify(in.getChannel(), detachedSignature);
+    }
+
+    finally
+    {
+      close(in, file);
+    }
+  }
+
+  /**
+   * Verifies a detached signature of the content of a file channel, from the beginning of the
+   * file to its current size. The channel position is not changed.
+   *
+   * @param channel
+   *            file channel to verify
+   *
+   * @param detachedSignature
+   *            detached signature created with the same scheme (and chunk size)
+   *
+   * @return    result indicating whether the signature is valid
+   *
+   * @throws KeySigner.SigningException
+   *            if this is not a verifier, or reading the file fails
+   */
+  public Result verify(FileChannel channel, byte[] detachedSignature)
+      throws KeySigner.SigningException
+  {
+    if (signature.isSigner())
+    {
+      throw new KeySigner.SigningException(
+          "Implementation error: {0} signer cannot verify files.", signature.getAlgorithm()
+      );
+    }
+
+    if (detachedSignature == null)
+    {
+      throw new KeySigner.SigningException("Implementation error: null detached signature.");
+    }
+
+    return process(channel, detachedSignature);
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Signs (if detached signature is null) or verifies file content with the configured
+   * scheme, and measures the elapsed time.
+   */
+  private Result process(FileChannel channel, byte[] detachedSignature)
+      throws KeySigner.SigningException
+  {
+    long start = System.nanoTime();
+
+    try
+    {
+      long size = channel.size();
+
+      int chunks = (int)((size + chunkSize - 1) / chunkSize);
+
+      Result result = (scheme == Scheme.STANDARD)
+          ? processStandard(channel, size, chunks, detachedSignature)
+          : processChunked(channel, size, chunks, detachedSignature);
+
+      result.bytes = size;
+      result.chunks = chunks;
+      result.elapsedNanos = System.nanoTime() - start;
+
+      return result;
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Reading file content failed : {0}", exception,
+          exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Updates the current thread's signature instance with each chunk in file order.
+   */
+  private Result processStandard(FileChannel channel, long size, int chunks,
+                                 byte[] detachedSignature)
+      throws IOException, KeySigner.SigningException
+  {
+    Signature instance = signature.signature();
+    ByteBuffer buffer = memoryMapped ? null : ByteBuffer.allocateDirect(chunkSize);
+
+    boolean completed = false;
+
+    try
+    {
+      for (int chunk = 0; chunk < chunks; ++chunk)
+      {
+        instance.update(read(channel, chunk, size, buffer));
+      }
+
+      Result result;
+
+      if (detachedSignature == null)
+      {
+        result = new Result(instance.sign(), true);
+      }
+
+      else
+      {
+        result = new Result(detachedSignature, verify(instance, detachedSignature));
+      }
+
+      completed = true;
+
+      return result;
+    }
+
+    catch (SignatureException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Signing file content with {0} failed : {1}", exception,
+          signature.getAlgorithm(), exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      // Partially updated signature instance cannot be reused...
+
+      if (!completed)
+      {
+        signature.discard();
+      }
+    }
+  }
+
+  /**
+   * Hashes chunks in parallel and signs or verifies the digest list.
+   */
+  private Result processChunked(final FileChannel channel, final long size, final int chunks,
+                                byte[] detachedSignature)
+      throws IOException, KeySigner.SigningException
+  {
+    final String digestAlgorithm = signature.getAlgorithm().getDigestAlgorithm();
+    final byte[][] digests = new byte[chunks][];
+    final AtomicInteger next = new AtomicInteger(0);
+
+    int threadCount = Math.max(1, Math.min(threads, chunks));
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threadCount);
+
+    for (int index = 0; index < threadCount; ++index)
+    {
+      tasks.add(new Callable<Void>()
+      {
+        @Override public Void call() throws IOException, NoSuchAlgorithmException
+        {
+          MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+          ByteBuffer buffer = memoryMapped ? null : ByteBuffer.allocateDirect(chunkSize);
+
+          // Claim chunks until all have been hashed...
+
+          int chunk;
+
+          while ((chunk = next.getAndIncrement()) < chunks)
+          {
+            digest.update(read(channel, chunk, size, buffer));
+
+            digests[chunk] = digest.digest();
+          }
+
+          return null;
+        }
+      });
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+    try
+    {
+      for (Future<Void> result : executor.invokeAll(tasks))
+      {
+        result.get();
+      }
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+
+      throw new KeySigner.SigningException(
+          "Interrupted while hashing file content.", exception
+      );
+    }
+
+    catch (ExecutionException exception)
+    {
+      if (exception.getCause() instanceof IOException)
+      {
+        throw (IOException)exception.getCause();
+      }
+
+      throw new KeySigner.SigningException(
+          "Hashing file content with {0} failed : {1}", exception.getCause(),
+          digestAlgorithm, exception.getCause().getMessage()
+      );
+    }
+
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    // Digest list : scheme identifier and version, digest algorithm, chunk size, file length
+    // and chunk digests...
+
+    byte[] identifier = CHUNKED_SCHEME_IDENTIFIER.getBytes(ASCII);
+    byte[] digestName = digestAlgorithm.getBytes(ASCII);
+
+    int digestLength = (chunks == 0) ? 0 : digests[0].length;
+
+    ByteBuffer list = ByteBuffer.allocate(
+        identifier.length + 2 + 2 + digestName.length + 16 + chunks * digestLength
+    );
+
+    list.put(identifier);
+    list.putShort(CHUNKED_SCHEME_VERSION);
+    list.putShort((short)digestName.length);
+    list.put(digestName);
+    list.putLong(chunkSize);
+    list.putLong(size);
+
+    for (byte[] digest : digests)
+    {
+      list.put(digest);
+    }
+
+    list.flip();
+
+    if (detachedSignature == null)
+    {
+      return new Result(signature.sign(list), true);
+    }
+
+    else
+    {
+      return new Result(detachedSignature, signature.verify(list, detachedSignature));
+    }
+  }
+
+  /**
+   * Returns the content of a chunk, memory-mapped or read into a given direct buffer.
+   */
+  private ByteBuffer read(FileChannel channel, int chunk, long size, ByteBuffer buffer)
+      throws IOException
+  {
+    long position = (long)chunk * chunkSize;
+    int length = (int)Math.min(chunkSize, size - position);
+
+    if (buffer == null)
+    {
+      return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    buffer.clear();
+    buffer.limit(length);
+
+    while (buffer.hasRemaining())
+    {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+      {
+        throw new EOFException("File truncated at " + (position + buffer.position()) + " bytes.");
+      }
+    }
+
+    buffer.flip();
+
+    return buffer;
+  }
+
+  /**
+   * Verifies a signature, improperly encoded signatures are not valid.
+   */
+  private boolean verify(Signature instance, byte[] detachedSignature)
+  {
+    try
+    {
+      return instance.verify(detachedSignature);
+    }
+
+    catch (SignatureException exception)
+    {
+      signature.discard();
+
+      return false;
+    }
+  }
+
+  private FileInputStream open(File file) throws KeySigner.SigningException
+  {
+    try
+    {
+      return new FileInputStream(file);
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Cannot open file ''{0}'' : {1}", exception,
+          file, exception.getMessage()
+      );
+    }
+  }
+
+  private void close(FileInputStream in, File file)
+  {
+    try
+    {
+      in.close();
+    }
+
+    catch (IOException exception)
+    {
+      // Read-only, nothing is lost...
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Signature schemes of stream signatures.
+   */
+  public enum Scheme
+  {
+    /**
+     * Plain signature of the file content, content is hashed sequentially.
+     */
+    STANDARD,
+
+    /**
+     * Signature of a list of chunk digests, chunks are hashed in parallel.
+     */
+    CHUNKED
+  }
+
+  /**
+   * Result of signing or verifying a file : the detached signature, whether it is valid, and
+   * the processed content length and time.
+   */
+  public static class Result
+  {
+    private final byte[] signature;
+
+    private final boolean valid;
+
+    private long bytes;
+
+    private int chunks;
+
+    private long elapsedNanos;
+
+
+    private Result(byte[] signature, boolean valid)
+    {
+      this.signature = signature;
+      this.valid = valid;
+    }
+
+
+    /**
+     * Returns the detached signature.
+     *
+     * @return  created or verified signature
+     */
+    public byte[] getSignature()
+    {
+      return signature.clone();
+    }
+
+    /**
+     * Indicates whether the signature is valid. Always true for created signatures.
+     *
+     * @return  true if the signature is valid, false otherwise
+     */
+    public boolean isValid()
+    {
+      return valid;
+    }
+
+    /**
+     * Returns the length of the processed file content.
+     *
+     * @return  content length in bytes
+     */
+    public long getBytes()
+    {
+      return bytes;
+    }
+
+    /**
+     * Returns the number of chunks the file content was processed in.
+     *
+     * @return  chunk count
+     */
+    public int getChunkCount()
+    {
+      return chunks;
+    }
+
+    /**
+     * Returns the time it took to read, hash and sign or verify the file content.
+     *
+     * @return  elapsed time in nanoseconds
+     */
+    public long getElapsedNanos()
+    {
+      return elapsedNanos;
+    }
+
+    /**
+     * Returns the throughput of the operation, in megabytes (2^20 bytes) per second.
+     *
+     * @return  throughput in MB/s
+     */
+    public double getMegabytesPerSecond()
+    {
+      if (elapsedNanos == 0)
+      {
+        return 0;
+      }
+
+      return (bytes / (1024.0 * 1024.0)) / (elapsedNanos / 1000000000.0);
+    }
+
+    @Override public String toString()
+    {
+      return String.format(
+          "%d bytes in %d chunks, %.1f ms (%.1f MB/s)%s",
+          bytes, chunks, elapsedNanos / 1000000.0, getMegabytesPerSecond(),
+          valid ? "" : " INVALID"
+      );
+    }
+  }
+}
@@ -20,10 +20,37 @@
  */
 package org.openremote.security;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * TODO
@@ -38,6 +65,22 @@ public class TrustStore extends KeyManager
 
   public static final Storage DEFAULT_TRUST_STORAGE = Storage.BKS;
 
+  /**
+   * Message digest used to identify duplicate certificates and to name imported
+   * certificates : {@value}
+   */
+  public static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+  /**
+   * PEM encapsulation boundary prefix.
+   */
+  private static final String PEM_BEGIN = "-----BEGIN ";
+
+  /**
+   * PEM encapsulation boundary prefix.
+   */
+  private static final String PEM_END = "-----END ";
+
 
   // Class Members --------------------------------------------------------------------------------
 
@@ -101,11 +144,58 @@ public class TrustStore extends KeyManager
     }
   }
 
+  /**
+   * Creates a trust store that distributes its certificates across a given number of keystore
+   * shards. This is intended for trust stores with very large numbers of certificates, see
+   * {@link KeyManager#KeyManager(Storage, java.security.Provider, int)} for details.
+   *
+   * @param keyStoreLocation
+   *            location of the shard manifest file, the shard keystore files are stored
+   *            next to it
+   *
+   * @param storage
+   *            the desired key storage format of each shard
+   *
+   * @param shardCount
+   *            number of shards
+   *
+   * @return    trust store instance
+   *
+   * @throws    ConfigurationException if creating the trust store fails
+   */
+  public static TrustStore create(URI keyStoreLocation, Storage storage, int shardCount)
+      throws ConfigurationException
+  {
+    try
+    {
+      return new TrustStore(keyStoreLocation, storage, shardCount);
+    }
+
+    catch (KeyManagerException exception)
+    {
+      throw new ConfigurationException(
+          "Could not create certificate trust store : {0}", exception,
+          exception.getMessage()
+      );
+    }
+  }
+
 
   // Private Instance Fields ----------------------------------------------------------------------
 
   private URI trustStoreLocation = null;
 
+  /**
+   * Message signature verifiers of trusted certificates, by alias and signature algorithm,
+   * see {@link #getVerifier(String, KeySigner.SignatureAlgorithm)}. Keyed by
+   * {@link #aliasKey(String)}. Verifiers of an alias are discarded when its certificate is
+   * replaced or removed.
+   */
+  private final ConcurrentMap<String,
+      ConcurrentMap<KeySigner.SignatureAlgorithm, MessageSignature>> verifiers =
+          new ConcurrentHashMap<String,
+              ConcurrentMap<KeySigner.SignatureAlgorithm, MessageSignature>>();
+
 
   // Constructors ---------------------------------------------------------------------------------
 
@@ -131,6 +221,16 @@ public class TrustStore extends KeyManager
     this.trustStoreLocation = trustStoreLocation;
   }
 
+  private TrustStore(URI trustStoreLocation, Storage storage, int shardCount)
+      throws KeyManagerException
+  {
+    super(storage, storage.getSecurityProvider(), shardCount);
+
+    load(trustStoreLocation, null);
+
+    this.trustStoreLocation = trustStoreLocation;
+  }
+
 
   // Public Instance Methods ----------------------------------------------------------------------
 
@@ -155,5 +255,589 @@ public class TrustStore extends KeyManager
     }
   }
 
+  /**
+   * Imports all certificates from a certificate bundle without an alias prefix, see
+   * {@link #importCertificates(java.io.InputStream, String)}.
+   *
+   * @param bundle
+   *            input stream to read the certificate bundle from, the stream is not closed
+   *
+   * @return    import report with the counts of added, duplicate and rejected certificates
+   *
+   * @throws KeyManagerException
+   *            if reading the bundle, adding the certificates or saving the trust store fails
+   */
+  public ImportReport importCertificates(InputStream bundle) throws KeyManagerException
+  {
+    return importCertificates(bundle, null);
+  }
+
+  /**
+   * Imports all certificates from a certificate bundle, such as an operating system CA
+   * bundle. The bundle may be either a PEM file with any number of 'CERTIFICATE',
+   * 'TRUSTED CERTIFICATE', 'X509 CERTIFICATE' or 'PKCS7' blocks (other PEM blocks and text
+   * between blocks are ignored), or a binary DER encoded certificate or PKCS #7 certificate
+   * bundle. <p>
+   *
+   * PEM blocks are parsed in parallel while the bundle is read. Certificates are identified
+   * by their {@value #FINGERPRINT_ALGORITHM} fingerprint : certificates that are already in
+   * this trust store, or appear more than once in the bundle, are counted as duplicates and
+   * not added again. Each new certificate is added with an alias made of a given prefix and
+   * its lower-case hexadecimal fingerprint. Blocks that cannot be parsed are counted as
+   * rejected. The trust store is persisted once, after all certificates have been added.
+   *
+   * @param bundle
+   *            input stream to read the certificate bundle from, the stream is not closed
+   *
+   * @param aliasPrefix
+   *            prefix for the aliases of the imported certificates, or null for no prefix
+   *
+   * @return    import report with the counts of added, duplicate and rejected certificates
+   *
+   * @throws KeyManagerException
+   *            if reading the bundle, adding the certificates or saving the trust store fails
+   */
+  public ImportReport importCertificates(InputStream bundle, String aliasPrefix)
+      throws KeyManagerException
+  {
+    if (bundle == null)
+    {
+      throw new KeyManagerException("Implementation Error: null certificate bundle.");
+    }
+
+    String prefix = (aliasPrefix == null) ? "" : aliasPrefix;
+    ImportReport report = new ImportReport();
+
+    long start = System.nanoTime();
+
+    // Fingerprints of the certificates already in the trust store...
+
+    Set<String> fingerprints = new HashSet<String>();
+
+    for (String alias : getAliases())
+    {
+      Certificate certificate = isCertificateEntry(alias) ? getCertificate(alias) : null;
+
+      if (certificate != null)
+      {
+        fingerprints.add(fingerprint(certificate));
+      }
+    }
+
+    for (ParseResult result : parse(bundle))
+    {
+      if (result.error != null)
+      {
+        report.rejected.add(result.error);
+
+        continue;
+      }
+
+      for (Certificate certificate : result.certificates)
+      {
+        String fingerprint = fingerprint(certificate);
+
+        if (!fingerprints.add(fingerprint))
+        {
+          report.duplicates++;
+
+          continue;
+        }
+
+        String alias = prefix + fingerprint;
+
+        add(alias, new KeyStore.TrustedCertificateEntry(certificate), null);
+
+        report.added.add(alias);
+      }
+    }
+
+    if (trustStoreLocation != null && !report.added.isEmpty())
+    {
+      save(trustStoreLocation, EMPTY_KEY_PASSWORD);
+    }
+
+    report.importTime = System.nanoTime() - start;
+
+    return report;
+  }
+
+
+  /**
+   * Returns a message signature verifier for the public key of a trusted certificate.
+   * Verifiers are cached per alias and signature algorithm, and keep an initialized signature
+   * instance per thread, see {@link MessageSignature}.
+   *
+   * @param alias
+   *            trusted certificate alias
+   *
+   * @param algorithm
+   *            signature algorithm
+   *
+   * @return    message signature verifier
+   *
+   * @throws KeyManagerException
+   *            if the alias is not a trusted certificate, or its public key is not valid for
+   *            the signature algorithm
+   */
+  public MessageSignature getVerifier(String alias, KeySigner.SignatureAlgorithm algorithm)
+      throws KeyManagerException
+  {
+    String key = aliasKey(alias);
+
+    ConcurrentMap<KeySigner.SignatureAlgorithm, MessageSignature> aliasVerifiers =
+        verifiers.get(key);
+
+    MessageSignature verifier = (aliasVerifiers == null) ? null : aliasVerifiers.get(algorithm);
+
+    if (verifier != null)
+    {
+      return verifier;
+    }
+
+    Certificate certificate = getCertificate(alias);
+
+    if (certificate == null)
+    {
+      throw new KeyManagerException("No trusted certificate ''{0}''.", null, alias);
+    }
+
+    try
+    {
+      verifier = MessageSignature.createVerifier(algorithm, certificate);
+    }
+
+    catch (KeySigner.SigningException exception)
+    {
+      throw new KeyManagerException(
+          "Cannot create verifier for certificate ''{0}'' : {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+
+    if (aliasVerifiers == null)
+    {
+      aliasVerifiers = new ConcurrentHashMap<KeySigner.SignatureAlgorithm, MessageSignature>();
+
+      ConcurrentMap<KeySigner.SignatureAlgorithm, MessageSignature> existing =
+          verifiers.putIfAbsent(key, aliasVerifiers);
+
+      if (existing != null)
+      {
+        aliasVerifiers = existing;
+      }
+    }
+
+    aliasVerifiers.put(algorithm, verifier);
+
+    // The certificate may have been replaced or removed while the verifier was created, after
+    // its invalidation had already run. Withdraw the verifier in that case so it does not stay
+    // cached for the new certificate...
+
+    if (!certificate.equals(getCertificate(alias)))
+    {
+      aliasVerifiers.remove(algorithm, verifier);
+    }
+
+    return verifier;
+  }
+
+  /**
+   * Verifies the signature of a message with the public key of a trusted certificate, see
+   * {@link #getVerifier(String, KeySigner.SignatureAlgorithm)}.
+   *
+   * @param alias
+   *            trusted certificate alias
+   *
+   * @param algorithm
+   *            signature algorithm
+   *
+   * @param message
+   *            message buffer, its position is not changed
+   *
+   * @param signature
+   *            signature to verify
+   *
+   * @return    true if the signature is valid, false otherwise
+   *
+   * @throws KeyManagerException
+   *            if the alias is not a trusted certificate, or its public key is not valid for
+   *            the signature algorithm
+   */
+  public boolean verify(String alias, KeySigner.SignatureAlgorithm algorithm, ByteBuffer message,
+                        byte[] signature) throws KeyManagerException
+  {
+    try
+    {
+      return getVerifier(alias, algorithm).verify(message, signature);
+    }
+
+    catch (KeySigner.SigningException exception)
+    {
+      throw new KeyManagerException(
+          "Verifying signature with certificate ''{0}'' failed : {1}", exception,
+          alias, exception.getMessage()
+      );
+    }
+  }
+
+
+  // KeyManager Overrides -------------------------------------------------------------------------
+
+  @Override protected void add(String keyAlias, KeyStore.Entry entry,
+                               KeyStore.ProtectionParameter param) throws KeyManagerException
+  {
+    super.add(keyAlias, entry, param);
+
+    // Superclass constructors may load keystores before the verifier cache exists...
+
+    if (verifiers != null)
+    {
+      verifiers.remove(aliasKey(keyAlias));
+    }
+  }
+
+  @Override protected boolean remove(String keyAlias)
+  {
+    boolean removed = super.remove(keyAlias);
+
+    if (verifiers != null)
+    {
+      verifiers.remove(aliasKey(keyAlias));
+    }
+
+    return removed;
+  }
+
+  @Override protected void load(URI uri, char[] keystorePassword) throws KeyManagerException
+  {
+    super.load(uri, keystorePassword);
+
+    if (verifiers != null)
+    {
+      verifiers.clear();
+    }
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Parses a PEM or DER certificate bundle. PEM blocks are submitted for parsing to a
+   * thread pool as soon as they have been read. Results are returned in bundle order.
+   */
+  private List<ParseResult> parse(InputStream bundle) throws KeyManagerException
+  {
+    BufferedInputStream in = new BufferedInputStream(bundle);
+
+    try
+    {
+      if (!isPEM(in))
+      {
+        // Binary DER certificate or PKCS #7 bundle, a single structure to parse...
+
+        return Collections.singletonList(new ParseTask(null, in).call());
+      }
+
+      int threads = Runtime.getRuntime().availableProcessors();
+      ExecutorService executor = Executors.newFixedThreadPool(threads, new ImportThreadFactory());
+      List<Future<ParseResult>> futures = new ArrayList<Future<ParseResult>>();
+
+      try
+      {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(in, Charset.forName("US-ASCII"))
+        );
+
+        StringBuilder block = null;
+        String type = null;
+        int count = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null)
+        {
+          line = line.trim();
+
+          if (block == null && line.startsWith(PEM_BEGIN))
+          {
+            type = line.substring(PEM_BEGIN.length()).replace("-", "").trim();
+
+            if (isCertificateBlock(type))
+            {
+              block = new StringBuilder(2048);
+              block.append(line).append('\n');
+            }
+          }
+
+          else if (block != null)
+          {
+            block.append(line).append('\n');
+
+            if (line.startsWith(PEM_END))
+            {
+              String description = "PEM block #" + (++count) + " (" + type + ")";
+              byte[] encoded = block.toString().getBytes("US-ASCII");
+
+              futures.add(executor.submit(
+                  new ParseTask(description, new ByteArrayInputStream(encoded))
+              ));
+
+              block = null;
+            }
+          }
+        }
+
+        List<ParseResult> results = new ArrayList<ParseResult>(futures.size());
+
+        for (Future<ParseResult> future : futures)
+        {
+          results.add(future.get());
+        }
+
+        return results;
+      }
+
+      finally
+      {
+        executor.shutdownNow();
+      }
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyManagerException(
+          "Failed to read certificate bundle : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (InterruptedException exception)
+    {
+      Thread.currentThread().interrupt();
+
+      throw new KeyManagerException("Certificate bundle import was interrupted.", exception);
+    }
+
+    catch (ExecutionException exception)
+    {
+      throw new KeyManagerException(
+          "Failed to parse certificate bundle : {0}", exception.getCause(),
+          exception.getCause().getMessage()
+      );
+    }
+  }
+
+  private boolean isPEM(BufferedInputStream in) throws IOException
+  {
+    // DER encoding starts with an ASN.1 SEQUENCE tag, PEM with (optional) text...
+
+    in.mark(1);
+
+    int first = in.read();
+
+    in.reset();
+
+    return first != 0x30 && first != -1;
+  }
+
+  private boolean isCertificateBlock(String type)
+  {
+    return type.equals("CERTIFICATE") || type.equals("TRUSTED CERTIFICATE") ||
+           type.equals("X509 CERTIFICATE") || type.equals("PKCS7");
+  }
+
+  private String fingerprint(Certificate certificate) throws KeyManagerException
+  {
+    try
+    {
+      byte[] digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM).digest(
+          certificate.getEncoded()
+      );
+
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+
+      for (byte b : digest)
+      {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+        hex.append(Character.forDigit(b & 0xF, 16));
+      }
+
+      return hex.toString();
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw new KeyManagerException(
+          "Certificate fingerprint algorithm {0} is not available : {1}", exception,
+          FINGERPRINT_ALGORITHM, exception.getMessage()
+      );
+    }
+
+    catch (CertificateEncodingException exception)
+    {
+      throw new KeyManagerException(
+          "Could not encode certificate : {0}", exception,
+          exception.getMessage()
+      );
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Result of a {@link TrustStore#importCertificates(java.io.InputStream, String)} call.
+   */
+  public static class ImportReport
+  {
+    private List<String> added = new ArrayList<String>();
+
+    private int duplicates = 0;
+
+    private List<String> rejected = new ArrayList<String>();
+
+    private long importTime = 0;
+
+
+    private ImportReport()
+    {
+
+    }
+
+
+    /**
+     * Returns the number of certificates added to the trust store.
+     *
+     * @return    added certificate count
+     */
+    public int getAddedCount()
+    {
+      return added.size();
+    }
+
+    /**
+     * Returns the aliases of the certificates added to the trust store, in bundle order.
+     *
+     * @return    unmodifiable list of aliases
+     */
+    public List<String> getAddedAliases()
+    {
+      return Collections.unmodifiableList(added);
+    }
+
+    /**
+     * Returns the number of certificates that were already in the trust store or appeared
+     * more than once in the bundle.
+     *
+     * @return    duplicate certificate count
+     */
+    public int getDuplicateCount()
+    {
+      return duplicates;
+    }
+
+    /**
+     * Returns the number of bundle entries that could not be parsed as certificates.
+     *
+     * @return    rejected entry count
+     */
+    public int getRejectedCount()
+    {
+      return rejected.size();
+    }
+
+    /**
+     * Returns a description of each rejected bundle entry, with the reason it was rejected.
+     *
+     * @return    unmodifiable list of rejection descriptions
+     */
+    public List<String> getRejected()
+    {
+      return Collections.unmodifiableList(rejected);
+    }
+
+    /**
+     * Returns the time the import took, including persisting the trust store.
+     *
+     * @return    import time in milliseconds
+     */
+    public long getImportTimeMillis()
+    {
+      return importTime / 1000000;
+    }
+
+    @Override public String toString()
+    {
+      return "Imported certificates in " + getImportTimeMillis() + " ms : " +
+             getAddedCount() + " added, " + duplicates + " duplicates, " +
+             getRejectedCount() + " rejected.";
+    }
+  }
+
+  /**
+   * Certificates parsed from a single bundle entry, or the reason the entry was rejected.
+   */
+  private static class ParseResult
+  {
+    private Collection<? extends Certificate> certificates = Collections.emptyList();
+
+    private String error = null;
+  }
+
+  /**
+   * Parses the certificates of a single PEM block, or of a complete DER bundle.
+   */
+  private static class ParseTask implements Callable<ParseResult>
+  {
+    private String description;
+
+    private InputStream in;
+
+    private ParseTask(String description, InputStream in)
+    {
+      this.description = (description == null) ? "DER bundle" : description;
+      this.in = in;
+    }
+
+    @Override public ParseResult call()
+    {
+      ParseResult result = new ParseResult();
+
+      try
+      {
+        // Certificate factories are not thread-safe, create one per task...
+
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+
+        result.certificates = factory.generateCertificates(in);
+
+        if (result.certificates.isEmpty())
+        {
+          result.error = description + " : no certificates found.";
+        }
+      }
+
+      catch (CertificateException exception)
+      {
+        result.error = description + " : " + exception.getMessage();
+      }
+
+      return result;
+    }
+  }
+
+  /**
+   * Daemon threads for parsing certificate bundles.
+   */
+  private static class ImportThreadFactory implements ThreadFactory
+  {
+    @Override public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "OpenRemote Certificate Import");
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
 }
 
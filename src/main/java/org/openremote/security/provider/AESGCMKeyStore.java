@@ -0,0 +1,1092 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security.provider;
+
+import org.openremote.security.SecurityProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keystore implementation that seals each key entry with AES in Galois/Counter Mode. <p>
+ *
+ * Unlike the password based encryption used by the {@code UBER}, {@code BKS} and
+ * {@code JCEKS} formats, the keystore master password is run through the key derivation
+ * function only once, when the keystore is loaded or stored. The derived key unwraps a
+ * random AES data key which seals the individual entries, so adding and retrieving entries
+ * only costs an AES-GCM operation. The cipher is obtained from the JVM installed security
+ * providers -- on Java 8 and later this is the SunJCE implementation, which uses the AES-NI
+ * and carry-less multiplication intrinsics of the JIT compiler where the hardware supports
+ * them. Cipher instances are reused per thread. <p>
+ *
+ * Entry passwords are verified when an entry is retrieved, but they do not add key
+ * derivation of their own : the confidentiality of all entries relies on the keystore
+ * master password. Certificates are stored in plain text. The keystore file contents are
+ * authenticated as a whole with the data key. <p>
+ *
+ * Aliases are case sensitive.
+ *
+ * @see OpenRemoteProvider
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class AESGCMKeyStore extends KeyStoreSpi
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Keystore type name of this implementation : {@value}
+   */
+  public final static String STORAGE_NAME = "AESGCM";
+
+  /**
+   * Cipher used to seal the keystore entries : {@value}
+   */
+  public final static String ENTRY_CIPHER = "AES/GCM/NoPadding";
+
+  /**
+   * Key derivation function used to derive the data key wrapping key from the keystore
+   * master password : {@value}
+   */
+  public final static String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+  /**
+   * Key derivation iterations used when the keystore is stored : {@value}
+   */
+  public final static int KEY_DERIVATION_ITERATIONS = 65536;
+
+
+  /**
+   * Keystore file identifier.
+   */
+  private final static int KEYSTORE_MAGIC = 0x4F524B53;     // 'ORKS'
+
+  /**
+   * Keystore file format version.
+   */
+  private final static short KEYSTORE_VERSION = 1;
+
+  private final static byte ENTRY_PRIVATE_KEY = 1;
+
+  private final static byte ENTRY_SECRET_KEY = 2;
+
+  private final static byte ENTRY_CERTIFICATE = 3;
+
+  /**
+   * Length of the random salt used with key derivation.
+   */
+  private final static int SALT_LENGTH = 16;
+
+  /**
+   * Length of the GCM nonce of each sealed value.
+   */
+  private final static int NONCE_LENGTH = 12;
+
+  /**
+   * Length of the GCM authentication tag in bits.
+   */
+  private final static int TAG_LENGTH = 128;
+
+  /**
+   * Digest used for the keystore content authentication and for entry password verification.
+   */
+  private final static String DIGEST_ALGORITHM = "SHA-256";
+
+  /**
+   * Length of the digest in bytes.
+   */
+  private final static int DIGEST_LENGTH = 32;
+
+  /**
+   * Upper bound of the sealed entry and encoded certificate lengths read from a keystore
+   * file. The lengths are read before the file contents have been authenticated.
+   */
+  private final static int MAX_VALUE_LENGTH = 1024 * 1024;
+
+  /**
+   * Upper bound of the certificate chain length read from a keystore file.
+   */
+  private final static int MAX_CHAIN_LENGTH = 64;
+
+  /**
+   * Upper bound of the key derivation iterations read from a keystore file. Bounds the work
+   * an unauthenticated header can demand before the data key is unwrapped.
+   */
+  private final static int MAX_KEY_DERIVATION_ITERATIONS = 16 * KEY_DERIVATION_ITERATIONS;
+
+  /**
+   * Binding for the wrapped data key, distinguishes it from any sealed entry.
+   */
+  private final static String DATA_KEY_BINDING = "";
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Source of salts, nonces and data keys.
+   */
+  private final static SecureRandom random = new SecureRandom();
+
+  /**
+   * GCM parameter spec constructor, available in Java 7 and later, resolved at runtime. Null
+   * if not available in which case the nonce is passed as an IV parameter.
+   */
+  private final static Constructor<? extends AlgorithmParameterSpec> gcmParameterSpec =
+      findGCMParameterSpec();
+
+  /**
+   * Per-thread cipher instances.
+   */
+  private final static ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+
+
+  private static Constructor<? extends AlgorithmParameterSpec> findGCMParameterSpec()
+  {
+    try
+    {
+      return Class.forName("javax.crypto.spec.GCMParameterSpec")
+          .asSubclass(AlgorithmParameterSpec.class)
+          .getConstructor(int.class, byte[].class, int.class, int.class);
+    }
+
+    catch (ClassNotFoundException exception)
+    {
+      return null;
+    }
+
+    catch (NoSuchMethodException exception)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the cipher instance of the current thread.
+   */
+  private static Cipher getCipher() throws GeneralSecurityException
+  {
+    Cipher cipher = ciphers.get();
+
+    if (cipher == null)
+    {
+      try
+      {
+        cipher = Cipher.getInstance(ENTRY_CIPHER);
+      }
+
+      catch (NoSuchAlgorithmException exception)
+      {
+        // Java 6 and 7 do not include a GCM implementation, fall back to BouncyCastle...
+
+        Provider bc = SecurityProvider.BC.getProviderInstance();
+
+        if (bc == null)
+        {
+          throw exception;
+        }
+
+        cipher = Cipher.getInstance(ENTRY_CIPHER, bc);
+      }
+
+      ciphers.set(cipher);
+    }
+
+    return cipher;
+  }
+
+  /**
+   * Returns the GCM parameters for a nonce, in the form the cipher's provider accepts.
+   */
+  private static AlgorithmParameterSpec getParameters(Cipher cipher, byte[] buffer)
+      throws GeneralSecurityException
+  {
+    if (gcmParameterSpec == null || cipher.getProvider().getName().equals("BC"))
+    {
+      return new IvParameterSpec(buffer, 0, NONCE_LENGTH);
+    }
+
+    try
+    {
+      return gcmParameterSpec.newInstance(TAG_LENGTH, buffer, 0, NONCE_LENGTH);
+    }
+
+    catch (InvocationTargetException exception)
+    {
+      throw new GeneralSecurityException(
+          "Cannot create GCM parameters : " + exception.getCause(), exception.getCause()
+      );
+    }
+
+    catch (InstantiationException exception)
+    {
+      throw new GeneralSecurityException(
+          "Cannot create GCM parameters : " + exception.getMessage(), exception
+      );
+    }
+
+    catch (IllegalAccessException exception)
+    {
+      throw new GeneralSecurityException(
+          "Cannot create GCM parameters : " + exception.getMessage(), exception
+      );
+    }
+  }
+
+  /**
+   * Encrypts and authenticates a value with a given binding prefix.
+   *
+   * @return  nonce followed by cipher text and authentication tag
+   */
+  private static byte[] seal(SecretKey key, byte[] binding, byte[] content)
+      throws GeneralSecurityException
+  {
+    byte[] plaintext = new byte[binding.length + content.length];
+
+    System.arraycopy(binding, 0, plaintext, 0, binding.length);
+    System.arraycopy(content, 0, plaintext, binding.length, content.length);
+
+    try
+    {
+      byte[] nonce = new byte[NONCE_LENGTH];
+      random.nextBytes(nonce);
+
+      Cipher cipher = getCipher();
+      cipher.init(Cipher.ENCRYPT_MODE, key, getParameters(cipher, nonce));
+
+      byte[] sealed = new byte[NONCE_LENGTH + cipher.getOutputSize(plaintext.length)];
+      System.arraycopy(nonce, 0, sealed, 0, NONCE_LENGTH);
+
+      int length = cipher.doFinal(plaintext, 0, plaintext.length, sealed, NONCE_LENGTH);
+
+      return (NONCE_LENGTH + length == sealed.length)
+          ? sealed
+          : Arrays.copyOf(sealed, NONCE_LENGTH + length);
+    }
+
+    finally
+    {
+      Arrays.fill(plaintext, (byte)0);
+    }
+  }
+
+  /**
+   * Verifies and decrypts a sealed value, and checks its binding prefix.
+   *
+   * @return  decrypted content without the binding prefix
+   *
+   * @throws GeneralSecurityException
+   *            if the value fails authentication or its binding does not match
+   */
+  private static byte[] unseal(SecretKey key, byte[] binding, byte[] sealed)
+      throws GeneralSecurityException
+  {
+    if (sealed.length < NONCE_LENGTH)
+    {
+      throw new GeneralSecurityException("Truncated entry.");
+    }
+
+    Cipher cipher = getCipher();
+    cipher.init(Cipher.DECRYPT_MODE, key, getParameters(cipher, sealed));
+
+    byte[] plaintext = cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+
+    try
+    {
+      boolean match = plaintext.length >= binding.length;
+
+      for (int i = 0; match && i < binding.length; ++i)
+      {
+        match = plaintext[i] == binding[i];
+      }
+
+      if (!match)
+      {
+        throw new UnrecoverableKeyException("Entry binding does not match.");
+      }
+
+      return Arrays.copyOfRange(plaintext, binding.length, plaintext.length);
+    }
+
+    finally
+    {
+      Arrays.fill(plaintext, (byte)0);
+    }
+  }
+
+  /**
+   * Creates the binding prefix for a sealed entry : entry type, alias and a digest of the
+   * entry password.
+   */
+  private static byte[] bind(byte type, String alias, char[] password)
+      throws GeneralSecurityException
+  {
+    MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+
+    if (password != null)
+    {
+      for (char c : password)
+      {
+        digest.update((byte)(c >> 8));
+        digest.update((byte)c);
+      }
+    }
+
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      out.writeByte(type);
+      out.writeUTF(alias);
+      out.write(digest.digest());
+      out.flush();
+
+      return bytes.toByteArray();
+    }
+
+    catch (IOException exception)
+    {
+      throw new GeneralSecurityException("Cannot bind entry : " + exception.getMessage());
+    }
+  }
+
+  /**
+   * Derives the data key wrapping key from the keystore master password.
+   */
+  private static SecretKey deriveKey(char[] password, byte[] salt, int iterations, int length)
+      throws GeneralSecurityException
+  {
+    PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, length);
+
+    try
+    {
+      byte[] encoded = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM)
+          .generateSecret(spec).getEncoded();
+
+      try
+      {
+        return new SecretKeySpec(encoded, "AES");
+      }
+
+      finally
+      {
+        Arrays.fill(encoded, (byte)0);
+      }
+    }
+
+    finally
+    {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * Creates a new random data key of the largest AES key length allowed by the JVM crypto
+   * policy (up to 256 bits).
+   */
+  private static SecretKey createDataKey() throws NoSuchAlgorithmException
+  {
+    byte[] key = new byte[Math.min(256, Cipher.getMaxAllowedKeyLength("AES")) / 8];
+    random.nextBytes(key);
+
+    try
+    {
+      return new SecretKeySpec(key, "AES");
+    }
+
+    finally
+    {
+      Arrays.fill(key, (byte)0);
+    }
+  }
+
+  /**
+   * Decodes a private key, first with the JVM installed security providers and then with
+   * BouncyCastle if it is available.
+   */
+  private static PrivateKey decodePrivateKey(String algorithm, byte[] encoded)
+      throws GeneralSecurityException
+  {
+    PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(encoded);
+
+    try
+    {
+      return KeyFactory.getInstance(algorithm).generatePrivate(spec);
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      Provider bc = SecurityProvider.BC.getProviderInstance();
+
+      if (bc == null)
+      {
+        throw exception;
+      }
+
+      return KeyFactory.getInstance(algorithm, bc).generatePrivate(spec);
+    }
+  }
+
+  /**
+   * Reads a length or count field, and rejects values that are negative or exceed the given
+   * maximum before anything is allocated for them.
+   */
+  private static int readLength(DataInputStream in, int maximum) throws IOException
+  {
+    int length = in.readInt();
+
+    if (length < 0 || length > maximum)
+    {
+      throw new IOException(
+          "Corrupted " + STORAGE_NAME + " keystore, invalid length " + length +
+          " (maximum " + maximum + ")."
+      );
+    }
+
+    return length;
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  /**
+   * Keystore entries by alias.
+   */
+  private final Map<String, StoreEntry> entries = new ConcurrentHashMap<String, StoreEntry>();
+
+  /**
+   * Random AES key the entries are sealed with. Created when an empty keystore is
+   * initialized and unwrapped with the master password when a keystore is loaded.
+   */
+  private volatile SecretKey dataKey = null;
+
+
+  // KeyStoreSpi Implementation -------------------------------------------------------------------
+
+  @Override public Key engineGetKey(String alias, char[] password)
+      throws NoSuchAlgorithmException, UnrecoverableKeyException
+  {
+    StoreEntry entry = entries.get(alias);
+
+    if (entry == null || entry.type == ENTRY_CERTIFICATE)
+    {
+      return null;
+    }
+
+    byte[] content;
+
+    try
+    {
+      content = unseal(dataKey, bind(entry.type, alias, password), entry.sealed);
+    }
+
+    catch (UnrecoverableKeyException exception)
+    {
+      throw new UnrecoverableKeyException(
+          "Cannot recover key '" + alias + "', incorrect entry password."
+      );
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      throw new UnrecoverableKeyException(
+          "Cannot recover key '" + alias + "' : " + exception.getMessage()
+      );
+    }
+
+    try
+    {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+
+      String algorithm = in.readUTF();
+      byte[] encoded = new byte[readLength(in, content.length)];
+      in.readFully(encoded);
+
+      try
+      {
+        if (entry.type == ENTRY_SECRET_KEY)
+        {
+          return new SecretKeySpec(encoded, algorithm);
+        }
+
+        return decodePrivateKey(algorithm, encoded);
+      }
+
+      finally
+      {
+        Arrays.fill(encoded, (byte)0);
+      }
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw exception;
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      throw new UnrecoverableKeyException(
+          "Cannot decode key '" + alias + "' : " + exception.getMessage()
+      );
+    }
+
+    catch (IOException exception)
+    {
+      throw new UnrecoverableKeyException(
+          "Cannot decode key '" + alias + "' : " + exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      Arrays.fill(content, (byte)0);
+    }
+  }
+
+  @Override public Certificate[] engineGetCertificateChain(String alias)
+  {
+    StoreEntry entry = entries.get(alias);
+
+    if (entry == null || entry.type != ENTRY_PRIVATE_KEY || entry.chain.length == 0)
+    {
+      return null;
+    }
+
+    return entry.chain.clone();
+  }
+
+  @Override public Certificate engineGetCertificate(String alias)
+  {
+    StoreEntry entry = entries.get(alias);
+
+    if (entry == null || entry.chain.length == 0)
+    {
+      return null;
+    }
+
+    return entry.chain[0];
+  }
+
+  @Override public Date engineGetCreationDate(String alias)
+  {
+    StoreEntry entry = entries.get(alias);
+
+    return (entry == null) ? null : new Date(entry.date);
+  }
+
+  @Override public void engineSetKeyEntry(String alias, Key key, char[] password,
+                                          Certificate[] chain)
+      throws KeyStoreException
+  {
+    byte type;
+
+    if (key instanceof PrivateKey)
+    {
+      if (chain == null || chain.length == 0)
+      {
+        throw new KeyStoreException("Private key '" + alias + "' requires a certificate chain.");
+      }
+
+      type = ENTRY_PRIVATE_KEY;
+    }
+
+    else if (key instanceof SecretKey)
+    {
+      type = ENTRY_SECRET_KEY;
+    }
+
+    else
+    {
+      throw new KeyStoreException(
+          "Unsupported key type for '" + alias + "' : " +
+          ((key == null) ? null : key.getClass().getName())
+      );
+    }
+
+    byte[] encoded = key.getEncoded();
+
+    if (encoded == null)
+    {
+      throw new KeyStoreException("Key '" + alias + "' does not support encoding.");
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length + 64);
+
+    try
+    {
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      out.writeUTF(key.getAlgorithm());
+      out.writeInt(encoded.length);
+      out.write(encoded);
+      out.flush();
+
+      byte[] content = bytes.toByteArray();
+
+      try
+      {
+        StoreEntry entry = new StoreEntry();
+        entry.type = type;
+        entry.date = System.currentTimeMillis();
+        entry.sealed = seal(getDataKey(), bind(type, alias, password), content);
+        entry.chain = (chain == null) ? new Certificate[0] : chain.clone();
+
+        entries.put(alias, entry);
+      }
+
+      finally
+      {
+        Arrays.fill(content, (byte)0);
+      }
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeyStoreException("Cannot encode key '" + alias + "' : " + exception.getMessage());
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      throw new KeyStoreException(
+          "Cannot seal key '" + alias + "' : " + exception.getMessage(), exception
+      );
+    }
+
+    finally
+    {
+      Arrays.fill(encoded, (byte)0);
+    }
+  }
+
+  @Override public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain)
+      throws KeyStoreException
+  {
+    throw new KeyStoreException(
+        "Pre-protected keys are not supported by " + STORAGE_NAME + " keystore."
+    );
+  }
+
+  @Override public void engineSetCertificateEntry(String alias, Certificate cert)
+      throws KeyStoreException
+  {
+    StoreEntry existing = entries.get(alias);
+
+    if (existing != null && existing.type != ENTRY_CERTIFICATE)
+    {
+      throw new KeyStoreException("Alias '" + alias + "' is already used by a key entry.");
+    }
+
+    StoreEntry entry = new StoreEntry();
+    entry.type = ENTRY_CERTIFICATE;
+    entry.date = System.currentTimeMillis();
+    entry.chain = new Certificate[] { cert };
+
+    entries.put(alias, entry);
+  }
+
+  @Override public void engineDeleteEntry(String alias)
+  {
+    entries.remove(alias);
+  }
+
+  @Override public Enumeration<String> engineAliases()
+  {
+    return Collections.enumeration(new ArrayList<String>(entries.keySet()));
+  }
+
+  @Override public boolean engineContainsAlias(String alias)
+  {
+    return entries.containsKey(alias);
+  }
+
+  @Override public int engineSize()
+  {
+    return entries.size();
+  }
+
+  @Override public boolean engineIsKeyEntry(String alias)
+  {
+    StoreEntry entry = entries.get(alias);
+
+    return entry != null && entry.type != ENTRY_CERTIFICATE;
+  }
+
+  @Override public boolean engineIsCertificateEntry(String alias)
+  {
+    StoreEntry entry = entries.get(alias);
+
+    return entry != null && entry.type == ENTRY_CERTIFICATE;
+  }
+
+  @Override public String engineGetCertificateAlias(Certificate cert)
+  {
+    for (Map.Entry<String, StoreEntry> entry : entries.entrySet())
+    {
+      Certificate[] chain = entry.getValue().chain;
+
+      if (chain.length > 0 && chain[0].equals(cert))
+      {
+        return entry.getKey();
+      }
+    }
+
+    return null;
+  }
+
+  @Override public void engineStore(OutputStream stream, char[] password)
+      throws IOException, NoSuchAlgorithmException, CertificateException
+  {
+    if (password == null || password.length == 0)
+    {
+      throw new IOException("A keystore password is required.");
+    }
+
+    try
+    {
+      SecretKey key = getDataKey();
+      byte[] encodedKey = key.getEncoded();
+
+      byte[] salt = new byte[SALT_LENGTH];
+      random.nextBytes(salt);
+
+      int keyLength = encodedKey.length * 8;
+      byte[] wrapped;
+
+      try
+      {
+        SecretKey kek = deriveKey(password, salt, KEY_DERIVATION_ITERATIONS, keyLength);
+
+        wrapped = seal(
+            kek, bind(ENTRY_SECRET_KEY, DATA_KEY_BINDING, null), encodedKey
+        );
+      }
+
+      finally
+      {
+        Arrays.fill(encodedKey, (byte)0);
+      }
+
+      MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      DataOutputStream out = new DataOutputStream(new DigestOutputStream(stream, digest));
+
+      out.writeInt(KEYSTORE_MAGIC);
+      out.writeShort(KEYSTORE_VERSION);
+      out.writeInt(KEY_DERIVATION_ITERATIONS);
+      out.writeShort(keyLength);
+      out.writeByte(salt.length);
+      out.write(salt);
+      out.writeShort(wrapped.length);
+      out.write(wrapped);
+
+      // Take a snapshot, entries may be concurrently modified...
+
+      Map<String, StoreEntry> snapshot = new HashMap<String, StoreEntry>(entries);
+
+      out.writeInt(snapshot.size());
+
+      for (Map.Entry<String, StoreEntry> mapEntry : snapshot.entrySet())
+      {
+        StoreEntry entry = mapEntry.getValue();
+
+        out.writeByte(entry.type);
+        out.writeUTF(mapEntry.getKey());
+        out.writeLong(entry.date);
+
+        if (entry.type != ENTRY_CERTIFICATE)
+        {
+          out.writeInt(entry.sealed.length);
+          out.write(entry.sealed);
+        }
+
+        out.writeInt(entry.chain.length);
+
+        for (Certificate certificate : entry.chain)
+        {
+          byte[] encoded = certificate.getEncoded();
+
+          out.writeUTF(certificate.getType());
+          out.writeInt(encoded.length);
+          out.write(encoded);
+        }
+      }
+
+      out.flush();
+
+      // Authenticate the keystore contents with the data key...
+
+      byte[] trailer = seal(key, new byte[0], digest.digest());
+
+      stream.write(trailer);
+      stream.flush();
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw exception;
+    }
+
+    catch (CertificateException exception)
+    {
+      throw exception;
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      IOException ioe = new IOException("Cannot store keystore : " + exception.getMessage());
+      ioe.initCause(exception);
+
+      throw ioe;
+    }
+  }
+
+  @Override public void engineLoad(InputStream stream, char[] password)
+      throws IOException, NoSuchAlgorithmException, CertificateException
+  {
+    if (stream == null)
+    {
+      entries.clear();
+      dataKey = createDataKey();
+
+      return;
+    }
+
+    if (password == null || password.length == 0)
+    {
+      throw new IOException("A keystore password is required.");
+    }
+
+    MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    DigestInputStream digestIn = new DigestInputStream(stream, digest);
+    DataInputStream in = new DataInputStream(digestIn);
+
+    if (in.readInt() != KEYSTORE_MAGIC)
+    {
+      throw new IOException("Not an " + STORAGE_NAME + " keystore.");
+    }
+
+    short version = in.readShort();
+
+    if (version != KEYSTORE_VERSION)
+    {
+      throw new IOException("Unsupported " + STORAGE_NAME + " keystore version " + version);
+    }
+
+    int iterations = in.readInt();
+
+    if (iterations <= 0 || iterations > MAX_KEY_DERIVATION_ITERATIONS)
+    {
+      throw new IOException(
+          "Corrupted " + STORAGE_NAME + " keystore, invalid iteration count " + iterations + "."
+      );
+    }
+
+    int keyLength = in.readUnsignedShort();
+
+    if (keyLength != 128 && keyLength != 192 && keyLength != 256)
+    {
+      throw new IOException(
+          "Corrupted " + STORAGE_NAME + " keystore, invalid key length " + keyLength + "."
+      );
+    }
+
+    byte[] salt = new byte[in.readUnsignedByte()];
+    in.readFully(salt);
+    byte[] wrapped = new byte[in.readUnsignedShort()];
+    in.readFully(wrapped);
+
+    SecretKey key;
+
+    try
+    {
+      SecretKey kek = deriveKey(password, salt, iterations, keyLength);
+
+      byte[] encoded = unseal(kek, bind(ENTRY_SECRET_KEY, DATA_KEY_BINDING, null), wrapped);
+
+      try
+      {
+        key = new SecretKeySpec(encoded, "AES");
+      }
+
+      finally
+      {
+        Arrays.fill(encoded, (byte)0);
+      }
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw exception;
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      IOException ioe = new IOException("Keystore password was incorrect.");
+      ioe.initCause(new UnrecoverableKeyException(exception.getMessage()));
+
+      throw ioe;
+    }
+
+    Map<String, StoreEntry> loaded = new HashMap<String, StoreEntry>();
+    Map<String, CertificateFactory> factories = new HashMap<String, CertificateFactory>();
+
+    int count = in.readInt();
+
+    for (int i = 0; i < count; ++i)
+    {
+      StoreEntry entry = new StoreEntry();
+      entry.type = in.readByte();
+
+      String alias = in.readUTF();
+
+      entry.date = in.readLong();
+
+      if (entry.type != ENTRY_CERTIFICATE)
+      {
+        entry.sealed = new byte[readLength(in, MAX_VALUE_LENGTH)];
+        in.readFully(entry.sealed);
+      }
+
+      entry.chain = new Certificate[readLength(in, MAX_CHAIN_LENGTH)];
+
+      for (int j = 0; j < entry.chain.length; ++j)
+      {
+        String type = in.readUTF();
+        byte[] encoded = new byte[readLength(in, MAX_VALUE_LENGTH)];
+        in.readFully(encoded);
+
+        CertificateFactory factory = factories.get(type);
+
+        if (factory == null)
+        {
+          factory = CertificateFactory.getInstance(type);
+          factories.put(type, factory);
+        }
+
+        entry.chain[j] = factory.generateCertificate(new ByteArrayInputStream(encoded));
+      }
+
+      loaded.put(alias, entry);
+    }
+
+    digestIn.on(false);
+
+    byte[] trailer = new byte[NONCE_LENGTH + DIGEST_LENGTH + TAG_LENGTH / 8];
+    in.readFully(trailer);
+
+    try
+    {
+      if (!MessageDigest.isEqual(unseal(key, new byte[0], trailer), digest.digest()))
+      {
+        throw new GeneralSecurityException("Keystore digest does not match.");
+      }
+    }
+
+    catch (GeneralSecurityException exception)
+    {
+      throw new IOException(
+          STORAGE_NAME + " keystore has been tampered with : " + exception.getMessage()
+      );
+    }
+
+    entries.clear();
+    entries.putAll(loaded);
+    dataKey = key;
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Returns the data key, creating one if this keystore has not been initialized.
+   */
+  private SecretKey getDataKey() throws NoSuchAlgorithmException
+  {
+    if (dataKey == null)
+    {
+      synchronized (this)
+      {
+        if (dataKey == null)
+        {
+          dataKey = createDataKey();
+        }
+      }
+    }
+
+    return dataKey;
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Keystore entry. Key entries are kept sealed in memory and only decrypted when retrieved.
+   */
+  private static class StoreEntry
+  {
+    private byte type;
+
+    private long date;
+
+    private byte[] sealed;
+
+    private Certificate[] chain;
+  }
+}
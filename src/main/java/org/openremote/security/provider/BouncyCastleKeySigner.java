@@ -20,23 +20,44 @@
  */
 package org.openremote.security.provider;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.CRLException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
+import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.math.BigInteger;
 import java.text.DecimalFormat;
 import java.util.Date;
 import java.util.UUID;
+import javax.security.auth.x500.X500Principal;
 
+import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.CertIOException;
+import org.bouncycastle.cert.X509v2CRLBuilder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
 import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
 import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequest;
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.util.encoders.DecoderException;
+import org.openremote.security.AuditLog;
 import org.openremote.security.KeySigner;
+import org.openremote.security.ProviderTuning;
 import org.openremote.security.SecurityProvider;
 
 
@@ -61,6 +82,21 @@ import org.openremote.security.SecurityProvider;
 public class BouncyCastleKeySigner implements KeySigner
 {
 
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * PEM encapsulation boundary prefix of certificate signing requests : {@value}
+   */
+  public final static String PEM_CERTIFICATE_REQUEST_BEGIN = "-----BEGIN CERTIFICATE REQUEST-----";
+
+  /**
+   * PEM encapsulation boundary suffix of certificate signing requests : {@value}
+   */
+  public final static String PEM_CERTIFICATE_REQUEST_END = "-----END CERTIFICATE REQUEST-----";
+
+
+  // Implements KeySigner -------------------------------------------------------------------------
+
   /**
    * Creates a public key certificate that is signed with a given private signing key. <p>
    *
@@ -90,6 +126,9 @@ public class BouncyCastleKeySigner implements KeySigner
       throw new SigningException("Implementation error: null certificate configuration.");
     }
 
+    long start = AuditLog.start();
+    boolean success = false;
+
     try
     {
       // Create BouncyCastle X.509 certificate builder...
@@ -103,7 +142,11 @@ public class BouncyCastleKeySigner implements KeySigner
 
       // Sign the key...
 
-      return signPublicKey(certBuilder, signer);
+      X509Certificate certificate = signPublicKey(certBuilder, signer);
+
+      success = true;
+
+      return certificate;
     }
 
     catch (IllegalStateException exception)
@@ -116,11 +159,248 @@ public class BouncyCastleKeySigner implements KeySigner
           exception.getMessage()
       );
     }
+
+    finally
+    {
+      // Only format the audited name when auditing is on...
+
+      if (AuditLog.isEnabled())
+      {
+        AuditLog.record(AuditLog.Operation.SIGN, this, config.getSubject().toX500Name(), start, success);
+      }
+    }
+  }
+
+
+  /**
+   * Parses a PKCS #10 certificate signing request with BouncyCastle and verifies its
+   * proof-of-possession signature with the public key included in the request.
+   *
+   * @param   request
+   *            DER or PEM encoded certificate signing request
+   *
+   * @return  verified certificate signing request
+   *
+   * @throws  SigningException
+   *            if the request cannot be parsed or its signature is not valid
+   */
+  @Override public CertificationRequest parseCertificationRequest(byte[] request)
+      throws SigningException
+  {
+    if (request == null || request.length == 0)
+    {
+      throw new SigningException("Implementation error: null or empty certification request.");
+    }
+
+    Provider provider = SecurityProvider.BC.getProviderInstance();
+
+    try
+    {
+      JcaPKCS10CertificationRequest csr = new JcaPKCS10CertificationRequest(decode(request));
+      csr.setProvider(provider);
+
+      return CertificationRequest.verify(
+          new X500Principal(csr.getSubject().getEncoded()), csr.getPublicKey(),
+          csr.getSignatureAlgorithm().getAlgorithm().getId(),
+          csr.toASN1Structure().getCertificationRequestInfo().getEncoded(ASN1Encoding.DER),
+          csr.getSignature(), provider
+      );
+    }
+
+    catch (IOException exception)
+    {
+      throw new SigningException(
+          "Cannot parse certification request : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (DecoderException exception)
+    {
+      throw new SigningException(
+          "Cannot decode PEM certification request : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (IllegalArgumentException exception)
+    {
+      // Malformed ASN.1 structures...
+
+      throw new SigningException(
+          "Cannot parse certification request : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (InvalidKeyException exception)
+    {
+      throw new SigningException(
+          "Invalid certification request public key : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw new SigningException(
+          "Unsupported certification request public key algorithm : {0}", exception,
+          exception.getMessage()
+      );
+    }
+  }
+
+
+  /**
+   * Creates a X.509 version 2 certificate revocation list with BouncyCastle. The revocation
+   * list carries the revocation list number and authority key identifier extensions, and the
+   * delta revocation list indicator extension for delta lists. The issuer name is copied from
+   * the encoded subject of the issuer certificate so that it matches the issuer name of
+   * certificates signed by the issuer exactly.
+   *
+   * @param   config
+   *            revocation list configuration
+   *
+   * @return  a signed X.509 v2 certificate revocation list
+   *
+   * @throws  SigningException
+   *            if creating the revocation list fails for any reason
+   */
+  @Override public X509CRL signRevocationList(RevocationListConfiguration config)
+      throws SigningException
+  {
+    if (config == null)
+    {
+      throw new SigningException("Implementation error: null revocation list configuration.");
+    }
+
+    X500Name issuerName = X500Name.getInstance(
+        config.getIssuerCertificate().getSubjectX500Principal().getEncoded()
+    );
+
+    long start = AuditLog.start();
+    boolean success = false;
+
+    try
+    {
+      X509v2CRLBuilder crlBuilder = new X509v2CRLBuilder(issuerName, config.getThisUpdate());
+      crlBuilder.setNextUpdate(config.getNextUpdate());
+
+      for (Revocation revocation : config.getRevocations())
+      {
+        crlBuilder.addCRLEntry(
+            revocation.getSerialNumber(),
+            revocation.getRevocationDate(),
+            revocation.getReason().getCode()
+        );
+      }
+
+      crlBuilder.addExtension(
+          Extension.authorityKeyIdentifier, false,
+          new JcaX509ExtensionUtils().createAuthorityKeyIdentifier(
+              config.getIssuerCertificate().getPublicKey()
+          )
+      );
+
+      crlBuilder.addExtension(Extension.cRLNumber, false, new CRLNumber(config.getNumber()));
+
+      if (config.isDelta())
+      {
+        // Delta revocation list indicator is a critical extension, as per RFC 5280...
+
+        crlBuilder.addExtension(
+            Extension.deltaCRLIndicator, true, new CRLNumber(config.getBaseNumber())
+        );
+      }
+
+      ContentSigner signer = createContentSigner(
+          config.getSignatureAlgorithm(), config.getIssuerKey()
+      );
+
+      JcaX509CRLConverter crlConverter = new JcaX509CRLConverter();
+      crlConverter.setProvider(SecurityProvider.BC.getProviderInstance());
+
+      X509CRL crl = crlConverter.getCRL(crlBuilder.build(signer));
+
+      success = true;
+
+      return crl;
+    }
+
+    catch (CertIOException exception)
+    {
+      throw new SigningException(
+          "Cannot add revocation list extension : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (NoSuchAlgorithmException exception)
+    {
+      throw new SigningException(
+          "Cannot create authority key identifier : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (CRLException exception)
+    {
+      throw new SigningException(
+          "Revocation list conversion error : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    finally
+    {
+      // Only format the audited name when auditing is on...
+
+      if (AuditLog.isEnabled())
+      {
+        AuditLog.record(AuditLog.Operation.SIGN, this, issuerName.toString(), start, success);
+      }
+    }
   }
 
 
   // Private Instance Methods ---------------------------------------------------------------------
 
+  /**
+   * Returns the DER encoding of a DER or PEM encoded certificate signing request.
+   *
+   * @param request
+   *          DER or PEM encoded request
+   *
+   * @return  DER encoded request
+   *
+   * @throws  SigningException
+   *            if the PEM encapsulation boundaries are missing
+   */
+  private byte[] decode(byte[] request) throws SigningException
+  {
+    // DER encoding starts with an ASN.1 SEQUENCE tag...
+
+    if (request[0] == 0x30)
+    {
+      return request;
+    }
+
+    String pem = new String(request, Charset.forName("US-ASCII"));
+
+    int begin = pem.indexOf(PEM_CERTIFICATE_REQUEST_BEGIN);
+    int end = pem.indexOf(PEM_CERTIFICATE_REQUEST_END);
+
+    if (begin < 0 || end < begin)
+    {
+      throw new SigningException(
+          "Certification request is neither DER encoded or PEM encoded with ''{0}''.",
+          PEM_CERTIFICATE_REQUEST_BEGIN
+      );
+    }
+
+    return Base64.decode(pem.substring(begin + PEM_CERTIFICATE_REQUEST_BEGIN.length(), end));
+  }
+
   /**
    * Creates a BouncyCastle X.509 V3 certificate builder. The certificate is configured with
    * X.500 names given in the configuration for the issuer and subject and a given validity
@@ -134,8 +414,11 @@ public class BouncyCastleKeySigner implements KeySigner
    */
   private X509v3CertificateBuilder createCertificateBuilder(Configuration config)
   {
-    X500Name issuerName = new X500Name(config.getIssuer().toX500Name());
-    X500Name subjectName = new X500Name(config.getSubject().toX500Name());
+    // Names are taken from the parsed principals as encoded, so that a certificate issued
+    // by a CA carries the issuer name exactly as it is encoded in the CA certificate...
+
+    X500Name issuerName = X500Name.getInstance(config.getIssuer().toX500Principal().getEncoded());
+    X500Name subjectName = X500Name.getInstance(config.getSubject().toX500Principal().getEncoded());
 
     // Get configured certificate validity dates...
 
@@ -171,23 +454,54 @@ public class BouncyCastleKeySigner implements KeySigner
    */
   private ContentSigner createContentSigner(Configuration config) throws SigningException
   {
-    // BouncyCastle API to create a content signer for the certificate...
+    return createContentSigner(config.getSignatureAlgorithm(), config.getPrivateSigningKey());
+  }
+
+  /**
+   * Creates a BouncyCastle content signer for a given signature algorithm and private
+   * signing key. Also used by {@link OCSPResponder} for signing OCSP responses.
+   *
+   * @param algorithm
+   *          signature algorithm
+   *
+   * @param signingKey
+   *          private signing key
+   *
+   * @return
+   *          BouncyCastle content signer instance
+   *
+   * @throws  SigningException
+   *            if building the BouncyCastle content signer instance fails
+   */
+  ContentSigner createContentSigner(SignatureAlgorithm algorithm, PrivateKey signingKey)
+      throws SigningException
+  {
+    // BouncyCastle API to create a content signer...
 
     JcaContentSignerBuilder contentSignerBuilder = new JcaContentSignerBuilder(
-        config.getSignatureAlgorithm().toString()
+        algorithm.toString()
     );
 
-    // Explicitly set the security provider as BouncyCastle. The BC provider is dynamically
-    // loaded into the JVM if necessary...
+    // Use the provider selected by an installed provider tuning, otherwise explicitly set
+    // the security provider as BouncyCastle. The BC provider is dynamically loaded into the
+    // JVM if necessary...
+
+    ProviderTuning tuning = ProviderTuning.getInstalled();
 
-    contentSignerBuilder.setProvider(SecurityProvider.BC.getProviderInstance());
+    Provider provider = (tuning == null)
+        ? null
+        : tuning.getSignatureProvider(algorithm);
+
+    contentSignerBuilder.setProvider(
+        provider == null ? SecurityProvider.BC.getProviderInstance() : provider
+    );
 
 
     // Sign the public key...
 
     try
     {
-      return contentSignerBuilder.build(config.getPrivateSigningKey());
+      return contentSignerBuilder.build(signingKey);
     }
 
     catch (OperatorCreationException exception)
@@ -0,0 +1,707 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security.provider;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.openremote.logging.Logger;
+import org.openremote.security.KeySigner;
+import org.openremote.security.RevocationList;
+import org.openremote.security.SecurityLog;
+import org.openremote.security.SecurityProvider;
+
+
+/**
+ * OCSP (http://tools.ietf.org/html/rfc6960) responder for certificates of a single issuer,
+ * answering certificate status requests from a {@link RevocationList}. Responses are signed
+ * through the {@link BouncyCastleKeySigner} content signer, either with the issuer's own key
+ * or with a delegated responder key whose certificate is issued by the issuer. <p>
+ *
+ * Signed responses are cached per certificate serial number until their next update time,
+ * following the lightweight OCSP profile (http://tools.ietf.org/html/rfc5019) : requests for
+ * the same serial number are served from the cache without another signature operation, and
+ * request nonces are therefore not echoed. A cached response is re-signed once it expires or
+ * when the certificate's revocation status changes. The cache holds at most
+ * {@link #setCacheLimit(int) a limited number} of responses, the least recently used ones are
+ * evicted first. Responses can also be generated ahead of requests with
+ * {@link #pregenerate(Collection)}. <p>
+ *
+ * Responses are only signed for certificates known to have been issued by the issuer : the
+ * ones registered with {@link #addIssued(Collection)} or {@link #pregenerate(Collection)}, and
+ * revoked ones. Requests for other serial numbers get an unsigned 'unauthorized' response, as
+ * allowed by the lightweight OCSP profile, so that requests for arbitrary serial numbers
+ * cannot cause signature operations or cache growth. <p>
+ *
+ * This class is transport independent : {@link #respond(byte[])} takes a DER encoded request
+ * and returns a DER encoded response, to be served over HTTP with the
+ * {@link #OCSP_RESPONSE_CONTENT_TYPE} content type. Instances are thread-safe.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class OCSPResponder
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * HTTP content type of OCSP requests : {@value}
+   */
+  public final static String OCSP_REQUEST_CONTENT_TYPE = "application/ocsp-request";
+
+  /**
+   * HTTP content type of OCSP responses : {@value}
+   */
+  public final static String OCSP_RESPONSE_CONTENT_TYPE = "application/ocsp-response";
+
+  /**
+   * Default validity of signed responses (time until next update), in hours : {@value}
+   */
+  public final static long DEFAULT_RESPONSE_VALIDITY_HOURS = 24;
+
+  /**
+   * Default maximum number of cached responses : {@value}
+   */
+  public final static int DEFAULT_CACHE_LIMIT = 10000;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  private final static Logger log = Logger.getInstance(SecurityLog.DEFAULT);
+
+
+  /**
+   * Creates a new OCSP responder with the {@link #DEFAULT_RESPONSE_VALIDITY_HOURS default}
+   * response validity.
+   *
+   * @see #create(PrivateKey, X509Certificate, X509Certificate, RevocationList, long, TimeUnit)
+   */
+  public static OCSPResponder create(PrivateKey signingKey, X509Certificate signingCertificate,
+                                     X509Certificate issuerCertificate,
+                                     RevocationList revocations) throws KeySigner.SigningException
+  {
+    return create(
+        signingKey, signingCertificate, issuerCertificate, revocations,
+        DEFAULT_RESPONSE_VALIDITY_HOURS, TimeUnit.HOURS
+    );
+  }
+
+  /**
+   * Creates a new OCSP responder.
+   *
+   * @param signingKey
+   *            private key used to sign responses
+   *
+   * @param signingCertificate
+   *            certificate of the signing key : either the issuer certificate, or a delegated
+   *            responder certificate issued by the issuer
+   *
+   * @param issuerCertificate
+   *            certificate of the issuer whose certificates' status is answered
+   *
+   * @param revocations
+   *            revoked certificates of the issuer
+   *
+   * @param validity
+   *            validity of signed responses, the time between this and next update
+   *
+   * @param unit
+   *            time unit of the response validity
+   *
+   * @return    new OCSP responder
+   *
+   * @throws KeySigner.SigningException
+   *            if the certificates cannot be encoded, or the required digest algorithms are
+   *            not available
+   */
+  public static OCSPResponder create(PrivateKey signingKey, X509Certificate signingCertificate,
+                                     X509Certificate issuerCertificate,
+                                     RevocationList revocations,
+                                     long validity, TimeUnit unit) throws KeySigner.SigningException
+  {
+    if (signingKey == null || signingCertificate == null || issuerCertificate == null ||
+        revocations == null)
+    {
+      throw new KeySigner.SigningException(
+          "Implementation error: null signing key, signing certificate, issuer certificate " +
+          "or revocation list."
+      );
+    }
+
+    if (validity <= 0)
+    {
+      throw new IllegalArgumentException("Response validity must be positive, got " + validity);
+    }
+
+    return new OCSPResponder(
+        signingKey, signingCertificate, issuerCertificate, revocations, unit.toMillis(validity)
+    );
+  }
+
+
+  // Private Instance Fields ----------------------------------------------------------------------
+
+  private final BouncyCastleKeySigner signer = new BouncyCastleKeySigner();
+
+  private final PrivateKey signingKey;
+
+  private final KeySigner.SignatureAlgorithm signatureAlgorithm;
+
+  private final X509CertificateHolder issuer;
+
+  /**
+   * Certificates included in responses : the delegated responder certificate, or none when
+   * responses are signed with the issuer key.
+   */
+  private final X509CertificateHolder[] responderChain;
+
+  private final SubjectPublicKeyInfo responderKeyInfo;
+
+  private final DigestCalculatorProvider digests;
+
+  private final RevocationList revocations;
+
+  private final long validityMillis;
+
+  /**
+   * Serial numbers of certificates registered as issued by the issuer.
+   */
+  private final Set<BigInteger> issued =
+      Collections.newSetFromMap(new ConcurrentHashMap<BigInteger, Boolean>());
+
+  private final ResponseCache cache = new ResponseCache(DEFAULT_CACHE_LIMIT);
+
+  private final AtomicLong signatureCount = new AtomicLong();
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  private OCSPResponder(PrivateKey signingKey, X509Certificate signingCertificate,
+                        X509Certificate issuerCertificate, RevocationList revocations,
+                        long validityMillis) throws KeySigner.SigningException
+  {
+    this.signingKey = signingKey;
+    this.signatureAlgorithm = KeySigner.Configuration.getDefaultSignatureAlgorithm(signingKey);
+    this.revocations = revocations;
+    this.validityMillis = validityMillis;
+
+    try
+    {
+      this.issuer = new JcaX509CertificateHolder(issuerCertificate);
+
+      X509CertificateHolder responder = new JcaX509CertificateHolder(signingCertificate);
+
+      this.responderChain = responder.equals(issuer)
+          ? null
+          : new X509CertificateHolder[] { responder };
+
+      this.responderKeyInfo = responder.getSubjectPublicKeyInfo();
+
+      this.digests = new JcaDigestCalculatorProviderBuilder()
+          .setProvider(SecurityProvider.BC.getProviderInstance())
+          .build();
+    }
+
+    catch (CertificateEncodingException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Cannot encode OCSP responder certificates : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (OperatorCreationException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Cannot create OCSP digest calculators : {0}", exception,
+          exception.getMessage()
+      );
+    }
+  }
+
+
+  // Public Instance Methods ----------------------------------------------------------------------
+
+  /**
+   * Answers a DER encoded OCSP request. Only requests for a single certificate are supported,
+   * as per the lightweight OCSP profile. Errors are returned as OCSP error responses :
+   * malformed or multi-certificate requests get a 'malformedRequest' response, requests for
+   * certificates of other issuers or certificates not known to have been issued get an
+   * 'unauthorized' response.
+   *
+   * @param request
+   *            DER encoded OCSP request
+   *
+   * @return    DER encoded OCSP response
+   */
+  public byte[] respond(byte[] request)
+  {
+    CertificateID id;
+
+    try
+    {
+      Req[] requests = new OCSPReq(request).getRequestList();
+
+      if (requests.length != 1)
+      {
+        return createErrorResponse(OCSPRespBuilder.MALFORMED_REQUEST);
+      }
+
+      id = requests[0].getCertID();
+
+      if (!id.matchesIssuer(issuer, digests))
+      {
+        return createErrorResponse(OCSPRespBuilder.UNAUTHORIZED);
+      }
+    }
+
+    catch (IOException exception)
+    {
+      return createErrorResponse(OCSPRespBuilder.MALFORMED_REQUEST);
+    }
+
+    catch (IllegalArgumentException exception)
+    {
+      // Malformed ASN.1 structures...
+
+      return createErrorResponse(OCSPRespBuilder.MALFORMED_REQUEST);
+    }
+
+    catch (OCSPException exception)
+    {
+      // Unsupported certificate ID hash algorithm...
+
+      return createErrorResponse(OCSPRespBuilder.MALFORMED_REQUEST);
+    }
+
+    if (!isIssued(id.getSerialNumber()))
+    {
+      return createErrorResponse(OCSPRespBuilder.UNAUTHORIZED);
+    }
+
+    try
+    {
+      return getResponse(id).encoded.clone();
+    }
+
+    catch (KeySigner.SigningException exception)
+    {
+      log.error(
+          "Signing OCSP response for ''{0}'' failed : {1}", exception,
+          id.getSerialNumber(), exception.getMessage()
+      );
+
+      return createErrorResponse(OCSPRespBuilder.INTERNAL_ERROR);
+    }
+  }
+
+  /**
+   * Registers certificates issued by the issuer. Responses for registered certificates are
+   * signed on first request.
+   *
+   * @param serialNumbers
+   *            serial numbers of certificates issued by the issuer
+   */
+  public void addIssued(Collection<BigInteger> serialNumbers)
+  {
+    issued.addAll(serialNumbers);
+  }
+
+  /**
+   * Removes registered certificates, for example once they have expired. Their cached
+   * responses are discarded.
+   *
+   * @param serialNumbers
+   *            serial numbers of registered certificates
+   */
+  public void removeIssued(Collection<BigInteger> serialNumbers)
+  {
+    issued.removeAll(serialNumbers);
+
+    for (BigInteger serialNumber : serialNumbers)
+    {
+      cache.remove(serialNumber);
+    }
+  }
+
+  /**
+   * Registers certificates issued by the issuer, see {@link #addIssued(Collection)}, and signs
+   * and caches their responses ahead of requests. The responses identify certificates with
+   * SHA-1 hashes of the issuer name and key, as required from clients by the lightweight OCSP
+   * profile.
+   *
+   * @param serialNumbers
+   *            serial numbers of certificates issued by the issuer
+   *
+   * @throws KeySigner.SigningException
+   *            if signing a response fails
+   */
+  public void pregenerate(Collection<BigInteger> serialNumbers) throws KeySigner.SigningException
+  {
+    addIssued(serialNumbers);
+
+    for (BigInteger serialNumber : serialNumbers)
+    {
+      try
+      {
+        getResponse(new CertificateID(
+            digests.get(CertificateID.HASH_SHA1), issuer, serialNumber
+        ));
+      }
+
+      catch (OCSPException exception)
+      {
+        throw new KeySigner.SigningException(
+            "Cannot create OCSP certificate ID for ''{0}'' : {1}", exception,
+            serialNumber, exception.getMessage()
+        );
+      }
+
+      catch (OperatorCreationException exception)
+      {
+        throw new KeySigner.SigningException(
+            "Cannot create OCSP digest calculator : {0}", exception,
+            exception.getMessage()
+        );
+      }
+    }
+  }
+
+  /**
+   * Sets the maximum number of cached responses. The least recently used responses are
+   * evicted once the limit is reached.
+   *
+   * @param limit
+   *            maximum cached response count
+   */
+  public void setCacheLimit(int limit)
+  {
+    if (limit <= 0)
+    {
+      throw new IllegalArgumentException("Cache limit must be positive, got " + limit);
+    }
+
+    cache.setLimit(limit);
+  }
+
+  /**
+   * Returns the number of cached signed responses.
+   *
+   * @return    cached response count
+   */
+  public int getCacheSize()
+  {
+    return cache.size();
+  }
+
+  /**
+   * Returns the number of responses signed by this responder.
+   *
+   * @return    response signature count
+   */
+  public long getSignatureCount()
+  {
+    return signatureCount.get();
+  }
+
+  /**
+   * Removes all cached responses, including ones that are still valid.
+   */
+  public void clearCache()
+  {
+    cache.clear();
+  }
+
+
+  // Private Instance Methods ---------------------------------------------------------------------
+
+  /**
+   * Checks whether a certificate is known to have been issued by the issuer : it has been
+   * registered, or revoked.
+   */
+  private boolean isIssued(BigInteger serialNumber)
+  {
+    return issued.contains(serialNumber) || revocations.getRevocation(serialNumber) != null;
+  }
+
+  /**
+   * Returns a cached response for a certificate, or signs a new one if there is no valid
+   * cached response. A cached response is valid until its next update time, if it was signed
+   * for the same certificate ID and revocation entry. Concurrent requests for an expired
+   * response may each sign a new one, the last one is kept.
+   *
+   * @param id
+   *            certificate ID of the request
+   *
+   * @return  signed response
+   *
+   * @throws KeySigner.SigningException
+   *            if signing a new response fails
+   */
+  private SignedResponse getResponse(CertificateID id) throws KeySigner.SigningException
+  {
+    BigInteger serialNumber = id.getSerialNumber();
+
+    // Revocation entries are immutable, a changed status is a different (or no) instance...
+
+    KeySigner.Revocation revocation = revocations.getRevocation(serialNumber);
+
+    SignedResponse cached = cache.get(serialNumber);
+
+    if (cached != null && cached.isValid(id, revocation, System.currentTimeMillis()))
+    {
+      return cached;
+    }
+
+    SignedResponse response = sign(id, revocation);
+
+    cache.put(serialNumber, response);
+
+    return response;
+  }
+
+  /**
+   * Signs a successful response with the status of a single certificate.
+   *
+   * @param id
+   *            certificate ID
+   *
+   * @param revocation
+   *            revocation entry of the certificate, or null if the certificate is not revoked
+   *
+   * @return  signed response
+   *
+   * @throws KeySigner.SigningException
+   *            if signing the response fails
+   */
+  private SignedResponse sign(CertificateID id, KeySigner.Revocation revocation)
+      throws KeySigner.SigningException
+  {
+    long now = System.currentTimeMillis();
+
+    Date thisUpdate = new Date(now);
+    Date nextUpdate = new Date(now + validityMillis);
+
+    CertificateStatus status = (revocation == null)
+        ? CertificateStatus.GOOD
+        : new RevokedStatus(revocation.getRevocationDate(), revocation.getReason().getCode());
+
+    try
+    {
+      BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(
+          responderKeyInfo, digests.get(CertificateID.HASH_SHA1)
+      );
+
+      builder.addResponse(id, status, thisUpdate, nextUpdate, null);
+
+      byte[] encoded = new OCSPRespBuilder().build(
+          OCSPRespBuilder.SUCCESSFUL,
+          builder.build(
+              signer.createContentSigner(signatureAlgorithm, signingKey),
+              responderChain, thisUpdate
+          )
+      ).getEncoded();
+
+      signatureCount.incrementAndGet();
+
+      return new SignedResponse(id, revocation, nextUpdate.getTime(), encoded);
+    }
+
+    catch (OCSPException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Cannot build OCSP response : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (OperatorCreationException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Cannot create OCSP digest calculator : {0}", exception,
+          exception.getMessage()
+      );
+    }
+
+    catch (IOException exception)
+    {
+      throw new KeySigner.SigningException(
+          "Cannot encode OCSP response : {0}", exception,
+          exception.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Creates an unsigned OCSP error response.
+   *
+   * @param status
+   *            OCSP response status, see {@link OCSPRespBuilder}
+   *
+   * @return  DER encoded error response
+   */
+  private byte[] createErrorResponse(int status)
+  {
+    try
+    {
+      return new OCSPRespBuilder().build(status, null).getEncoded();
+    }
+
+    catch (OCSPException exception)
+    {
+      throw new IllegalStateException(
+          "Implementation error: cannot create OCSP error response : " + exception.getMessage(),
+          exception
+      );
+    }
+
+    catch (IOException exception)
+    {
+      throw new IllegalStateException(
+          "Implementation error: cannot encode OCSP error response : " + exception.getMessage(),
+          exception
+      );
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Signed responses by certificate serial number, in least recently used order. Evicts the
+   * least recently used response once the limit is exceeded. Access is synchronized, the
+   * lookups are short compared to the signature operations they save.
+   */
+  private static class ResponseCache
+  {
+    private final LinkedHashMap<BigInteger, SignedResponse> responses;
+
+    private int limit;
+
+
+    private ResponseCache(int limit)
+    {
+      this.limit = limit;
+      this.responses = new LinkedHashMap<BigInteger, SignedResponse>(16, 0.75f, true)
+      {
+        @Override protected boolean removeEldestEntry(Map.Entry<BigInteger, SignedResponse> e)
+        {
+          return size() > ResponseCache.this.limit;
+        }
+      };
+    }
+
+
+    private synchronized SignedResponse get(BigInteger serialNumber)
+    {
+      return responses.get(serialNumber);
+    }
+
+    private synchronized void put(BigInteger serialNumber, SignedResponse response)
+    {
+      responses.put(serialNumber, response);
+    }
+
+    private synchronized void remove(BigInteger serialNumber)
+    {
+      responses.remove(serialNumber);
+    }
+
+    private synchronized int size()
+    {
+      return responses.size();
+    }
+
+    private synchronized void clear()
+    {
+      responses.clear();
+    }
+
+    private synchronized void setLimit(int limit)
+    {
+      this.limit = limit;
+
+      // Evict down to the new limit, least recently used first...
+
+      while (responses.size() > limit)
+      {
+        responses.remove(responses.keySet().iterator().next());
+      }
+    }
+  }
+
+  /**
+   * A signed and encoded response for a single certificate, with the certificate ID and
+   * revocation entry it was signed for.
+   */
+  private static class SignedResponse
+  {
+    private final CertificateID id;
+
+    private final KeySigner.Revocation revocation;
+
+    private final long nextUpdate;
+
+    private final byte[] encoded;
+
+
+    private SignedResponse(CertificateID id, KeySigner.Revocation revocation, long nextUpdate,
+                           byte[] encoded)
+    {
+      this.id = id;
+      this.revocation = revocation;
+      this.nextUpdate = nextUpdate;
+      this.encoded = encoded;
+    }
+
+
+    private boolean isValid(CertificateID requestId, KeySigner.Revocation current, long now)
+    {
+      return now < nextUpdate && revocation == current && id.equals(requestId);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security.provider;
+
+import java.security.Provider;
+
+/**
+ * Security provider for the keystore implementations of this library. Currently provides
+ * the {@link AESGCMKeyStore} keystore type. Cryptographic primitives are not implemented
+ * here, they are used from the JVM installed security providers.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class OpenRemoteProvider extends Provider
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  /**
+   * Name of this security provider : {@value}
+   */
+  public final static String PROVIDER_NAME = "OpenRemote";
+
+  /**
+   * Version of this security provider : {@value}
+   */
+  public final static double PROVIDER_VERSION = 1.0;
+
+
+  // Constructors ---------------------------------------------------------------------------------
+
+  /**
+   * Creates a new provider instance.
+   */
+  public OpenRemoteProvider()
+  {
+    super(PROVIDER_NAME, PROVIDER_VERSION, "OpenRemote Security Provider (AES-GCM keystore)");
+
+    put("KeyStore." + AESGCMKeyStore.STORAGE_NAME, AESGCMKeyStore.class.getName());
+  }
+}
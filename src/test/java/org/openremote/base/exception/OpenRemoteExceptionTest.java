@@ -0,0 +1,148 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.base.exception;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Unit tests for {@link OpenRemoteException} and {@link OpenRemoteRuntimeException} message
+ * formatting and stack trace handling.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class OpenRemoteExceptionTest
+{
+
+  /**
+   * Tests that parameterized messages are only formatted when requested.
+   */
+  @Test public void testLazyMessage()
+  {
+    CountingParameter param = new CountingParameter();
+
+    OpenRemoteException e = new OpenRemoteException("foo {0}", param);
+
+    Assert.assertTrue(param.count == 0);
+    Assert.assertTrue(e.getMessage().equals("foo bar"));
+    Assert.assertTrue(e.getMessage().equals("foo bar"));
+    Assert.assertTrue(param.count == 1);
+    Assert.assertTrue(e.toString().endsWith("foo bar"));
+
+    param = new CountingParameter();
+
+    OpenRemoteRuntimeException re = new IncorrectImplementationException(
+        "foo {0}", new Error(), param
+    );
+
+    Assert.assertTrue(param.count == 0);
+    Assert.assertTrue(re.getMessage().equals("foo bar"));
+    Assert.assertTrue(param.count == 1);
+  }
+
+  /**
+   * Tests the lazily evaluated exception message parameter.
+   */
+  @Test public void testMessageOf()
+  {
+    OpenRemoteException cause = new OpenRemoteException("cause {0}", "acme");
+    OpenRemoteException e = new OpenRemoteException(
+        "foo : {0}", cause, OpenRemoteException.messageOf(cause)
+    );
+
+    Assert.assertTrue(e.getMessage().equals("foo : cause acme"));
+  }
+
+  /**
+   * Tests message formatting errors.
+   */
+  @Test public void testFormattingError()
+  {
+    OpenRemoteException e = new OpenRemoteException("foo {bar}", "acme");
+
+    Assert.assertTrue(e.getMessage().startsWith("foo {bar}  [EXCEPTION MESSAGE FORMATTING ERROR"));
+  }
+
+  /**
+   * Tests disabling stack trace capture.
+   */
+  @Test public void testNoStackTrace()
+  {
+    Assert.assertTrue(new OpenRemoteException("foo").getStackTrace().length > 0);
+    Assert.assertTrue(new NoStackTraceException().getStackTrace().length == 0);
+  }
+
+  /**
+   * Tests that exceptions with non-serializable message parameters can be serialized.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testSerialization() throws Exception
+  {
+    OpenRemoteException e = new OpenRemoteException("foo {0}", new CountingParameter());
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(e);
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    OpenRemoteException copy = (OpenRemoteException)in.readObject();
+
+    Assert.assertTrue(copy.getMessage().equals("foo bar"));
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Message parameter (not serializable) that counts its string conversions.
+   */
+  private static class CountingParameter
+  {
+    private int count = 0;
+
+    @Override public String toString()
+    {
+      count++;
+
+      return "bar";
+    }
+  }
+
+  private static class NoStackTraceException extends OpenRemoteException
+  {
+    private NoStackTraceException()
+    {
+      super("foo");
+    }
+
+    @Override protected boolean isStackTraceEnabled()
+    {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link org.openremote.security.AuditLog}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class AuditLogTest
+{
+
+  /**
+   * Tests that events are written in publish order by the writer thread.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testWrite() throws Exception
+  {
+    final List<AuditLog.Event> events =
+        Collections.synchronizedList(new ArrayList<AuditLog.Event>());
+
+    AuditLog audit = new AuditLog(128, new AuditLog.Writer()
+    {
+      @Override public void write(AuditLog.Event event)
+      {
+        events.add(event);
+      }
+    });
+
+    for (int i = 0; i < 100; ++i)
+    {
+      while (!audit.publish(createEvent("alias-" + i)))
+      {
+        Thread.sleep(1);
+      }
+    }
+
+    Assert.assertTrue(audit.flush(10, TimeUnit.SECONDS));
+    Assert.assertTrue(audit.getWrittenCount() == 100);
+    Assert.assertTrue(events.size() == 100);
+
+    for (int i = 0; i < 100; ++i)
+    {
+      Assert.assertTrue(events.get(i).getAlias().equals("alias-" + i));
+    }
+  }
+
+  /**
+   * Tests that events are dropped and counted when the buffer is full.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testOverflow() throws Exception
+  {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    AuditLog audit = new AuditLog(2, new AuditLog.Writer()
+    {
+      @Override public void write(AuditLog.Event event)
+      {
+        writing.countDown();
+
+        try
+        {
+          release.await();
+        }
+
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    // The first event blocks the writer thread...
+
+    Assert.assertTrue(audit.publish(createEvent("first")));
+    Assert.assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+    Assert.assertTrue(audit.publish(createEvent("second")));
+    Assert.assertTrue(audit.publish(createEvent("third")));
+    Assert.assertFalse(audit.publish(createEvent("fourth")));
+    Assert.assertFalse(audit.publish(createEvent("fifth")));
+
+    Assert.assertTrue(audit.getDroppedCount() == 2);
+
+    release.countDown();
+
+    Assert.assertTrue(audit.flush(10, TimeUnit.SECONDS));
+    Assert.assertTrue(audit.getWrittenCount() == 3);
+  }
+
+  /**
+   * Tests that an idle writer is woken by new events and that shutdown writes the buffered
+   * events before the writer exits.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testShutdown() throws Exception
+  {
+    final List<AuditLog.Event> events =
+        Collections.synchronizedList(new ArrayList<AuditLog.Event>());
+
+    AuditLog audit = new AuditLog(128, new AuditLog.Writer()
+    {
+      @Override public void write(AuditLog.Event event)
+      {
+        events.add(event);
+
+        try
+        {
+          Thread.sleep(1);
+        }
+
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    Assert.assertTrue(audit.publish(createEvent("first")));
+    Assert.assertTrue(audit.flush(10, TimeUnit.SECONDS));
+
+    // Let the writer park on the empty buffer...
+
+    Thread.sleep(50);
+
+    for (int i = 0; i < 100; ++i)
+    {
+      Assert.assertTrue(audit.publish(createEvent("alias-" + i)));
+    }
+
+    Assert.assertTrue(audit.shutdown(10, TimeUnit.SECONDS));
+    Assert.assertTrue(audit.getWrittenCount() == 101);
+    Assert.assertTrue(events.size() == 101);
+    Assert.assertTrue(events.get(100).getAlias().equals("alias-99"));
+
+    Assert.assertFalse(audit.publish(createEvent("late")));
+    Assert.assertTrue(audit.getDroppedCount() == 1);
+  }
+
+  /**
+   * Tests that key operations are recorded when auditing is enabled.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testKeyOperations() throws Exception
+  {
+    AuditLog audit = AuditLog.getInstance();
+
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      AuditLog.setEnabled(true);
+
+      long written = audit.getWrittenCount();
+
+      PasswordManager mgr = new PasswordManager();
+      mgr.addPassword("test", new byte[] { 'a' }, new char[] { 'm' });
+      mgr.getPassword("test", new char[] { 'm' });
+      mgr.removePassword("test", new char[] { 'm' });
+
+      Assert.assertTrue(audit.flush(10, TimeUnit.SECONDS));
+      Assert.assertTrue(audit.getWrittenCount() - written >= 3);
+
+      // No events when disabled...
+
+      AuditLog.setEnabled(false);
+
+      written = audit.getWrittenCount();
+
+      mgr.addPassword("test", new byte[] { 'a' }, new char[] { 'm' });
+
+      Assert.assertTrue(audit.flush(10, TimeUnit.SECONDS));
+      Assert.assertTrue(audit.getWrittenCount() == written);
+    }
+
+    finally
+    {
+      AuditLog.setEnabled(false);
+
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests the structured event format.
+   */
+  @Test public void testEventFormat()
+  {
+    String event = createEvent("test").toString();
+
+    Assert.assertTrue(event.contains("operation=RETRIEVE"));
+    Assert.assertTrue(event.contains("source=PasswordManager"));
+    Assert.assertTrue(event.contains("alias='test'"));
+    Assert.assertTrue(event.contains("result=success"));
+    Assert.assertTrue(event.contains("latency_us=1.5"));
+
+    // Aliases cannot end the quoted value or split the record...
+
+    event = createEvent("a' result=failure\ntime=0 alias='b\\").toString();
+
+    Assert.assertTrue(event.contains("alias='a\\' result=failure\\u000atime=0 alias=\\'b\\\\'"));
+    Assert.assertTrue(event.indexOf('\n') == -1);
+    Assert.assertTrue(event.contains(" result=success "));
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private AuditLog.Event createEvent(String alias)
+  {
+    return new AuditLog.Event(
+        System.currentTimeMillis(), AuditLog.Operation.RETRIEVE, "PasswordManager", alias,
+        true, 1500
+    );
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * Stand-alone benchmark for key entry encryption (add) and decryption (get) throughput of
+ * the {@link KeyManager.Storage#AESGCM} storage compared to the password based encryption
+ * of the other storage types. This is not part of the unit test suite. Run it with the test
+ * classpath :
+ *
+ * <pre>
+ *   java org.openremote.security.EntryEncryptionBenchmark [entries]
+ * </pre>
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class EntryEncryptionBenchmark
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  public static final int DEFAULT_ENTRIES = 200;
+
+  private static final char[] KEY_PASSWORD = new char[] { 'k', 'e', 'y' };
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  public static void main(String... args) throws Exception
+  {
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+
+    KeyManager.Storage[] storages = new KeyManager.Storage[]
+    {
+        KeyManager.Storage.AESGCM,
+        KeyManager.Storage.UBER,
+        KeyManager.Storage.BKS,
+        KeyManager.Storage.JCEKS,
+        KeyManager.Storage.PKCS12
+    };
+
+    System.out.println("Entries: " + entries);
+    System.out.println();
+
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      // Two rounds, the first one serves as warm-up...
+
+      for (int round = 0; round < 2; ++round)
+      {
+        System.out.println(round == 0 ? "Warm-up:" : "Results:");
+        System.out.println(String.format("  %-10s %14s %14s", "Storage", "add ops/s", "get ops/s"));
+
+        for (KeyManager.Storage storage : storages)
+        {
+          run(storage, entries);
+        }
+
+        System.out.println();
+      }
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+
+  private static void run(KeyManager.Storage storage, int entries) throws Exception
+  {
+    // PKCS #12 from JVM installed providers (BouncyCastle PKCS #12 does not store
+    // secret keys)...
+
+    BenchmarkStore store = new BenchmarkStore(
+        storage, storage == KeyManager.Storage.PKCS12 ? null : storage.getSecurityProvider()
+    );
+
+    KeyStore.SecretKeyEntry entry = new KeyStore.SecretKeyEntry(
+        new SecretKeySpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, "AES")
+    );
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < entries; ++i)
+    {
+      store.add("key-" + i, entry, new KeyStore.PasswordProtection(KEY_PASSWORD));
+    }
+
+    long add = System.nanoTime() - start;
+
+    start = System.nanoTime();
+
+    for (int i = 0; i < entries; ++i)
+    {
+      store.retrieveKey("key-" + i, new KeyStore.PasswordProtection(KEY_PASSWORD));
+    }
+
+    long get = System.nanoTime() - start;
+
+    System.out.println(String.format(
+        "  %-10s %14.0f %14.0f", storage, entries / (add / 1E9), entries / (get / 1E9)
+    ));
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  private static class BenchmarkStore extends KeyManager
+  {
+    private BenchmarkStore(Storage storage, Provider provider) throws KeyManagerException
+    {
+      super(storage, provider);
+    }
+  }
+}
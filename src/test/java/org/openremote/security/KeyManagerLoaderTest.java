@@ -0,0 +1,198 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.net.URI;
+import java.security.KeyStore;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+/**
+ * Unit tests for {@link org.openremote.security.KeyManagerLoader}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class KeyManagerLoaderTest
+{
+
+  /**
+   * Tests loading keystores with both factories and existing key manager instances.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testLoad() throws Exception
+  {
+    final URI first = createKeyStore("first", new char[] { '1' });
+    URI second = createKeyStore("second", new char[] { '2' });
+
+    KeyManagerLoader loader = KeyManagerLoader.create(2);
+
+    loader.add("first", new Callable<TestStore>()
+    {
+      @Override public TestStore call() throws Exception
+      {
+        TestStore store = new TestStore();
+        store.load(first, new char[] { '1' });
+
+        return store;
+      }
+    });
+
+    char[] password = new char[] { '2' };
+
+    loader.add("second", new TestStore(), second, password);
+
+    KeyManagerLoader.Report report = loader.load();
+
+    Assert.assertTrue(report.getKeyManager("first", TestStore.class).contains("first"));
+    Assert.assertTrue(report.getKeyManager("second", TestStore.class).contains("second"));
+    Assert.assertTrue(report.getLoadTimeMillis("first") >= 0);
+    Assert.assertTrue(report.getLoadTimeMillis("unknown") == -1);
+    Assert.assertTrue(report.getKeyManager("unknown", TestStore.class) == null);
+    Assert.assertTrue(password[0] == 0);
+  }
+
+  /**
+   * Tests that failed loads are aggregated in the load exception.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testLoadFailure() throws Exception
+  {
+    URI first = createKeyStore("first", new char[] { '1' });
+    URI second = createKeyStore("second", new char[] { '2' });
+
+    KeyManagerLoader loader = KeyManagerLoader.create(1);
+
+    char[] firstPassword = new char[] { 'x' };
+    char[] secondPassword = new char[] { 'y' };
+
+    loader.add("first", new TestStore(), first, firstPassword);
+    loader.add("second", new TestStore(), second, secondPassword);
+
+    try
+    {
+      loader.load();
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManagerLoader.LoadException e)
+    {
+      Assert.assertTrue(e.getFailures().containsKey("first"));
+      Assert.assertTrue(e.getCause() != null);
+    }
+
+    // Passwords are cleared whether or not the fail-fast cancelled the second load...
+
+    Assert.assertTrue(firstPassword[0] == 0);
+    Assert.assertTrue(secondPassword[0] == 0);
+  }
+
+  /**
+   * Tests registering the same keystore name twice.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testDuplicateName() throws Exception
+  {
+    KeyManagerLoader loader = KeyManagerLoader.create();
+
+    loader.add("test", new TestStore(), createKeyStore("test", new char[] { '1' }), null);
+
+    try
+    {
+      loader.add("test", new TestStore(), createKeyStore("test", new char[] { '1' }), null);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+  }
+
+  /**
+   * Tests that a loader can only be used once.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testReuse() throws Exception
+  {
+    KeyManagerLoader loader = KeyManagerLoader.create();
+
+    loader.load();
+
+    try
+    {
+      loader.load();
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalStateException e)
+    {
+      // expected...
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private URI createKeyStore(String alias, char[] password) throws Exception
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "test.keystore." + UUID.randomUUID());
+    file.deleteOnExit();
+
+    TestStore store = new TestStore();
+
+    store.add(
+        alias,
+        new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[] { 'a' }, "foo")),
+        new KeyStore.PasswordProtection(new char[] { 'b' })
+    );
+
+    store.save(file.toURI(), password);
+
+    return file.toURI();
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Key manager using Sun JCEKS storage from the default security providers.
+   */
+  private static class TestStore extends KeyManager
+  {
+    private TestStore() throws KeyManagerException
+    {
+      super(Storage.JCEKS, null);
+    }
+  }
+}
@@ -27,17 +27,29 @@ import org.testng.annotations.Test;
 
 import javax.crypto.spec.SecretKeySpec;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
 import java.security.KeyStore;
 import java.security.Provider;
 import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Unit tests for shared implementation in abstract {@link org.openremote.security.KeyManager}
@@ -675,6 +687,521 @@ public class KeyManagerTest
   }
 
 
+  // Sharding tests -------------------------------------------------------------------------------
+
+  /**
+   * Tests adding, saving and loading keys with a sharded keystore.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testShardedKeyStore() throws Exception
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File f = new File(dir, "test.keystore." + UUID.randomUUID());
+    f.deleteOnExit();
+
+    ShardedJCEKSStorage mgr = new ShardedJCEKSStorage(4);
+
+    for (int i = 0; i < 20; ++i)
+    {
+      mgr.add(
+          "key" + i,
+          new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[] { (byte)i }, "foo")),
+          new KeyStore.PasswordProtection(new char[] { 'b' })
+      );
+    }
+
+    mgr.remove("key0");
+
+    Assert.assertTrue(mgr.size() == 19);
+    Assert.assertTrue(mgr.contains("key1"));
+    Assert.assertFalse(mgr.contains("key0"));
+
+    mgr.save(f.toURI(), new char[] { '1' });
+
+    Assert.assertTrue(f.exists());
+
+    for (int i = 0; i < 4; ++i)
+    {
+      File shard = new File(f.getPath() + KeyManager.SHARD_FILE_SUFFIX + i);
+      shard.deleteOnExit();
+
+      Assert.assertTrue(shard.exists());
+    }
+
+    ShardedJCEKSStorage loaded = new ShardedJCEKSStorage(4);
+    loaded.load(f.toURI(), new char[] { '1' });
+
+    Assert.assertTrue(loaded.size() == 19);
+
+    KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry)loaded.retrieveKey(
+        "key7", new KeyStore.PasswordProtection(new char[] { 'b' })
+    );
+
+    Assert.assertTrue(Arrays.equals(entry.getSecretKey().getEncoded(), new byte[] { 7 }));
+  }
+
+  /**
+   * Tests that a sharded keystore cannot be loaded with a different shard count.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testShardCountMismatch() throws Exception
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File f = new File(dir, "test.keystore." + UUID.randomUUID());
+    f.deleteOnExit();
+
+    ShardedJCEKSStorage mgr = new ShardedJCEKSStorage(2);
+
+    mgr.add(
+        "test",
+        new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[] { 'a' }, "foo")),
+        new KeyStore.PasswordProtection(new char[] { 'b' })
+    );
+
+    mgr.save(f.toURI(), new char[] { '1' });
+
+    new File(f.getPath() + KeyManager.SHARD_FILE_SUFFIX + 0).deleteOnExit();
+    new File(f.getPath() + KeyManager.SHARD_FILE_SUFFIX + 1).deleteOnExit();
+
+    try
+    {
+      new ShardedJCEKSStorage(3).load(f.toURI(), new char[] { '1' });
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+  }
+
+  /**
+   * Tests sharded key manager with an illegal shard count.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testIllegalShardCount() throws Exception
+  {
+    try
+    {
+      new ShardedJCEKSStorage(0);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+  }
+
+
+  // Encoded Certificate tests --------------------------------------------------------------------
+
+  /**
+   * Tests DER and PEM encoded certificates with and without the encoded certificate cache.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testEncodedCertificates() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PrivateKeyManager mgr = PrivateKeyManager.create(KeyManager.Storage.BKS);
+      Certificate cert = mgr.addKey("test", new char[] { 'a' });
+
+      assertEncoded(mgr, "test", cert);
+
+      mgr.setEncodedCertificateCache(true);
+
+      assertEncoded(mgr, "test", cert);
+
+      Certificate other = mgr.addKey("other", new char[] { 'a' });
+
+      assertEncoded(mgr, "other", other);
+
+      ByteBuffer der = mgr.getEncodedCertificate("test");
+
+      try
+      {
+        der.put(0, (byte)0);
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (ReadOnlyBufferException e)
+      {
+        // expected...
+      }
+
+      der.position(der.limit());
+
+      Assert.assertTrue(mgr.getEncodedCertificate("test").remaining() == cert.getEncoded().length);
+
+      mgr.remove("test");
+
+      Assert.assertTrue(mgr.getEncodedCertificate("test") == null);
+      Assert.assertTrue(mgr.getPEMCertificate("test") == null);
+      Assert.assertTrue(mgr.getEncodedCertificate("unknown") == null);
+
+      mgr.setEncodedCertificateCache(false);
+
+      assertEncoded(mgr, "other", other);
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests enabling the encoded certificate cache while entries are being added.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testEncodedCertificateCacheConcurrentAdd() throws Exception
+  {
+    final Certificate cert;
+
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      cert = PrivateKeyManager.create(KeyManager.Storage.BKS).addKey("test", new char[] { 'a' });
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+
+    final JCEKSStorage mgr = new JCEKSStorage();
+    final List<Exception> failures = new ArrayList<Exception>();
+
+    Thread writer = new Thread()
+    {
+      @Override public void run()
+      {
+        try
+        {
+          for (int i = 0; i < 500; ++i)
+          {
+            mgr.add("cert" + i, new KeyStore.TrustedCertificateEntry(cert), null);
+          }
+        }
+
+        catch (Exception exception)
+        {
+          failures.add(exception);
+        }
+      }
+    };
+
+    writer.start();
+
+    while (writer.isAlive())
+    {
+      mgr.setEncodedCertificateCache(false);
+      mgr.setEncodedCertificateCache(true);
+    }
+
+    writer.join();
+
+    Assert.assertTrue(failures.isEmpty(), failures.toString());
+
+    // Every entry is in the cache, whether it was added before or after the cache was built...
+
+    for (int i = 0; i < 500; ++i)
+    {
+      Assert.assertTrue(mgr.getEncodedCertificate("cert" + i) != null, "cert" + i);
+    }
+  }
+
+  /**
+   * Tests that encoded certificate cache ignores alias case with case-insensitive storage.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testEncodedCertificateAliasCase() throws Exception
+  {
+    Certificate cert;
+
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      cert = PrivateKeyManager.create(KeyManager.Storage.BKS).addKey("test", new char[] { 'a' });
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+
+    JCEKSStorage mgr = new JCEKSStorage();
+    mgr.setEncodedCertificateCache(true);
+    mgr.add("Test", new KeyStore.TrustedCertificateEntry(cert), null);
+
+    assertEncoded(mgr, "test", cert);
+    assertEncoded(mgr, "TEST", cert);
+  }
+
+  /**
+   * Tests storing and retrieving key entries with explicit protection parameters.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testProtectionParameters() throws Exception
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "test.keystore." + UUID.randomUUID());
+    file.deleteOnExit();
+
+    PKCS12Storage mgr = new PKCS12Storage();
+
+    KeyManager.ProtectionParameters params = new KeyManager.ProtectionParameters(1000);
+    mgr.setProtectionParameters(params);
+
+    Assert.assertTrue(mgr.getProtectionParameters() == params);
+    Assert.assertTrue(params.getProtectionAlgorithm().equals("PBEWithHmacSHA256AndAES_256"));
+
+    mgr.add(
+        "test",
+        new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[] { 'a' }, "AES")),
+        new KeyStore.PasswordProtection(new char[] { 'b' })
+    );
+
+    mgr.save(file.toURI(), new char[] { 'c' });
+
+    // Entries are decrypted with the parameters recorded in the keystore...
+
+    PKCS12Storage loaded = new PKCS12Storage();
+    loaded.load(file.toURI(), new char[] { 'c' });
+
+    KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry)loaded.retrieveKey(
+        "test", new KeyStore.PasswordProtection(new char[] { 'b' })
+    );
+
+    Assert.assertTrue(Arrays.equals(entry.getSecretKey().getEncoded(), new byte[] { 'a' }));
+
+    mgr.setProtectionParameters(null);
+
+    Assert.assertTrue(mgr.getProtectionParameters() == null);
+  }
+
+  /**
+   * Tests protection parameters with storage formats and algorithms that do not support them.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testUnsupportedProtectionParameters() throws Exception
+  {
+    Assert.assertTrue(KeyManager.Storage.PKCS12.supportsProtectionParameters());
+    Assert.assertFalse(KeyManager.Storage.UBER.supportsProtectionParameters());
+
+    try
+    {
+      new JCEKSStorage().setProtectionParameters(new KeyManager.ProtectionParameters(1000));
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      new PKCS12Storage().setProtectionParameters(
+          new KeyManager.ProtectionParameters("foo", "bar", 1000)
+      );
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      new KeyManager.ProtectionParameters(0);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+  }
+
+
+  /**
+   * Tests streaming keystore backups to a stream, a channel and a file.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testBackup() throws Exception
+  {
+    PKCS12Storage mgr = new PKCS12Storage();
+
+    mgr.add(
+        "test",
+        new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[] { 'a' }, "AES")),
+        new KeyStore.PasswordProtection(new char[] { 'b' })
+    );
+
+    // Uncompressed backup to a stream...
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long size = mgr.backup(out, new char[] { 'c' }, false).get(10, TimeUnit.SECONDS);
+
+    Assert.assertTrue(size == out.size());
+
+    KeyStore backup = KeyStore.getInstance(KeyManager.Storage.PKCS12.getStorageName());
+    backup.load(new ByteArrayInputStream(out.toByteArray()), new char[] { 'c' });
+
+    Assert.assertTrue(backup.containsAlias("test"));
+
+    // Compressed backup to a channel, modifications after the call are not included...
+
+    out = new ByteArrayOutputStream();
+    Future<Long> result =
+        mgr.backup(Channels.newChannel(out), new char[] { 'c' }, true);
+
+    mgr.remove("test");
+
+    Assert.assertTrue(result.get(10, TimeUnit.SECONDS) == out.size());
+
+    backup = KeyStore.getInstance(KeyManager.Storage.PKCS12.getStorageName());
+    backup.load(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), new char[] { 'c' });
+
+    Assert.assertTrue(backup.containsAlias("test"));
+
+    // Backup to a file replaces the previous backup...
+
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "test.keystore." + UUID.randomUUID());
+    file.deleteOnExit();
+
+    Assert.assertTrue(mgr.backup(file.toURI(), new char[] { 'c' }, false).get() == file.length());
+    Assert.assertTrue(mgr.backup(file.toURI(), new char[] { 'c' }, false).get() == file.length());
+    Assert.assertFalse(new File(file.getPath() + KeyManager.BACKUP_TEMP_FILE_SUFFIX).exists());
+
+    PKCS12Storage loaded = new PKCS12Storage();
+    loaded.load(file.toURI(), new char[] { 'c' });
+
+    Assert.assertTrue(loaded.size() == 0);
+
+    // Sharded key managers are not supported...
+
+    try
+    {
+      new ShardedJCEKSStorage(2).backup(new ByteArrayOutputStream(), new char[] { 'c' }, false);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+  }
+
+
+  /**
+   * Tests alias listing with prefix and entry type filters, and paging.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testListAliases() throws Exception
+  {
+    PKCS12Storage mgr = new PKCS12Storage();
+
+    for (int i = 0; i < 25; ++i)
+    {
+      mgr.add(
+          String.format("secret-%02d", i),
+          new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[] { 'a' }, "AES")),
+          new KeyStore.PasswordProtection(new char[] { 'b' })
+      );
+    }
+
+    Certificate cert = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC)
+        .addKey("key", new char[] { 'k' }, "testIssuer");
+
+    mgr.add("Cert", new KeyStore.TrustedCertificateEntry(cert), null);
+
+    Assert.assertTrue(mgr.getEntryType("secret-00") == KeyManager.EntryType.SECRET_KEY);
+    Assert.assertTrue(mgr.getEntryType("cert") == KeyManager.EntryType.TRUSTED_CERTIFICATE);
+    Assert.assertTrue(mgr.getEntryType("foo") == null);
+
+    // Paging through a prefix...
+
+    List<String> listed = new ArrayList<String>();
+    List<String> page = mgr.listAliases("SECRET-", null, null, 10);
+
+    Assert.assertTrue(page.size() == 10);
+    Assert.assertTrue(page.get(0).equals("secret-00"));
+
+    while (!page.isEmpty())
+    {
+      listed.addAll(page);
+
+      page = mgr.listAliases("secret-", null, page.get(page.size() - 1), 10);
+    }
+
+    Assert.assertTrue(listed.size() == 25);
+    Assert.assertTrue(listed.get(24).equals("secret-24"));
+
+    // Entry type filters...
+
+    Assert.assertTrue(mgr.listAliases(null, null, null, 100).size() == 26);
+    Assert.assertTrue(mgr.listAliases(null, KeyManager.EntryType.TRUSTED_CERTIFICATE, null, 100).size() == 1);
+    Assert.assertTrue(mgr.listAliases("secret", KeyManager.EntryType.TRUSTED_CERTIFICATE, null, 100).isEmpty());
+    Assert.assertTrue(mgr.listAliases(null, KeyManager.EntryType.PRIVATE_KEY, null, 100).isEmpty());
+
+    // Index is kept up to date on remove and load...
+
+    mgr.remove("secret-01");
+
+    Assert.assertTrue(mgr.listAliases("secret-0", null, null, 100).size() == 9);
+
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "test.keystore." + UUID.randomUUID());
+    file.deleteOnExit();
+
+    mgr.save(file.toURI(), new char[] { 'c' });
+
+    PKCS12Storage loaded = new PKCS12Storage();
+    loaded.load(file.toURI(), new char[] { 'c' });
+
+    Assert.assertTrue(loaded.listAliases("secret-", KeyManager.EntryType.SECRET_KEY, null, 100).size() == 24);
+    Assert.assertTrue(loaded.getEntryType("CERT") == KeyManager.EntryType.TRUSTED_CERTIFICATE);
+
+    try
+    {
+      mgr.listAliases(null, null, null, 0);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+  }
+
+
   // Subclassing tests ----------------------------------------------------------------------------
 
   /**
@@ -698,6 +1225,28 @@ public class KeyManagerTest
 
 
 
+  // Helpers --------------------------------------------------------------------------------------
+
+  private void assertEncoded(KeyManager mgr, String alias, Certificate cert) throws Exception
+  {
+    ByteBuffer der = mgr.getEncodedCertificate(alias);
+    byte[] bytes = new byte[der.remaining()];
+    der.get(bytes);
+
+    Assert.assertTrue(Arrays.equals(bytes, cert.getEncoded()));
+
+    ByteBuffer pem = mgr.getPEMCertificate(alias);
+    bytes = new byte[pem.remaining()];
+    pem.get(bytes);
+
+    Certificate parsed = CertificateFactory.getInstance("X.509").generateCertificate(
+        new ByteArrayInputStream(bytes)
+    );
+
+    Assert.assertTrue(parsed.equals(cert));
+  }
+
+
   // Nested Classes -------------------------------------------------------------------------------
 
   private static class TestKeyManager extends KeyManager
@@ -741,6 +1290,17 @@ public class KeyManagerTest
     }
   }
 
+  /**
+   * Sharded key manager using Sun proprietary JCEKS storage for each shard.
+   */
+  private static class ShardedJCEKSStorage extends KeyManager
+  {
+    ShardedJCEKSStorage(int shards) throws KeyManagerException
+    {
+      super(Storage.JCEKS, JCEKSStorage.findJCEKSProvider(), shards);
+    }
+  }
+
   /**
    * UBER keystorage from BouncyCastle.
    */
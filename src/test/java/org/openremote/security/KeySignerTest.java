@@ -28,6 +28,7 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
 
 /**
  * Unit tests for {@link KeySigner}.
@@ -76,6 +77,25 @@ public class KeySignerTest
     Assert.assertTrue(config.getIssuer().toX500Name().contains("CN=foo"));
   }
 
+  /**
+   * Tests the parsed X.500 issuer and subject names and that a self-signed configuration's
+   * subject shares the parsed issuer name.
+   */
+  @Test public void testConfigurationIssuerPrincipal() throws Exception
+  {
+    KeyPair keyPair = KeySignerTest.generateRSAKeyPair();
+
+    KeySigner.Configuration config = KeySigner.Configuration.createDefault(keyPair, "principal");
+
+    X500Principal expected = new X500Principal(
+        "CN=principal,L=Atlanta,ST=US-GA,C=US,O=OpenRemote Inc."
+    );
+
+    Assert.assertTrue(config.getIssuer().toX500Principal().equals(expected));
+    Assert.assertTrue(config.getSubject().toX500Principal().equals(expected));
+    Assert.assertTrue(config.getIssuer().toX500Principal() == config.getSubject().toX500Principal());
+  }
+
   /**
    * Basic test for null guard for issuer common name in configuration constructor.
    */
@@ -0,0 +1,284 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Unit tests for {@link org.openremote.security.KeyStoreMigration}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class KeyStoreMigrationTest
+{
+
+  /**
+   * Tests migrating password, private key and certificate entries from UBER to PKCS #12.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testMigrate() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      URI source = createFile().toURI();
+      URI target = createFile().toURI();
+
+      PasswordManager passwords = new PasswordManager(source, new char[] { 'm' });
+      passwords.addPassword("password", new byte[] { 'p', 'w' }, new char[] { 'm' });
+
+      PrivateKeyManager keys = PrivateKeyManager.create(KeyManager.Storage.UBER);
+      Certificate cert = keys.addKey("key", null);
+
+      TestStore store = new TestStore(KeyManager.Storage.UBER);
+      store.load(source, new char[] { 'm' });
+      store.add("key", new KeyStore.PrivateKeyEntry(keys.getKey("key"), new Certificate[] { cert }), null);
+      store.add("cert", new KeyStore.TrustedCertificateEntry(cert), null);
+      store.save(source, new char[] { 'm' });
+
+      char[] sourcePassword = new char[] { 'm' };
+      char[] targetPassword = new char[] { 't' };
+
+      KeyStoreMigration.Report report = KeyStoreMigration.create(
+          KeyManager.Storage.UBER, KeyManager.Storage.PKCS12
+      ).migrate(source, sourcePassword, target, targetPassword);
+
+      Assert.assertTrue(report.getEntryCount() == 3);
+      Assert.assertTrue(report.getPrivateKeyCount() == 1);
+      Assert.assertTrue(report.getSecretKeyCount() == 1);
+      Assert.assertTrue(report.getConvertedSecretKeyCount() == 1);
+      Assert.assertTrue(report.getCertificateCount() == 1);
+      Assert.assertTrue(sourcePassword[0] == 0);
+      Assert.assertTrue(targetPassword[0] == 0);
+
+      TestStore migrated = new TestStore(KeyManager.Storage.PKCS12);
+      migrated.load(target, new char[] { 't' });
+
+      KeyStore.SecretKeyEntry password = (KeyStore.SecretKeyEntry)migrated.retrieveKey(
+          "password", new KeyStore.PasswordProtection(new char[] { 'm' })
+      );
+
+      Assert.assertTrue(Arrays.equals(
+          password.getSecretKey().getEncoded(), new byte[] { 'p', 'w' }
+      ));
+
+      KeyStore.PrivateKeyEntry key = (KeyStore.PrivateKeyEntry)migrated.retrieveKey(
+          "key", new KeyStore.PasswordProtection(KeyManager.EMPTY_KEY_PASSWORD)
+      );
+
+      Assert.assertTrue(key.getCertificate().equals(cert));
+      Assert.assertTrue(migrated.getCertificate("cert").equals(cert));
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests migrating aliases that only differ by case to a storage that does not distinguish
+   * them.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testAliasCollision() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      URI source = createFile().toURI();
+
+      Certificate cert = PrivateKeyManager.create(KeyManager.Storage.BKS).addKey("key", null);
+
+      TestStore store = new TestStore(KeyManager.Storage.BKS);
+      store.add("cert", new KeyStore.TrustedCertificateEntry(cert), null);
+      store.add("CERT", new KeyStore.TrustedCertificateEntry(cert), null);
+      store.save(source, new char[] { 'm' });
+
+      try
+      {
+        KeyStoreMigration.create(KeyManager.Storage.BKS, KeyManager.Storage.JCEKS).migrate(
+            source, new char[] { 'm' }, createFile().toURI(), new char[] { 't' }
+        );
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests migrating with an incorrect entry password.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testWrongEntryPassword() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      URI source = createFile().toURI();
+
+      PasswordManager passwords = new PasswordManager(source, new char[] { 'm' });
+      passwords.addPassword("password", new byte[] { 'p', 'w' }, new char[] { 'm' });
+
+      KeyStoreMigration migration = KeyStoreMigration.create(
+          KeyManager.Storage.UBER, KeyManager.Storage.JCEKS
+      );
+
+      migration.setEntryPassword(new char[] { 'x' });
+
+      try
+      {
+        migration.migrate(source, new char[] { 'm' }, createFile().toURI(), new char[] { 't' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests migrating from a missing source keystore and to an existing target keystore.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testMissingSourceAndExistingTarget() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      File target = createFile();
+
+      KeyStoreMigration migration = KeyStoreMigration.create(
+          KeyManager.Storage.UBER, KeyManager.Storage.JCEKS
+      );
+
+      char[] sourcePassword = new char[] { 'm' };
+
+      try
+      {
+        migration.migrate(createFile().toURI(), sourcePassword, target.toURI(), new char[] { 't' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      Assert.assertFalse(target.exists());
+      Assert.assertTrue(sourcePassword[0] == 0);
+
+      // Existing target is only overwritten when allowed...
+
+      URI source = createFile().toURI();
+
+      PasswordManager passwords = new PasswordManager(source, new char[] { 'm' });
+      passwords.addPassword("password", new byte[] { 'p', 'w' }, new char[] { 'm' });
+
+      Assert.assertTrue(target.createNewFile());
+
+      try
+      {
+        migration.migrate(source, new char[] { 'm' }, target.toURI(), new char[] { 't' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      Assert.assertTrue(target.length() == 0);
+
+      migration.setOverwrite(true);
+
+      Assert.assertTrue(
+          migration.migrate(source, new char[] { 'm' }, target.toURI(), new char[] { 't' })
+              .getEntryCount() == 1
+      );
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private File createFile()
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "test.keystore." + UUID.randomUUID());
+    file.deleteOnExit();
+
+    return file;
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  private static class TestStore extends KeyManager
+  {
+    private TestStore(Storage storage) throws KeyManagerException
+    {
+      super(storage, storage.getSecurityProvider());
+    }
+  }
+}
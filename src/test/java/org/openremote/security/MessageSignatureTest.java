@@ -0,0 +1,279 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unit tests for {@link org.openremote.security.MessageSignature}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class MessageSignatureTest
+{
+
+  /**
+   * Tests signing and verifying byte array and byte buffer messages.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testSignVerify() throws Exception
+  {
+    KeyPair keyPair = createKeyPair();
+
+    MessageSignature signer = MessageSignature.createSigner(
+        KeySigner.SignatureAlgorithm.SHA256_WITH_ECDSA, keyPair.getPrivate()
+    );
+
+    MessageSignature verifier = MessageSignature.createVerifier(
+        KeySigner.SignatureAlgorithm.SHA256_WITH_ECDSA, keyPair.getPublic()
+    );
+
+    byte[] message = "test message".getBytes(Charset.forName("UTF-8"));
+    byte[] signature = signer.sign(message);
+
+    Assert.assertTrue(signer.isSigner());
+    Assert.assertFalse(verifier.isSigner());
+    Assert.assertTrue(verifier.verify(message, signature));
+    Assert.assertFalse(verifier.verify("other message".getBytes(Charset.forName("UTF-8")), signature));
+
+    // Direct buffer, payload in the middle of the buffer...
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+    buffer.put(new byte[] { 1, 2, 3 });
+    buffer.put(message);
+    buffer.flip();
+    buffer.position(3);
+
+    Assert.assertTrue(verifier.verify(buffer, signature));
+    Assert.assertTrue(buffer.position() == 3);
+
+    Assert.assertTrue(verifier.verify(message, signer.sign(buffer)));
+    Assert.assertTrue(buffer.position() == 3);
+
+    // Malformed signature does not break the following verifications...
+
+    Assert.assertFalse(verifier.verify(message, new byte[] { 0x30, 0x01, 0x00 }));
+    Assert.assertTrue(verifier.verify(message, signature));
+
+    try
+    {
+      signer.verify(message, signature);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeySigner.SigningException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      verifier.sign(message);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeySigner.SigningException e)
+    {
+      // expected...
+    }
+
+    // Key does not match the signature algorithm...
+
+    try
+    {
+      MessageSignature.createSigner(
+          KeySigner.SignatureAlgorithm.SHA256_WITH_RSA, keyPair.getPrivate()
+      );
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeySigner.SigningException e)
+    {
+      // expected...
+    }
+  }
+
+  /**
+   * Tests shared signers and verifiers used from multiple threads.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testConcurrentUse() throws Exception
+  {
+    KeyPair keyPair = createKeyPair();
+
+    final MessageSignature signer = MessageSignature.createSigner(
+        KeySigner.SignatureAlgorithm.SHA384_WITH_ECDSA, keyPair.getPrivate()
+    );
+
+    final MessageSignature verifier = MessageSignature.createVerifier(
+        KeySigner.SignatureAlgorithm.SHA384_WITH_ECDSA, keyPair.getPublic()
+    );
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try
+    {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+      for (int thread = 0; thread < 4; ++thread)
+      {
+        final int id = thread;
+
+        results.add(executor.submit(new Callable<Boolean>()
+        {
+          @Override public Boolean call() throws Exception
+          {
+            for (int i = 0; i < 50; ++i)
+            {
+              byte[] message = ("message " + id + "-" + i).getBytes(Charset.forName("UTF-8"));
+
+              if (!verifier.verify(ByteBuffer.wrap(message), signer.sign(message)))
+              {
+                return false;
+              }
+            }
+
+            return true;
+          }
+        }));
+      }
+
+      for (Future<Boolean> result : results)
+      {
+        Assert.assertTrue(result.get());
+      }
+    }
+
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Tests signing with a private key manager alias and verifying with a trust store alias.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testKeyManagerAliases() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    Certificate cert = keyMgr.addKey("signer", new char[] { 's' }, "Signer");
+    Certificate other = keyMgr.addKey("other", new char[] { 'o' }, "Other");
+
+    MessageSignature signer = keyMgr.getSigner("signer", new char[] { 's' });
+
+    Assert.assertTrue(signer.getAlgorithm() == KeyManager.AsymmetricKeyAlgorithm.EC.getDefaultSignatureAlgorithm());
+
+    TrustStore trust = TrustStore.create(KeyManager.Storage.BKS, SecurityProvider.BC);
+    trust.addTrustedCertificate("signer", cert);
+
+    byte[] message = "payload".getBytes(Charset.forName("UTF-8"));
+    byte[] signature = signer.sign(message);
+
+    Assert.assertTrue(trust.verify("signer", signer.getAlgorithm(), ByteBuffer.wrap(message), signature));
+    Assert.assertTrue(
+        trust.getVerifier("signer", signer.getAlgorithm()) ==
+        trust.getVerifier("signer", signer.getAlgorithm())
+    );
+
+    // Replacing the trusted certificate discards its cached verifiers...
+
+    trust.addTrustedCertificate("signer", other);
+
+    Assert.assertFalse(trust.verify("signer", signer.getAlgorithm(), ByteBuffer.wrap(message), signature));
+
+    // Cached verifiers are discarded by any alias spelling in case-insensitive storage...
+
+    TrustStore jceks = TrustStore.create(KeyManager.Storage.JCEKS);
+    jceks.addTrustedCertificate("Signer", cert);
+
+    Assert.assertTrue(jceks.verify("Signer", signer.getAlgorithm(), ByteBuffer.wrap(message), signature));
+    Assert.assertTrue(
+        jceks.getVerifier("Signer", signer.getAlgorithm()) ==
+        jceks.getVerifier("SIGNER", signer.getAlgorithm())
+    );
+
+    jceks.addTrustedCertificate("SIGNER", other);
+
+    Assert.assertFalse(jceks.verify("Signer", signer.getAlgorithm(), ByteBuffer.wrap(message), signature));
+
+    Assert.assertTrue(jceks.remove("signer"));
+
+    try
+    {
+      jceks.getVerifier("Signer", signer.getAlgorithm());
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      trust.getVerifier("nothere", signer.getAlgorithm());
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private KeyPair createKeyPair() throws Exception
+  {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(
+        "EC", SecurityProvider.BC.getProviderInstance()
+    );
+
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+
+    return generator.generateKeyPair();
+  }
+}
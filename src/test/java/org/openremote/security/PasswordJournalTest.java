@@ -0,0 +1,471 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for {@link org.openremote.security.PasswordJournal}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class PasswordJournalTest
+{
+
+  /**
+   * Low iteration count to keep the tests fast.
+   */
+  private static final int TEST_ITERATIONS = 1000;
+
+
+  /**
+   * Basic add, get and remove with a journal that is reopened in between.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testAddGetRemove() throws Exception
+  {
+    File file = createFile();
+
+    PasswordJournal journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      mgr.addPassword("foo", new byte[] { '1', '2' }, new char[] { 'm' });
+      mgr.addPassword("bar", new byte[] { '3' }, new char[] { 'm' });
+      mgr.removePassword("bar", new char[] { 'm' });
+
+      Assert.assertTrue(mgr.contains("foo"));
+      Assert.assertFalse(mgr.contains("bar"));
+      Assert.assertTrue(mgr.size() == 1);
+    }
+
+    finally
+    {
+      journal.close();
+    }
+
+    // Reopen, index is rebuilt from the journal...
+
+    journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      Assert.assertTrue(mgr.size() == 1);
+      Assert.assertTrue(Arrays.equals(mgr.getPassword("foo", new char[] { 'm' }), new byte[] { '1', '2' }));
+
+      try
+      {
+        mgr.getPassword("bar", new char[] { 'm' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (PasswordManager.PasswordNotFoundException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * Test that passwords are erased when the journal backed manager completes.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testPasswordsCleared() throws Exception
+  {
+    PasswordJournal journal = new PasswordJournal(createFile().toURI(), TEST_ITERATIONS);
+
+    char[] master = new char[] { 'm' };
+    PasswordManager mgr = PasswordManager.create(journal, master);
+
+    try
+    {
+      Assert.assertTrue(master[0] == 0);
+
+      byte[] password = new byte[] { '1' };
+      master = new char[] { 'm' };
+
+      mgr.addPassword("foo", password, master);
+
+      Assert.assertTrue(password[0] == 0);
+      Assert.assertTrue(master[0] == 0);
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * Test opening a journal with an incorrect master password.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testWrongMasterPassword() throws Exception
+  {
+    File file = createFile();
+
+    PasswordJournal journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      mgr.addPassword("foo", new byte[] { '1' }, new char[] { 'm' });
+
+      try
+      {
+        mgr.addPassword("bar", new byte[] { '1' }, new char[] { 'x' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      journal.close();
+    }
+
+    journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+
+    try
+    {
+      PasswordManager.create(journal, new char[] { 'x' });
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * Test that compaction removes obsolete records and preserves live entries.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testCompaction() throws Exception
+  {
+    File file = createFile();
+
+    PasswordJournal journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    journal.setCompactionThreshold(Integer.MAX_VALUE);
+
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      for (int i = 0; i < 50; ++i)
+      {
+        mgr.addPassword("foo", new byte[] { (byte)i }, new char[] { 'm' });
+      }
+
+      mgr.addPassword("bar", new byte[] { 'b' }, new char[] { 'm' });
+
+      long before = journal.getJournalLength();
+
+      journal.compact();
+
+      Assert.assertTrue(journal.getJournalLength() < before);
+      Assert.assertTrue(journal.getJournalLength() == file.length());
+
+      mgr.addPassword("acme", new byte[] { 'a' }, new char[] { 'm' });
+    }
+
+    finally
+    {
+      journal.close();
+    }
+
+    journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      Assert.assertTrue(mgr.size() == 3);
+      Assert.assertTrue(Arrays.equals(mgr.getPassword("foo", new char[] { 'm' }), new byte[] { 49 }));
+      Assert.assertTrue(Arrays.equals(mgr.getPassword("bar", new char[] { 'm' }), new byte[] { 'b' }));
+      Assert.assertTrue(Arrays.equals(mgr.getPassword("acme", new char[] { 'm' }), new byte[] { 'a' }));
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * Test explicit compactions running alongside background compactions.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testConcurrentCompaction() throws Exception
+  {
+    File file = createFile();
+
+    final PasswordJournal journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    journal.setCompactionThreshold(5);
+
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    Thread compactor = new Thread()
+    {
+      @Override public void run()
+      {
+        try
+        {
+          while (!done.get())
+          {
+            journal.compact();
+          }
+        }
+
+        catch (Exception exception)
+        {
+          failure.set(exception);
+        }
+      }
+    };
+
+    try
+    {
+      compactor.start();
+
+      for (int i = 0; i < 200; ++i)
+      {
+        mgr.addPassword("key" + (i % 4), new byte[] { (byte)i }, new char[] { 'm' });
+      }
+    }
+
+    finally
+    {
+      done.set(true);
+      compactor.join();
+      journal.close();
+    }
+
+    Assert.assertTrue(failure.get() == null, "" + failure.get());
+    Assert.assertFalse(new File(file.getPath() + ".compact").exists());
+
+    PasswordJournal reopened = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    mgr = PasswordManager.create(reopened, new char[] { 'm' });
+
+    try
+    {
+      Assert.assertTrue(mgr.size() == 4);
+
+      for (int i = 196; i < 200; ++i)
+      {
+        Assert.assertTrue(Arrays.equals(
+            mgr.getPassword("key" + (i % 4), new char[] { 'm' }), new byte[] { (byte)i }
+        ));
+      }
+    }
+
+    finally
+    {
+      reopened.close();
+    }
+  }
+
+  /**
+   * Test that a journal moved aside by an interrupted compaction is restored on open.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testInterruptedCompaction() throws Exception
+  {
+    File file = createFile();
+    File backup = new File(file.getPath() + ".bak");
+    backup.deleteOnExit();
+
+    PasswordJournal journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      mgr.addPassword("foo", new byte[] { '1' }, new char[] { 'm' });
+    }
+
+    finally
+    {
+      journal.close();
+    }
+
+    Assert.assertTrue(file.renameTo(backup));
+
+    journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      Assert.assertTrue(file.exists());
+      Assert.assertFalse(backup.exists());
+      Assert.assertTrue(Arrays.equals(mgr.getPassword("foo", new char[] { 'm' }), new byte[] { '1' }));
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * Test that an incomplete record at the end of the journal is discarded on open.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testTruncatedRecord() throws Exception
+  {
+    File file = createFile();
+
+    PasswordJournal journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    long length;
+
+    try
+    {
+      mgr.addPassword("foo", new byte[] { '1' }, new char[] { 'm' });
+
+      length = journal.getJournalLength();
+
+      mgr.addPassword("bar", new byte[] { '2' }, new char[] { 'm' });
+    }
+
+    finally
+    {
+      journal.close();
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+
+    journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      Assert.assertTrue(mgr.contains("foo"));
+      Assert.assertFalse(mgr.contains("bar"));
+      Assert.assertTrue(file.length() == length);
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * Test that a modified record is detected when the journal is opened.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testTamperedRecord() throws Exception
+  {
+    File file = createFile();
+
+    PasswordJournal journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      mgr.addPassword("foo", new byte[] { '1' }, new char[] { 'm' });
+    }
+
+    finally
+    {
+      journal.close();
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(raf.length() - 1);
+    int last = raf.read();
+    raf.seek(raf.length() - 1);
+    raf.write(last ^ 0xFF);
+    raf.close();
+
+    journal = new PasswordJournal(file.toURI(), TEST_ITERATIONS);
+
+    try
+    {
+      PasswordManager.create(journal, new char[] { 'm' });
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private File createFile()
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "test.journal-" + UUID.randomUUID());
+    file.deleteOnExit();
+
+    return file;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import java.security.Security;
+
+/**
+ * Stand-alone benchmark for password and private key lookup latency with existing (hit) and
+ * absent (miss) aliases, comparing the exception based getPassword()/getKey() with
+ * tryGetPassword()/tryGetKey(). This is not part of the unit test suite. Run it with the test
+ * classpath :
+ *
+ * <pre>
+ *   java org.openremote.security.PasswordLookupBenchmark [iterations]
+ * </pre>
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class PasswordLookupBenchmark
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  public static final int DEFAULT_ITERATIONS = 100000;
+
+  private static final int ENTRIES = 100;
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  public static void main(String... args) throws Exception
+  {
+    int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+    // Hits decrypt the password entry (UBER storage), which is orders of magnitude slower
+    // than a miss, so they are measured with fewer iterations...
+
+    int hits = Math.max(1, iterations / 100);
+
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PasswordManager passwords = new PasswordManager();
+
+      for (int i = 0; i < ENTRIES; ++i)
+      {
+        passwords.addPassword("password-" + i, new byte[] { 'p', 'w' }, new char[] { 'm' });
+      }
+
+      PrivateKeyManager keys = PrivateKeyManager.create(KeyManager.Storage.BKS);
+      keys.addKey("key", new char[] { 'k' });
+
+      // Two rounds, the first one serves as warm-up...
+
+      for (int round = 0; round < 2; ++round)
+      {
+        System.out.println(round == 0 ? "Warm-up:" : "Results:");
+
+        report("getPassword (hit)", passwordHits(passwords, hits, false), hits);
+        report("tryGetPassword (hit)", passwordHits(passwords, hits, true), hits);
+        report("getPassword (miss)", passwordMisses(passwords, iterations, false), iterations);
+        report("tryGetPassword (miss)", passwordMisses(passwords, iterations, true), iterations);
+        report("getKey (miss)", keyMisses(keys, iterations, false), iterations);
+        report("tryGetKey (miss)", keyMisses(keys, iterations, true), iterations);
+
+        System.out.println();
+      }
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+
+  private static long passwordHits(PasswordManager mgr, int iterations, boolean tryGet)
+      throws Exception
+  {
+    long start = System.nanoTime();
+
+    for (int i = 0; i < iterations; ++i)
+    {
+      String alias = "password-" + (i % ENTRIES);
+
+      byte[] password = tryGet
+          ? mgr.tryGetPassword(alias, new char[] { 'm' })
+          : mgr.getPassword(alias, new char[] { 'm' });
+
+      password[0] = 0;
+    }
+
+    return System.nanoTime() - start;
+  }
+
+  private static long passwordMisses(PasswordManager mgr, int iterations, boolean tryGet)
+  {
+    char[] master = new char[] { 'm' };
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < iterations; ++i)
+    {
+      if (tryGet)
+      {
+        try
+        {
+          mgr.tryGetPassword("absent", master);
+        }
+
+        catch (PasswordManager.PasswordNotFoundException exception)
+        {
+          throw new Error("Unexpected exception", exception);
+        }
+      }
+
+      else
+      {
+        try
+        {
+          mgr.getPassword("absent", master);
+        }
+
+        catch (PasswordManager.PasswordNotFoundException exception)
+        {
+          // expected...
+        }
+      }
+    }
+
+    return System.nanoTime() - start;
+  }
+
+  private static long keyMisses(PrivateKeyManager mgr, int iterations, boolean tryGet)
+  {
+    char[] password = new char[] { 'k' };
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < iterations; ++i)
+    {
+      try
+      {
+        if (tryGet)
+        {
+          mgr.tryGetKey("absent", password);
+        }
+
+        else
+        {
+          mgr.getKey("absent", password);
+        }
+      }
+
+      catch (KeyManager.KeyManagerException exception)
+      {
+        // expected with getKey()...
+      }
+    }
+
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, long nanos, int iterations)
+  {
+    System.out.println(String.format("  %-24s %10.1f ns/op", name, (double)nanos / iterations));
+  }
+}
@@ -27,6 +27,8 @@ import org.testng.annotations.AfterSuite;
 import org.testng.annotations.Test;
 
 import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.net.URI;
 import java.security.KeyStore;
@@ -996,6 +998,42 @@ public class PasswordManagerTest
     }
   }
 
+  /**
+   * Tests password lookups with absent and existing aliases.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testTryGetPassword() throws Exception
+  {
+    try
+    {
+      Security.addProvider(new BouncyCastleProvider());
+
+      PasswordManager mgr = new PasswordManager();
+
+      mgr.addPassword("testing", new byte[] { 'a', 'b' }, new char[] { '1' });
+
+      char[] master = new char[] { '1' };
+
+      Assert.assertTrue(mgr.tryGetPassword("foo", master) == null);
+      Assert.assertTrue(master[0] == 0);
+      Assert.assertTrue(mgr.tryGetPassword(null, new char[] { '1' }) == null);
+
+      byte[] password = mgr.tryGetPassword("testing", new char[] { '1' });
+
+      Assert.assertTrue(Arrays.equals(password, new byte[] { 'a', 'b'}));
+
+      mgr.removePassword("testing", new char[] { '1' });
+
+      Assert.assertTrue(mgr.tryGetPassword("testing", new char[] { '1' }) == null);
+    }
+
+    finally
+    {
+      Security.removeProvider("BC");
+    }
+  }
+
   /**
    * Test passwords above the ANSI range.
    *
@@ -1269,6 +1307,182 @@ public class PasswordManagerTest
   }
 
 
+  // Test Namespaces ------------------------------------------------------------------------------
+
+  /**
+   * Tests qualified alias routing, bulk export and bulk delete of password namespaces.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testNamespaces() throws Exception
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "test.keystore." + UUID.randomUUID());
+    File journalFile = new File(dir, "test.journal." + UUID.randomUUID());
+    file.deleteOnExit();
+    journalFile.deleteOnExit();
+
+    try
+    {
+      Security.addProvider(new BouncyCastleProvider());
+
+      PasswordManager mgr = new PasswordManager();
+
+      PasswordManager tenant1 = mgr.createNamespace("tenant1", file.toURI(), new char[] { 'm' });
+      mgr.createNamespace("tenant2", new PasswordJournal(journalFile.toURI(), 1000), new char[] { 'm' });
+
+      Assert.assertTrue(mgr.getNamespaces().first().equals("tenant1"));
+      Assert.assertTrue(mgr.getNamespace("tenant1") == tenant1);
+
+      mgr.addPassword("tenant1/a", new byte[] { '1' }, new char[] { 'm' });
+      mgr.addPassword("tenant1/b", new byte[] { '2' }, new char[] { 'm' });
+      mgr.addPassword("tenant2/a", new byte[] { '3' }, new char[] { 'm' });
+      mgr.addPassword("other", new byte[] { '4' }, new char[] { 'm' });
+
+      // Qualified aliases of namespaces that do not exist are not stored here...
+
+      try
+      {
+        mgr.addPassword("other/a", new byte[] { '4' }, new char[] { 'm' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      // Namespaced passwords are stored in the namespace...
+
+      Assert.assertTrue(mgr.size() == 1);
+      Assert.assertFalse(mgr.contains("other/a"));
+      Assert.assertTrue(tenant1.size() == 2);
+      Assert.assertTrue(tenant1.contains("a"));
+      Assert.assertTrue(mgr.contains("tenant2/a"));
+      Assert.assertFalse(mgr.contains("tenant2/b"));
+
+      Assert.assertTrue(Arrays.equals(mgr.getPassword("tenant1/b", new char[] { 'm' }), new byte[] { '2' }));
+      Assert.assertTrue(Arrays.equals(mgr.getPassword("tenant2/a", new char[] { 'm' }), new byte[] { '3' }));
+      Assert.assertTrue(mgr.tryGetPassword("tenant1/c", new char[] { 'm' }) == null);
+
+      mgr.removePassword("tenant1/a", new char[] { 'm' });
+
+      Assert.assertFalse(mgr.contains("tenant1/a"));
+
+      // Namespace is persisted to its own file...
+
+      PasswordManager loaded = new PasswordManager(file.toURI(), new char[] { 'm' });
+
+      Assert.assertTrue(loaded.size() == 1);
+      Assert.assertTrue(loaded.contains("b"));
+
+      // Bulk export of a journal namespace...
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      char[] exportPassword = new char[] { 'm' };
+
+      Assert.assertTrue(mgr.exportNamespace("tenant2", out, exportPassword) == out.size());
+      Assert.assertTrue(exportPassword[0] == 0);
+
+      try
+      {
+        mgr.exportNamespace("tenant2", new ByteArrayOutputStream(), new char[] { 'x' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      KeyStore exported = KeyStore.getInstance(KeyManager.Storage.UBER.getStorageName(), "BC");
+      exported.load(new ByteArrayInputStream(out.toByteArray()), new char[] { 'm' });
+
+      Assert.assertTrue(exported.containsAlias("a"));
+
+      // Bulk delete...
+
+      Assert.assertTrue(mgr.deleteNamespace("tenant1"));
+      Assert.assertTrue(mgr.deleteNamespace("tenant2"));
+      Assert.assertFalse(mgr.deleteNamespace("tenant2"));
+      Assert.assertFalse(file.exists());
+      Assert.assertFalse(journalFile.exists());
+      Assert.assertFalse(mgr.contains("tenant1/b"));
+      Assert.assertTrue(mgr.getNamespaces().isEmpty());
+
+      // Writes to a deleted namespace fail instead of going to this password manager...
+
+      try
+      {
+        mgr.addPassword("tenant1/b", new byte[] { '2' }, new char[] { 'm' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      Assert.assertTrue(mgr.size() == 1);
+
+      try
+      {
+        mgr.createNamespace("a/b");
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      mgr.createNamespace("tenant3");
+
+      try
+      {
+        mgr.createNamespace("tenant3");
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      // Namespace would hide a qualified alias stored directly in the keystore...
+
+      mgr.add(
+          "legacy/a", new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[] { '5' }, "password")),
+          new KeyStore.PasswordProtection(new char[] { 'm' })
+      );
+
+      try
+      {
+        mgr.createNamespace("legacy");
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      Assert.assertTrue(Arrays.equals(mgr.getPassword("legacy/a", new char[] { 'm' }), new byte[] { '5' }));
+    }
+
+    finally
+    {
+      Security.removeProvider("BC");
+    }
+  }
+
+
   // Test PasswordNotFoundException ---------------------------------------------------------------
 
   /**
@@ -1304,6 +1518,30 @@ public class PasswordManagerTest
     Assert.assertTrue(e.getCause().getMessage().equals("foo"));
   }
 
+  /**
+   * Test disabling stack traces of password not found exceptions.
+   */
+  @Test public void testNoStackTrace()
+  {
+    try
+    {
+      PasswordManager.PasswordNotFoundException.setStackTraceEnabled(false);
+
+      Assert.assertTrue(
+          new PasswordManager.PasswordNotFoundException("test").getStackTrace().length == 0
+      );
+    }
+
+    finally
+    {
+      PasswordManager.PasswordNotFoundException.setStackTraceEnabled(true);
+    }
+
+    Assert.assertTrue(
+        new PasswordManager.PasswordNotFoundException("test").getStackTrace().length > 0
+    );
+  }
+
 
   // Nested Classes -------------------------------------------------------------------------------
 
@@ -0,0 +1,301 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link org.openremote.security.PasswordSession}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class PasswordSessionTest
+{
+
+  /**
+   * Tests session reads with journal storage.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testJournalSession() throws Exception
+  {
+    File file = createFile();
+
+    PasswordJournal journal = new PasswordJournal(file.toURI(), 1000);
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      mgr.addPassword("foo", new byte[] { '1', '2' }, new char[] { 'm' });
+
+      char[] master = new char[] { 'm' };
+      PasswordSession session = mgr.unlock(master, 1, TimeUnit.MINUTES);
+
+      Assert.assertTrue(master[0] == 0);
+      Assert.assertTrue(Arrays.equals(session.getPassword("foo"), new byte[] { '1', '2' }));
+      Assert.assertTrue(session.tryGetPassword("bar") == null);
+
+      mgr.addPassword("bar", new byte[] { '3' }, new char[] { 'm' });
+
+      Assert.assertTrue(Arrays.equals(session.getPassword("bar"), new byte[] { '3' }));
+
+      session.close();
+
+      Assert.assertFalse(session.isOpen());
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * Tests unlocking journal storage with an incorrect master password.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testJournalSessionWrongPassword() throws Exception
+  {
+    PasswordJournal journal = new PasswordJournal(createFile().toURI(), 1000);
+    PasswordManager mgr = PasswordManager.create(journal, new char[] { 'm' });
+
+    try
+    {
+      mgr.unlock(new char[] { 'x' }, 1, TimeUnit.MINUTES);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    finally
+    {
+      journal.close();
+    }
+  }
+
+  /**
+   * Tests session reads and cache invalidation with keystore storage.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testKeyStoreSession() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PasswordManager mgr = new PasswordManager();
+      mgr.addPassword("foo", new byte[] { 'a' }, new char[] { 'm' });
+
+      PasswordSession session = mgr.unlock(new char[] { 'm' }, 1, TimeUnit.MINUTES);
+
+      byte[] password = session.getPassword("foo");
+      Assert.assertTrue(Arrays.equals(password, new byte[] { 'a' }));
+
+      // Returned passwords are copies, clearing one must not affect the session...
+
+      password[0] = 0;
+      Assert.assertTrue(Arrays.equals(session.getPassword("foo"), new byte[] { 'a' }));
+
+      mgr.removePassword("foo", new char[] { 'm' });
+      mgr.addPassword("foo", new byte[] { 'b' }, new char[] { 'm' });
+
+      Assert.assertTrue(Arrays.equals(session.getPassword("foo"), new byte[] { 'b' }));
+
+      mgr.removePassword("foo", new char[] { 'm' });
+
+      Assert.assertTrue(session.tryGetPassword("foo") == null);
+
+      try
+      {
+        session.getPassword("foo");
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (PasswordManager.PasswordNotFoundException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests that a closed session can no longer be used.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testClose() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PasswordManager mgr = new PasswordManager();
+      mgr.addPassword("foo", new byte[] { 'a' }, new char[] { 'm' });
+
+      PasswordSession session = mgr.unlock(new char[] { 'm' }, 1, TimeUnit.MINUTES);
+
+      Assert.assertTrue(session.isOpen());
+
+      session.getPassword("foo");
+      session.close();
+      session.close();
+
+      Assert.assertFalse(session.isOpen());
+
+      try
+      {
+        session.getPassword("foo");
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (PasswordManager.PasswordNotFoundException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests that an idle session is closed automatically.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testIdleTimeout() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PasswordManager mgr = new PasswordManager();
+      mgr.addPassword("foo", new byte[] { 'a' }, new char[] { 'm' });
+
+      PasswordSession session = mgr.unlock(new char[] { 'm' }, 100, TimeUnit.MILLISECONDS);
+
+      session.getPassword("foo");
+
+      Thread.sleep(300);
+
+      Assert.assertFalse(session.isOpen());
+
+      try
+      {
+        session.getPassword("foo");
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (PasswordManager.PasswordNotFoundException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests unlocking with illegal arguments.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testIllegalArguments() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PasswordManager mgr = new PasswordManager();
+
+      try
+      {
+        mgr.unlock(new char[] { }, 1, TimeUnit.MINUTES);
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      char[] master = new char[] { 'm' };
+
+      try
+      {
+        mgr.unlock(master, 0, TimeUnit.MINUTES);
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+
+      Assert.assertTrue(master[0] == 0);
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private File createFile()
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "test.journal-" + UUID.randomUUID());
+    file.deleteOnExit();
+
+    return file;
+  }
+}
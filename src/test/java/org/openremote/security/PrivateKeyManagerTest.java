@@ -22,19 +22,33 @@ package org.openremote.security;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.Security;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.openremote.security.provider.BouncyCastleKeySigner;
+import org.openremote.security.provider.BouncyCastleKeySignerTest;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -697,6 +711,410 @@ public class PrivateKeyManagerTest
   }
 
 
+  /**
+   * Tests private key lookups with absent and existing aliases, including alias case
+   * handling of PKCS12 storage.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testTryGetKey() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    keyMgr.addKey("MyKey", new char[] { 'a' }, "testIssuer");
+
+    Assert.assertTrue(keyMgr.tryGetKey("foo", new char[] { 'a' }) == null);
+    Assert.assertTrue(keyMgr.tryGetKey("foo") == null);
+    Assert.assertTrue(keyMgr.tryGetKey(null) == null);
+    Assert.assertTrue(keyMgr.tryGetKey("MyKey", new char[] { 'a' }) != null);
+    Assert.assertTrue(keyMgr.contains("mykey"));
+
+    keyMgr.remove("mykey");
+
+    Assert.assertFalse(keyMgr.contains("MyKey"));
+    Assert.assertTrue(keyMgr.tryGetKey("MyKey", new char[] { 'a' }) == null);
+  }
+
+  /**
+   * Tests the certificate expiry index on add, renew and remove.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testExpiryIndex() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    Assert.assertTrue(keyMgr.getNextExpiry() == null);
+
+    keyMgr.addKey("long", new char[] { 'a' }, "testIssuer");
+    keyMgr.addKey("short", new char[] { 'a' }, "testIssuer");
+
+    long now = System.currentTimeMillis();
+
+    Certificate renewed = keyMgr.renewCertificate(
+        "short", new char[] { 'a' },
+        new KeySigner.Validity(new Date(now - 1000), new Date(now + TimeUnit.HOURS.toMillis(1)))
+    );
+
+    X509Certificate cert = (X509Certificate)renewed;
+
+    Assert.assertTrue(cert.getSubjectX500Principal().getName().contains("CN=testIssuer"));
+    Assert.assertTrue(keyMgr.getCertificate("short").equals(renewed));
+    Assert.assertTrue(keyMgr.getNextExpiry().getAlias().equals("short"));
+
+    List<PrivateKeyManager.Expiry> expiring =
+        keyMgr.getExpiringKeys(new Date(now + TimeUnit.DAYS.toMillis(1)));
+
+    Assert.assertTrue(expiring.size() == 1);
+    Assert.assertTrue(expiring.get(0).getNotAfterDate().before(new Date(now + 3600001)));
+
+    // Key is still usable after renewal...
+
+    Assert.assertTrue(keyMgr.getKey("short", new char[] { 'a' }) != null);
+
+    keyMgr.remove("short");
+
+    Assert.assertTrue(keyMgr.getExpiringKeys(new Date(now + TimeUnit.DAYS.toMillis(1))).isEmpty());
+    Assert.assertTrue(keyMgr.getNextExpiry().getAlias().equals("long"));
+  }
+
+  /**
+   * Tests renewal scheduler notifications and automatic renewal in bounded batches.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testRenewalScheduler() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    long now = System.currentTimeMillis();
+
+    KeySigner.Validity expiring =
+        new KeySigner.Validity(new Date(now - 1000), new Date(now + TimeUnit.HOURS.toMillis(1)));
+
+    for (int i = 0; i < 5; ++i)
+    {
+      keyMgr.addKey("key" + i, new char[] { 'a' }, "testIssuer");
+      keyMgr.renewCertificate("key" + i, new char[] { 'a' }, expiring);
+    }
+
+    keyMgr.addKey("valid", new char[] { 'a' }, "testIssuer");
+
+    final List<RenewalScheduler.Renewal> events =
+        Collections.synchronizedList(new ArrayList<RenewalScheduler.Renewal>());
+
+    RenewalScheduler scheduler = RenewalScheduler.create(keyMgr, 1, TimeUnit.DAYS);
+    scheduler.setBatchSize(2);
+    scheduler.setListener(new RenewalScheduler.Listener()
+    {
+      @Override public void expiring(RenewalScheduler.Renewal renewal)
+      {
+        events.add(renewal);
+      }
+    });
+
+    // Notify only, each expiring certificate is reported once...
+
+    Assert.assertTrue(scheduler.runBatch() == 2);
+    Assert.assertTrue(scheduler.runBatch() == 2);
+    Assert.assertTrue(scheduler.runBatch() == 1);
+    Assert.assertTrue(scheduler.runBatch() == 0);
+    Assert.assertTrue(events.size() == 5);
+    Assert.assertTrue(events.get(0).getRenewedCertificate() == null);
+
+    // Automatic renewal...
+
+    events.clear();
+
+    scheduler = RenewalScheduler.create(keyMgr, 1, TimeUnit.DAYS);
+    scheduler.setListener(new RenewalScheduler.Listener()
+    {
+      @Override public void expiring(RenewalScheduler.Renewal renewal)
+      {
+        events.add(renewal);
+      }
+    });
+    scheduler.setAutoRenew(new char[] { 'a' }, new KeySigner.Validity(365));
+
+    Assert.assertTrue(scheduler.runBatch() == 5);
+    Assert.assertTrue(events.size() == 5);
+
+    for (RenewalScheduler.Renewal renewal : events)
+    {
+      Assert.assertTrue(renewal.getFailure() == null, "" + renewal.getFailure());
+      Assert.assertTrue(renewal.getRenewedCertificate() != null);
+    }
+
+    Assert.assertTrue(keyMgr.getExpiringKeys(new Date(now + TimeUnit.DAYS.toMillis(1))).isEmpty());
+    Assert.assertTrue(scheduler.runBatch() == 0);
+
+    scheduler.stop();
+  }
+
+  /**
+   * Tests issuing certificates for single and batched certification requests with a stored
+   * issuer key.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testSignCertificationRequests() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    X509Certificate issuerCert =
+        (X509Certificate)keyMgr.addKey("ca", new char[] { 'a' }, "Test CA");
+
+    KeyPair device = KeySignerTest.generateRSAKeyPair(1024);
+
+    X509Certificate cert = keyMgr.signCertificationRequest(
+        "ca", new char[] { 'a' },
+        BouncyCastleKeySignerTest.createCertificationRequest(device, "CN=device"),
+        new KeySigner.Validity(30)
+    );
+
+    cert.verify(issuerCert.getPublicKey());
+
+    Assert.assertTrue(cert.getPublicKey().equals(device.getPublic()));
+
+    // Batch with one invalid request...
+
+    List<byte[]> requests = new ArrayList<byte[]>();
+
+    for (int i = 0; i < 40; ++i)
+    {
+      requests.add(BouncyCastleKeySignerTest.createCertificationRequest(device, "CN=device" + i));
+    }
+
+    requests.set(7, new byte[] { 'f', 'o', 'o' });
+
+    List<PrivateKeyManager.SigningResult> results = keyMgr.signCertificationRequests(
+        "ca", new char[] { 'a' }, requests, new KeySigner.Validity(30)
+    );
+
+    Assert.assertTrue(results.size() == 40);
+    Assert.assertTrue(results.get(7).getCertificate() == null);
+    Assert.assertTrue(results.get(7).getFailure() != null);
+
+    for (int i = 0; i < 40; ++i)
+    {
+      if (i != 7)
+      {
+        X509Certificate issued = results.get(i).getCertificate();
+
+        issued.verify(issuerCert.getPublicKey());
+
+        Assert.assertTrue(issued.getSubjectX500Principal().getName().equals("CN=device" + i));
+      }
+    }
+
+    try
+    {
+      keyMgr.signCertificationRequest("foo", new char[] { 'a' }, requests.get(0), new KeySigner.Validity(30));
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+  }
+
+  /**
+   * Tests issuing certificate chains with a certificate authority key of the key manager.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testCertificateAuthority() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    X509Certificate caCert = (X509Certificate)keyMgr.addKey("ca", new char[] { 'a' }, "Test CA");
+
+    PrivateKeyManager.CertificateAuthority ca =
+        keyMgr.getCertificateAuthority("ca", new char[] { 'a' });
+
+    X509Certificate cert1 = ca.addKey("device1", new char[] { 'b' }, "device1");
+    X509Certificate cert2 = ca.addKey(
+        "device2", new char[] { 'b' }, KeyManager.AsymmetricKeyAlgorithm.RSA, "device2",
+        new KeySigner.Validity(30)
+    );
+
+    Assert.assertTrue(cert1.getSubjectX500Principal().getName().contains("CN=device1"));
+    Assert.assertTrue(cert2.getIssuerX500Principal().equals(caCert.getSubjectX500Principal()));
+    Assert.assertTrue(keyMgr.getKey("device1", new char[] { 'b' }) != null);
+
+    // Full chain is stored with the key and validates against the CA certificate...
+
+    KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry)keyMgr.retrieveKey(
+        "device2", new KeyStore.PasswordProtection(new char[] { 'b' })
+    );
+
+    Certificate[] chain = entry.getCertificateChain();
+
+    Assert.assertTrue(chain.length == 2);
+    Assert.assertTrue(chain[0].equals(cert2));
+    Assert.assertTrue(chain[1].equals(caCert));
+
+    // (validate with the default provider's certificate implementation)...
+
+    CertificateFactory factory = CertificateFactory.getInstance("X.509");
+
+    CertPath path = factory.generateCertPath(Arrays.asList(
+        factory.generateCertificate(new ByteArrayInputStream(chain[0].getEncoded()))
+    ));
+
+    X509Certificate anchor = (X509Certificate)factory.generateCertificate(
+        new ByteArrayInputStream(caCert.getEncoded())
+    );
+
+    PKIXParameters params = new PKIXParameters(
+        Collections.singleton(new TrustAnchor(anchor, null))
+    );
+    params.setRevocationEnabled(false);
+
+    CertPathValidator.getInstance("PKIX").validate(path, params);
+
+    // Closed certificate authority can no longer sign...
+
+    ca.close();
+
+    try
+    {
+      ca.addKey("device3", new char[] { 'b' }, "device3");
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    Assert.assertFalse(keyMgr.contains("device3"));
+  }
+
+  /**
+   * Tests renewing certificates issued by a certificate authority, directly and through the
+   * renewal scheduler.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testRenewIssuedCertificate() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    X509Certificate caCert = (X509Certificate)keyMgr.addKey("ca", new char[] { 'a' }, "Test CA");
+
+    PrivateKeyManager.CertificateAuthority ca =
+        keyMgr.getCertificateAuthority("ca", new char[] { 'a' });
+
+    long now = System.currentTimeMillis();
+
+    KeySigner.Validity expiring =
+        new KeySigner.Validity(new Date(now - 1000), new Date(now + TimeUnit.HOURS.toMillis(1)));
+
+    ca.addKey("device", new char[] { 'b' }, KeyManager.AsymmetricKeyAlgorithm.EC, "device", expiring);
+
+    // Self-signed renewal would replace the issued chain...
+
+    try
+    {
+      keyMgr.renewCertificate("device", new char[] { 'b' }, new KeySigner.Validity(30));
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    // Certificate authority that did not issue the certificate...
+
+    keyMgr.addKey("other", new char[] { 'o' }, "Test CA");
+
+    try
+    {
+      keyMgr.getCertificateAuthority("other", new char[] { 'o' })
+          .renewCertificate("device", new char[] { 'b' }, new KeySigner.Validity(30));
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeyManager.KeyManagerException e)
+    {
+      // expected...
+    }
+
+    // Scheduler without the certificate authority only notifies...
+
+    final List<RenewalScheduler.Renewal> events =
+        Collections.synchronizedList(new ArrayList<RenewalScheduler.Renewal>());
+
+    RenewalScheduler.Listener listener = new RenewalScheduler.Listener()
+    {
+      @Override public void expiring(RenewalScheduler.Renewal renewal)
+      {
+        events.add(renewal);
+      }
+    };
+
+    RenewalScheduler scheduler = RenewalScheduler.create(keyMgr, 1, TimeUnit.DAYS);
+    scheduler.setListener(listener);
+    scheduler.setAutoRenew(new char[] { 'b' }, new KeySigner.Validity(365));
+
+    Assert.assertTrue(scheduler.runBatch() == 1);
+    Assert.assertTrue(events.get(0).getRenewedCertificate() == null);
+    Assert.assertTrue(events.get(0).getFailure() != null);
+    Assert.assertTrue(
+        ((KeyStore.PrivateKeyEntry)keyMgr.retrieveKey(
+            "device", new KeyStore.PasswordProtection(new char[] { 'b' })
+        )).getCertificateChain().length == 2
+    );
+
+    scheduler.stop();
+
+    // Scheduler re-issues through the certificate authority...
+
+    events.clear();
+
+    scheduler = RenewalScheduler.create(keyMgr, 1, TimeUnit.DAYS);
+    scheduler.setListener(listener);
+    scheduler.setAutoRenew(new char[] { 'b' }, new KeySigner.Validity(365));
+    scheduler.addCertificateAuthority(ca);
+
+    Assert.assertTrue(scheduler.runBatch() == 1);
+    Assert.assertTrue(events.get(0).getFailure() == null, "" + events.get(0).getFailure());
+
+    X509Certificate renewed = (X509Certificate)events.get(0).getRenewedCertificate();
+
+    renewed.verify(caCert.getPublicKey());
+
+    Assert.assertTrue(renewed.getIssuerX500Principal().equals(caCert.getSubjectX500Principal()));
+    Assert.assertTrue(renewed.getSubjectX500Principal().getName().contains("CN=device"));
+    Assert.assertTrue(renewed.getNotAfter().after(new Date(now + TimeUnit.DAYS.toMillis(1))));
+
+    KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry)keyMgr.retrieveKey(
+        "device", new KeyStore.PasswordProtection(new char[] { 'b' })
+    );
+
+    Assert.assertTrue(entry.getCertificateChain().length == 2);
+    Assert.assertTrue(entry.getCertificateChain()[0].equals(renewed));
+    Assert.assertTrue(entry.getCertificateChain()[1].equals(caCert));
+
+    scheduler.stop();
+
+    // Renewing directly with the certificate authority...
+
+    X509Certificate again = ca.renewCertificate("device", new char[] { 'b' }, new KeySigner.Validity(30));
+
+    again.verify(caCert.getPublicKey());
+
+    Assert.assertTrue(again.getPublicKey().equals(renewed.getPublicKey()));
+    Assert.assertTrue(keyMgr.getCertificate("device").equals(again));
+  }
+
   /**
    * Runs basic test to ensure the key algorithm names are consistent across
    * name(), toString() and getAlgorithmName()
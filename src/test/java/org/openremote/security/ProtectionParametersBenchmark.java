@@ -0,0 +1,161 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.security.KeyStore;
+import java.util.UUID;
+
+/**
+ * Stand-alone benchmark for key entry add, save, load and get latency of a PKCS #12 keystore
+ * with different {@link KeyManager.ProtectionParameters protection parameters}. This is not
+ * part of the unit test suite. Run it with the test classpath :
+ *
+ * <pre>
+ *   java org.openremote.security.ProtectionParametersBenchmark [entries]
+ * </pre>
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class ProtectionParametersBenchmark
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  public static final int DEFAULT_ENTRIES = 100;
+
+  private static final char[] STORE_PASSWORD = new char[] { 'b', 'e', 'n', 'c', 'h' };
+
+  private static final char[] KEY_PASSWORD = new char[] { 'k', 'e', 'y' };
+
+  /**
+   * Settings to compare, a null value uses the keystore provider defaults.
+   */
+  private static final KeyManager.ProtectionParameters[] SETTINGS =
+      new KeyManager.ProtectionParameters[]
+      {
+          null,
+          new KeyManager.ProtectionParameters("SHA1", "DESede", 2048),
+          new KeyManager.ProtectionParameters("HmacSHA256", "AES_128", 1000),
+          new KeyManager.ProtectionParameters("HmacSHA256", "AES_256", 10000),
+          new KeyManager.ProtectionParameters("HmacSHA256", "AES_256", 100000),
+          new KeyManager.ProtectionParameters("HmacSHA512", "AES_256", 100000)
+      };
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  public static void main(String... args) throws Exception
+  {
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+
+    System.out.println("Entries: " + entries);
+    System.out.println();
+    System.out.println(String.format(
+        "  %-50s %10s %10s %10s %10s", "Protection", "add ms/op", "save ms", "load ms", "get ms/op"
+    ));
+
+    // Warm-up with the cheapest setting...
+
+    run(entries, SETTINGS[2], false);
+
+    for (KeyManager.ProtectionParameters params : SETTINGS)
+    {
+      run(entries, params, true);
+    }
+  }
+
+
+  private static void run(int entries, KeyManager.ProtectionParameters params, boolean report)
+      throws Exception
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "benchmark.keystore." + UUID.randomUUID());
+
+    try
+    {
+      BenchmarkStore store = new BenchmarkStore();
+      store.setProtectionParameters(params);
+
+      KeyStore.SecretKeyEntry entry = new KeyStore.SecretKeyEntry(
+          new SecretKeySpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, "AES")
+      );
+
+      long start = System.nanoTime();
+
+      for (int i = 0; i < entries; ++i)
+      {
+        store.add("key-" + i, entry, new KeyStore.PasswordProtection(KEY_PASSWORD));
+      }
+
+      long add = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      store.save(file.toURI(), STORE_PASSWORD);
+      long save = System.nanoTime() - start;
+
+      BenchmarkStore loaded = new BenchmarkStore();
+
+      start = System.nanoTime();
+      loaded.load(file.toURI(), STORE_PASSWORD);
+      long load = System.nanoTime() - start;
+
+      start = System.nanoTime();
+
+      for (int i = 0; i < entries; ++i)
+      {
+        loaded.retrieveKey("key-" + i, new KeyStore.PasswordProtection(KEY_PASSWORD));
+      }
+
+      long get = System.nanoTime() - start;
+
+      if (report)
+      {
+        System.out.println(String.format(
+            "  %-50s %10.3f %10d %10d %10.3f",
+            params == null ? "provider defaults" : params.toString(),
+            (double)add / entries / 1000000, save / 1000000, load / 1000000,
+            (double)get / entries / 1000000
+        ));
+      }
+    }
+
+    finally
+    {
+      file.delete();
+    }
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Key manager over PKCS #12 storage from the JVM installed security providers.
+   */
+  private static class BenchmarkStore extends KeyManager
+  {
+    private BenchmarkStore() throws KeyManagerException
+    {
+      super(Storage.PKCS12, null);
+    }
+  }
+}
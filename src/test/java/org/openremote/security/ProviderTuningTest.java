@@ -0,0 +1,160 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.openremote.security.provider.OpenRemoteProvider;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.security.Provider;
+import java.security.Security;
+import java.security.cert.Certificate;
+
+/**
+ * Unit tests for {@link org.openremote.security.ProviderTuning}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class ProviderTuningTest
+{
+
+  /**
+   * Tests selecting a key pair generator provider between BouncyCastle and SunEC.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testTuneKeyGeneration() throws Exception
+  {
+    Provider bc = SecurityProvider.BC.getProviderInstance();
+    Provider sun = Security.getProvider("SunEC");
+
+    ProviderTuning tuning = ProviderTuning.create(bc, sun);
+    tuning.setIterations(1, 1);
+
+    ProviderTuning.Selection selection = tuning.tune(KeyManager.AsymmetricKeyAlgorithm.EC);
+
+    Assert.assertTrue(selection.getOperation().equals("KeyPairGenerator.EC"));
+    Assert.assertTrue(selection.getResults().containsKey(bc.getName()));
+    Assert.assertTrue(selection.getProvider() != null);
+    Assert.assertTrue(
+        selection.getProvider() == tuning.getKeyPairGeneratorProvider(KeyManager.AsymmetricKeyAlgorithm.EC)
+    );
+  }
+
+  /**
+   * Tests selecting a signature provider.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testTuneSignature() throws Exception
+  {
+    Provider bc = SecurityProvider.BC.getProviderInstance();
+    Provider sun = Security.getProvider("SunEC");
+
+    ProviderTuning tuning = ProviderTuning.create(bc, sun);
+    tuning.setIterations(1, 2);
+
+    ProviderTuning.Selection selection = tuning.tune(KeySigner.SignatureAlgorithm.SHA256_WITH_ECDSA);
+
+    Assert.assertTrue(selection.getResults().containsKey(bc.getName()));
+    Assert.assertTrue(selection.getProvider() != null);
+    Assert.assertTrue(selection.getRejected().isEmpty());
+    Assert.assertTrue(selection.toString().startsWith("Signature.SHA256withECDSA : "));
+  }
+
+  /**
+   * Tests tuning without any compliant candidates.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testNoCompliantProvider() throws Exception
+  {
+    ProviderTuning tuning = ProviderTuning.create(new OpenRemoteProvider());
+
+    Assert.assertTrue(tuning.getKeyPairGeneratorProvider(KeyManager.AsymmetricKeyAlgorithm.EC) == null);
+    Assert.assertTrue(tuning.getSignatureProvider(KeySigner.SignatureAlgorithm.SHA384_WITH_RSA) == null);
+  }
+
+  /**
+   * Tests key generation and certificate signing with an installed tuning.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testInstalled() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      ProviderTuning tuning = ProviderTuning.create();
+      tuning.setIterations(1, 1);
+      tuning.install();
+
+      Assert.assertTrue(ProviderTuning.getInstalled() == tuning);
+
+      PrivateKeyManager mgr = PrivateKeyManager.create(KeyManager.Storage.BKS);
+      Certificate cert = mgr.addKey("test", new char[] { 'k' });
+
+      Assert.assertTrue(mgr.getKey("test", new char[] { 'k' }) != null);
+
+      cert.verify(cert.getPublicKey());
+    }
+
+    finally
+    {
+      ProviderTuning.uninstall();
+
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+
+    Assert.assertTrue(ProviderTuning.getInstalled() == null);
+  }
+
+  /**
+   * Tests invalid arguments.
+   */
+  @Test public void testInvalidArguments()
+  {
+    try
+    {
+      ProviderTuning.create(new Provider[0]);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      ProviderTuning.create().setIterations(0, 1);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.security.Security;
+
+/**
+ * Unit tests for {@link org.openremote.security.Providers}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class ProvidersTest
+{
+
+  /**
+   * Tests the capability report contents and formats.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testReport() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      Providers.Report report = Providers.createReport(1);
+
+      Assert.assertTrue(report.getIterations() == 1);
+
+      Providers.Result generate = find(report, "KeyPairGenerator", "EC", "BC", "generate");
+      Providers.Result sign = find(report, "Signature", "SHA384withECDSA", "BC", "sign");
+      Providers.Result verify = find(report, "Signature", "SHA384withECDSA", "BC", "verify");
+      Providers.Result store = find(report, "KeyStore", "AESGCM", "OpenRemote", "store");
+
+      Assert.assertTrue(generate.getError() == null, generate.getError());
+      Assert.assertTrue(generate.getMicrosPerOperation() > 0);
+      Assert.assertTrue(sign.getError() == null, sign.getError());
+      Assert.assertTrue(verify.getError() == null, verify.getError());
+      Assert.assertTrue(store.getError() == null, store.getError());
+
+      // OpenRemote provider only implements a keystore...
+
+      Assert.assertTrue(find(report, "KeyPairGenerator", "EC", "OpenRemote", "generate") == null);
+
+      String json = report.toJSON();
+
+      Assert.assertTrue(json.startsWith("{"));
+      Assert.assertTrue(json.endsWith("}"));
+      Assert.assertTrue(json.contains("\"provider\": \"OpenRemote\""));
+      Assert.assertTrue(json.contains("\"iterations\": 1,"));
+
+      Assert.assertTrue(report.toString().contains("SHA384withECDSA"));
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests invalid iteration count.
+   */
+  @Test public void testInvalidIterations()
+  {
+    try
+    {
+      Providers.createReport(0);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private Providers.Result find(Providers.Report report, String type, String algorithm,
+                                String provider, String operation)
+  {
+    for (Providers.Result result : report.getResults())
+    {
+      if (result.getType().equals(type) && result.getAlgorithm().equals(algorithm) &&
+          result.getProvider().equals(provider) && result.getOperation().equals(operation))
+      {
+        return result;
+      }
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Unit tests for {@link org.openremote.security.RevocationList}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class RevocationListTest
+{
+
+  /**
+   * Tests revocation checks, releasing held certificates and filter growth.
+   */
+  @Test public void testRevocationChecks()
+  {
+    RevocationList list = RevocationList.create(16);
+
+    BigInteger serial = new BigInteger("123456789012345678901234567890");
+
+    Assert.assertFalse(list.isRevoked(serial));
+
+    list.revoke(serial, new Date(), KeySigner.RevocationReason.KEY_COMPROMISE);
+
+    Assert.assertTrue(list.isRevoked(serial));
+    Assert.assertTrue(list.getRevocation(serial).getReason() ==
+                      KeySigner.RevocationReason.KEY_COMPROMISE);
+    Assert.assertFalse(list.isRevoked(serial.add(BigInteger.ONE)));
+
+    // Permanently revoked certificates cannot be released...
+
+    try
+    {
+      list.release(serial);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalStateException e)
+    {
+      // expected...
+    }
+
+    BigInteger held = BigInteger.valueOf(42);
+
+    list.revoke(held, new Date(), KeySigner.RevocationReason.CERTIFICATE_HOLD);
+
+    Assert.assertTrue(list.isRevoked(held));
+    Assert.assertTrue(list.release(held));
+    Assert.assertFalse(list.isRevoked(held));
+    Assert.assertFalse(list.release(held));
+
+    // Grow well beyond the initial filter sizing...
+
+    for (int i = 0; i < 5000; ++i)
+    {
+      list.revoke(BigInteger.valueOf(1000000 + i), new Date(), KeySigner.RevocationReason.SUPERSEDED);
+    }
+
+    Assert.assertTrue(list.size() == 5001);
+    Assert.assertTrue(list.isRevoked(serial));
+
+    for (int i = 0; i < 5000; ++i)
+    {
+      Assert.assertTrue(list.isRevoked(BigInteger.valueOf(1000000 + i)));
+      Assert.assertFalse(list.isRevoked(BigInteger.valueOf(2000000 + i)));
+    }
+
+    try
+    {
+      list.revoke(serial, new Date(), KeySigner.RevocationReason.REMOVE_FROM_CRL);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+  }
+
+  /**
+   * Tests complete and delta revocation lists signed by a certificate authority, and
+   * applying them to another revocation set.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testRevocationLists() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    X509Certificate caCert = (X509Certificate)keyMgr.addKey("ca", new char[] { 'a' }, "Test CA");
+
+    PrivateKeyManager.CertificateAuthority ca =
+        keyMgr.getCertificateAuthority("ca", new char[] { 'a' });
+
+    X509Certificate cert1 = ca.addKey("device1", null, "device1");
+    X509Certificate cert2 = ca.addKey("device2", null, "device2");
+    X509Certificate cert3 = ca.addKey("device3", null, "device3");
+
+    RevocationList list = RevocationList.create();
+
+    list.revoke(cert1, KeySigner.RevocationReason.KEY_COMPROMISE);
+    list.revoke(cert2, KeySigner.RevocationReason.CERTIFICATE_HOLD);
+
+    Date nextUpdate = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+
+    // Delta list requires a base list...
+
+    try
+    {
+      ca.signDeltaRevocationList(list, nextUpdate);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalStateException e)
+    {
+      // expected...
+    }
+
+    X509CRL crl = toJCA(ca.signRevocationList(list, nextUpdate));
+
+    crl.verify(caCert.getPublicKey());
+
+    Assert.assertTrue(crl.getIssuerX500Principal().equals(caCert.getSubjectX500Principal()));
+    Assert.assertTrue(crl.getRevokedCertificates().size() == 2);
+    Assert.assertTrue(crl.isRevoked(toJCA(cert1)));
+    Assert.assertTrue(crl.isRevoked(toJCA(cert2)));
+    Assert.assertFalse(crl.isRevoked(toJCA(cert3)));
+    Assert.assertTrue(crl.getExtensionValue(RevocationList.ASN_OID_DELTA_CRL_INDICATOR) == null);
+    Assert.assertTrue(list.getNumber().equals(BigInteger.ONE));
+
+    // Changes after the base list are published as a delta list...
+
+    list.revoke(cert3, KeySigner.RevocationReason.SUPERSEDED);
+    list.release(cert2.getSerialNumber());
+
+    X509CRL delta = toJCA(ca.signDeltaRevocationList(list, nextUpdate));
+
+    delta.verify(caCert.getPublicKey());
+
+    Assert.assertTrue(delta.getExtensionValue(RevocationList.ASN_OID_DELTA_CRL_INDICATOR) != null);
+    Assert.assertTrue(delta.getRevokedCertificates().size() == 2);
+    Assert.assertTrue(delta.isRevoked(toJCA(cert3)));
+    Assert.assertFalse(delta.isRevoked(toJCA(cert1)));
+
+    X509CRLEntry removed = delta.getRevokedCertificate(cert2.getSerialNumber());
+
+    Assert.assertTrue(removed != null);
+
+    // Relying party merges the base and delta lists...
+
+    RevocationList received = RevocationList.create();
+
+    // Delta list requires its base list...
+
+    try
+    {
+      received.apply(delta);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+
+    received.apply(crl);
+
+    Assert.assertTrue(received.isRevoked(cert1));
+    Assert.assertTrue(received.isRevoked(cert2));
+    Assert.assertFalse(received.isRevoked(cert3));
+    Assert.assertTrue(received.getRevocation(cert2.getSerialNumber()).getReason() ==
+                      KeySigner.RevocationReason.CERTIFICATE_HOLD);
+
+    received.apply(delta);
+
+    Assert.assertTrue(received.isRevoked(cert1));
+    Assert.assertFalse(received.isRevoked(cert2));
+    Assert.assertTrue(received.isRevoked(cert3));
+    Assert.assertTrue(received.getNumber().equals(BigInteger.valueOf(2)));
+
+    // Delta list that has already been applied...
+
+    try
+    {
+      received.apply(delta);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+
+    // New complete list clears the delta changes...
+
+    X509CRL next = toJCA(ca.signRevocationList(list, nextUpdate));
+
+    Assert.assertTrue(next.getRevokedCertificates().size() == 2);
+    Assert.assertTrue(toJCA(ca.signDeltaRevocationList(list, nextUpdate))
+                          .getRevokedCertificates() == null);
+  }
+
+
+  /**
+   * Tests that revocation checks running while complete revocation lists are applied never
+   * see a revoked certificate as valid.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testConcurrentApply() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    keyMgr.addKey("ca", new char[] { 'a' }, "Test CA");
+
+    PrivateKeyManager.CertificateAuthority ca =
+        keyMgr.getCertificateAuthority("ca", new char[] { 'a' });
+
+    final X509Certificate cert = ca.addKey("device", null, "device");
+
+    RevocationList list = RevocationList.create();
+
+    for (int i = 0; i < 5000; ++i)
+    {
+      list.revoke(BigInteger.valueOf(i + 1), new Date(), KeySigner.RevocationReason.SUPERSEDED);
+    }
+
+    list.revoke(cert, KeySigner.RevocationReason.KEY_COMPROMISE);
+
+    X509CRL crl = toJCA(
+        ca.signRevocationList(list, new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)))
+    );
+
+    final RevocationList received = RevocationList.create();
+    received.apply(crl);
+
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicBoolean failed = new AtomicBoolean(false);
+
+    Thread checker = new Thread(new Runnable()
+    {
+      @Override public void run()
+      {
+        while (!done.get())
+        {
+          if (!received.isRevoked(cert))
+          {
+            failed.set(true);
+          }
+        }
+      }
+    });
+
+    checker.start();
+
+    try
+    {
+      for (int i = 0; i < 20; ++i)
+      {
+        received.apply(crl);
+      }
+    }
+
+    finally
+    {
+      done.set(true);
+      checker.join();
+    }
+
+    Assert.assertFalse(failed.get());
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private X509CRL toJCA(X509CRL crl) throws Exception
+  {
+    return (X509CRL)CertificateFactory.getInstance("X.509").generateCRL(
+        new ByteArrayInputStream(crl.getEncoded())
+    );
+  }
+
+  private X509Certificate toJCA(X509Certificate cert) throws Exception
+  {
+    return (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(
+        new ByteArrayInputStream(cert.getEncoded())
+    );
+  }
+}
@@ -36,6 +36,8 @@ public class SecurityLogTest
     Assert.assertTrue(SecurityLog.DEFAULT.getCanonicalLogHierarchyName().equals("Security"));
 
     Assert.assertTrue(SecurityLog.CONFIGURATION.getCanonicalLogHierarchyName().equals("Security.Configuration"));
+
+    Assert.assertTrue(SecurityLog.AUDIT.getCanonicalLogHierarchyName().equals("Security.Audit"));
   }
 }
 
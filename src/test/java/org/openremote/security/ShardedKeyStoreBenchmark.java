@@ -0,0 +1,180 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.util.UUID;
+
+/**
+ * Stand-alone benchmark that compares a single file keystore against a sharded keystore
+ * with large numbers of trusted certificate entries. This is not part of the unit test
+ * suite. Run it with the test classpath :
+ *
+ * <pre>
+ *   java org.openremote.security.ShardedKeyStoreBenchmark [entries] [shards]
+ * </pre>
+ *
+ * Entry count defaults to 100 000 and shard count to 16. Use 1000000 entries (and a
+ * sufficiently large heap) for the one million entry comparison.
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class ShardedKeyStoreBenchmark
+{
+
+  // Constants ------------------------------------------------------------------------------------
+
+  public static final int DEFAULT_ENTRIES = 100000;
+
+  public static final int DEFAULT_SHARDS = 16;
+
+  private static final char[] STORE_PASSWORD = new char[] { 'b', 'e', 'n', 'c', 'h' };
+
+
+  // Class Members --------------------------------------------------------------------------------
+
+  public static void main(String... args) throws Exception
+  {
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+    int shards = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_SHARDS;
+
+    Certificate certificate;
+
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PrivateKeyManager keys = PrivateKeyManager.create(KeyManager.Storage.UBER);
+      certificate = keys.addKey("benchmark", new char[] { 'k' });
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+
+    System.out.println("Entries: " + entries + ", processors: " +
+                       Runtime.getRuntime().availableProcessors());
+    System.out.println();
+
+    run(entries, 1, certificate);
+    run(entries, shards, certificate);
+  }
+
+
+  private static void run(int entries, int shards, Certificate certificate) throws Exception
+  {
+    File dir = new File(System.getProperty("user.dir"));
+    File file = new File(dir, "benchmark.keystore." + UUID.randomUUID());
+
+    try
+    {
+      BenchmarkStore store = new BenchmarkStore(shards);
+      KeyStore.TrustedCertificateEntry entry = new KeyStore.TrustedCertificateEntry(certificate);
+
+      long start = System.nanoTime();
+
+      for (int i = 0; i < entries; ++i)
+      {
+        store.add("cert-" + i, entry, null);
+      }
+
+      long add = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      store.save(file.toURI(), STORE_PASSWORD);
+      long save = System.nanoTime() - start;
+
+      // Modify a single entry, only one shard should be written...
+
+      store.add("cert-0", entry, null);
+
+      start = System.nanoTime();
+      store.save(file.toURI(), STORE_PASSWORD);
+      long resave = System.nanoTime() - start;
+
+      BenchmarkStore loaded = new BenchmarkStore(shards);
+
+      start = System.nanoTime();
+      loaded.load(file.toURI(), STORE_PASSWORD);
+      long load = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      int found = 0;
+
+      for (int i = 0; i < entries; ++i)
+      {
+        if (loaded.contains("cert-" + i))
+        {
+          found++;
+        }
+      }
+
+      long contains = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      int size = loaded.size();
+      long sizeTime = System.nanoTime() - start;
+
+      System.out.println("Shards: " + shards);
+      System.out.println("  add:            " + millis(add) + " ms");
+      System.out.println("  save (all):     " + millis(save) + " ms");
+      System.out.println("  save (1 dirty): " + millis(resave) + " ms");
+      System.out.println("  load:           " + millis(load) + " ms");
+      System.out.println("  contains:       " + millis(contains) + " ms (" + found + " found)");
+      System.out.println("  size:           " + millis(sizeTime) + " ms (" + size + " entries)");
+      System.out.println();
+    }
+
+    finally
+    {
+      file.delete();
+
+      for (int i = 0; i < shards; ++i)
+      {
+        new File(file.getPath() + KeyManager.SHARD_FILE_SUFFIX + i).delete();
+      }
+    }
+  }
+
+  private static long millis(long nanos)
+  {
+    return nanos / 1000000;
+  }
+
+
+  // Nested Classes -------------------------------------------------------------------------------
+
+  /**
+   * Key manager over Sun JCEKS storage, which stores trusted certificate entries without
+   * per-entry encryption.
+   */
+  private static class BenchmarkStore extends KeyManager
+  {
+    private BenchmarkStore(int shards) throws KeyManagerException
+    {
+      super(Storage.JCEKS, null, shards);
+    }
+  }
+}
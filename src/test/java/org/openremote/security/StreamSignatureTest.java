@@ -0,0 +1,410 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link org.openremote.security.StreamSignature}
+ *
+ * @author <a href="mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class StreamSignatureTest
+{
+
+  /**
+   * Tests standard file signatures, verifiable as plain message signatures.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testStandardScheme() throws Exception
+  {
+    KeyPair keyPair = createKeyPair();
+
+    MessageSignature signer = MessageSignature.createSigner(
+        KeySigner.SignatureAlgorithm.SHA256_WITH_ECDSA, keyPair.getPrivate()
+    );
+
+    MessageSignature verifier = MessageSignature.createVerifier(
+        KeySigner.SignatureAlgorithm.SHA256_WITH_ECDSA, keyPair.getPublic()
+    );
+
+    byte[] content = createContent(1024 * 1024 + 17);
+    File file = createFile(content);
+
+    try
+    {
+      StreamSignature.Result result = StreamSignature.create(signer)
+          .setChunkSize(StreamSignature.MINIMUM_CHUNK_SIZE)
+          .sign(file);
+
+      Assert.assertTrue(result.isValid());
+      Assert.assertTrue(result.getBytes() == content.length);
+      Assert.assertTrue(result.getChunkCount() == 17);
+      Assert.assertTrue(result.getMegabytesPerSecond() > 0);
+
+      // Plain detached signature of the content...
+
+      Assert.assertTrue(verifier.verify(content, result.getSignature()));
+
+      // Memory-mapped and read content...
+
+      StreamSignature stream = StreamSignature.create(verifier)
+          .setChunkSize(StreamSignature.MINIMUM_CHUNK_SIZE);
+
+      Assert.assertTrue(stream.verify(file, result.getSignature()).isValid());
+      Assert.assertTrue(stream.setMemoryMapped(false).verify(file, result.getSignature()).isValid());
+
+      // Signature of content read into a buffer matches as well...
+
+      byte[] signature = StreamSignature.create(signer).setMemoryMapped(false).sign(file)
+          .getSignature();
+
+      Assert.assertTrue(verifier.verify(content, signature));
+
+      // Malformed signature...
+
+      Assert.assertFalse(stream.verify(file, new byte[] { 0x30, 0x01, 0x00 }).isValid());
+      Assert.assertTrue(stream.verify(file, signature).isValid());
+
+      // Modified content...
+
+      modify(file, content.length / 2);
+
+      Assert.assertFalse(stream.verify(file, signature).isValid());
+
+      try
+      {
+        stream.sign(file);
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeySigner.SigningException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      Assert.assertTrue(file.delete());
+    }
+  }
+
+  /**
+   * Tests chunked file signatures hashed in parallel.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testChunkedScheme() throws Exception
+  {
+    KeyPair keyPair = createKeyPair();
+
+    MessageSignature signer = MessageSignature.createSigner(
+        KeySigner.SignatureAlgorithm.SHA384_WITH_ECDSA, keyPair.getPrivate()
+    );
+
+    MessageSignature verifier = MessageSignature.createVerifier(
+        KeySigner.SignatureAlgorithm.SHA384_WITH_ECDSA, keyPair.getPublic()
+    );
+
+    byte[] content = createContent(3 * 1024 * 1024 + 5);
+    File file = createFile(content);
+
+    try
+    {
+      StreamSignature.Result result = StreamSignature.create(signer)
+          .setScheme(StreamSignature.Scheme.CHUNKED)
+          .setChunkSize(StreamSignature.MINIMUM_CHUNK_SIZE)
+          .setThreads(4)
+          .sign(file);
+
+      Assert.assertTrue(result.getChunkCount() == 49);
+      Assert.assertTrue(result.getMegabytesPerSecond() > 0);
+
+      StreamSignature stream = StreamSignature.create(verifier)
+          .setScheme(StreamSignature.Scheme.CHUNKED)
+          .setChunkSize(StreamSignature.MINIMUM_CHUNK_SIZE)
+          .setThreads(3);
+
+      Assert.assertTrue(stream.verify(file, result.getSignature()).isValid());
+      Assert.assertTrue(stream.setMemoryMapped(false).verify(file, result.getSignature()).isValid());
+
+      // Chunked signatures are not plain signatures of the content...
+
+      Assert.assertFalse(verifier.verify(content, result.getSignature()));
+
+      // Digest list is tagged with the scheme identifier and version...
+
+      byte[] identifier = StreamSignature.CHUNKED_SCHEME_IDENTIFIER.getBytes("US-ASCII");
+      byte[] digestName = "SHA-384".getBytes("US-ASCII");
+
+      MessageDigest digest = MessageDigest.getInstance("SHA-384");
+      ByteBuffer list = ByteBuffer.allocate(identifier.length + 4 + digestName.length + 16 + 49 * 48);
+
+      list.put(identifier);
+      list.putShort(StreamSignature.CHUNKED_SCHEME_VERSION);
+      list.putShort((short)digestName.length);
+      list.put(digestName);
+      list.putLong(StreamSignature.MINIMUM_CHUNK_SIZE);
+      list.putLong(content.length);
+
+      for (int offset = 0; offset < content.length; offset += StreamSignature.MINIMUM_CHUNK_SIZE)
+      {
+        digest.update(
+            content, offset, Math.min(StreamSignature.MINIMUM_CHUNK_SIZE, content.length - offset)
+        );
+
+        list.put(digest.digest());
+      }
+
+      list.flip();
+
+      Assert.assertTrue(verifier.verify(list, result.getSignature()));
+
+      // Untagged digest list signed as a message is not a chunked file signature...
+
+      list.position(identifier.length + 4 + digestName.length);
+
+      byte[] untagged = signer.sign(list);
+
+      Assert.assertFalse(stream.verify(file, untagged).isValid());
+
+      // Chunk size is part of the signed digest list...
+
+      Assert.assertFalse(
+          stream.setChunkSize(2 * StreamSignature.MINIMUM_CHUNK_SIZE)
+              .verify(file, result.getSignature()).isValid()
+      );
+
+      // Modified content...
+
+      stream.setChunkSize(StreamSignature.MINIMUM_CHUNK_SIZE);
+
+      modify(file, content.length - 1);
+
+      Assert.assertFalse(stream.verify(file, result.getSignature()).isValid());
+    }
+
+    finally
+    {
+      Assert.assertTrue(file.delete());
+    }
+  }
+
+  /**
+   * Tests signing empty files.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testEmptyFile() throws Exception
+  {
+    KeyPair keyPair = createKeyPair();
+
+    MessageSignature signer = MessageSignature.createSigner(
+        KeySigner.SignatureAlgorithm.SHA256_WITH_ECDSA, keyPair.getPrivate()
+    );
+
+    MessageSignature verifier = MessageSignature.createVerifier(
+        KeySigner.SignatureAlgorithm.SHA256_WITH_ECDSA, keyPair.getPublic()
+    );
+
+    File file = createFile(new byte[0]);
+
+    try
+    {
+      for (StreamSignature.Scheme scheme : StreamSignature.Scheme.values())
+      {
+        StreamSignature.Result result = StreamSignature.create(signer).setScheme(scheme).sign(file);
+
+        Assert.assertTrue(result.getBytes() == 0);
+        Assert.assertTrue(result.getChunkCount() == 0);
+        Assert.assertTrue(
+            StreamSignature.create(verifier).setScheme(scheme)
+                .verify(file, result.getSignature()).isValid()
+        );
+      }
+    }
+
+    finally
+    {
+      Assert.assertTrue(file.delete());
+    }
+  }
+
+  /**
+   * Tests signing files with a private key manager alias and verifying with a trust store
+   * alias.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testKeyManagerAliases() throws Exception
+  {
+    PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12, SecurityProvider.BC);
+
+    Certificate cert = keyMgr.addKey("firmware", new char[] { 'f' }, "Firmware");
+
+    MessageSignature signer = keyMgr.getSigner("firmware", new char[] { 'f' });
+
+    TrustStore trust = TrustStore.create(KeyManager.Storage.BKS, SecurityProvider.BC);
+    trust.addTrustedCertificate("firmware", cert);
+
+    File file = createFile(createContent(256 * 1024));
+
+    try
+    {
+      byte[] signature = StreamSignature.create(signer).sign(file).getSignature();
+
+      Assert.assertTrue(
+          StreamSignature.create(trust.getVerifier("firmware", signer.getAlgorithm()))
+              .verify(file, signature).isValid()
+      );
+    }
+
+    finally
+    {
+      Assert.assertTrue(file.delete());
+    }
+  }
+
+  /**
+   * Tests invalid configuration.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testInvalidConfiguration() throws Exception
+  {
+    MessageSignature signer = MessageSignature.createSigner(
+        KeySigner.SignatureAlgorithm.SHA256_WITH_ECDSA, createKeyPair().getPrivate()
+    );
+
+    try
+    {
+      StreamSignature.create(signer).setChunkSize(StreamSignature.MINIMUM_CHUNK_SIZE - 1);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      StreamSignature.create(signer).setThreads(0);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IllegalArgumentException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      StreamSignature.create(signer).sign(new File("nothere.bin"));
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeySigner.SigningException e)
+    {
+      // expected...
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private KeyPair createKeyPair() throws Exception
+  {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(
+        "EC", SecurityProvider.BC.getProviderInstance()
+    );
+
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+
+    return generator.generateKeyPair();
+  }
+
+  private byte[] createContent(int length)
+  {
+    byte[] content = new byte[length];
+
+    new Random(length).nextBytes(content);
+
+    return content;
+  }
+
+  private File createFile(byte[] content) throws Exception
+  {
+    File file = File.createTempFile("openremote-stream", ".bin");
+
+    FileOutputStream out = new FileOutputStream(file);
+
+    try
+    {
+      out.write(content);
+    }
+
+    finally
+    {
+      out.close();
+    }
+
+    return file;
+  }
+
+  private void modify(File file, long position) throws Exception
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+    try
+    {
+      raf.seek(position);
+
+      int value = raf.read();
+
+      raf.seek(position);
+      raf.write(value ^ 0x01);
+    }
+
+    finally
+    {
+      raf.close();
+    }
+  }
+}
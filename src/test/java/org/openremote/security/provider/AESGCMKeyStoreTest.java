@@ -0,0 +1,300 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openremote.security.KeyManager;
+import org.openremote.security.PrivateKeyManager;
+import org.openremote.security.SecurityProvider;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link AESGCMKeyStore} class.
+ *
+ * @author <a href = "mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class AESGCMKeyStoreTest
+{
+
+  /**
+   * Tests storing and loading secret key and certificate entries.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testStoreAndLoad() throws Exception
+  {
+    Certificate cert = createCertificate();
+
+    KeyStore keystore = KeyStore.getInstance(
+        AESGCMKeyStore.STORAGE_NAME, new OpenRemoteProvider()
+    );
+
+    keystore.load(null, null);
+
+    keystore.setEntry(
+        "secret",
+        new KeyStore.SecretKeyEntry(new SecretKeySpec(new byte[] { 1, 2, 3 }, "AES")),
+        new KeyStore.PasswordProtection(new char[] { 'e' })
+    );
+
+    keystore.setCertificateEntry("cert", cert);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    keystore.store(out, new char[] { 'm' });
+
+    KeyStore loaded = KeyStore.getInstance(
+        AESGCMKeyStore.STORAGE_NAME, new OpenRemoteProvider()
+    );
+
+    loaded.load(new ByteArrayInputStream(out.toByteArray()), new char[] { 'm' });
+
+    Assert.assertTrue(loaded.size() == 2);
+    Assert.assertTrue(loaded.isKeyEntry("secret"));
+    Assert.assertTrue(loaded.isCertificateEntry("cert"));
+    Assert.assertTrue(loaded.getCertificate("cert").equals(cert));
+    Assert.assertTrue(loaded.getCertificateAlias(cert).equals("cert"));
+    Assert.assertTrue(loaded.getCreationDate("secret") != null);
+
+    Assert.assertTrue(Arrays.equals(
+        loaded.getKey("secret", new char[] { 'e' }).getEncoded(), new byte[] { 1, 2, 3 }
+    ));
+
+    // Aliases are case sensitive...
+
+    Assert.assertFalse(loaded.containsAlias("SECRET"));
+
+    try
+    {
+      loaded.getKey("secret", new char[] { 'x' });
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (UnrecoverableKeyException e)
+    {
+      // expected...
+    }
+  }
+
+  /**
+   * Tests loading a keystore with an incorrect password.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testWrongPassword() throws Exception
+  {
+    KeyStore keystore = KeyStore.getInstance(
+        AESGCMKeyStore.STORAGE_NAME, new OpenRemoteProvider()
+    );
+
+    keystore.load(null, null);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    keystore.store(out, new char[] { 'm' });
+
+    try
+    {
+      keystore.load(new ByteArrayInputStream(out.toByteArray()), new char[] { 'x' });
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (IOException e)
+    {
+      Assert.assertTrue(e.getCause() instanceof UnrecoverableKeyException);
+    }
+  }
+
+  /**
+   * Tests that a modified keystore file is detected.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testTampering() throws Exception
+  {
+    KeyStore keystore = KeyStore.getInstance(
+        AESGCMKeyStore.STORAGE_NAME, new OpenRemoteProvider()
+    );
+
+    keystore.load(null, null);
+    keystore.setCertificateEntry("cert", createCertificate());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    keystore.store(out, new char[] { 'm' });
+
+    byte[] bytes = out.toByteArray();
+    bytes[bytes.length / 2] ^= 1;
+
+    try
+    {
+      keystore.load(new ByteArrayInputStream(bytes), new char[] { 'm' });
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (Exception e)
+    {
+      // expected, either a certificate parsing error or failed authentication...
+    }
+  }
+
+  /**
+   * Tests that corrupted length fields are rejected before anything is allocated for them.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testCorruptedLengths() throws Exception
+  {
+    KeyStore keystore = KeyStore.getInstance(
+        AESGCMKeyStore.STORAGE_NAME, new OpenRemoteProvider()
+    );
+
+    keystore.load(null, null);
+    keystore.setCertificateEntry("cert", createCertificate());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    keystore.store(out, new char[] { 'm' });
+
+    byte[] bytes = out.toByteArray();
+
+    // Header, wrapped data key, entry count, entry type, alias and date...
+
+    int wrappedLength = ((bytes[29] & 0xFF) << 8) | (bytes[30] & 0xFF);
+    int chainOffset = 31 + wrappedLength + 4 + 1 + 2 + "cert".length() + 8;
+    int certificateOffset = chainOffset + 4 + 2 + "X.509".length();
+
+    int[][] corruptions = new int[][]
+    {
+        { chainOffset, Integer.MAX_VALUE },
+        { chainOffset, -1 },
+        { certificateOffset, Integer.MAX_VALUE },
+        { certificateOffset, Integer.MIN_VALUE },
+        { 6, -1 },
+        { 6, Integer.MAX_VALUE }
+    };
+
+    for (int[] corruption : corruptions)
+    {
+      byte[] corrupted = Arrays.copyOf(bytes, bytes.length);
+      int offset = corruption[0];
+
+      corrupted[offset] = (byte)(corruption[1] >>> 24);
+      corrupted[offset + 1] = (byte)(corruption[1] >>> 16);
+      corrupted[offset + 2] = (byte)(corruption[1] >>> 8);
+      corrupted[offset + 3] = (byte)corruption[1];
+
+      try
+      {
+        keystore.load(new ByteArrayInputStream(corrupted), new char[] { 'm' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (IOException e)
+      {
+        // expected...
+      }
+    }
+
+    // Key length...
+
+    for (int keyLength : new int[] { 0, 64, 255, 512, 0xFFFF })
+    {
+      byte[] corrupted = Arrays.copyOf(bytes, bytes.length);
+
+      corrupted[10] = (byte)(keyLength >>> 8);
+      corrupted[11] = (byte)keyLength;
+
+      try
+      {
+        keystore.load(new ByteArrayInputStream(corrupted), new char[] { 'm' });
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (IOException e)
+      {
+        // expected...
+      }
+    }
+
+    keystore.load(new ByteArrayInputStream(bytes), new char[] { 'm' });
+
+    Assert.assertTrue(keystore.isCertificateEntry("cert"));
+  }
+
+  /**
+   * Tests private keys through the key manager API.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testPrivateKeyManager() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PrivateKeyManager mgr = PrivateKeyManager.create(KeyManager.Storage.AESGCM);
+
+      Certificate cert = mgr.addKey("test", new char[] { 'k' });
+      PrivateKey key = mgr.getKey("test", new char[] { 'k' });
+
+      Assert.assertTrue(key != null);
+      Assert.assertTrue(cert.getPublicKey() != null);
+      Assert.assertTrue(mgr.contains("test"));
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private Certificate createCertificate() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      return PrivateKeyManager.create(KeyManager.Storage.BKS).addKey("test", new char[] { 'a' });
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+}
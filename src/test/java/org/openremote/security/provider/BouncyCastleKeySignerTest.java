@@ -20,6 +20,7 @@
  */
 package org.openremote.security.provider;
 
+import java.math.BigInteger;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.Security;
@@ -34,6 +35,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
 
 import org.openremote.base.exception.IncorrectImplementationException;
 import org.openremote.security.KeyManager;
@@ -41,7 +43,16 @@ import org.openremote.security.KeySigner;
 import org.openremote.security.KeySignerTest;
 import org.openremote.security.PrivateKeyManager;
 
+import org.bouncycastle.asn1.DERPrintableString;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
+import org.bouncycastle.util.encoders.Base64;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -54,6 +65,31 @@ import org.testng.annotations.Test;
 public class BouncyCastleKeySignerTest
 {
 
+  // Class Members --------------------------------------------------------------------------------
+
+  /**
+   * Public helper method for tests to create a DER encoded PKCS #10 certificate signing
+   * request, signed with the private key of a given key pair.
+   *
+   * @param keyPair
+   *            key pair to request a certificate for
+   *
+   * @param subject
+   *            RFC 2253 formatted subject name
+   */
+  public static byte[] createCertificationRequest(KeyPair keyPair, String subject)
+      throws Exception
+  {
+    String algorithm = keyPair.getPublic().getAlgorithm().startsWith("EC")
+        ? "SHA256withECDSA"
+        : "SHA256withRSA";
+
+    return new JcaPKCS10CertificationRequestBuilder(new X500Principal(subject), keyPair.getPublic())
+        .build(new JcaContentSignerBuilder(algorithm).setProvider(new BouncyCastleProvider())
+            .build(keyPair.getPrivate()))
+        .getEncoded();
+  }
+
 
 
   // SignPublicKey Tests --------------------------------------------------------------------------
@@ -920,6 +956,191 @@ public class BouncyCastleKeySignerTest
 
 
 
+  /**
+   * Test that certificates signed repeatedly under the same issuer with a single signer
+   * instance carry the configured issuer name.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testRepeatedIssuer() throws Exception
+  {
+    KeySigner signer = new BouncyCastleKeySigner();
+
+    KeySigner.Configuration config = null;
+    Set<X509Certificate> certs = new HashSet<X509Certificate>();
+
+    for (int i = 0; i < 3; ++i)
+    {
+      config = KeySigner.Configuration.createSelfSigned(
+          KeySignerTest.generateRSAKeyPair(),
+          KeySigner.SignatureAlgorithm.SHA256_WITH_RSA,
+          "RepeatedIssuer"
+      );
+
+      certs.add(signer.signPublicKey(config));
+    }
+
+    Assert.assertTrue(certs.size() == 3);
+
+    for (X509Certificate cert : certs)
+    {
+      Assert.assertTrue(cert.getIssuerX500Principal().equals(config.getIssuer().toX500Principal()));
+      Assert.assertTrue(cert.getSubjectX500Principal().equals(config.getSubject().toX500Principal()));
+    }
+  }
+
+
+  // ParseCertificationRequest Tests --------------------------------------------------------------
+
+  /**
+   * Tests parsing DER and PEM encoded certification requests, and issuing a certificate for
+   * a request with escaped characters in its subject name.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testCertificationRequest() throws Exception
+  {
+    KeySigner signer = new BouncyCastleKeySigner();
+
+    KeyPair requester = generate256BitEllipticCurveKeyPair();
+    KeyPair issuer = generate384BitEllipticCurveKeyPair();
+
+    byte[] der = createCertificationRequest(requester, "CN=device\\, 1,O=Test+OU=Unit");
+
+    KeySigner.CertificationRequest request = signer.parseCertificationRequest(der);
+
+    Assert.assertTrue(request.getPublicKey().equals(requester.getPublic()));
+    Assert.assertTrue(request.getSubject().equals(new X500Principal("CN=device\\, 1,O=Test+OU=Unit")));
+
+    // PEM encoding...
+
+    String pem =
+        BouncyCastleKeySigner.PEM_CERTIFICATE_REQUEST_BEGIN + "\n" +
+        new String(Base64.encode(der), "US-ASCII") + "\n" +
+        BouncyCastleKeySigner.PEM_CERTIFICATE_REQUEST_END + "\n";
+
+    Assert.assertTrue(
+        signer.parseCertificationRequest(pem.getBytes("US-ASCII")).getSubject()
+            .equals(request.getSubject())
+    );
+
+    // Issue a certificate...
+
+    X509Certificate issuerCert = signer.signPublicKey(
+        KeySigner.Configuration.createDefault(issuer, "Test CA")
+    );
+
+    X509Certificate cert = signer.signPublicKey(
+        KeySigner.Configuration.createIssued(
+            request, issuer.getPrivate(), issuerCert, new KeySigner.Validity(30)
+        )
+    );
+
+    cert.verify(issuer.getPublic());
+
+    Assert.assertTrue(cert.getPublicKey().equals(requester.getPublic()));
+    Assert.assertTrue(cert.getSubjectX500Principal().equals(request.getSubject()));
+    Assert.assertTrue(cert.getIssuerX500Principal().equals(issuerCert.getSubjectX500Principal()));
+    Assert.assertTrue(
+        cert.getSigAlgOID().equals(KeySigner.DEFAULT_EC_SIGNATURE_ALGORITHM.getASN1()) ||
+        cert.getSigAlgName().equals(KeySigner.DEFAULT_EC_SIGNATURE_ALGORITHM.toString())
+    );
+  }
+
+  /**
+   * Tests that issued certificates carry the issuer name exactly as encoded in the CA
+   * certificate, here with a PrintableString rather than the default UTF8String common name.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testIssuerNameEncoding() throws Exception
+  {
+    KeySigner signer = new BouncyCastleKeySigner();
+
+    KeyPair issuer = generate256BitEllipticCurveKeyPair();
+
+    X500Name caName = new X500Name(new RDN[] {
+        new RDN(BCStyle.O, new DERPrintableString("Test")),
+        new RDN(BCStyle.CN, new DERPrintableString("Printable CA"))
+    });
+
+    X509Certificate issuerCert = new JcaX509CertificateConverter().getCertificate(
+        new JcaX509v3CertificateBuilder(
+            caName, BigInteger.ONE, new Date(System.currentTimeMillis() - 60000),
+            new Date(System.currentTimeMillis() + 3600000), caName, issuer.getPublic()
+        ).build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuer.getPrivate()))
+    );
+
+    KeyPair requester = generate256BitEllipticCurveKeyPair();
+
+    X509Certificate cert = signer.signPublicKey(
+        KeySigner.Configuration.createIssued(
+            signer.parseCertificationRequest(createCertificationRequest(requester, "CN=device")),
+            issuer.getPrivate(), issuerCert, new KeySigner.Validity(30)
+        )
+    );
+
+    cert.verify(issuer.getPublic());
+
+    Assert.assertTrue(Arrays.equals(
+        cert.getIssuerX500Principal().getEncoded(),
+        issuerCert.getSubjectX500Principal().getEncoded()
+    ));
+  }
+
+  /**
+   * Tests rejecting certification requests with invalid signatures and encodings.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testInvalidCertificationRequest() throws Exception
+  {
+    KeySigner signer = new BouncyCastleKeySigner();
+
+    byte[] der = createCertificationRequest(generate256BitEllipticCurveKeyPair(), "CN=device");
+
+    // Tamper with the signature...
+
+    der[der.length - 1] ^= 0x01;
+
+    try
+    {
+      signer.parseCertificationRequest(der);
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeySigner.SigningException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      signer.parseCertificationRequest("foo".getBytes("US-ASCII"));
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeySigner.SigningException e)
+    {
+      // expected...
+    }
+
+    try
+    {
+      signer.parseCertificationRequest(new byte[] { 0x30, 0x01, 0x00 });
+
+      Assert.fail("should not get here...");
+    }
+
+    catch (KeySigner.SigningException e)
+    {
+      // expected...
+    }
+  }
+
+
   // Helper Methods -------------------------------------------------------------------------------
 
 
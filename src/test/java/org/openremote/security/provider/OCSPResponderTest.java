@@ -0,0 +1,370 @@
+/*
+ * OpenRemote, the Home of the Digital Home.
+ * Copyright 2008-2014, OpenRemote Inc.
+ *
+ * See the contributors.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.security.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openremote.security.KeyManager;
+import org.openremote.security.KeySigner;
+import org.openremote.security.PrivateKeyManager;
+import org.openremote.security.RevocationList;
+import org.openremote.security.SecurityProvider;
+import org.openremote.security.TrustStore;
+
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link OCSPResponder} class.
+ *
+ * @author <a href = "mailto:juha@openremote.org">Juha Lindfors</a>
+ */
+public class OCSPResponderTest
+{
+
+  /**
+   * Tests certificate status requests over HTTP, served from the response cache.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testRespond() throws Exception
+  {
+    HttpServer server = null;
+
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12);
+      X509Certificate caCert = (X509Certificate)keyMgr.addKey("ca", new char[] { 'a' }, "Test CA");
+
+      PrivateKeyManager.CertificateAuthority ca =
+          keyMgr.getCertificateAuthority("ca", new char[] { 'a' });
+
+      X509Certificate cert1 = ca.addKey("device1", null, "device1");
+      X509Certificate cert2 = ca.addKey("device2", null, "device2");
+
+      TrustStore trust = TrustStore.create();
+      trust.addTrustedCertificate("ca", caCert);
+
+      RevocationList revocations = RevocationList.create();
+
+      OCSPResponder responder = keyMgr.createOCSPResponder(
+          "ca", new char[] { 'a' }, trust, "ca", revocations
+      );
+
+      server = startServer(responder);
+
+      URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/ocsp");
+
+      // Certificates not registered as issued are not answered...
+
+      Assert.assertTrue(
+          new OCSPResp(post(url, createRequest(caCert, cert1))).getStatus() ==
+          OCSPRespBuilder.UNAUTHORIZED
+      );
+      Assert.assertTrue(responder.getSignatureCount() == 0);
+      Assert.assertTrue(responder.getCacheSize() == 0);
+
+      responder.addIssued(Arrays.asList(cert1.getSerialNumber()));
+
+      // Good status, signed once...
+
+      SingleResp status = getStatus(url, caCert, caCert, cert1);
+
+      Assert.assertTrue(status.getCertStatus() == CertificateStatus.GOOD);
+      Assert.assertTrue(status.getNextUpdate().after(status.getThisUpdate()));
+      Assert.assertTrue(responder.getSignatureCount() == 1);
+
+      // Same serial is served from cache...
+
+      status = getStatus(url, caCert, caCert, cert1);
+
+      Assert.assertTrue(status.getCertStatus() == CertificateStatus.GOOD);
+      Assert.assertTrue(responder.getSignatureCount() == 1);
+
+      // Revocation invalidates the cached response...
+
+      revocations.revoke(cert1, KeySigner.RevocationReason.KEY_COMPROMISE);
+
+      status = getStatus(url, caCert, caCert, cert1);
+
+      Assert.assertTrue(status.getCertStatus() instanceof RevokedStatus);
+      Assert.assertTrue(((RevokedStatus)status.getCertStatus()).getRevocationReason() ==
+                        KeySigner.RevocationReason.KEY_COMPROMISE.getCode());
+      Assert.assertTrue(responder.getSignatureCount() == 2);
+
+      // Pre-generated responses are not signed again...
+
+      responder.pregenerate(Arrays.asList(cert2.getSerialNumber()));
+
+      Assert.assertTrue(responder.getSignatureCount() == 3);
+      Assert.assertTrue(responder.getCacheSize() == 2);
+
+      status = getStatus(url, caCert, caCert, cert2);
+
+      Assert.assertTrue(status.getCertStatus() == CertificateStatus.GOOD);
+      Assert.assertTrue(responder.getSignatureCount() == 3);
+
+      // Revoked certificates are answered without registration...
+
+      X509Certificate cert3 = ca.addKey("device3", null, "device3");
+
+      revocations.revoke(cert3, KeySigner.RevocationReason.SUPERSEDED);
+
+      Assert.assertTrue(getStatus(url, caCert, caCert, cert3).getCertStatus() instanceof RevokedStatus);
+
+      // Cache is bounded, least recently used responses are evicted...
+
+      responder.setCacheLimit(2);
+
+      Assert.assertTrue(responder.getCacheSize() == 2);
+
+      getStatus(url, caCert, caCert, cert1);
+
+      Assert.assertTrue(responder.getCacheSize() == 2);
+
+      // Removed certificates are no longer answered...
+
+      responder.removeIssued(Arrays.asList(cert2.getSerialNumber()));
+
+      Assert.assertTrue(
+          new OCSPResp(post(url, createRequest(caCert, cert2))).getStatus() ==
+          OCSPRespBuilder.UNAUTHORIZED
+      );
+
+      // Certificates of other issuers are not answered...
+
+      X509Certificate other = (X509Certificate)keyMgr.addKey("other", new char[] { 'o' }, "Other");
+
+      Assert.assertTrue(
+          new OCSPResp(post(url, createRequest(other, other))).getStatus() ==
+          OCSPRespBuilder.UNAUTHORIZED
+      );
+
+      // Malformed request...
+
+      Assert.assertTrue(
+          new OCSPResp(post(url, new byte[] { 0x30, 0x03, 0x01, 0x01, 0x00 })).getStatus() ==
+          OCSPRespBuilder.MALFORMED_REQUEST
+      );
+    }
+
+    finally
+    {
+      if (server != null)
+      {
+        server.stop(0);
+      }
+
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+  /**
+   * Tests responses signed by a delegated responder key issued by the CA.
+   *
+   * @throws Exception    if test fails
+   */
+  @Test public void testDelegatedResponder() throws Exception
+  {
+    try
+    {
+      Security.addProvider(SecurityProvider.BC.getProviderInstance());
+
+      PrivateKeyManager keyMgr = PrivateKeyManager.create(KeyManager.Storage.PKCS12);
+      X509Certificate caCert = (X509Certificate)keyMgr.addKey("ca", new char[] { 'a' }, "Test CA");
+
+      PrivateKeyManager.CertificateAuthority ca =
+          keyMgr.getCertificateAuthority("ca", new char[] { 'a' });
+
+      X509Certificate responderCert = ca.addKey("responder", new char[] { 'r' }, "OCSP");
+      X509Certificate device = ca.addKey("device", null, "device");
+
+      TrustStore trust = TrustStore.create();
+      trust.addTrustedCertificate("ca", caCert);
+
+      OCSPResponder responder = keyMgr.createOCSPResponder(
+          "responder", new char[] { 'r' }, trust, "ca", RevocationList.create()
+      );
+
+      responder.addIssued(Arrays.asList(device.getSerialNumber()));
+
+      BasicOCSPResp basic = (BasicOCSPResp)new OCSPResp(
+          responder.respond(createRequest(caCert, device))
+      ).getResponseObject();
+
+      Assert.assertTrue(basic.getCerts().length == 1);
+      Assert.assertTrue(Arrays.equals(basic.getCerts()[0].getEncoded(), responderCert.getEncoded()));
+      Assert.assertTrue(basic.isSignatureValid(
+          new JcaContentVerifierProviderBuilder().setProvider(SecurityProvider.BC.getProviderInstance())
+              .build(responderCert.getPublicKey())
+      ));
+
+      // Responder key must be issued by the CA...
+
+      keyMgr.addKey("self", new char[] { 's' }, "Self");
+
+      try
+      {
+        keyMgr.createOCSPResponder("self", new char[] { 's' }, trust, "ca", RevocationList.create());
+
+        Assert.fail("should not get here...");
+      }
+
+      catch (KeyManager.KeyManagerException e)
+      {
+        // expected...
+      }
+    }
+
+    finally
+    {
+      Security.removeProvider(SecurityProvider.BC.getProviderInstance().getName());
+    }
+  }
+
+
+  // Helpers --------------------------------------------------------------------------------------
+
+  private HttpServer startServer(final OCSPResponder responder) throws IOException
+  {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+
+    server.createContext("/ocsp", new HttpHandler()
+    {
+      @Override public void handle(HttpExchange exchange) throws IOException
+      {
+        byte[] response = responder.respond(read(exchange.getRequestBody()));
+
+        exchange.getResponseHeaders().set(
+            "Content-Type", OCSPResponder.OCSP_RESPONSE_CONTENT_TYPE
+        );
+        exchange.sendResponseHeaders(200, response.length);
+
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+      }
+    });
+
+    server.start();
+
+    return server;
+  }
+
+  private SingleResp getStatus(URL url, X509Certificate signer, X509Certificate issuer,
+                               X509Certificate cert) throws Exception
+  {
+    OCSPResp response = new OCSPResp(post(url, createRequest(issuer, cert)));
+
+    Assert.assertTrue(response.getStatus() == OCSPRespBuilder.SUCCESSFUL);
+
+    BasicOCSPResp basic = (BasicOCSPResp)response.getResponseObject();
+
+    Assert.assertTrue(basic.isSignatureValid(
+        new JcaContentVerifierProviderBuilder().setProvider(SecurityProvider.BC.getProviderInstance())
+            .build(signer.getPublicKey())
+    ));
+
+    SingleResp[] responses = basic.getResponses();
+
+    Assert.assertTrue(responses.length == 1);
+    Assert.assertTrue(responses[0].getCertID().getSerialNumber().equals(cert.getSerialNumber()));
+
+    return responses[0];
+  }
+
+  private byte[] createRequest(X509Certificate issuer, X509Certificate cert) throws Exception
+  {
+    CertificateID id = new CertificateID(
+        new JcaDigestCalculatorProviderBuilder().setProvider(SecurityProvider.BC.getProviderInstance())
+            .build().get(CertificateID.HASH_SHA1),
+        new JcaX509CertificateHolder(issuer),
+        cert.getSerialNumber()
+    );
+
+    return new OCSPReqBuilder().addRequest(id).build().getEncoded();
+  }
+
+  private byte[] post(URL url, byte[] request) throws IOException
+  {
+    HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", OCSPResponder.OCSP_REQUEST_CONTENT_TYPE);
+
+    OutputStream out = connection.getOutputStream();
+    out.write(request);
+    out.close();
+
+    try
+    {
+      return read(connection.getInputStream());
+    }
+
+    finally
+    {
+      connection.disconnect();
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] bytes = new byte[1024];
+    int len;
+
+    while ((len = in.read(bytes)) != -1)
+    {
+      buffer.write(bytes, 0, len);
+    }
+
+    in.close();
+
+    return buffer.toByteArray();
+  }
+}